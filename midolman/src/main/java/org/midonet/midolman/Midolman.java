@@ -54,6 +54,7 @@ import org.midonet.midolman.cluster.LegacyClusterModule;
 import org.midonet.midolman.cluster.serialization.SerializationModule;
 import org.midonet.midolman.cluster.zookeeper.ZookeeperConnectionModule;
 import org.midonet.midolman.config.MidolmanConfig;
+import org.midonet.midolman.config.MidolmanConfigWatcher;
 import org.midonet.midolman.logging.FlowTracingAppender;
 import org.midonet.midolman.services.MidolmanService;
 import org.midonet.midolman.simulation.PacketContext$;
@@ -223,6 +224,9 @@ public class Midolman {
         log.info("Loaded configuration: {}",
                  configurator.dropSchema(conf).root().render(renderOpts));
 
+        configurator.observableRuntimeConfig(HostIdGenerator.getHostId()).
+            subscribe(injector.getInstance(MidolmanConfigWatcher.class));
+
         // start the services
         injector.getInstance(MidonetBackend.class)
             .startAsync()
@@ -160,7 +160,7 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
                     writeLoop.shutdown();
             }
 
-            conn.getChannel().close();
+            conn.close();
         } finally {
             conn = null;
             writeLoop = null;
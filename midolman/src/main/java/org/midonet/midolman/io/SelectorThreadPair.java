@@ -143,7 +143,7 @@ public class SelectorThreadPair {
         } catch (ClosedChannelException ignored) {}
 
         try {
-            conn.getConnection().getChannel().close();
+            conn.getConnection().close();
         } catch (IOException ignored) {}
     }
 
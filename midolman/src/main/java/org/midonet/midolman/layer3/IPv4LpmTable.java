@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, array-backed longest prefix match table for IPv4 routes, with
+ * the same lookup semantics as the {@link RoutingTable}: the routes of the
+ * longest destination prefix are filtered by source prefix and the ones with
+ * the lowest weight are returned; if no route of that prefix matches the
+ * source, the next shorter prefix is tried.
+ *
+ * The table divides the address space in the ranges delimited by the routes'
+ * destination prefixes, each range mapping to its longest matching prefix. A
+ * lookup indexes a directory with the top bits of the destination address to
+ * find a small slice of the ranges, and then binary searches that slice. The
+ * number of directory bits grows with the number of ranges, up to 16, such
+ * that the memory use remains proportional to the number of prefixes.
+ *
+ * The ECMP groups for each weight of a prefix are computed when building the
+ * table, and lookups return them without allocating, except for prefixes
+ * where only some of the routes of the same weight match the source address.
+ */
+public final class IPv4LpmTable {
+
+    private static final int MAX_DIRECTORY_BITS = 16;
+    private static final int SIGN = 0x80000000;
+
+    public static final IPv4LpmTable EMPTY =
+        build(Collections.<Route>emptyList());
+
+    /** A normalized destination prefix and the routes that have it. */
+    private static final class Prefix {
+        final int addr;
+        final int length;
+        // The routes of the prefix, collected while building from a set of
+        // routes, and null when building from a trie.
+        final Set<Route> routeSet;
+        PrefixRoutes routes;
+        int entry;
+
+        Prefix(int addr, int length) {
+            this.addr = addr;
+            this.length = length;
+            this.routeSet = new HashSet<>();
+        }
+
+        Prefix(int addr, int length, PrefixRoutes routes) {
+            this.addr = addr;
+            this.length = length;
+            this.routeSet = null;
+            this.routes = routes;
+        }
+
+        long start() {
+            return addr & 0xFFFFFFFFL;
+        }
+
+        long end() {
+            return start() + (1L << (32 - length));
+        }
+    }
+
+    private final PrefixRoutes[] entries;
+    // The entry of the longest prefix containing each entry, or -1.
+    private final int[] parents;
+    // The start addresses of the ranges, with the sign bit flipped such that
+    // signed comparisons order them as unsigned addresses.
+    private final int[] starts;
+    // The entry for each range, or -1 for ranges without routes.
+    private final int[] targets;
+    // The first range to search for each value of the top directory bits.
+    private final int[] directory;
+    private final int shift;
+    private final int numRoutes;
+
+    private IPv4LpmTable(PrefixRoutes[] entries, int[] parents, int[] starts,
+                         int[] targets, int[] directory, int shift,
+                         int numRoutes) {
+        this.entries = entries;
+        this.parents = parents;
+        this.starts = starts;
+        this.targets = targets;
+        this.directory = directory;
+        this.shift = shift;
+        this.numRoutes = numRoutes;
+    }
+
+    /**
+     * Builds a table with the given routes. Equal routes are only added once,
+     * and the host bits of the destination addresses are ignored.
+     */
+    public static IPv4LpmTable build(Iterable<Route> routes) {
+        Map<Long, Prefix> prefixMap = new HashMap<>();
+        int numRoutes = 0;
+        for (Route rt : routes) {
+            int length = rt.dstNetworkLength;
+            int addr = length == 0 ? 0 : rt.dstNetworkAddr & (~0 << (32 - length));
+            long key = ((addr & 0xFFFFFFFFL) << 6) | length;
+            Prefix prefix = prefixMap.get(key);
+            if (prefix == null) {
+                prefix = new Prefix(addr, length);
+                prefixMap.put(key, prefix);
+            }
+            if (prefix.routeSet.add(rt))
+                numRoutes++;
+        }
+
+        // Sorting by start address and then by length places every prefix
+        // after the prefixes that contain it.
+        Prefix[] prefixes =
+            prefixMap.values().toArray(new Prefix[prefixMap.size()]);
+        Arrays.sort(prefixes, new Comparator<Prefix>() {
+            @Override
+            public int compare(Prefix p1, Prefix p2) {
+                int c = Long.compare(p1.start(), p2.start());
+                return c != 0 ? c : Integer.compare(p1.length, p2.length);
+            }
+        });
+        for (Prefix prefix : prefixes) {
+            prefix.routes = PrefixRoutes.of(prefix.routeSet);
+        }
+        return build(prefixes, numRoutes);
+    }
+
+    /**
+     * Builds a table with the routes of the given trie snapshot. The trie
+     * already groups the routes by prefix and visits the prefixes in order,
+     * such that the table is built in a single pass without sorting.
+     */
+    public static IPv4LpmTable build(IPv4RouteTrie trie) {
+        final Prefix[] prefixes = new Prefix[trie.numPrefixes()];
+        trie.forEachPrefix(new IPv4RouteTrie.PrefixVisitor() {
+            private int index = 0;
+            @Override
+            public void visit(int addr, int length, PrefixRoutes routes) {
+                prefixes[index++] = new Prefix(addr, length, routes);
+            }
+        });
+        return build(prefixes, trie.numRoutes());
+    }
+
+    /**
+     * Builds a table with the given prefixes, sorted by start address and
+     * then by length.
+     */
+    private static IPv4LpmTable build(Prefix[] prefixes, int numRoutes) {
+
+        // Compute the entries and the ranges in a single sweep, keeping the
+        // stack of prefixes containing the current address. Since prefixes
+        // are either nested or disjoint, the top of the stack is always the
+        // longest prefix for the current address.
+        PrefixRoutes[] entries = new PrefixRoutes[prefixes.length];
+        int[] parents = new int[prefixes.length];
+        List<Long> rangeStarts = new ArrayList<>(2 * prefixes.length + 1);
+        List<Integer> rangeTargets = new ArrayList<>(2 * prefixes.length + 1);
+        ArrayDeque<Prefix> stack = new ArrayDeque<>();
+        long position = 0L;
+        int next = 0;
+        while (position < (1L << 32)) {
+            while (!stack.isEmpty() && stack.peek().end() <= position) {
+                stack.pop();
+            }
+            while (next < prefixes.length &&
+                   prefixes[next].start() == position) {
+                Prefix prefix = prefixes[next++];
+                prefix.entry = next - 1;
+                entries[prefix.entry] = prefix.routes;
+                parents[prefix.entry] =
+                    stack.isEmpty() ? -1 : stack.peek().entry;
+                stack.push(prefix);
+            }
+            int target = stack.isEmpty() ? -1 : stack.peek().entry;
+            if (rangeTargets.isEmpty() ||
+                rangeTargets.get(rangeTargets.size() - 1) != target) {
+                rangeStarts.add(position);
+                rangeTargets.add(target);
+            }
+            // The next range starts where the innermost prefix ends, or where
+            // the next prefix starts, whichever comes first.
+            long end = stack.isEmpty() ? 1L << 32 : stack.peek().end();
+            if (next < prefixes.length && prefixes[next].start() < end)
+                end = prefixes[next].start();
+            position = end;
+        }
+
+        int ranges = rangeStarts.size();
+        int[] starts = new int[ranges];
+        int[] targets = new int[ranges];
+        for (int index = 0; index < ranges; index++) {
+            starts[index] = (int) (long) rangeStarts.get(index) ^ SIGN;
+            targets[index] = rangeTargets.get(index);
+        }
+
+        int bits = 1;
+        while (bits < MAX_DIRECTORY_BITS && (1 << bits) < ranges) {
+            bits++;
+        }
+        int shift = 32 - bits;
+        int[] directory = new int[(1 << bits) + 1];
+        int range = 0;
+        for (int bucket = 0; bucket < (1 << bits); bucket++) {
+            int bucketStart = (bucket << shift) ^ SIGN;
+            while (range + 1 < ranges && starts[range + 1] <= bucketStart) {
+                range++;
+            }
+            directory[bucket] = range;
+        }
+        directory[1 << bits] = ranges - 1;
+
+        return new IPv4LpmTable(entries, parents, starts, targets, directory,
+                                shift, numRoutes);
+    }
+
+    /**
+     * Returns the lowest weight routes for the longest destination prefix
+     * that has routes matching the source address. The returned list is
+     * immutable.
+     */
+    public List<Route> lookup(int src, int dst) {
+        int bucket = dst >>> shift;
+        int low = directory[bucket];
+        int high = directory[bucket + 1];
+        int key = dst ^ SIGN;
+        // Find the last range starting at or before the address.
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= key)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        int entry = targets[low];
+        while (entry >= 0) {
+            List<Route> routes = entries[entry].select(src);
+            if (routes != null)
+                return routes;
+            entry = parents[entry];
+        }
+        return Collections.emptyList();
+    }
+
+    /** Returns the number of distinct routes in the table. */
+    public int numRoutes() {
+        return numRoutes;
+    }
+
+    /** Returns the number of distinct destination prefixes in the table. */
+    public int numPrefixes() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A persistent IPv4 routing table, with the same lookup semantics as the
+ * {@link IPv4LpmTable}: the routes of the longest destination prefix are
+ * filtered by source prefix and the ones with the lowest weight are returned;
+ * if no route of that prefix matches the source, the next shorter prefix is
+ * tried.
+ *
+ * The table is an immutable, path-compressed binary trie of the destination
+ * prefixes. Adding or removing a route returns a new table that copies only
+ * the nodes on the path to the route's prefix and shares all other nodes with
+ * the current table, such that applying a route update costs O(32) instead of
+ * rebuilding the table from all routes. Every instance is a snapshot that can
+ * be used for lookups from any thread.
+ *
+ * As for the {@link IPv4LpmTable}, equal routes are only added once, the host
+ * bits of the destination addresses are ignored, and lookups do not allocate
+ * except for prefixes where only some of the routes of the same weight match
+ * the source address. The {@link IPv4RoutingTable} compiles an LPM table from
+ * a trie snapshot, which serves lookups without following the trie nodes.
+ */
+public final class IPv4RouteTrie {
+
+    public static final IPv4RouteTrie EMPTY = new IPv4RouteTrie(null, 0, 0);
+
+    /** Visits the destination prefixes of the trie that have routes. */
+    interface PrefixVisitor {
+        void visit(int addr, int length, PrefixRoutes routes);
+    }
+
+    /**
+     * A trie node for a destination prefix. Nodes without routes are glue
+     * nodes, which always have two children.
+     */
+    private static final class Node {
+        final int addr;
+        final int length;
+        final PrefixRoutes routes;
+        final Node left;
+        final Node right;
+
+        Node(int addr, int length, PrefixRoutes routes, Node left,
+             Node right) {
+            this.addr = addr;
+            this.length = length;
+            this.routes = routes;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node child(int bit) {
+            return bit == 0 ? left : right;
+        }
+
+        Node withRoutes(PrefixRoutes newRoutes) {
+            return new Node(addr, length, newRoutes, left, right);
+        }
+
+        Node withChild(int bit, Node child) {
+            return bit == 0 ? new Node(addr, length, routes, child, right)
+                            : new Node(addr, length, routes, left, child);
+        }
+    }
+
+    private final Node root;
+    private final int numRoutes;
+    private final int numPrefixes;
+
+    private IPv4RouteTrie(Node root, int numRoutes, int numPrefixes) {
+        this.root = root;
+        this.numRoutes = numRoutes;
+        this.numPrefixes = numPrefixes;
+    }
+
+    /**
+     * Returns a table with the given route added, or this table if it already
+     * contains the route.
+     */
+    public IPv4RouteTrie add(Route rt) {
+        int length = rt.dstNetworkLength;
+        int addr = rt.dstNetworkAddr & mask(length);
+        PrefixRoutes current = find(addr, length);
+        if (current != null && current.contains(rt))
+            return this;
+        return new IPv4RouteTrie(insert(root, addr, length, rt), numRoutes + 1,
+                                 current == null ? numPrefixes + 1
+                                                 : numPrefixes);
+    }
+
+    /**
+     * Returns a table with the given route removed, or this table if it does
+     * not contain the route.
+     */
+    public IPv4RouteTrie remove(Route rt) {
+        int length = rt.dstNetworkLength;
+        int addr = rt.dstNetworkAddr & mask(length);
+        PrefixRoutes current = find(addr, length);
+        if (current == null || !current.contains(rt))
+            return this;
+        return new IPv4RouteTrie(delete(root, addr, length, rt), numRoutes - 1,
+                                 current.size() == 1 ? numPrefixes - 1
+                                                     : numPrefixes);
+    }
+
+    /**
+     * Returns the lowest weight routes for the longest destination prefix
+     * that has routes matching the source address. The returned list is
+     * immutable.
+     */
+    public List<Route> lookup(int src, int dst) {
+        // Descend to the longest prefix with routes matching the destination.
+        // If none of its routes match the source, descend again, stopping
+        // before that prefix.
+        int limit = 33;
+        while (true) {
+            Node node = root;
+            Node longest = null;
+            while (node != null && node.length < limit &&
+                   ((node.addr ^ dst) & mask(node.length)) == 0) {
+                if (node.routes != null)
+                    longest = node;
+                if (node.length == 32)
+                    break;
+                node = node.child(bit(dst, node.length));
+            }
+            if (longest == null)
+                return Collections.emptyList();
+            List<Route> routes = longest.routes.select(src);
+            if (routes != null)
+                return routes;
+            limit = longest.length;
+        }
+    }
+
+    /**
+     * Visits the prefixes that have routes ordered by address and then by
+     * length, such that every prefix is visited after the prefixes that
+     * contain it.
+     */
+    void forEachPrefix(PrefixVisitor visitor) {
+        if (root == null)
+            return;
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.routes != null)
+                visitor.visit(node.addr, node.length, node.routes);
+            if (node.right != null)
+                stack.push(node.right);
+            if (node.left != null)
+                stack.push(node.left);
+        }
+    }
+
+    /** Returns the number of distinct routes in the table. */
+    public int numRoutes() {
+        return numRoutes;
+    }
+
+    /** Returns the number of distinct destination prefixes in the table. */
+    public int numPrefixes() {
+        return numPrefixes;
+    }
+
+    private static int mask(int length) {
+        return length == 0 ? 0 : ~0 << (32 - length);
+    }
+
+    /** Returns the bit of the address at the given position, from the most
+      * significant bit. */
+    private static int bit(int addr, int position) {
+        return (addr >>> (31 - position)) & 1;
+    }
+
+    /** Returns the length of the longest prefix common to both prefixes. */
+    private static int commonLength(int addr1, int length1, int addr2,
+                                    int length2) {
+        return Math.min(Math.min(length1, length2),
+                        Integer.numberOfLeadingZeros(addr1 ^ addr2));
+    }
+
+    private PrefixRoutes find(int addr, int length) {
+        Node node = root;
+        while (node != null && node.length <= length &&
+               commonLength(node.addr, node.length, addr, length) == node.length) {
+            if (node.length == length)
+                return node.routes;
+            node = node.child(bit(addr, node.length));
+        }
+        return null;
+    }
+
+    private static Node insert(Node node, int addr, int length, Route rt) {
+        if (node == null)
+            return new Node(addr, length, PrefixRoutes.of(rt), null, null);
+
+        int common = commonLength(node.addr, node.length, addr, length);
+        if (common == node.length && common == length) {
+            return node.withRoutes(node.routes == null ? PrefixRoutes.of(rt)
+                                                       : node.routes.with(rt));
+        }
+        if (common == node.length) {
+            int bit = bit(addr, common);
+            return node.withChild(bit, insert(node.child(bit), addr, length, rt));
+        }
+        if (common == length) {
+            Node added = new Node(addr, length, PrefixRoutes.of(rt), null, null);
+            return added.withChild(bit(node.addr, common), node);
+        }
+        // The prefixes diverge before either ends: join them with a glue node
+        // at their common prefix.
+        Node leaf = new Node(addr, length, PrefixRoutes.of(rt), null, null);
+        return bit(addr, common) == 0
+            ? new Node(addr & mask(common), common, null, leaf, node)
+            : new Node(addr & mask(common), common, null, node, leaf);
+    }
+
+    private static Node delete(Node node, int addr, int length, Route rt) {
+        if (node.length == length) {
+            return compact(node.addr, node.length, node.routes.without(rt),
+                           node.left, node.right);
+        }
+        int bit = bit(addr, node.length);
+        Node child = delete(node.child(bit), addr, length, rt);
+        return bit == 0
+            ? compact(node.addr, node.length, node.routes, child, node.right)
+            : compact(node.addr, node.length, node.routes, node.left, child);
+    }
+
+    /** Creates a node, removing it if it has no routes and less than two
+      * children. */
+    private static Node compact(int addr, int length, PrefixRoutes routes,
+                                Node left, Node right) {
+        if (routes == null) {
+            if (left == null)
+                return right;
+            if (right == null)
+                return left;
+        }
+        return new Node(addr, length, routes, left, right);
+    }
+}
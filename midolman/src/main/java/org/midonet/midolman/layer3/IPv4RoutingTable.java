@@ -19,28 +19,102 @@ package org.midonet.midolman.layer3;
 import java.util.List;
 
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.IPv4Addr;
 
 /**
- * TODO (galo) - transitional, wraps the legacy RoutesTrie implementation
- * into the new RoutingTableIfc interface. All classes depending on
- * RoutesTrie should be refactored to conform to the RoutesTrie interface.
+ * An IPv4 routing table that keeps its routes in a persistent
+ * {@link IPv4RouteTrie} and serves lookups from an immutable
+ * {@link IPv4LpmTable} compiled from the trie. Adding or removing a route
+ * updates the trie and discards the LPM table, and lookups are served from
+ * the trie until the LPM table is compiled again with {@link #compile()}.
+ * Callers that apply routes in bursts compile the table once the burst is
+ * over, such that the LPM table is not rebuilt for every route, whereas a
+ * table populated once and then only used for lookups never locks nor
+ * allocates on the lookup path.
  */
 public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
 
-    private RoutingTable legacyTable = new RoutingTable();
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
 
-    public void addRoute(Route rt) {
-        legacyTable.addRoute(rt);
+    private volatile IPv4RouteTrie routes;
+    private volatile IPv4LpmTable table;
+
+    public IPv4RoutingTable() {
+        this(IPv4RouteTrie.EMPTY);
+    }
+
+    /**
+     * Creates a routing table with the routes of the given trie snapshot.
+     */
+    public IPv4RoutingTable(IPv4RouteTrie routes) {
+        this.routes = routes;
+    }
+
+    public synchronized void addRoute(Route rt) {
+        log.debug("addRoute: {}", rt);
+        IPv4RouteTrie updated = routes.add(rt);
+        if (updated != routes) {
+            table = null;
+            routes = updated;
+        }
+    }
+
+    public synchronized void removeRoute(Route rt) {
+        log.debug("removeRoute: {}", rt);
+        IPv4RouteTrie updated = routes.remove(rt);
+        if (updated != routes) {
+            table = null;
+            routes = updated;
+        }
+    }
+
+    /**
+     * Builds the LPM table for the current routes, if they have changed since
+     * the table was last built.
+     */
+    public synchronized IPv4LpmTable compile() {
+        IPv4LpmTable current = table;
+        if (current == null) {
+            current = IPv4LpmTable.build(routes);
+            table = current;
+        }
+        return current;
+    }
+
+    /** Indicates whether the lookups are served from the LPM table. */
+    public boolean isCompiled() {
+        return table != null;
+    }
+
+    /** Returns the snapshot of the current routes. */
+    public IPv4RouteTrie routes() {
+        return routes;
+    }
+
+    public int numRoutes() {
+        return routes.numRoutes();
+    }
+
+    public List<Route> lookup(int src, int dst) {
+        IPv4LpmTable current = table;
+        return current != null ? current.lookup(src, dst)
+                               : routes.lookup(src, dst);
     }
 
     public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
-        return legacyTable.lookup(src.toInt(), dst.toInt());
+        return lookup(src, dst, log);
     }
 
     public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
-        return legacyTable.lookup(src.toInt(), dst.toInt(), logger);
+        List<Route> routes = lookup(src.toInt(), dst.toInt());
+        if (logger.isDebugEnabled()) {
+            logger.debug("lookup: return {} for src {} dst {} in table with "
+                         + "{} routes", routes, src, dst, numRoutes());
+        }
+        return routes;
     }
 
 }
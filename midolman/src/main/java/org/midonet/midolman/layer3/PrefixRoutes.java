@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * The immutable set of routes for a destination prefix, sorted by weight,
+ * with the routes of each weight precomputed as an immutable list. Adding or
+ * removing a route returns a new instance, leaving the current one unchanged.
+ */
+final class PrefixRoutes {
+
+    private static final Comparator<Route> WEIGHT_ORDER =
+        new Comparator<Route>() {
+            @Override
+            public int compare(Route r1, Route r2) {
+                return Integer.compare(r1.weight, r2.weight);
+            }
+        };
+
+    private final Route[] routes;
+    private final int[] tiers;
+    private final List<Route>[] groups;
+    private final boolean anySource;
+
+    @SuppressWarnings("unchecked")
+    private PrefixRoutes(Route[] routes) {
+        this.routes = routes;
+
+        List<Integer> starts = new ArrayList<>();
+        boolean any = true;
+        for (int index = 0; index < routes.length; index++) {
+            if (index == 0 || routes[index].weight != routes[index - 1].weight)
+                starts.add(index);
+            any &= routes[index].srcNetworkLength == 0;
+        }
+        starts.add(routes.length);
+        anySource = any;
+
+        tiers = new int[starts.size()];
+        groups = new List[starts.size() - 1];
+        for (int tier = 0; tier < tiers.length; tier++) {
+            tiers[tier] = starts.get(tier);
+        }
+        for (int tier = 0; tier < groups.length; tier++) {
+            groups[tier] = Collections.unmodifiableList(Arrays.asList(
+                Arrays.copyOfRange(routes, tiers[tier], tiers[tier + 1])));
+        }
+    }
+
+    /** Creates the routes for a prefix from a non-empty set of routes. */
+    static PrefixRoutes of(Collection<Route> prefixRoutes) {
+        Route[] routes =
+            prefixRoutes.toArray(new Route[prefixRoutes.size()]);
+        Arrays.sort(routes, WEIGHT_ORDER);
+        return new PrefixRoutes(routes);
+    }
+
+    /** Creates the routes for a prefix with a single route. */
+    static PrefixRoutes of(Route route) {
+        return new PrefixRoutes(new Route[] { route });
+    }
+
+    int size() {
+        return routes.length;
+    }
+
+    boolean contains(Route route) {
+        return indexOf(route) >= 0;
+    }
+
+    /**
+     * Returns the routes with the given route added after the routes of the
+     * same weight, or this instance if the route is already present.
+     */
+    PrefixRoutes with(Route route) {
+        if (contains(route))
+            return this;
+        int position = routes.length;
+        while (position > 0 && routes[position - 1].weight > route.weight) {
+            position--;
+        }
+        Route[] added = new Route[routes.length + 1];
+        System.arraycopy(routes, 0, added, 0, position);
+        added[position] = route;
+        System.arraycopy(routes, position, added, position + 1,
+                         routes.length - position);
+        return new PrefixRoutes(added);
+    }
+
+    /**
+     * Returns the routes without the given route, this instance if the route
+     * is not present, or null if it was the only route.
+     */
+    PrefixRoutes without(Route route) {
+        int position = indexOf(route);
+        if (position < 0)
+            return this;
+        if (routes.length == 1)
+            return null;
+        Route[] removed = new Route[routes.length - 1];
+        System.arraycopy(routes, 0, removed, 0, position);
+        System.arraycopy(routes, position + 1, removed, position,
+                         routes.length - position - 1);
+        return new PrefixRoutes(removed);
+    }
+
+    /**
+     * Returns the lowest weight routes matching the source address, or
+     * null if no route matches.
+     */
+    List<Route> select(int src) {
+        if (anySource)
+            return groups[0];
+        for (int tier = 0; tier < groups.length; tier++) {
+            int matches = 0;
+            for (int index = tiers[tier]; index < tiers[tier + 1]; index++) {
+                Route rt = routes[index];
+                if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                         rt.srcNetworkLength))
+                    matches++;
+            }
+            if (matches == tiers[tier + 1] - tiers[tier])
+                return groups[tier];
+            if (matches > 0) {
+                List<Route> result = new ArrayList<>(matches);
+                for (int index = tiers[tier]; index < tiers[tier + 1];
+                     index++) {
+                    Route rt = routes[index];
+                    if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                             rt.srcNetworkLength))
+                        result.add(rt);
+                }
+                return Collections.unmodifiableList(result);
+            }
+        }
+        return null;
+    }
+
+    private int indexOf(Route route) {
+        for (int index = 0; index < routes.length; index++) {
+            if (routes[index].equals(route))
+                return index;
+        }
+        return -1;
+    }
+}
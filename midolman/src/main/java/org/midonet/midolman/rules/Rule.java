@@ -184,6 +184,17 @@ public abstract class Rule extends BaseConfig {
         return Chain.CONTINUE();
     }
 
+    /**
+     * Records this rule as not matched without evaluating its condition. This
+     * is used by compiled chains for the rules that their classifier has
+     * already excluded for the packet.
+     */
+    public RuleResult skip(PacketContext pktCtx) {
+        pktCtx.recordMatchedRule(id, false);
+        pktCtx.recordAppliedRule(id, false);
+        return Chain.CONTINUE();
+    }
+
     public Condition getCondition() {
         return condition;
     }
@@ -29,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.host.services.HostService;
+import org.midonet.midolman.monitoring.FlowRecorder;
 import org.midonet.midolman.state.PeerResolver;
 import org.midonet.midolman.topology.VirtualToPhysicalMapper;
 import org.midonet.midolman.topology.VirtualTopology;
@@ -68,6 +69,9 @@ public class MidolmanService extends AbstractService {
     @Inject
     PeerResolver resolver;
 
+    @Inject
+    FlowRecorder flowRecorder;
+
     private JmxReporter jmxReporter = null;
 
     @Override
@@ -134,6 +138,13 @@ public class MidolmanService extends AbstractService {
             }
         }
 
+        log.info("Stopping flow recorder");
+        try {
+            flowRecorder.stop();
+        } catch (Exception e) {
+            log.error("Exception while stopping the flow recorder", e);
+        }
+
         log.info("Stopping executors");
         try {
             virtualTopology.vtExecutor().shutdown();
@@ -47,6 +47,14 @@ public interface FlowStateTable<K, V> {
      */
     V get(K key);
 
+    /**
+     * Gets the current value for a given key in this table only. A shard of
+     * a sharded table does not look up the key in the other shards.
+     */
+    default V shallowGet(K key) {
+        return get(key);
+    }
+
     /**
      * Increases the reference count for a key. Returns the value currently
      * associated with the key, or null if there's no such value and the
@@ -19,6 +19,8 @@ package org.midonet.cluster.state
 import java.nio.{BufferUnderflowException, ByteBuffer}
 import java.util.UUID
 
+import scala.collection.JavaConverters._
+
 import org.apache.commons.codec.DecoderException
 import org.apache.commons.codec.binary.Hex
 
@@ -37,6 +39,10 @@ object RoutingTableStorage {
 
     private final val NoRoutes = Set.empty[Route]
 
+    /** The default maximum number of concurrent storage operations when
+      * adding or removing a batch of routes. */
+    final val MaxConcurrentRouteOps = 64
+
     implicit def asRoutingTable(store: StateStorage): RoutingTableStorage = {
         new RoutingTableStorage(store)
     }
@@ -222,6 +228,40 @@ class RoutingTableStorage(val store: StateStorage) extends AnyVal {
         }
     }
 
+    /** Adds a batch of [[NextHop.PORT]] routes as state values to the
+      * specified port. The returned observable executes the additions when
+      * subscribed to, with up to `maxConcurrent` additions in flight, and
+      * emits the result of each addition.
+      *
+      * @param routes the routes to add
+      * @param portIdOpt the port to add the routes to. If None, then the
+      *                  route.nextHopPort of every route is used
+      */
+    def addRoutes(routes: Iterable[Route], portIdOpt: Option[UUID] = None,
+                  maxConcurrent: Int = MaxConcurrentRouteOps)
+    : Observable[StateResult] = {
+        Observable.merge[StateResult](
+            Observable.from(routes.map(addRoute(_, portIdOpt)).asJava),
+            maxConcurrent)
+    }
+
+    /** Removes a batch of [[NextHop.PORT]] routes from the state table of the
+      * specified port. The returned observable executes the removals when
+      * subscribed to, with up to `maxConcurrent` removals in flight, and
+      * emits the result of each removal.
+      *
+      * @param routes the routes to remove
+      * @param portIdOpt the port to remove the routes from. If None, then the
+      *                  route.nextHopPort of every route is used
+      */
+    def removeRoutes(routes: Iterable[Route], portIdOpt: Option[UUID] = None,
+                     maxConcurrent: Int = MaxConcurrentRouteOps)
+    : Observable[StateResult] = {
+        Observable.merge[StateResult](
+            Observable.from(routes.map(removeRoute(_, portIdOpt)).asJava),
+            maxConcurrent)
+    }
+
     /** Fetches the set of routes from the state key of the given port using
       * the state for the specified host. */
     def getPortRoutes(portId: UUID, hostId: UUID): Observable[Set[Route]] = {
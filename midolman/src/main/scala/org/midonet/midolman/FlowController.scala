@@ -68,6 +68,8 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         Util.findNextPositivePowerOfTwo(maxFlows))
     private var mask = indexToFlow.length - 1
 
+    metrics.trackFlowTagIndex(this)
+
     val meters = new MeterRegistry(maxFlows)
     Metering.registerAsMXBean(meters)
 
@@ -128,6 +130,24 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         }
     }
 
+    override protected def idleExpiration = config.idleFlowExpiration
+
+    // Leave at least half of the flow operations for flow deletes.
+    override protected def maxPendingFlowStats = flowProcessor.capacity / 2
+
+    override protected def requestFlowStats(flow: ManagedFlow): Boolean = {
+        val flowOp = pooledFlowOperations.take
+        if (flowOp eq null)
+            return false
+        flowOp.reset(FlowOperation.GET, flow, retries = 0)
+        if (flowProcessor.tryGet(datapathId, flow.flowMatch, flowOp)) {
+            true
+        } else {
+            flowOp.clear()
+            false
+        }
+    }
+
     override def shouldProcess() = completedFlowOperations.size > 0
 
     override def process(): Unit = {
@@ -173,7 +193,9 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
-            if (req.isFailed) {
+            if (req.opId == FlowOperation.GET) {
+                flowGetCompleted(req)
+            } else if (req.isFailed) {
                 flowDeleteFailed(req)
             } else {
                 flowDeleteSucceeded(req)
@@ -226,6 +248,23 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         req.clear()
     }
 
+    private def flowGetCompleted(req: FlowOperation): Unit = {
+        // Return the operation to the pool before reporting the statistics.
+        // The expiration indexer keeps its own reference to the flow.
+        val flow = req.managedFlow
+        if (req.isFailed) {
+            log.debug(s"Failed to get the statistics of $flow", req.failure)
+            req.clear()
+            flowStatsFailed(flow)
+        } else {
+            val stats = req.flowMetadata.getStats
+            meters.updateFlow(flow.flowMatch, stats)
+            val packets = stats.getPackets
+            req.clear()
+            flowStatsReceived(flow, packets, clock.tick)
+        }
+    }
+
     private val flowOperationParkable = new Parkable {
         override def shouldWakeUp() = completedFlowOperations.size > 0
     }
@@ -239,7 +278,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
                 flowOperationParkable.park()
             }
         }
-        flowOp.reset(flow, retries = 10)
+        flowOp.reset(FlowOperation.DELETE, flow, retries = 10)
         flowOp
     }
 
@@ -39,7 +39,7 @@ import org.midonet.cluster.backend.zookeeper.ZkConnectionAwareWatcher
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.storage.{FlowStateStorage, MidonetBackendConfig}
 import org.midonet.conf.HostIdGenerator
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigWatcher}
 import org.midonet.midolman.datapath._
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.host.scanner.{DefaultInterfaceScanner, InterfaceScanner}
@@ -70,6 +70,8 @@ class MidolmanModule(injector: Injector,
 
     override def configure(): Unit = {
         bind(classOf[MidolmanConfig]).toInstance(config)
+        bind(classOf[MidolmanConfigWatcher])
+            .toInstance(new MidolmanConfigWatcher(config))
         val host = hostId()
         bind(classOf[HostIdProvider]).toInstance(new HostIdProvider {
             override def hostId(): UUID = host
@@ -105,14 +107,11 @@ class MidolmanModule(injector: Injector,
 
         val capacity = Util.findNextPositivePowerOfTwo(
             config.datapath.globalIncomingBurstCapacity)
-        val ringBuffer = RingBuffer
-            .createMultiProducer(DisruptorDatapathChannel.Factory, capacity)
-        val barrier = ringBuffer.newBarrier()
         val fp = flowProcessor(dpState, families, channelFactory, backChannel)
         val channel = datapathChannel(
-            ringBuffer, barrier, fp, dpState, families, channelFactory)
+            capacity, fp, dpState, families, channelFactory)
         bind(classOf[FlowProcessor]).toInstance(fp)
-        bind(classOf[DatapathChannel]).toInstance(channel)
+        bind(classOf[WorkerDatapathChannels]).toInstance(channel)
 
         bind(classOf[DatapathConnectionPool]).toInstance(connectionPool())
         val dpConnectionManager = upcallDatapathConnectionManager(policy)
@@ -175,7 +174,8 @@ class MidolmanModule(injector: Injector,
             config,
             new TokenBucketSystemRate(counter, multiplier),
             multiplier,
-            tb => new Bucket(tb, multiplier, counter, config.simulationThreads, atomic))
+            tb => new Bucket(tb, multiplier, counter, config.simulationThreads, atomic),
+            new DatapathMetrics(metricRegistry))
     }
 
     protected def netlinkChannelFactory() =
@@ -217,7 +217,8 @@ class MidolmanModule(injector: Injector,
             SelectorProvider.provider,
             backChannel,
             new DatapathMetrics(metricRegistry),
-            NanoClock.DEFAULT)
+            NanoClock.DEFAULT,
+            config.datapath.flowCreateBatchSize)
 
     protected def createProcessors(
             ringBuffer: RingBuffer[PacketContextHolder],
@@ -251,22 +252,82 @@ class MidolmanModule(injector: Injector,
         processors
     }
 
+    protected def createShardedProcessors(
+            ringBuffers: Array[RingBuffer[PacketContextHolder]],
+            flowProcessor: FlowProcessor,
+            dpState: DatapathState,
+            families: OvsNetlinkFamilies,
+            channelFactory: NetlinkChannelFactory) = {
+        val threads = Math.max(config.outputChannels, 1)
+        val processors =
+            new Array[RoundRobinEventProcessor[PacketContextHolder]](threads)
+        val fpHandlers = Array.tabulate[EventPoller.Handler[PacketContextHolder]](
+            ringBuffers.length)(flowProcessor.shardHandler)
+        if (threads == 1) {
+            val pexec = new PacketExecutor(
+                dpState, families, 1, 0, channelFactory,
+                new PacketExecutorMetrics(metricRegistry, 0))
+            val pexecHandler = new EventPollerHandlerAdapter(pexec)
+            processors(0) = new RoundRobinEventProcessor(
+                ringBuffers,
+                fpHandlers.map(fpHandler =>
+                    new AggregateEventPollerHandler(fpHandler, pexecHandler)
+                        .asInstanceOf[EventPoller.Handler[PacketContextHolder]]),
+                flowProcessor,
+                flowProcessor, pexec)
+        } else {
+            val numPacketHandlers = threads - 1
+            for (i <- 0 until numPacketHandlers) {
+                val pexec = new PacketExecutor(
+                    dpState, families, numPacketHandlers, i, channelFactory,
+                    new PacketExecutorMetrics(metricRegistry, i))
+                val pexecHandler = new EventPollerHandlerAdapter(pexec)
+                processors(i) = new RoundRobinEventProcessor(
+                    ringBuffers,
+                    Array.fill[EventPoller.Handler[PacketContextHolder]](
+                        ringBuffers.length)(pexecHandler),
+                    RoundRobinEventProcessor.NoBackChannel,
+                    pexec)
+            }
+            processors(numPacketHandlers) = new RoundRobinEventProcessor(
+                ringBuffers, fpHandlers, flowProcessor, flowProcessor)
+        }
+        processors
+    }
+
     protected def datapathChannel(
-            ringBuffer: RingBuffer[PacketContextHolder],
-            barrier: SequenceBarrier,
+            capacity: Int,
             flowProcessor: FlowProcessor,
             dpState: DatapathState,
             families: OvsNetlinkFamilies,
-            channelFactory: NetlinkChannelFactory): DatapathChannel = {
-        new DisruptorDatapathChannel(
-            ringBuffer,
-            createProcessors(
+            channelFactory: NetlinkChannelFactory): WorkerDatapathChannels = {
+        if (config.shardedOutputChannel) {
+            // One shard for every simulation worker started by the
+            // PacketsEntryPoint.
+            val shards = PacketsEntryPoint.workerCount(config.simulationThreads)
+            val ringBuffers = Array.fill(shards)(RingBuffer.createSingleProducer(
+                DisruptorDatapathChannel.Factory, capacity))
+            new ShardedDatapathChannel(
+                ringBuffers,
+                createShardedProcessors(
+                    ringBuffers,
+                    flowProcessor,
+                    dpState,
+                    families,
+                    channelFactory))
+        } else {
+            val ringBuffer = RingBuffer
+                .createMultiProducer(DisruptorDatapathChannel.Factory, capacity)
+            new DisruptorDatapathChannel(
                 ringBuffer,
-                barrier,
-                flowProcessor,
-                dpState,
-                families,
-                channelFactory))
+                createProcessors(
+                    ringBuffer,
+                    ringBuffer.newBarrier(),
+                    flowProcessor,
+                    dpState,
+                    families,
+                    channelFactory))
+        }
     }
 
     protected def upcallDatapathConnectionManager(
@@ -343,7 +404,7 @@ class MidolmanModule(injector: Injector,
     }
 
     protected def flowRecorder(hostId: UUID): FlowRecorder =
-        FlowRecorder(config, hostId)
+        FlowRecorder(config, hostId, metricRegistry)
 
     protected def flowTracingAppender() = {
         val cass = new CassandraClient(
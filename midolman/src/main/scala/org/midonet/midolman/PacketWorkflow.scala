@@ -16,9 +16,10 @@
 
 package org.midonet.midolman
 
+import java.io.Closeable
 import java.lang.{Integer => JInteger}
 import java.util.UUID
-import java.util.ArrayDeque
+import java.util.{ArrayDeque, ArrayList}
 import java.util.concurrent.TimeUnit
 
 import scala.concurrent.duration._
@@ -31,10 +32,11 @@ import akka.actor._
 import org.slf4j.{LoggerFactory, MDC}
 
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigWatcher}
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.FlowExpirationIndexer
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
+import org.midonet.midolman.io.{TokenBucketPolicy, UpcallRings}
 import org.midonet.midolman.logging.{ActorLogWithoutPath, FlowTracingContext}
 import org.midonet.midolman.management.PacketTracing
 import org.midonet.midolman.monitoring.FlowRecorder
@@ -51,6 +53,7 @@ import org.midonet.midolman.topology.RouterMapper.InvalidateFlows
 import org.midonet.midolman.topology.{VirtualTopology, VxLanPortMappingService}
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.odp._
+import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.output
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets._
@@ -63,6 +66,20 @@ import org.midonet.util.logging.Logger
 
 object PacketWorkflow {
     case class HandlePackets(packet: Array[Packet])
+    case object DrainUpcalls
+
+    /**
+     * The maximum number of packets taken from each upcall ring between two
+     * calls to process().
+     */
+    val UpcallBatchSize = 16
+
+    /**
+     * The maximum time a worker spends draining its upcall rings before
+     * yielding to its mailbox.
+     */
+    val UpcallDrainSliceNanos = TimeUnit.MILLISECONDS.toNanos(1)
+
     case class RestartWorkflow(context: PacketContext, error: Throwable)
         extends BackChannelMessage
 
@@ -182,7 +199,10 @@ class PacketWorkflow(
             val metrics: PacketPipelineMetrics,
             val flowRecorder: FlowRecorder,
             val vt: VirtualTopology,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val upcallRings: UpcallRings = null,
+            val tbPolicy: TokenBucketPolicy = null,
+            val configWatcher: MidolmanConfigWatcher = null)
         extends Actor with ActorLogWithoutPath with Stash with DisruptorBackChannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with MetadataServiceWorkflow with FlowController {
@@ -197,6 +217,7 @@ class PacketWorkflow(
 
     protected val simulationExpireMillis = 5000L
     private val maxPooledContexts = config.maxPooledContexts
+    private val adaptiveAdmission = (tbPolicy ne null) && tbPolicy.adaptive
 
     private val waitingRoom = new WaitingRoom[PacketContext](
                                         (simulationExpireMillis millis).toNanos)
@@ -215,7 +236,10 @@ class PacketWorkflow(
             peerResolver,
             dpState,
             this,
-            config)
+            config,
+            metrics.flowStateBatchSize,
+            clock)
+    private val peerStateActions = new ArrayList[FlowAction]()
 
     protected val datapathId = dpState.datapath.getIndex
 
@@ -237,8 +261,51 @@ class PacketWorkflow(
             }
         }
 
+    private val handleUpcall: Packet => Unit = handlePacket
+
     system.scheduler.schedule(20 millis, 5 seconds, self, CheckBackchannels)
 
+    override def preStart(): Unit = {
+        super.preStart()
+        if (configWatcher ne null) {
+            configWatcher.addListener(replicator)
+            configWatcher.addListener(arpBroker)
+        }
+        if (upcallRings ne null) {
+            upcallRings.setWaker(() => self ! DrainUpcalls)
+            self ! DrainUpcalls
+        }
+    }
+
+    private var restarting = false
+
+    override def preRestart(reason: Throwable, message: Option[Any]): Unit = {
+        // The restarted worker keeps using the same state table shards and
+        // flow recorder.
+        restarting = true
+        super.preRestart(reason, message)
+    }
+
+    override def postStop(): Unit = {
+        if (configWatcher ne null) {
+            configWatcher.removeListener(replicator)
+            configWatcher.removeListener(arpBroker)
+        }
+        if (!restarting) {
+            closeShard(connTrackStateTable)
+            closeShard(natStateTable)
+            flowRecorder.release()
+        }
+        super.postStop()
+    }
+
+    /* Releases the shards that hold a reference to the memory of their table,
+     * such that it is freed once no worker uses the table anymore. */
+    private def closeShard(shard: FlowStateTable[_, _]): Unit = shard match {
+        case closeable: Closeable => closeable.close()
+        case _ =>
+    }
+
     override def receive = {
         case HandlePackets(packets) =>
             var i = 0
@@ -248,10 +315,32 @@ class PacketWorkflow(
             }
             process()
 
+        case DrainUpcalls =>
+            // When the rings are empty the worker goes idle, and the next
+            // published packet wakes it up with another DrainUpcalls.
+            if (drainUpcalls() || !upcallRings.markIdle())
+                self ! DrainUpcalls
+
         case CheckBackchannels =>
             process()
     }
 
+    /**
+     * Drains the upcall rings until they are empty or for at most a time
+     * slice, processing the back channels after every batch of packets.
+     * Returning at the end of the slice lets the actor handle its mailbox.
+     * Returns whether the slice ended before the rings were empty.
+     */
+    private def drainUpcalls(): Boolean = {
+        val deadline = NanoClock.DEFAULT.tick + UpcallDrainSliceNanos
+        var n = 0
+        do {
+            n = upcallRings.drain(handleUpcall, UpcallBatchSize)
+            process()
+        } while (n > 0 && NanoClock.DEFAULT.tick < deadline)
+        n > 0
+    }
+
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
         backChannel.hasMessages ||
@@ -298,6 +387,38 @@ class PacketWorkflow(
         arpBroker.process()
         waitingRoom.doExpirations(giveUpWorkflow)
         checkProcessedContexts()
+        flushPeerState()
+        replicator.flushState()
+    }
+
+    /**
+     * Hands off the state aggregated by the replicator during this batch,
+     * each message in its own context, such that the packet executors send
+     * them to the peers. A message is encoded in the state message of its
+     * context, which sends it in a packet reused along with the context.
+     * The state is handed off after the packets of the batch, whose flows
+     * may reach the peers before it.
+     */
+    private def flushPeerState(): Unit = {
+        if (!replicator.hasPeerState)
+            return
+        var context = takeContext()
+        var length = replicator.nextPeerState(context.stateMessage,
+                                              peerStateActions)
+        while (length > 0) {
+            val packet = context.peerStatePacket(length)
+            packet.startTimeNanos = NanoClock.DEFAULT.tick
+            prepare(context, cookieGen.next, packet, packet.getMatch,
+                    null, null)
+            context.packetActions.addAll(peerStateActions)
+            peerStateActions.clear()
+            context.log.debug("Sending aggregated flow state to peers")
+            handoff(context)
+            context = takeContext()
+            length = replicator.nextPeerState(context.stateMessage,
+                                              peerStateActions)
+        }
+        returnContext(context)
     }
 
     protected def packetContext(packet: Packet): PacketContext =
@@ -318,7 +439,12 @@ class PacketWorkflow(
     private def initialize(cookie: Long, packet: Packet, fmatch: FlowMatch,
                            egressPortId: UUID, egressPortNo: JInteger) = {
         log.debug(s"Building PacketContext for cookie $cookie")
-        val context = if (contextPool.peek() != null) {
+        prepare(takeContext(), cookie, packet, fmatch, egressPortId,
+                egressPortNo)
+    }
+
+    private def takeContext(): PacketContext =
+        if (contextPool.peek() != null) {
             log.debug("Taking context from pool")
             metrics.contextsPooled.dec()
             contextPool.remove()
@@ -327,6 +453,10 @@ class PacketWorkflow(
             metrics.contextsAllocated.inc()
             new PacketContext()
         }
+
+    private def prepare(context: PacketContext, cookie: Long, packet: Packet,
+                        fmatch: FlowMatch, egressPortId: UUID,
+                        egressPortNo: JInteger): PacketContext = {
         context.prepare(cookie, packet, fmatch,
                         egressPortId, egressPortNo,
                         backChannel, arpBroker)
@@ -379,7 +509,7 @@ class PacketWorkflow(
             pktCtx.log.debug("Restarting workflow")
             MDC.put("cookie", pktCtx.cookieStr)
             if (error eq null) {
-                runWorkflow(pktCtx)
+                runAdmittedWorkflow(pktCtx)
             } else {
                 handleErrorOn(pktCtx, error)
                 waitingRoom leave pktCtx
@@ -462,7 +592,7 @@ class PacketWorkflow(
         try {
             MDC.put("cookie", context.cookieStr)
             context.log.debug(s"New cookie for new match ${context.origMatch}")
-            runWorkflow(context)
+            runAdmittedWorkflow(context)
         } finally {
             if (context.ingressed)
                 packetOut(1)
@@ -470,6 +600,21 @@ class PacketWorkflow(
             FlowTracingContext.clearContext()
         }
 
+    /**
+     * Runs the workflow of a packet, recording its simulation time for the
+     * input port when the admission of upcalls is adaptive.
+     */
+    private def runAdmittedWorkflow(pktCtx: PacketContext): Unit =
+        if (adaptiveAdmission && pktCtx.ingressed) {
+            // Read the port before the context is handed off.
+            val portNo = pktCtx.origMatch.getInputPortNumber
+            val start = clock.tick
+            runWorkflow(pktCtx)
+            tbPolicy.recordSimulation(portNo, start, clock.tick)
+        } else {
+            runWorkflow(pktCtx)
+        }
+
     protected def runWorkflow(pktCtx: PacketContext): Unit =
         try {
             complete(pktCtx, start(pktCtx))
@@ -488,13 +633,19 @@ class PacketWorkflow(
                 handleErrorOn(pktCtx, ex)
         }
 
-    private def handlePacket(packet: Packet): Unit =
+    private def handlePacket(packet: Packet): Unit = {
+        if (packet.startTimeNanos != 0) {
+            metrics.upcallLatency.update(
+                NanoClock.DEFAULT.tick - packet.startTimeNanos,
+                TimeUnit.NANOSECONDS)
+        }
         if (FlowState.isStateMessage(packet.getMatch)) {
             handleStateMessage(packetContext(packet))
             packetOut(1)
         } else {
             processPacket(packet)
         }
+    }
 
     private def processPacket(packet: Packet): Unit =
         startWorkflow(packetContext(packet))
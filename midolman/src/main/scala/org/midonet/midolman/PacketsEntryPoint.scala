@@ -29,21 +29,22 @@ import com.codahale.metrics.MetricRegistry
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
-import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigWatcher}
+import org.midonet.midolman.datapath.{FlowProcessor, WorkerDatapathChannels}
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.FlowRecorder
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.services.HostIdProvider
 import org.midonet.midolman.simulation.DhcpConfigFromNsdb
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.io.{TokenBucketPolicy, UpcallRings}
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.topology.RouterMapper.InvalidateFlows
-import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser, PeerResolver}
+import org.midonet.midolman.state.{BitmapNatLeaser, ConnTrackState, FlowStateStorageFactory, NatBlockAllocator, NatLeaser, NatState, PeerResolver}
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.packets.NatState.NatBinding
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.sdn.state.{OffHeapFlowStateTable, ShardableFlowStateTable, ShardedFlowStateTable}
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.logging.Logger
@@ -53,7 +54,21 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /**
+     * Returns the number of packet workers started for the given number of
+     * simulation threads, which is between 1 and 16.
+     */
+    def workerCount(simulationThreads: Int): Int =
+        if (simulationThreads <= 0) 1
+        else if (simulationThreads > 16) 16
+        else simulationThreads
+
+    /**
+     * The packet workers. When the upcall rings are enabled, `rings` holds
+     * the rings through which the upcall handlers reach each worker.
+     */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       rings: IndexedSeq[UpcallRings] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
@@ -62,22 +77,20 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     private var _NUM_WORKERS = 1
     def NUM_WORKERS = _NUM_WORKERS
     private def NUM_WORKERS_=(n: Int) {
-        if (n <= 0)
-            _NUM_WORKERS = 1
-        else if (n > 16)
-            _NUM_WORKERS = 16
-        else
-            _NUM_WORKERS = n
+        _NUM_WORKERS = workerCount(n)
     }
 
     @Inject
     var config: MidolmanConfig = null
 
+    @Inject
+    var configWatcher: MidolmanConfigWatcher = null
+
     implicit val as = context.system
     implicit val ec = context.dispatcher
 
     @Inject
-    var dpChannel: DatapathChannel = _
+    var dpChannel: WorkerDatapathChannels = _
 
     @Inject
     var vt: VirtualTopology = null
@@ -89,6 +102,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     var metricsRegistry: MetricRegistry = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var upcallRings = immutable.IndexedSeq[UpcallRings]()
 
     @Inject
     var counter: StatisticalCounter = null
@@ -117,8 +131,11 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     @Inject
     var peerResolver: PeerResolver = _
 
-    var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
-    var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
+    @Inject
+    var tbPolicy: TokenBucketPolicy = _
+
+    var connTrackStateTable: ShardableFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natStateTable: ShardableFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
     var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
 
@@ -126,12 +143,28 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         super.preStart()
         NUM_WORKERS = config.simulationThreads
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
-        natLeaser = new NatLeaser {
-            val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
-            val allocator = natBlockAllocator
-            val clock = PacketsEntryPoint.this.clock
+        if (config.offHeapFlowState) {
+            val capacity = config.offHeapFlowStateCapacity
+            connTrackStateTable = new OffHeapFlowStateTable(
+                ConnTrackState.ConnTrackCodec, capacity, clock)
+            natStateTable = new OffHeapFlowStateTable(
+                NatState.NatCodec, capacity, clock)
+        } else {
+            connTrackStateTable = new ShardedFlowStateTable(clock)
+            natStateTable = new ShardedFlowStateTable(clock)
+        }
+        natLeaser = if (config.bitmapNatLeaser) {
+            new BitmapNatLeaser {
+                val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
+                val allocator = natBlockAllocator
+                val clock = PacketsEntryPoint.this.clock
+            }
+        } else {
+            new NatLeaser {
+                val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
+                val allocator = natBlockAllocator
+                val clock = PacketsEntryPoint.this.clock
+            }
         }
         traceStateTable = new ShardedFlowStateTable(clock)
 
@@ -144,6 +177,16 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
     override def postStop(): Unit = {
         dpChannel.stop()
+        // The memory of the off-heap tables is freed once the workers, which
+        // are stopped before this actor, closed their shards too.
+        connTrackStateTable match {
+            case table: OffHeapFlowStateTable[_, _] => table.close()
+            case _ =>
+        }
+        natStateTable match {
+            case table: OffHeapFlowStateTable[_, _] => table.close()
+            case _ =>
+        }
     }
 
     private def shardLogger(t: AnyRef) =
@@ -165,6 +208,14 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         val traceShard = traceStateTable.addShard(
             log = shardLogger(traceStateTable))
         val backChannelProcessor = backChannel.registerProcessor()
+        val metrics = new PacketPipelineMetrics(metricsRegistry, index)
+        val workerFlowRecorder = flowRecorder.forWorker(metrics)
+        val rings = if (config.upcallRings) {
+            val rings = new UpcallRings(config.upcallRingSize,
+                                        metrics.upcallsDropped)
+            upcallRings :+= rings
+            rings
+        } else null
         Props(new PacketWorkflow(
             NUM_WORKERS,
             index,
@@ -173,7 +224,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             dpState,
             cookieGen,
             clock,
-            dpChannel,
+            dpChannel.forWorker(index),
             dhcpConfig,
             backChannelProcessor,
             flowProcessor,
@@ -182,10 +233,13 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             traceShard,
             peerResolver,
             natLeaser,
-            new PacketPipelineMetrics(metricsRegistry, index),
-            flowRecorder,
+            metrics,
+            workerFlowRecorder,
             vt,
-            counter.addAndGet(index, _: Int)))
+            counter.addAndGet(index, _: Int),
+            rings,
+            tbPolicy,
+            configWatcher))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -197,6 +251,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, upcallRings)
     }
 }
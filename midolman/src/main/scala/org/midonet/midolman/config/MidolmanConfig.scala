@@ -68,23 +68,47 @@ trait TypeFailureFallback {
     def getDuration(key: String, unit: TimeUnit): Long = get(key, (c, k) => c.getDuration(k, unit))
 }
 
+/**
+ * The configuration of the agent. The settings are read from the Typesafe
+ * configuration once, when first accessed, and are then kept as fields, such
+ * that reading them from the packet processing path does not parse the
+ * configuration again. An instance is therefore an immutable snapshot: the
+ * changes to the runtime configuration produce a new instance, which is
+ * published by the [[MidolmanConfigWatcher]].
+ */
 class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty()) extends TypeFailureFallback {
     val PREFIX = "agent"
     val conf = _conf.resolve()
 
-    def bridgeArpEnabled = getBoolean(s"$PREFIX.midolman.enable_bridge_arp")
-    def bgpKeepAlive = getDuration(s"$PREFIX.midolman.bgp_keepalive", TimeUnit.SECONDS).toInt
-    def bgpHoldTime = getDuration(s"$PREFIX.midolman.bgp_holdtime", TimeUnit.SECONDS).toInt
-    def bgpConnectRetry = getDuration(s"$PREFIX.midolman.bgp_connect_retry", TimeUnit.SECONDS).toInt
+    lazy val bridgeArpEnabled = getBoolean(s"$PREFIX.midolman.enable_bridge_arp")
+    lazy val bgpKeepAlive = getDuration(s"$PREFIX.midolman.bgp_keepalive", TimeUnit.SECONDS).toInt
+    lazy val bgpHoldTime = getDuration(s"$PREFIX.midolman.bgp_holdtime", TimeUnit.SECONDS).toInt
+    lazy val bgpConnectRetry = getDuration(s"$PREFIX.midolman.bgp_connect_retry", TimeUnit.SECONDS).toInt
+
+    lazy val dhcpMtu: Short = getInt(s"$PREFIX.midolman.dhcp_mtu").toShort
+    lazy val simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
+    lazy val maxPooledContexts = getInt(s"$PREFIX.midolman.max_pooled_contexts")
+    lazy val outputChannels = getInt(s"$PREFIX.midolman.output_channels")
+    lazy val shardedOutputChannel = getBoolean(s"$PREFIX.midolman.sharded_output_channel")
+    lazy val inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
+    lazy val datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
+
+    lazy val lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
+
+    lazy val compiledChains = getBoolean(s"$PREFIX.midolman.compiled_chains")
+
+    lazy val idleFlowExpiration = getBoolean(s"$PREFIX.midolman.idle_flow_expiration")
+
+    lazy val bitmapNatLeaser = getBoolean(s"$PREFIX.midolman.bitmap_nat_leaser")
+
+    lazy val offHeapFlowState = getBoolean(s"$PREFIX.midolman.off_heap_flow_state")
+
+    lazy val offHeapFlowStateCapacity =
+        getInt(s"$PREFIX.midolman.off_heap_flow_state_capacity")
 
-    def dhcpMtu: Short = getInt(s"$PREFIX.midolman.dhcp_mtu").toShort
-    def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
-    def maxPooledContexts = getInt(s"$PREFIX.midolman.max_pooled_contexts")
-    def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
-    def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
-    def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
+    lazy val upcallRings = getBoolean(s"$PREFIX.midolman.upcall_rings")
 
-    def lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
+    lazy val upcallRingSize = getInt(s"$PREFIX.midolman.upcall_ring_size")
 
     val bridge = new BridgeConfig(conf, schema)
     val router = new RouterConfig(conf, schema)
@@ -101,46 +125,71 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
     val services = new ServicesConfig(conf, schema)
     val flowState = new FlowStateConfig(conf, schema)
     val bindingApi = new BindingApiConfig(conf, schema)
+
+    /**
+     * Reads the settings that the packet workers apply at runtime, when the
+     * [[MidolmanConfigWatcher]] publishes a new snapshot, such that an invalid
+     * value fails before the snapshot is published. The other settings are
+     * read on startup, and their changes only apply after a restart.
+     */
+    def readRuntimeSettings(): Unit = {
+        datapath.controlPacketTos
+        datapath.aggregateStatePackets
+        flowState.localPushState
+        arptable.retryInterval
+        arptable.timeout
+        arptable.stale
+        arptable.expiration
+    }
 }
 
 class HostConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
-    def waitTimeForUniqueId: Long = Try(getDuration("agent.host.wait_time_gen_id", TimeUnit.MILLISECONDS)).getOrElse(1000L)
-    def retriesForUniqueId = Try(getInt("agent.host.retries_gen_id")).getOrElse(300)
+    lazy val waitTimeForUniqueId: Long = Try(getDuration("agent.host.wait_time_gen_id", TimeUnit.MILLISECONDS)).getOrElse(1000L)
+    lazy val retriesForUniqueId = Try(getInt("agent.host.retries_gen_id")).getOrElse(300)
 }
 
 class BridgeConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
-    def macPortMappingExpiry = conf.getDuration("agent.bridge.mac_port_mapping_expire", TimeUnit.MILLISECONDS).toInt
+    lazy val macPortMappingExpiry = conf.getDuration("agent.bridge.mac_port_mapping_expire", TimeUnit.MILLISECONDS).toInt
 }
 
 class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val PREFIX = "agent.router"
-    def maxBgpPeerRoutes = conf.getInt(s"$PREFIX.max_bgp_peer_routes")
-    def bgpZookeeperHoldtime = conf.getDuration(s"$PREFIX.bgp_zookeeper_holdtime", TimeUnit.SECONDS)
+    lazy val maxBgpPeerRoutes = conf.getInt(s"$PREFIX.max_bgp_peer_routes")
+    lazy val bgpZookeeperHoldtime = conf.getDuration(s"$PREFIX.bgp_zookeeper_holdtime", TimeUnit.SECONDS)
+    lazy val bgpRouteBatchWindow = conf.getDuration(s"$PREFIX.bgp_route_batch_window", TimeUnit.MILLISECONDS)
 }
 
 class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val PREFIX = "agent.datapath"
 
-    def sendBufferPoolInitialSize = getInt(s"$PREFIX.send_buffer_pool_initial_size")
-    def sendBufferPoolMaxSize = getInt(s"$PREFIX.send_buffer_pool_max_size")
-    def sendBufferPoolBufSizeKb = getInt(s"$PREFIX.send_buffer_pool_buf_size_kb")
+    lazy val sendBufferPoolInitialSize = getInt(s"$PREFIX.send_buffer_pool_initial_size")
+    lazy val sendBufferPoolMaxSize = getInt(s"$PREFIX.send_buffer_pool_max_size")
+    lazy val sendBufferPoolBufSizeKb = getInt(s"$PREFIX.send_buffer_pool_buf_size_kb")
 
-    def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
+    lazy val maxFlowCount = getInt(s"$PREFIX.max_flow_count")
 
-    def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
-    def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
-    def vxlanRecirculateUdpPort = getInt(s"$PREFIX.vxlan_recirculate_udp_port")
+    lazy val vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
+    lazy val vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
+    lazy val vxlanRecirculateUdpPort = getInt(s"$PREFIX.vxlan_recirculate_udp_port")
 
-    def recircCidr = IPv4Subnet.fromCidr(Try(getString(s"$PREFIX.recirc_cidr"))
+    lazy val recircCidr = IPv4Subnet.fromCidr(Try(getString(s"$PREFIX.recirc_cidr"))
                                                .getOrElse("169.254.123.0/24"))
-    def recircConfig = new RecircConfig(recircCidr)
+    lazy val recircConfig = new RecircConfig(recircCidr)
+
+    lazy val globalIncomingBurstCapacity = getInt(s"$PREFIX.global_incoming_burst_capacity")
+    lazy val vmIncomingBurstCapacity = getInt(s"$PREFIX.vm_incoming_burst_capacity")
+    lazy val tunnelIncomingBurstCapacity = getInt(s"$PREFIX.tunnel_incoming_burst_capacity")
+    lazy val vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
+
+    lazy val adaptiveAdmission = getBoolean(s"$PREFIX.adaptive_admission")
+    lazy val adaptiveAdmissionInterval =
+        getDuration(s"$PREFIX.adaptive_admission_interval", TimeUnit.NANOSECONDS)
 
-    def globalIncomingBurstCapacity = getInt(s"$PREFIX.global_incoming_burst_capacity")
-    def vmIncomingBurstCapacity = getInt(s"$PREFIX.vm_incoming_burst_capacity")
-    def tunnelIncomingBurstCapacity = getInt(s"$PREFIX.tunnel_incoming_burst_capacity")
-    def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
+    lazy val controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
 
-    def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+    lazy val aggregateStatePackets = getBoolean(s"$PREFIX.aggregate_state_packets")
+
+    lazy val flowCreateBatchSize = getInt(s"$PREFIX.flow_create_batch_size")
 }
 
 class RecircConfig(recircCidr: IPv4Subnet) {
@@ -163,66 +212,70 @@ class RecircConfig(recircCidr: IPv4Subnet) {
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val PREFIX = "agent.arptable"
 
-    def retryInterval = getDuration(s"$PREFIX.arp_retry_interval", TimeUnit.MILLISECONDS)
-    def timeout = getDuration(s"$PREFIX.arp_timeout", TimeUnit.MILLISECONDS)
-    def stale = getDuration(s"$PREFIX.arp_stale", TimeUnit.MILLISECONDS)
-    def expiration = getDuration(s"$PREFIX.arp_expiration", TimeUnit.MILLISECONDS)
+    lazy val retryInterval = getDuration(s"$PREFIX.arp_retry_interval", TimeUnit.MILLISECONDS)
+    lazy val timeout = getDuration(s"$PREFIX.arp_timeout", TimeUnit.MILLISECONDS)
+    lazy val stale = getDuration(s"$PREFIX.arp_stale", TimeUnit.MILLISECONDS)
+    lazy val expiration = getDuration(s"$PREFIX.arp_expiration", TimeUnit.MILLISECONDS)
 }
 
 class HealthMonitorConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val PREFIX = "agent.haproxy_health_monitor"
 
-    def enable = getBoolean(s"$PREFIX.health_monitor_enable")
-    def namespaceCleanup = getBoolean(s"$PREFIX.namespace_cleanup")
-    def haproxyFileLoc = getString(s"$PREFIX.haproxy_file_loc")
+    lazy val enable = getBoolean(s"$PREFIX.health_monitor_enable")
+    lazy val namespaceCleanup = getBoolean(s"$PREFIX.namespace_cleanup")
+    lazy val haproxyFileLoc = getString(s"$PREFIX.haproxy_file_loc")
 }
 
 
 class NeutronConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
-    def tasksDb = getString("agent.cluster.tasks_db_connection")
-    def enabled = getBoolean("agent.cluster.enabled")
+    lazy val tasksDb = getString("agent.cluster.tasks_db_connection")
+    lazy val enabled = getBoolean("agent.cluster.enabled")
 }
 
 class OpenStackConfig(val conf: Config, val schema: Config)
         extends TypeFailureFallback {
-    def metadata = new MetadataConfig(conf, schema)
+    lazy val metadata = new MetadataConfig(conf, schema)
 }
 
 class MetadataConfig(val conf: Config, val schema: Config)
         extends TypeFailureFallback {
-    def enabled = getBoolean("agent.openstack.metadata.enabled")
-    def novaMetadataUrl =
+    lazy val enabled = getBoolean("agent.openstack.metadata.enabled")
+    lazy val novaMetadataUrl =
         getString("agent.openstack.metadata.nova_metadata_url")
-    def sharedSecret = getString("agent.openstack.metadata.shared_secret")
+    lazy val sharedSecret = getString("agent.openstack.metadata.shared_secret")
 }
 
 class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
-    def enabled = getBoolean("agent.flow_history.enabled")
-    def encoding = getString("agent.flow_history.encoding")
-    def udpEndpoint = getString("agent.flow_history.udp_endpoint")
+    lazy val enabled = getBoolean("agent.flow_history.enabled")
+    lazy val encoding = getString("agent.flow_history.encoding")
+    lazy val udpEndpoint = getString("agent.flow_history.udp_endpoint")
+    lazy val samplingRate = getInt("agent.flow_history.sampling_rate")
+    lazy val datagramSize = getInt("agent.flow_history.datagram_size")
+    lazy val packRecords = getBoolean("agent.flow_history.pack_records")
+    lazy val ringSize = getInt("agent.flow_history.ring_size")
 }
 
 class ContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val prefix = "agent.containers"
-    def enabled = getBoolean(s"$prefix.enabled")
-    def timeout = getDuration(s"$prefix.timeout", TimeUnit.MILLISECONDS) millis
-    def shutdownGraceTime = getDuration(s"$prefix.shutdown_grace_time",
-                                        TimeUnit.MILLISECONDS) millis
-    def threadCount = getInt(s"$prefix.thread_count")
-    def logDirectory = getString(s"$prefix.log_directory")
+    lazy val enabled = getBoolean(s"$prefix.enabled")
+    lazy val timeout = getDuration(s"$prefix.timeout", TimeUnit.MILLISECONDS) millis
+    lazy val shutdownGraceTime = getDuration(s"$prefix.shutdown_grace_time",
+                                             TimeUnit.MILLISECONDS) millis
+    lazy val threadCount = getInt(s"$prefix.thread_count")
+    lazy val logDirectory = getString(s"$prefix.log_directory")
 
     val ipsec = new IPSecContainerConfig(conf, schema)
 }
 
 class IPSecContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     val prefix = "agent.containers.ipsec"
-    def loggingEnabled = getBoolean(s"$prefix.logging_enabled")
-    def loggingPollInterval = getDuration(s"$prefix.logging_poll_interval",
+    lazy val loggingEnabled = getBoolean(s"$prefix.logging_enabled")
+    lazy val loggingPollInterval = getDuration(s"$prefix.logging_poll_interval",
+                                               TimeUnit.MILLISECONDS) millis
+    lazy val loggingTimeout = getDuration(s"$prefix.logging_timeout",
                                           TimeUnit.MILLISECONDS) millis
-    def loggingTimeout = getDuration(s"$prefix.logging_timeout",
-                                     TimeUnit.MILLISECONDS) millis
-    def statusUpdateInterval = getDuration(s"$prefix.status_update_interval",
-                                           TimeUnit.MILLISECONDS) millis
+    lazy val statusUpdateInterval = getDuration(s"$prefix.status_update_interval",
+                                                TimeUnit.MILLISECONDS) millis
 }
 
 class ServicesConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -235,27 +288,27 @@ class FlowStateConfig(val conf: Config, val schema: Config)
     extends TypeFailureFallback with MinionConfig[FlowStateService] {
     val prefix = "agent.minions.flow_state"
 
-    override def isEnabled: Boolean = getBoolean(s"$prefix.enabled")
-    def port: Int = getInt(s"$prefix.port")
-    def blockSize: Int = Math.max(getInt(s"$prefix.block_size"), 1024)
-    def blocksPerPort: Int = getInt(s"$prefix.blocks_per_port")
-    def expirationTime: Duration = getDuration(s"$prefix.expiration_time",
-                                               TimeUnit.MILLISECONDS) millis
-    def expirationDelay: Duration = getDuration(s"$prefix.expiration_delay",
-                                               TimeUnit.MILLISECONDS) millis
-    def logDirectory: String = getString(s"$prefix.log_directory")
-    def legacyPushState: Boolean = getBoolean(s"$prefix.legacy_push_state")
-    def legacyReadState: Boolean = getBoolean(s"$prefix.legacy_read_state")
-    def localPushState: Boolean = getBoolean(s"$prefix.local_push_state")
-    def localReadState: Boolean = getBoolean(s"$prefix.local_read_state")
-    def connectionTimeout: Int = getDuration(s"$prefix.connection_timeout",
-                                        TimeUnit.MILLISECONDS).toInt
+    override lazy val isEnabled: Boolean = getBoolean(s"$prefix.enabled")
+    lazy val port: Int = getInt(s"$prefix.port")
+    lazy val blockSize: Int = Math.max(getInt(s"$prefix.block_size"), 1024)
+    lazy val blocksPerPort: Int = getInt(s"$prefix.blocks_per_port")
+    lazy val expirationTime: Duration = getDuration(s"$prefix.expiration_time",
+                                                    TimeUnit.MILLISECONDS) millis
+    lazy val expirationDelay: Duration = getDuration(s"$prefix.expiration_delay",
+                                                     TimeUnit.MILLISECONDS) millis
+    lazy val logDirectory: String = getString(s"$prefix.log_directory")
+    lazy val legacyPushState: Boolean = getBoolean(s"$prefix.legacy_push_state")
+    lazy val legacyReadState: Boolean = getBoolean(s"$prefix.legacy_read_state")
+    lazy val localPushState: Boolean = getBoolean(s"$prefix.local_push_state")
+    lazy val localReadState: Boolean = getBoolean(s"$prefix.local_read_state")
+    lazy val connectionTimeout: Int = getDuration(s"$prefix.connection_timeout",
+                                                  TimeUnit.MILLISECONDS).toInt
 }
 
 class BindingApiConfig(val conf: Config, val schema: Config)
     extends TypeFailureFallback with MinionConfig[RestApiService] {
     val prefix = "agent.minions.binding_api"
 
-    override def isEnabled: Boolean = getBoolean(s"$prefix.enabled")
-    def unixSocket = getString(s"$prefix.unix_socket")
+    override lazy val isEnabled: Boolean = getBoolean(s"$prefix.enabled")
+    lazy val unixSocket = getString(s"$prefix.unix_socket")
 }
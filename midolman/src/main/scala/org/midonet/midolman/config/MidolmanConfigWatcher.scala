@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.config
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicReference
+
+import scala.util.control.NonFatal
+
+import com.typesafe.config.Config
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory
+
+import rx.Observer
+
+/**
+ * A listener of the changes to the agent configuration.
+ */
+trait MidolmanConfigListener {
+    /**
+     * Called after the current configuration was replaced, on the thread
+     * that observed the change.
+     */
+    def configChanged(previous: MidolmanConfig, current: MidolmanConfig): Unit
+}
+
+/**
+ * Holds the current configuration of the agent, as an immutable
+ * [[MidolmanConfig]] snapshot whose settings are computed once from the
+ * Typesafe [[Config]]. The watcher observes the runtime configuration of the
+ * node: when it changes, a new snapshot replaces the current one atomically
+ * and the registered listeners are notified with both snapshots, such that
+ * the subsystems that can apply a setting at runtime can react to it. A
+ * change with an invalid runtime setting is ignored, such that the current
+ * snapshot remains in place.
+ *
+ * Components keep using the snapshot they were built with until they read
+ * the current one with [[get]] or are notified as listeners. The packet
+ * workers register their flow state replicator, which applies
+ * agent.minions.flow_state.local_push_state and the datapath settings of the
+ * state packets, control_packet_tos and aggregate_state_packets, and their
+ * ARP request broker, which applies the ARP table settings. All other
+ * settings are static: the components read them on startup, including
+ * compiled_chains, the other flow state and datapath settings, and the flow
+ * history settings, and their changes only apply after a restart.
+ */
+class MidolmanConfigWatcher(initial: MidolmanConfig) extends Observer[Config] {
+
+    private val log = Logger(LoggerFactory.getLogger("org.midonet.config"))
+
+    private val current = new AtomicReference[MidolmanConfig](initial)
+    private val listeners = new CopyOnWriteArrayList[MidolmanConfigListener]()
+
+    /** Returns the current configuration snapshot. */
+    def get: MidolmanConfig = current.get
+
+    def addListener(listener: MidolmanConfigListener): Unit =
+        listeners.add(listener)
+
+    def removeListener(listener: MidolmanConfigListener): Unit =
+        listeners.remove(listener)
+
+    override def onNext(conf: Config): Unit = {
+        val previous = current.get
+        val resolved = conf.resolve()
+        if (resolved == previous.conf)
+            return
+
+        val config = try {
+            val config = new MidolmanConfig(resolved, previous.schema)
+            config.readRuntimeSettings()
+            config
+        } catch {
+            case NonFatal(e) =>
+                log.error("Invalid agent configuration, keeping the current " +
+                          "configuration", e)
+                return
+        }
+        current.set(config)
+        log.info("Agent configuration changed")
+
+        val iterator = listeners.iterator()
+        while (iterator.hasNext) {
+            val listener = iterator.next()
+            try listener.configChanged(previous, config) catch {
+                case NonFatal(e) =>
+                    log.error(s"Listener $listener failed to apply the " +
+                              "configuration change", e)
+            }
+        }
+    }
+
+    override def onError(t: Throwable): Unit = {
+        log.error("Error in agent configuration watcher", t)
+    }
+
+    override def onCompleted(): Unit = { }
+}
@@ -18,6 +18,28 @@ package org.midonet.midolman.datapath
 import com.lmax.disruptor._
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.simulation.PacketContext
+import org.midonet.util.concurrent.RoundRobinEventProcessor
+
+object DatapathChannel {
+    /**
+     * The sequences returned by a sharded channel carry the shard in their
+     * upper bits, such that the flow processor can tell whether a flow was
+     * created by comparing the sequence with the last sequence processed for
+     * that shard. Sequences of a channel with a single shard are unchanged.
+     */
+    final val ShardShift = 56
+    final val MaxShards = 1 << (63 - ShardShift)
+    private final val SequenceMask = (1L << ShardShift) - 1
+
+    @inline def shardSequence(shard: Int, sequence: Long): Long =
+        (shard.toLong << ShardShift) | sequence
+
+    @inline def shardOf(sequence: Long): Int =
+        (sequence >>> ShardShift).toInt
+
+    @inline def sequenceOf(sequence: Long): Long =
+        sequence & SequenceMask
+}
 
 trait DatapathChannel {
     def handoff(context: PacketContext): Long
@@ -26,6 +48,21 @@ trait DatapathChannel {
     def stop(): Unit
 }
 
+/**
+ * Provides the datapath channel of every simulation worker, and starts and
+ * stops the output processors shared by these channels.
+ */
+trait WorkerDatapathChannels {
+    /**
+     * Returns the channel that the simulation worker with the given index
+     * uses to hand off its packets.
+     */
+    def forWorker(index: Int): DatapathChannel
+
+    def start(): Unit
+    def stop(): Unit
+}
+
 object DisruptorDatapathChannel {
     sealed class PacketContextHolder(var packetExecRef: PacketContext,
                                      var flowCreateRef: PacketContext)
@@ -36,7 +73,12 @@ object DisruptorDatapathChannel {
 }
 
 class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
-                               processors: Array[_ <: EventProcessor]) extends DatapathChannel {
+                               processors: Array[_ <: EventProcessor])
+    extends DatapathChannel with WorkerDatapathChannels {
+
+    /** All workers share the multi-producer RingBuffer of this channel. */
+    override def forWorker(index: Int): DatapathChannel = this
+
     def start(): Unit = {
         processors foreach { proc =>
             ringBuffer.addGatingSequences(proc.getSequence)
@@ -65,3 +107,64 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
         seq
     }
 }
+
+/**
+ * The datapath channels of the simulation workers, with a single-producer
+ * RingBuffer for every worker, such that the workers do not contend on the
+ * sequence of a shared RingBuffer. Every worker hands off its packets through
+ * the channel returned by [[forWorker]], and the output processors poll all
+ * the RingBuffers in round-robin order. The sequence returned by the channel
+ * of a worker identifies the shard, as described in
+ * [[DatapathChannel.shardSequence]].
+ */
+class ShardedDatapathChannel(ringBuffers: Array[RingBuffer[PacketContextHolder]],
+                             processors: Array[RoundRobinEventProcessor[PacketContextHolder]])
+    extends WorkerDatapathChannels {
+
+    require(ringBuffers.length <= DatapathChannel.MaxShards,
+            s"The channel supports at most ${DatapathChannel.MaxShards} shards")
+
+    require(ringBuffers.nonEmpty, "The channel requires at least one shard")
+
+    private val shards = Array.tabulate[DatapathChannel](ringBuffers.length) {
+        index => new Shard(index, ringBuffers(index))
+    }
+
+    override def forWorker(index: Int): DatapathChannel = shards(index)
+
+    def start(): Unit = {
+        for (index <- ringBuffers.indices; proc <- processors) {
+            ringBuffers(index).addGatingSequences(proc.getSequence(index))
+        }
+
+        processors.zipWithIndex foreach { case (proc, idx) =>
+            val t = new Thread("datapath-output-" + idx) {
+                override def run() {
+                    proc.run()
+                }
+            }
+            t.setDaemon(true)
+            t.start()
+        }
+    }
+
+    def stop(): Unit =
+        processors foreach (_.halt())
+
+    private final class Shard(index: Int,
+                              ringBuffer: RingBuffer[PacketContextHolder])
+        extends DatapathChannel {
+
+        def start(): Unit = { }
+        def stop(): Unit = { }
+
+        def handoff(context: PacketContext): Long = {
+            val seq = ringBuffer.next()
+            val event = ringBuffer.get(seq)
+            event.packetExecRef = context
+            event.flowCreateRef = context
+            ringBuffer.publish(seq)
+            DatapathChannel.shardSequence(index, seq)
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.nio.channels._
 import java.nio.channels.spi.SelectorProvider
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.ArrayList
+import java.util.concurrent.atomic.AtomicLongArray
 
 import scala.util.control.NonFatal
 
@@ -41,23 +42,33 @@ import org.midonet.odp._
 import org.midonet.odp.flows.{FlowAction, FlowKey}
 import org.midonet.sixwind.SixWind
 import org.midonet.util.concurrent.{DisruptorBackChannel, NanoClock}
-import org.midonet.{ErrorCode, Util}
+import org.midonet.ErrorCode
 
 object FlowProcessor {
-    private val unsafe = Util.getUnsafe
-
     /**
-     * Used for unsafe access to the lastSequence field, so we can do a volatile
-     * read on the writer thread while avoiding doing a volatile write to it
-     * from the producer thread.
+     * The last sequences of the shards are spaced by a cache line, such that
+     * the simulation threads reading the sequence of their shard do not
+     * contend on the cache line written for the other shards.
      */
-    private val sequenceAddress = unsafe.objectFieldOffset(
-        classOf[FlowProcessor].getDeclaredField("lastSequence"))
+    private val SEQUENCE_STRIDE = 8
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
+    private val BATCH_BUF_CAPACITY = 64 * 1024
+
 }
 
+/**
+ * Writes the flow create requests to the datapath and brokers the flow delete
+ * and get requests. The processor consumes either a single RingBuffer, as an
+ * event handler, or the RingBuffers of a [[ShardedDatapathChannel]], through
+ * the handlers returned by [[shardHandler]], and tracks the last sequence
+ * processed for every shard. When the flow create batch size is greater than
+ * one, the create requests are accumulated in a buffer and written with a
+ * single netlink write when the batch size is reached or at the end of each
+ * Disruptor batch. The kernel processes every message in the buffer on its
+ * own, and replies to each of them with its own sequence number.
+ */
 class FlowProcessor(dpState: DatapathState,
                     families: OvsNetlinkFamilies,
                     maxPendingRequests: Int,
@@ -66,7 +77,8 @@ class FlowProcessor(dpState: DatapathState,
                     selectorProvider: SelectorProvider,
                     backChannel: SimulationBackChannel,
                     datapathMetrics: DatapathMetrics,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    flowCreateBatchSize: Int = 1)
     extends EventPoller.Handler[PacketContextHolder]
     with DisruptorBackChannel
     with LifecycleAware {
@@ -107,10 +119,48 @@ class FlowProcessor(dpState: DatapathState,
 
     private val flowMask = new FlowMask()
 
-    private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
+    // Written only by the processor thread, with ordered writes.
+    private val lastSequences = new AtomicLongArray(
+        DatapathChannel.MaxShards * SEQUENCE_STRIDE)
+    private var numShards = 1
+
+    {
+        var shard = 0
+        while (shard < DatapathChannel.MaxShards) {
+            lastSequences.set(shard * SEQUENCE_STRIDE,
+                              Sequencer.INITIAL_CURSOR_VALUE)
+            shard += 1
+        }
+    }
+
+    private val batching = flowCreateBatchSize > 1
+    private val batchBuf =
+        if (batching) BytesUtil.instance.allocateDirect(BATCH_BUF_CAPACITY)
+        else null
+    private var batchedFlows = 0
+    private val batchedSequences = Array.fill(DatapathChannel.MaxShards)(
+        Sequencer.INITIAL_CURSOR_VALUE)
 
     override def onEvent(event: PacketContextHolder, sequence: Long,
-                         endOfBatch: Boolean): Boolean = {
+                         endOfBatch: Boolean): Boolean =
+        processEvent(0, event, sequence, endOfBatch)
+
+    /**
+     * Returns the event handler for the RingBuffer of the given shard.
+     */
+    def shardHandler(shard: Int): EventPoller.Handler[PacketContextHolder] = {
+        if (shard < 0 || shard >= DatapathChannel.MaxShards)
+            throw new IllegalArgumentException(s"Invalid shard $shard")
+        numShards = Math.max(numShards, shard + 1)
+        new EventPoller.Handler[PacketContextHolder] {
+            override def onEvent(event: PacketContextHolder, sequence: Long,
+                                 endOfBatch: Boolean): Boolean =
+                processEvent(shard, event, sequence, endOfBatch)
+        }
+    }
+
+    private def processEvent(shard: Int, event: PacketContextHolder,
+                             sequence: Long, endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
         event.flowCreateRef = null
         if (context.flow ne null) {
@@ -131,9 +181,12 @@ class FlowProcessor(dpState: DatapathState,
                 context.log.error("Failed to create datapath flow", t)
             }
 
-            lastSequence = sequence
+            if (batching) batchedSequences(shard) = sequence
+            else lastSequences.lazySet(shard * SEQUENCE_STRIDE, sequence)
         }
         context.setFlowProcessed()
+        if (batching && (endOfBatch || batchedFlows >= flowCreateBatchSize))
+            flushFlows()
         true
     }
 
@@ -159,7 +212,8 @@ class FlowProcessor(dpState: DatapathState,
             createProtocol.prepareFlowCreate(
                 datapathId, keys, actions, mask, writeBuf)
             writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, index)
-            writer.write(writeBuf)
+            if (batching) batchFlow()
+            else writer.write(writeBuf)
             writeBuf.rewind()
             sixwind.processFlow(writeBuf, writeBuf.limit())
         } catch { case e: BufferOverflowException =>
@@ -174,19 +228,68 @@ class FlowProcessor(dpState: DatapathState,
             writeBuf.clear()
         }
 
+    /**
+     * Appends the flow create request in the write buffer to the batch buffer,
+     * aligned to a netlink message boundary. If the batch buffer is full, the
+     * batched requests are written first.
+     */
+    private def batchFlow(): Unit = {
+        val length = writeBuf.remaining()
+        val alignedLength = NetlinkMessage.align(length)
+        if (batchBuf.remaining() < alignedLength)
+            flushFlows()
+        if (batchBuf.remaining() < alignedLength) {
+            // The request is larger than the batch buffer.
+            writer.write(writeBuf)
+            datapathMetrics.flowCreateBatchSize.update(1)
+        } else {
+            batchBuf.put(writeBuf)
+            batchBuf.position(batchBuf.position() + alignedLength - length)
+            batchedFlows += 1
+        }
+    }
+
+    /**
+     * Writes the batched flow create requests to the datapath. The last
+     * sequence is only updated once the requests are written, such that the
+     * flows are not deleted before they have been created.
+     */
+    private def flushFlows(): Unit = {
+        if (batchedFlows > 0) {
+            batchBuf.flip()
+            try {
+                writer.write(batchBuf)
+            } catch { case NonFatal(e) =>
+                log.error(s"Failed to write $batchedFlows datapath flows", e)
+            } finally {
+                batchBuf.clear()
+            }
+            datapathMetrics.flowCreateBatchSize.update(batchedFlows)
+            batchedFlows = 0
+        }
+        var shard = 0
+        while (shard < numShards) {
+            lastSequences.lazySet(shard * SEQUENCE_STRIDE,
+                                  batchedSequences(shard))
+            shard += 1
+        }
+    }
+
     def capacity = broker.capacity
 
     /**
-     * Tries to eject a flow only if the corresponding Disruptor sequence is
-     * greater than the one specified, meaning that the corresponding flow
-     * create operation hasn't been completed yet.
+     * Tries to eject a flow only if the last Disruptor sequence processed for
+     * the shard of the specified sequence is greater than or equal to it,
+     * meaning that the corresponding flow create operation has completed.
      */
     def tryEject(sequence: Long, datapathId: Int, flowMatch: FlowMatch,
                  obs: Observer[ByteBuffer]): Boolean = {
         var brokerSeq = 0L
-        val disruptorSeq = unsafe.getLongVolatile(this, sequenceAddress)
-        if (disruptorSeq >= sequence && { brokerSeq = broker.nextSequence()
-                                          brokerSeq } != NetlinkRequestBroker.FULL) {
+        val disruptorSeq = lastSequences.get(
+            DatapathChannel.shardOf(sequence) * SEQUENCE_STRIDE)
+        if (disruptorSeq >= DatapathChannel.sequenceOf(sequence) &&
+            { brokerSeq = broker.nextSequence()
+              brokerSeq } != NetlinkRequestBroker.FULL) {
             try {
                 val buffer = broker.get(brokerSeq)
                 brokerProtocol.prepareFlowDelete(
@@ -65,11 +65,17 @@ trait StatePacketExecutor {
 object PacketExecutor {
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
-    private[datapath] def clampMss(ctx: PacketContext, log: Logger): Unit = {
+    private[datapath] def clampMss(ctx: PacketContext, log: Logger,
+                                   frameView: FrameView = new FrameView)
+    : Unit = {
         // Don't do MSS clamping on packet tunneled here from another Midolman
-        // node, since the other node already did it if needed.
-        if (ctx.inputPort != null) {
-            try clampMss(ctx.packet.getEthernet, 0, log) catch {
+        // node, since the other node already did it if needed. Packets that
+        // have not been parsed are only deserialized if they may carry a SYN.
+        val packet = ctx.packet
+        if (ctx.inputPort != null &&
+            (packet.isParsed ||
+             frameView.wrap(packet.getFrame).mayContainTcpSyn())) {
+            try clampMss(packet.getEthernet, 0, log) catch {
                 case ex: ArrayIndexOutOfBoundsException =>
                     log.debug(
                         "Could not parse TCP options for packet " + ctx.packet)
@@ -159,6 +165,8 @@ sealed class PacketExecutor(dpState: DatapathState,
 
     private val protocol = new OvsProtocol(pid, families)
 
+    private val frameView = new FrameView
+
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
@@ -171,7 +179,7 @@ sealed class PacketExecutor(dpState: DatapathState,
             val packet = context.packet
             if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
                 try {
-                    clampMss(context, log)
+                    clampMss(context, log, frameView)
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
                     val latency = NanoClock.DEFAULT.tick - packet.startTimeNanos
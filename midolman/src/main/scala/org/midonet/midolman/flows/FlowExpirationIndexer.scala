@@ -27,25 +27,40 @@ object FlowExpirationIndexer {
     sealed abstract class Expiration {
         def value: Long
         val typeId: Int
+        /**
+         * Whether the expiration of the flows of this type is extended while
+         * they are active, when using idle expiration. Flows for error
+         * conditions and stateful flows must be simulated again once they
+         * expire, the latter to refresh their flow state.
+         */
+        val extendable: Boolean
     }
     object ERROR_CONDITION_EXPIRATION extends Expiration {
         val value = (5 seconds).toNanos
         val typeId = 0
+        val extendable = false
     }
     object FLOW_EXPIRATION extends Expiration {
         var value = (1 minutes).toNanos
         val typeId = 1
+        val extendable = true
     }
     object STATEFUL_FLOW_EXPIRATION extends Expiration {
         val value = FlowState.DEFAULT_EXPIRATION.toNanos / 2
         val typeId = 2
+        val extendable = false
     }
     object TUNNEL_FLOW_EXPIRATION extends Expiration {
         def value = FLOW_EXPIRATION.value * 5
         val typeId = 3
+        val extendable = true
     }
 
     private final val maxType = 4
+
+    private val expirations = Array[Expiration](
+        ERROR_CONDITION_EXPIRATION, FLOW_EXPIRATION, STATEFUL_FLOW_EXPIRATION,
+        TUNNEL_FLOW_EXPIRATION)
 }
 
 /**
@@ -54,6 +69,14 @@ object FlowExpirationIndexer {
  * be removed from the kernel via another mechanism (such as flow invalidation),
  * but it is still kept in these data structures until it expires. This is to
  * avoid linear remove operations or smarter, more expensive data structures.
+ *
+ * With idle expiration, flows of an extendable type that reach their
+ * expiration are not removed right away. Instead, their statistics are
+ * requested from the datapath, and once they are received, flows that have
+ * processed packets since the last check are moved to the back of their queue
+ * with a new expiration, while idle flows are removed. The queues are thus
+ * kept in order of last known activity, and the excess flows that are evicted
+ * when the flow table is full are the ones that have been idle the longest.
  */
 trait FlowExpirationIndexer extends FlowIndexer {
     import FlowExpirationIndexer._
@@ -62,6 +85,10 @@ trait FlowExpirationIndexer extends FlowIndexer {
     protected val maxFlows: Int
 
     private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    // Expired flows whose statistics have been requested.
+    private var pendingFlows = 0
+    // Flows found idle, waiting to be removed.
+    private val idleFlows = new ArrayDeque[ManagedFlow]()
 
     {
         expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
@@ -76,28 +103,101 @@ trait FlowExpirationIndexer extends FlowIndexer {
         flow.ref()
     }
 
+    /**
+     * Whether flows are expired once they become idle, rather than after a
+     * hard timeout.
+     */
+    protected def idleExpiration: Boolean = false
+
+    /**
+     * Requests the datapath statistics of an expired flow without waiting for
+     * them, which must be reported by calling either `flowStatsReceived` or
+     * `flowStatsFailed`. Returns false if the request cannot be made at this
+     * time, in which case it is retried on the next expiration check.
+     */
+    protected def requestFlowStats(flow: ManagedFlow): Boolean = false
+
+    /**
+     * The maximum number of flows whose statistics can be requested at once.
+     */
+    protected def maxPendingFlowStats: Int = Int.MaxValue
+
     def checkFlowsExpiration(now: Long): Unit = {
+        removeIdleFlows()
         checkHardTimeOutExpiration(now)
         manageFlowTableSize()
     }
 
+    /**
+     * Extends the expiration of the flow if it processed packets since its
+     * statistics were last checked, or marks it for removal otherwise. Flows
+     * are not removed here because removing a flow may have to wait for the
+     * pending flow operations, which is where the statistics come from.
+     * They are removed on the next expiration check instead.
+     */
+    def flowStatsReceived(flow: ManagedFlow, packets: Long, now: Long): Unit = {
+        pendingFlows -= 1
+        if (!flow.removed && packets > flow.lastPackets) {
+            log.debug(s"Extending expiration of active flow $flow")
+            flow.lastPackets = packets
+            flow.absoluteExpirationNanos =
+                now + expirations(flow.expirationType).value
+            expirationQueues(flow.expirationType).addLast(flow)
+        } else {
+            idleFlows.addLast(flow)
+        }
+    }
+
+    /**
+     * Marks for removal a flow whose statistics could not be retrieved.
+     */
+    def flowStatsFailed(flow: ManagedFlow): Unit = {
+        pendingFlows -= 1
+        idleFlows.addLast(flow)
+    }
+
+    /**
+     * Removes the flows marked as idle, including those whose statistics
+     * arrive while the flows are being removed.
+     */
+    private def removeIdleFlows(): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = idleFlows.pollFirst(); flow } ne null) {
+            log.debug(s"Removing flow $flow for idle expiration")
+            flow.unref()
+            removeFlow(flow)
+        }
+    }
+
     private def checkHardTimeOutExpiration(now: Long): Unit = {
         var i = 0
         while (i < maxType) {
             var flow: ManagedFlow = null
             val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
+            val idle = idleExpiration && expirations(i).extendable
+            var blocked = false
+            while (!blocked && ({ flow = queue.peekFirst(); flow } ne null) &&
                    now >= flow.absoluteExpirationNanos) {
-                log.debug(s"Removing flow $flow for hard expiration")
-                flow.unref()
-                removeFlow(queue.pollFirst())
+                if (idle && !flow.removed) {
+                    if (pendingFlows < maxPendingFlowStats &&
+                        requestFlowStats(flow)) {
+                        queue.pollFirst()
+                        pendingFlows += 1
+                    } else {
+                        blocked = true
+                    }
+                } else {
+                    log.debug(s"Removing flow $flow for hard expiration")
+                    flow.unref()
+                    removeFlow(queue.pollFirst())
+                }
             }
             i += 1
         }
     }
 
     private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
+        var excessFlows = pendingFlows + idleFlows.size()
         var i = 0
         while (i < maxType) {
             excessFlows += expirationQueues(i).size()
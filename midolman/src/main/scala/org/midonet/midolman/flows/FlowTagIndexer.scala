@@ -16,62 +16,248 @@
 
 package org.midonet.midolman.flows
 
-import java.util._
+import java.util.{Arrays, Collections, IdentityHashMap, Set}
 
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
+object FlowTagIndexer {
+    final val NoIndex = -1
+    private final val InitialCapacity = 1024
+    private final val InitialTagFlows = 4
+    // Approximate size of an array header and of a reference, used to
+    // estimate the memory of the index.
+    private final val ArrayOverhead = 16L
+    private final val ReferenceSize = 8L
+}
+
+/*
+ * Indexes the flows by their tags, such that all flows with a given tag can
+ * be invalidated.
+ *
+ * Implementation notes:
+ *
+ *   * Tags are interned in a [[FlowTagRegistry]], and every indexed flow is
+ *     assigned a dense flow index, stored in the flow. The index only holds
+ *     int arrays indexed by tag identifier or flow index.
+ *   * The flows of a tag are a compact int array, where the first element is
+ *     the number of flows, followed by their flow indices in no particular
+ *     order. Flows are removed by moving the last flow in their place.
+ *   * For every flow, the index keeps the identifiers of its tags along with
+ *     the position of the flow in the flows of each tag, such that removing a
+ *     flow does not search the flows of its tags. These arrays are kept and
+ *     reused when the flow index is assigned to a different flow.
+ *   * A tag is released when it has no more flows.
+ */
 trait FlowTagIndexer extends FlowIndexer {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+    import FlowTagIndexer._
+
+    private val tagRegistry = new FlowTagRegistry()
+    private var tagFlows = new Array[Array[Int]](InitialCapacity)
+
+    private var flows = new Array[ManagedFlow](InitialCapacity)
+    private var flowTags = new Array[Array[Int]](InitialCapacity)
+    private var freeFlows = new Array[Int](InitialCapacity)
+    private var numFreeFlows = 0
+    private var nextFlow = 0
+
+    // The number of ints held by the arrays of tag flows and flow tags.
+    private var intsAllocated = 0
+    private var arraysAllocated = 0
+
     protected val log: Logger
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
         val numTags = flow.tags.size()
-        var i = 0
-        while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
-            i += 1
+        if (numTags > 0) {
+            val index = allocateFlow(numTags)
+            flows(index) = flow
+            flow.tagIndex = index
+            val entries = flowTags(index)
+            var count = 0
+            var i = 0
+            while (i < numTags) {
+                val tagId = tagRegistry.intern(flow.tags.get(i))
+                if (!containsTag(entries, count, tagId)) {
+                    entries(2 * count + 1) = tagId
+                    entries(2 * count + 2) = addTagFlow(tagId, index)
+                    count += 1
+                }
+                i += 1
+            }
+            entries(0) = count
         }
     }
 
     abstract override def removeFlow(flow: ManagedFlow): Unit = {
         super.removeFlow(flow)
-        val numTags = flow.tags.size()
-        var i = 0
-        while (i < numTags) {
-            val tag = flow.tags.get(i)
-            val flows = tagToFlows.get(tag)
-            if (flows ne null) {
-                flows.remove(flow)
-                if (flows.size() == 0)
-                    tagToFlows.remove(tag)
+        val index = flow.tagIndex
+        if (index != NoIndex && (flows(index) eq flow)) {
+            val entries = flowTags(index)
+            val count = entries(0)
+            var i = 0
+            while (i < count) {
+                removeTagFlow(entries(2 * i + 1), entries(2 * i + 2))
+                i += 1
             }
-            i += 1
+            entries(0) = 0
+            flows(index) = null
+            flow.tagIndex = NoIndex
+            freeFlows(numFreeFlows) = index
+            numFreeFlows += 1
         }
     }
 
     def invalidateFlowsFor(tag: FlowTag): Unit = {
-        val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
-        if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
+        val tagId = tagRegistry.id(tag)
+        val indices = if (tagId != FlowTagRegistry.NoId) tagFlows(tagId) else null
+        val numFlows = if (indices ne null) indices(0) else 0
+        log.debug(s"Invalidating $numFlows flows for tag $tag")
+        if (numFlows > 0) {
+            // Removing the flows modifies the flows of the tag.
+            val invalidated = new Array[ManagedFlow](numFlows)
+            var i = 0
+            while (i < numFlows) {
+                invalidated(i) = flows(indices(i + 1))
+                i += 1
+            }
+            i = 0
+            while (i < numFlows) {
+                removeFlow(invalidated(i))
+                i += 1
             }
         }
     }
 
-    def flowsFor(tag: FlowTag): Set[ManagedFlow] =
-        tagToFlows.get(tag)
+    def flowsFor(tag: FlowTag): Set[ManagedFlow] = {
+        val tagId = tagRegistry.id(tag)
+        if (tagId == FlowTagRegistry.NoId)
+            return null
 
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
+        val indices = tagFlows(tagId)
+        val set = Collections.newSetFromMap(
+            new IdentityHashMap[ManagedFlow, java.lang.Boolean]())
+        var i = 0
+        while (i < indices(0)) {
+            set.add(flows(indices(i + 1)))
+            i += 1
         }
         set
     }
+
+    /** Returns the number of tags currently indexed. */
+    def indexedTags: Int = tagRegistry.size
+
+    /** Returns an estimate of the memory used by the index, in bytes,
+      * excluding the flows and the tags themselves. */
+    def tagIndexMemory: Long = {
+        tagRegistry.memory +
+        ReferenceSize * (tagFlows.length + flows.length + flowTags.length) +
+        4L * freeFlows.length + 4L * intsAllocated +
+        ArrayOverhead * arraysAllocated
+    }
+
+    private def allocateFlow(numTags: Int): Int = {
+        val index = if (numFreeFlows > 0) {
+            numFreeFlows -= 1
+            freeFlows(numFreeFlows)
+        } else {
+            if (nextFlow == flows.length) {
+                val capacity = flows.length * 2
+                flows = Arrays.copyOf(flows, capacity)
+                flowTags = Arrays.copyOf(flowTags, capacity)
+                freeFlows = Arrays.copyOf(freeFlows, capacity)
+            }
+            nextFlow += 1
+            nextFlow - 1
+        }
+        val entries = flowTags(index)
+        val length = 2 * numTags + 1
+        if ((entries eq null) || entries.length < length) {
+            if (entries ne null) {
+                intsAllocated -= entries.length
+                arraysAllocated -= 1
+            }
+            flowTags(index) = new Array[Int](length)
+            intsAllocated += length
+            arraysAllocated += 1
+        }
+        index
+    }
+
+    private def containsTag(entries: Array[Int], count: Int,
+                            tagId: Int): Boolean = {
+        var i = 0
+        while (i < count) {
+            if (entries(2 * i + 1) == tagId)
+                return true
+            i += 1
+        }
+        false
+    }
+
+    /* Adds a flow to the flows of a tag, and returns its position. */
+    private def addTagFlow(tagId: Int, index: Int): Int = {
+        if (tagId >= tagFlows.length) {
+            tagFlows = Arrays.copyOf(tagFlows,
+                                     Math.max(tagFlows.length * 2, tagId + 1))
+        }
+        var indices = tagFlows(tagId)
+        if (indices eq null) {
+            indices = new Array[Int](InitialTagFlows)
+            tagFlows(tagId) = indices
+            intsAllocated += indices.length
+            arraysAllocated += 1
+        }
+        val position = indices(0)
+        if (position + 1 == indices.length) {
+            indices = resizeTagFlows(tagId, indices, indices.length * 2)
+        }
+        indices(position + 1) = index
+        indices(0) = position + 1
+        position
+    }
+
+    /* Removes the flow at the given position from the flows of a tag. */
+    private def removeTagFlow(tagId: Int, position: Int): Unit = {
+        val indices = tagFlows(tagId)
+        val last = indices(0) - 1
+        if (position != last) {
+            val moved = indices(last + 1)
+            indices(position + 1) = moved
+            updatePosition(flowTags(moved), tagId, position)
+        }
+        indices(0) = last
+        if (last == 0) {
+            tagFlows(tagId) = null
+            intsAllocated -= indices.length
+            arraysAllocated -= 1
+            tagRegistry.release(tagId)
+        } else if (indices.length > 4 * InitialTagFlows &&
+                   4 * (last + 1) < indices.length) {
+            resizeTagFlows(tagId, indices, indices.length / 2)
+        }
+    }
+
+    private def updatePosition(entries: Array[Int], tagId: Int,
+                               position: Int): Unit = {
+        var i = 0
+        while (i < entries(0)) {
+            if (entries(2 * i + 1) == tagId) {
+                entries(2 * i + 2) = position
+                return
+            }
+            i += 1
+        }
+    }
+
+    private def resizeTagFlows(tagId: Int, indices: Array[Int],
+                               length: Int): Array[Int] = {
+        val resized = Arrays.copyOf(indices, length)
+        tagFlows(tagId) = resized
+        intsAllocated += length - indices.length
+        resized
+    }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.Arrays
+
+import org.midonet.Util
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowTagRegistry {
+    final val NoId = -1
+    private final val DefaultCapacity = 1024
+}
+
+/*
+ * Interns the flow tags indexed by a flow tag index, mapping every distinct
+ * tag to a dense integer identifier. Tags that are equal map to the same
+ * identifier, regardless of the tag instance, and the identifiers of the
+ * released tags are reused, such that the identifiers can index plain arrays.
+ *
+ * Implementation notes:
+ *
+ *   * The tags are stored in an open addressing hash table with linear
+ *     probing, whose slots hold the tag identifiers. The tag and its hash
+ *     are stored in arrays indexed by the identifier, such that the table
+ *     does not allocate when interning or releasing a tag.
+ *   * Removals use backward shift deletion, so there are no tombstones.
+ *   * The table is resized when half full, and it never shrinks.
+ *   * Not thread-safe: a registry belongs to a single packet worker.
+ */
+final class FlowTagRegistry(initialCapacity: Int) {
+    import FlowTagRegistry._
+
+    def this() = this(DefaultCapacity)
+
+    private var tags = new Array[FlowTag](initialCapacity)
+    private var hashes = new Array[Int](initialCapacity)
+    private var freeIds = new Array[Int](initialCapacity)
+    private var numFreeIds = 0
+    private var nextId = 0
+    private var numTags = 0
+
+    private var slots = newSlots(
+        Util.findNextPositivePowerOfTwo(initialCapacity) * 2)
+    private var mask = slots.length - 1
+
+    /** Returns the number of interned tags. */
+    def size: Int = numTags
+
+    /** Returns the identifier of the given tag, or [[FlowTagRegistry.NoId]]
+      * if the tag is not interned. */
+    def id(tag: FlowTag): Int =
+        slots(find(tag, hash(tag)))
+
+    /** Returns the tag with the given identifier, or null if the identifier
+      * is not assigned. */
+    def tag(id: Int): FlowTag =
+        if (id >= 0 && id < nextId) tags(id) else null
+
+    /** Returns the identifier of the given tag, assigning a new identifier
+      * if the tag is not interned. */
+    def intern(tag: FlowTag): Int = {
+        val h = hash(tag)
+        val slot = find(tag, h)
+        var id = slots(slot)
+        if (id == NoId) {
+            id = allocateId()
+            tags(id) = tag
+            hashes(id) = h
+            slots(slot) = id
+            numTags += 1
+            if (numTags * 2 > slots.length) {
+                resize(slots.length * 2)
+            }
+        }
+        id
+    }
+
+    /** Releases the tag with the given identifier, which may be assigned to
+      * a different tag afterwards. */
+    def release(id: Int): Unit = {
+        if (tag(id) eq null)
+            return
+
+        var hole = hashes(id) & mask
+        while (slots(hole) != id) {
+            hole = (hole + 1) & mask
+        }
+        var next = (hole + 1) & mask
+        while (slots(next) != NoId) {
+            val home = hashes(slots(next)) & mask
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots(hole) = slots(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        slots(hole) = NoId
+
+        tags(id) = null
+        freeIds(numFreeIds) = id
+        numFreeIds += 1
+        numTags -= 1
+    }
+
+    /** Returns an estimate of the memory used by the registry, in bytes,
+      * excluding the tags themselves. */
+    def memory: Long =
+        8L * tags.length + 4L * (hashes.length + freeIds.length + slots.length)
+
+    private def hash(tag: FlowTag): Int = {
+        val h = tag.hashCode()
+        h ^ (h >>> 16)
+    }
+
+    /* Returns the slot holding the identifier of the given tag, or the empty
+     * slot where the tag should be inserted. */
+    private def find(tag: FlowTag, h: Int): Int = {
+        var slot = h & mask
+        var id = slots(slot)
+        while (id != NoId && (hashes(id) != h || tags(id) != tag)) {
+            slot = (slot + 1) & mask
+            id = slots(slot)
+        }
+        slot
+    }
+
+    private def allocateId(): Int = {
+        if (numFreeIds > 0) {
+            numFreeIds -= 1
+            freeIds(numFreeIds)
+        } else {
+            if (nextId == tags.length) {
+                val capacity = tags.length * 2
+                tags = Arrays.copyOf(tags, capacity)
+                hashes = Arrays.copyOf(hashes, capacity)
+                freeIds = Arrays.copyOf(freeIds, capacity)
+            }
+            nextId += 1
+            nextId - 1
+        }
+    }
+
+    private def resize(capacity: Int): Unit = {
+        slots = newSlots(capacity)
+        mask = capacity - 1
+        var id = 0
+        while (id < nextId) {
+            if (tags(id) ne null) {
+                var slot = hashes(id) & mask
+                while (slots(slot) != NoId) {
+                    slot = (slot + 1) & mask
+                }
+                slots(slot) = id
+            }
+            id += 1
+        }
+    }
+
+    private def newSlots(capacity: Int): Array[Int] = {
+        val array = new Array[Int](capacity)
+        Arrays.fill(array, NoId)
+        array
+    }
+}
@@ -41,6 +41,10 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var sequence = 0L
     // To access this object from a netlink sequence number, used for duplicate detection
     var mark = 0
+    // The index of this flow in the flow tag index, if indexed
+    var tagIndex = FlowTagIndexer.NoIndex
+    // The number of packets reported by the datapath when last checked
+    var lastPackets = 0L
     var removed = true
     var linkedFlow: ManagedFlow = null
 
@@ -54,6 +58,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         ArrayListUtil.addAll(flowRemovedCallbacks, callbacks)
         this.sequence = sequence
         this.linkedFlow = linkedFlow
+        lastPackets = 0L
         removed = false
     }
 
@@ -16,25 +16,112 @@
 
 package org.midonet.midolman.io
 
+import java.util.Arrays
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
 import java.util.concurrent.locks.ReentrantLock
 
 import scala.collection.mutable
 
+import com.codahale.metrics.Counter
+
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
 import org.midonet.odp.DpPort
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.{Bucket, TokenBucketFillRate, TokenBucket}
 
+object TokenBucketPolicy {
+
+    /** The admission share of a port that is not limited. */
+    final val FullShare = 1024
+    /** The minimum admission share of a port, such that a limited port is
+      * never starved. */
+    final val MinShare = 16
+
+    /**
+     * A bucket that counts the upcalls admitted and dropped for a port, and
+     * that admits only a `share / FullShare` fraction of the upcalls of the
+     * port before taking their tokens from the HTB.
+     */
+    private final class AdmissionBucket(bucket: Bucket,
+                                        admitted: Counter,
+                                        dropped: Counter)
+        extends Bucket(bucket.underlyingTokenBucket(), 0, null, 0, false) {
+
+        @volatile var share = FullShare
+        @volatile var tokenDrops = 0L
+        private var credit = 0
+
+        override def prepare(): Unit = bucket.prepare()
+
+        override def consumeToken(): Boolean = {
+            val s = share
+            if (s < FullShare) {
+                credit += s
+                if (credit < FullShare) {
+                    dropped.inc()
+                    return false
+                }
+                credit -= FullShare
+            }
+            if (bucket.consumeToken()) {
+                admitted.inc()
+                true
+            } else {
+                tokenDrops += 1
+                dropped.inc()
+                false
+            }
+        }
+
+        override def giveBack(): Unit = {
+            bucket.giveBack()
+            admitted.dec()
+        }
+
+        override def done(): Unit = bucket.done()
+    }
+
+    /**
+     * The admission state of a datapath port linked in the HTB, with the
+     * simulation time spent in the packets of the port since the last
+     * rebalance.
+     */
+    private final class PortAdmission(val name: String,
+                                      val bucket: AdmissionBucket,
+                                      val tokenBucket: TokenBucket) {
+        val simulationNanos = new LongAdder
+        var portNo = -1
+        var cost = 0L
+        var lastTokenDrops = 0L
+    }
+}
+
 /**
  * This class contains a policy to assign token buckets to datapath ports.
  * Depending on the port type, token buckets are linked at different levels
- * in the hierarchy.
+ * in the hierarchy. The upcalls admitted and dropped for each port are
+ * counted in the datapath metrics.
+ *
+ * With adaptive admission, the packet workers report the simulation time of
+ * the packets of each port, and the policy periodically sets the share of
+ * the upcalls admitted for each port. When the HTB runs out of tokens, a port
+ * whose packets would take more than a fair share of the simulation time is
+ * limited to that fair share, such that a port generating many flow misses
+ * does not starve the simulation of the other ports. When the HTB no longer
+ * runs out of tokens, the share of the limited ports is doubled at every
+ * rebalance until they are no longer limited.
  */
 class TokenBucketPolicy(config: MidolmanConfig,
                         tbRate: TokenBucketFillRate,
                         multiplier: Int,
-                        factory: TokenBucket => Bucket) {
+                        factory: TokenBucket => Bucket,
+                        metrics: DatapathMetrics = null,
+                        clock: NanoClock = NanoClock.DEFAULT) {
+    import TokenBucketPolicy._
+
     private val log: Logger = LoggerFactory.getLogger("org.midonet.io.htb")
 
     private val root = TokenBucket.create(adjust(config.datapath.globalIncomingBurstCapacity),
@@ -46,20 +133,29 @@ class TokenBucketPolicy(config: MidolmanConfig,
 
     private val vmBuckets = root.link(0, "vms")
 
-    private val tokenBuckets = mutable.Map[String, Bucket]()
+    private val tokenBuckets = mutable.Map[String, PortAdmission]()
     private val lock = new ReentrantLock
 
+    /** Whether the admission of the ports adapts to the simulation time of
+      * their packets. */
+    val adaptive = config.datapath.adaptiveAdmission
+    private val rebalanceInterval = config.datapath.adaptiveAdmissionInterval
+    private val nextRebalance = new AtomicLong(clock.tick + rebalanceInterval)
+
+    // The admission state of the ports, indexed by datapath port number.
+    @volatile private var portNumbers = new Array[PortAdmission](0)
+
     def calculateMinimumSystemTokens: Int =
-        tokenBuckets.foldLeft(0)(_ + _._2.underlyingTokenBucket().getCapacity)
+        tokenBuckets.foldLeft(0)(_ + _._2.tokenBucket.getCapacity)
 
     def link(port: DpPort, t: ChannelType): Bucket = {
         lock.lock()
         try {
             if (tokenBuckets.contains(port.getName)) {
-                return tokenBuckets(port.getName)
+                return tokenBuckets(port.getName).bucket
             }
 
-            val tb = factory(t match {
+            val tb = t match {
                 case OverlayTunnel if config.datapath.tunnelIncomingBurstCapacity > 0 =>
                     root.link(adjust(config.datapath.tunnelIncomingBurstCapacity), port.getName)
                 case VtepTunnel if config.datapath.vtepIncomingBurstCapacity > 0 =>
@@ -68,9 +164,13 @@ class TokenBucketPolicy(config: MidolmanConfig,
                     vmBuckets.link(adjust(config.datapath.vmIncomingBurstCapacity), port.getName)
                 case _ =>
                     return null
-            })
+            }
 
-            tokenBuckets.put(port.getName, tb)
+            val bucket = new AdmissionBucket(factory(tb),
+                                             admittedCounter(port.getName),
+                                             droppedCounter(port.getName))
+            tokenBuckets.put(port.getName,
+                             new PortAdmission(port.getName, bucket, tb))
             val curMax = root.getCapacity
             val newMax = calculateMinimumSystemTokens
             if (newMax > curMax) {
@@ -80,7 +180,31 @@ class TokenBucketPolicy(config: MidolmanConfig,
 
             log.info("HTB updated")
             root.dumpToLog()
-            tb
+            bucket
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Indexes the bucket of a port by its datapath port number once the port
+     * has been created in the datapath, such that the simulation time of its
+     * packets is accounted to it.
+     */
+    def portCreated(port: DpPort): Unit = {
+        lock.lock()
+        try {
+            val admission = tokenBuckets.getOrElse(port.getName, null)
+            if ((admission ne null) && (port.getPortNo ne null)) {
+                val portNo = port.getPortNo.intValue
+                var ports = portNumbers
+                if (portNo >= ports.length) {
+                    ports = Arrays.copyOf(ports, portNo + 1)
+                }
+                ports(portNo) = admission
+                admission.portNo = portNo
+                portNumbers = ports
+            }
         } finally {
             lock.unlock()
         }
@@ -90,8 +214,14 @@ class TokenBucketPolicy(config: MidolmanConfig,
         lock.lock()
         try {
             tokenBuckets.remove(port.getName) match {
-                case Some(tb) =>
-                    val tokens = tb.underlyingTokenBucket().unlink()
+                case Some(admission) =>
+                    if (admission.portNo >= 0) {
+                        portNumbers(admission.portNo) = null
+                    }
+                    if (metrics ne null) {
+                        metrics.removeUpcallCounters(port.getName)
+                    }
+                    val tokens = admission.tokenBucket.unlink()
                     val newMax = calculateMinimumSystemTokens
                     if (newMax >= adjust(config.datapath.globalIncomingBurstCapacity))
                         root.setCapacity(newMax)
@@ -108,5 +238,88 @@ class TokenBucketPolicy(config: MidolmanConfig,
         }
     }
 
+    /**
+     * Records the simulation time of a packet received from the given
+     * datapath port. The packet workers call this method when adaptive
+     * admission is enabled, and the first call after the rebalance interval
+     * elapsed rebalances the admission of the ports.
+     */
+    def recordSimulation(portNo: Int, startNanos: Long, endNanos: Long): Unit = {
+        val ports = portNumbers
+        if (portNo >= 0 && portNo < ports.length) {
+            val admission = ports(portNo)
+            if (admission ne null) {
+                admission.simulationNanos.add(endNanos - startNanos)
+            }
+        }
+        val next = nextRebalance.get
+        if (endNanos - next >= 0 &&
+            nextRebalance.compareAndSet(next, endNanos + rebalanceInterval)) {
+            rebalance()
+        }
+    }
+
+    /**
+     * Sets the admission share of every port. The cost of a port is the
+     * simulation time of its packets, smoothed over the previous intervals,
+     * and its demand is its cost scaled up by its current share, which
+     * estimates the simulation time it would take if it was not limited. If
+     * any bucket ran out of tokens during the interval, the ports whose
+     * demand exceeds the fair share of the total cost are limited to it.
+     */
+    private[io] def rebalance(): Unit = {
+        lock.lock()
+        try {
+            var total = 0L
+            var active = 0
+            var pressure = false
+            for (admission <- tokenBuckets.values) {
+                val tokenDrops = admission.bucket.tokenDrops
+                pressure |= tokenDrops != admission.lastTokenDrops
+                admission.lastTokenDrops = tokenDrops
+
+                admission.cost = (admission.cost +
+                                  admission.simulationNanos.sumThenReset()) / 2
+                total += admission.cost
+                if (admission.cost > 0)
+                    active += 1
+            }
+            for (admission <- tokenBuckets.values) {
+                val bucket = admission.bucket
+                val share =
+                    if (pressure && active > 1) {
+                        val fair = total / active
+                        val demand = admission.cost * FullShare / bucket.share
+                        if (demand > fair)
+                            Math.max(MinShare, fair * FullShare / demand).toInt
+                        else FullShare
+                    } else {
+                        Math.min(FullShare, bucket.share * 2)
+                    }
+                if (share != bucket.share) {
+                    log.debug("Setting admission share of {} to {}/{}",
+                              admission.name, Int.box(share),
+                              Int.box(FullShare))
+                    bucket.share = share
+                }
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /** Returns the current admission share of a port, for testing. */
+    private[io] def admissionShare(port: DpPort): Int = {
+        lock.lock()
+        try tokenBuckets.get(port.getName).map(_.bucket.share).getOrElse(FullShare)
+        finally lock.unlock()
+    }
+
+    private def admittedCounter(port: String): Counter =
+        if (metrics ne null) metrics.upcallsAdmitted(port) else new Counter
+
+    private def droppedCounter(port: String): Counter =
+        if (metrics ne null) metrics.upcallsDropped(port) else new Counter
+
     private def adjust(tokens: Int): Int = Math.max(1, tokens / multiplier)
 }
@@ -40,6 +40,16 @@ import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.{BatchCollector, Bucket}
 import org.midonet.util.eventloop.SelectLoop
 
+object UpcallDatapathConnectionManager {
+    /**
+     * Parses a packet that is handed to all the packet workers, such that
+     * the workers do not race to parse it. The frames of upcalls are checked
+     * when their packets are built, so parsing them does not fail.
+     */
+    private[io] def parseShared(packet: Packet): Unit =
+        packet.getEthernet
+}
+
 /**
  * The UpcallDatapathConnectionManager will create a new netlink channel
  * (datapath connection) for each datapath port in the system. It then asks
@@ -128,6 +138,7 @@ abstract class UpcallDatapathConnectionManagerBase(
         } andThen {
             case Success((createdPort, _)) =>
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
+                tbPolicy.portCreated(createdPort)
             case Failure(e) =>
                 log.error("failed to create or retrieve datapath port "
                           + port.getName, e)
@@ -175,7 +186,13 @@ abstract class UpcallDatapathConnectionManagerBase(
         }
 
     protected def makeUpcallHandler(workers: Workers)
-                                   (implicit as: ActorSystem) =
+                                   (implicit as: ActorSystem)
+    : BatchCollector[Packet] =
+        if (workers.rings.isEmpty) makeActorUpcallHandler(workers)
+        else makeRingUpcallHandler(workers)
+
+    private def makeActorUpcallHandler(workers: Workers)
+                                      (implicit as: ActorSystem) =
         new BatchCollector[Packet] {
 
             val BATCH_SIZE: Int = 16
@@ -206,6 +223,7 @@ abstract class UpcallDatapathConnectionManagerBase(
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
                 if (FlowState.isStateMessage(data.getMatch)) {
+                    UpcallDatapathConnectionManager.parseShared(data)
                     var i = 0
                     while (i < NUM_WORKERS) {
                         addToWorkerBatch(i, data)
@@ -225,6 +243,60 @@ abstract class UpcallDatapathConnectionManagerBase(
             }
 
         }
+
+    private def makeRingUpcallHandler(workers: Workers) =
+        new RingUpcallHandler(workers.rings)
+
+    /**
+     * Releases the resources held by an upcall handler whose connection has
+     * been stopped.
+     */
+    protected def closeUpcallHandler(handler: BatchCollector[Packet]): Unit =
+        handler match {
+            case h: RingUpcallHandler => h.close()
+            case _ =>
+        }
+}
+
+/**
+ * Hands packets over to the workers through their upcall rings. The handler
+ * must only be called from the netlink reader thread it was created for,
+ * which is the single producer of its rings.
+ */
+private final class RingUpcallHandler(rings: IndexedSeq[UpcallRings])
+        extends BatchCollector[Packet] {
+
+    private val NUM_WORKERS = rings.length
+    private val producers = rings.map(_.newProducer()).toArray
+    private val log = LoggerFactory.getLogger("PacketInHook")
+
+    override def endBatch(): Unit = { }
+
+    override def submit(data: Packet) {
+        log.trace("publishing packet: {}", data.getMatch)
+
+        data.startTimeNanos = NanoClock.DEFAULT.tick
+
+        if (FlowState.isStateMessage(data.getMatch)) {
+            UpcallDatapathConnectionManager.parseShared(data)
+            var i = 0
+            while (i < NUM_WORKERS) {
+                producers(i).publish(data)
+                i += 1
+            }
+        } else {
+            val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
+            producers(worker).publish(data)
+        }
+    }
+
+    def close(): Unit = {
+        var i = 0
+        while (i < NUM_WORKERS) {
+            producers(i).close()
+            i += 1
+        }
+    }
 }
 
 /**
@@ -243,14 +315,22 @@ class OneToOneDpConnManager(c: MidolmanConfig,
         new SelectorBasedDatapathConnection(name, config, true, bucket,
                                             makeBufferPool(), metrics)
 
+    private val upcallHandlers =
+        new ConcurrentHashMap[OvsDatapathConnection, BatchCollector[Packet]]()
+
     override def stopConnection(conn: ManagedDatapathConnection) {
         conn.stop()
+        val handler = upcallHandlers.remove(conn.getConnection)
+        if (handler ne null)
+            closeUpcallHandler(handler)
     }
 
     protected override def setUpcallHandler(conn: OvsDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
-        conn.datapathsSetNotificationHandler(makeUpcallHandler(w))
+        val handler = makeUpcallHandler(w)
+        upcallHandlers.put(conn, handler)
+        conn.datapathsSetNotificationHandler(handler)
     }
 }
 
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.codahale.metrics.Meter
+
+import org.jctools.queues.SpscArrayQueue
+
+import org.midonet.odp.Packet
+
+object UpcallRings {
+    /**
+     * The number of times a producer retries to publish a packet into a
+     * full ring before dropping it.
+     */
+    val MaxPublishRetries = 100
+}
+
+/**
+ * The rings through which the upcall handlers hand packets over to a packet
+ * worker, bypassing the worker's mailbox. Each upcall handler runs on a
+ * single netlink reader thread and gets its own single-producer,
+ * single-consumer ring, which the worker drains from its own thread.
+ *
+ * A worker that finds its rings empty marks itself idle and stops draining
+ * them. The next producer that publishes a packet clears the idle flag and
+ * wakes the worker up, such that idle workers neither poll the rings nor wait
+ * for a timer.
+ */
+final class UpcallRings(ringSize: Int, packetsDropped: Meter) {
+    import UpcallRings._
+
+    @volatile private var rings = Array.empty[SpscArrayQueue[Packet]]
+    private val idle = new AtomicBoolean(false)
+    @volatile private var waker: () => Unit = null
+
+    /**
+     * Sets the function that wakes the worker up, called by the producer that
+     * publishes the first packet after the worker marked itself idle.
+     */
+    def setWaker(waker: () => Unit): Unit = {
+        this.waker = waker
+    }
+
+    /**
+     * Marks the worker idle, such that the next published packet wakes it up.
+     * Returns false if packets were published in the meantime, in which case
+     * the worker is not idle and must drain the rings again. Must only be
+     * called by the worker owning these rings.
+     */
+    def markIdle(): Boolean = {
+        idle.set(true)
+        !(hasPackets && idle.compareAndSet(true, false))
+    }
+
+    private def wakeUp(): Unit = {
+        if (idle.compareAndSet(true, false)) {
+            val w = waker
+            if (w ne null)
+                w()
+        }
+    }
+
+    /**
+     * Creates the ring of a new producer. The returned producer must only
+     * publish packets from a single thread.
+     */
+    def newProducer(): UpcallProducer = synchronized {
+        val ring = new SpscArrayQueue[Packet](ringSize)
+        rings = rings :+ ring
+        new UpcallProducer(ring)
+    }
+
+    private def remove(ring: SpscArrayQueue[Packet]): Unit = synchronized {
+        rings = rings.filterNot(_ eq ring)
+    }
+
+    /**
+     * Whether any of the rings has pending packets. This method is
+     * thread-safe.
+     */
+    def hasPackets: Boolean = {
+        val rs = rings
+        var i = 0
+        while (i < rs.length) {
+            if (!rs(i).isEmpty)
+                return true
+            i += 1
+        }
+        false
+    }
+
+    /**
+     * Removes up to `limit` packets from each ring, passing them to the
+     * handler, and returns the number of packets drained. Must only be
+     * called by the worker owning these rings.
+     */
+    def drain(handler: Packet => Unit, limit: Int): Int = {
+        val rs = rings
+        var drained = 0
+        var i = 0
+        while (i < rs.length) {
+            val ring = rs(i)
+            var n = 0
+            var packet = ring.poll()
+            while (packet ne null) {
+                handler(packet)
+                n += 1
+                packet = if (n < limit) ring.poll() else null
+            }
+            drained += n
+            i += 1
+        }
+        drained
+    }
+
+    final class UpcallProducer private[UpcallRings](
+            ring: SpscArrayQueue[Packet]) {
+
+        /**
+         * Publishes a packet to the worker, retrying for a short while if
+         * the ring is full, and wakes the worker up if it is idle. Packets
+         * that still do not fit are dropped, as the datapath would do if the
+         * upcalls were not read.
+         */
+        def publish(packet: Packet): Boolean = {
+            var retries = 0
+            while (!ring.offer(packet)) {
+                if (retries == MaxPublishRetries) {
+                    packetsDropped.mark()
+                    return false
+                }
+                retries += 1
+                Thread.`yield`()
+            }
+            wakeUp()
+            true
+        }
+
+        /**
+         * Removes the ring of this producer, discarding any pending packets.
+         */
+        def close(): Unit = remove(ring)
+    }
+}
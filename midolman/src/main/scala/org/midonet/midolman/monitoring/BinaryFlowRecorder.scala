@@ -19,6 +19,7 @@ package org.midonet.midolman.monitoring
 import java.nio.ByteBuffer
 import java.util.{ArrayList, List, UUID}
 
+import com.codahale.metrics.MetricRegistry
 import uk.co.real_logic.sbe.codec.java._
 
 import org.midonet.cluster.flowhistory.{proto, ActionEncoder, BinarySerialization}
@@ -36,8 +37,17 @@ import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
 import org.midonet.sdn.flows.FlowTagger._
 
 
-class BinaryFlowRecorder(val hostId: UUID, config: FlowHistoryConfig)
-        extends AbstractFlowRecorder(config) {
+class BinaryFlowRecorder(val hostId: UUID, config: FlowHistoryConfig,
+                         registry: MetricRegistry)
+        extends AbstractFlowRecorder(config, registry) {
+
+    override protected def packRecords: Boolean = config.packRecords
+
+    override protected def newEncoder(): FlowRecordEncoder =
+        new BinaryFlowRecordEncoder(hostId)
+}
+
+class BinaryFlowRecordEncoder(hostId: UUID) extends FlowRecordEncoder {
     val MESSAGE_HEADER = new MessageHeader
     val FLOW_SUMMARY = new FlowSummary
     val buffer = ByteBuffer.allocateDirect(BinarySerialization.BufferSize)
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.nio.ByteBuffer
+
+import org.midonet.Util
+import org.midonet.util.PaddedAtomicLong
+
+/**
+ * A lock-free ring of encoded flow records, with a single producer and a
+ * single consumer. The records are copied into buffers owned by the ring,
+ * which grow to fit the largest record written to each slot.
+ */
+final class FlowRecordRing(size: Int, recordSize: Int) {
+    private val capacity = Util.findNextPositivePowerOfTwo(size)
+    private val mask = capacity - 1
+    private val slots = Array.fill(capacity)(ByteBuffer.allocate(recordSize))
+    private val head = new PaddedAtomicLong()
+    private val tail = new PaddedAtomicLong()
+
+    /**
+     * Copies the remaining bytes of the record into the ring, returning
+     * false if the ring is full. Must only be called by the producer.
+     */
+    def offer(record: ByteBuffer): Boolean = {
+        val position = tail.get
+        if (position - head.get >= capacity)
+            return false
+        val index = (position & mask).toInt
+        var slot = slots(index)
+        if (slot.capacity < record.remaining) {
+            slot = ByteBuffer.allocate(record.remaining)
+            slots(index) = slot
+        }
+        slot.clear()
+        slot.put(record)
+        slot.flip()
+        tail.lazySet(position + 1)
+        true
+    }
+
+    /**
+     * Returns the oldest record in the ring without removing it, or null if
+     * the ring is empty. Must only be called by the consumer.
+     */
+    def peek(): ByteBuffer = {
+        val position = head.get
+        if (position == tail.get) null
+        else slots((position & mask).toInt)
+    }
+
+    /**
+     * Removes the oldest record from the ring. Must only be called by the
+     * consumer, after a successful peek().
+     */
+    def poll(): Unit = head.lazySet(head.get + 1)
+
+    def isEmpty: Boolean = head.get == tail.get
+}
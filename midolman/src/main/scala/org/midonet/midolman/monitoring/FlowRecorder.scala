@@ -20,10 +20,13 @@ import scala.collection.JavaConverters._
 import java.net.{InetAddress, InetSocketAddress}
 import java.nio.ByteBuffer
 import java.nio.channels.DatagramChannel
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{CopyOnWriteArrayList, TimeUnit}
 import java.util.{ArrayList, List, UUID}
 
 import org.slf4j.LoggerFactory
 
+import com.codahale.metrics.MetricRegistry
 import com.google.common.net.HostAndPort
 import com.typesafe.scalalogging.Logger
 
@@ -31,6 +34,7 @@ import org.midonet.cluster.flowhistory._
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
 import org.midonet.midolman.config.{FlowHistoryConfig, MidolmanConfig}
+import org.midonet.midolman.monitoring.metrics.{FlowRecorderMetrics, PacketPipelineMetrics}
 import org.midonet.midolman.rules.{RuleResult => MMRuleResult}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.FlowMatch
@@ -39,20 +43,39 @@ import org.midonet.sdn.flows.FlowTagger._
 
 trait FlowRecorder {
     def record(pktContext: PacketContext, simRes: MMSimRes): Unit
+
+    /**
+     * Returns a recorder for the exclusive use of a packet worker, which
+     * reports to the metrics of the worker.
+     */
+    def forWorker(metrics: PacketPipelineMetrics): FlowRecorder = this
+
+    /**
+     * Releases a recorder returned by forWorker(), once its packet worker
+     * stopped and no longer records.
+     */
+    def release(): Unit = { }
+
+    /**
+     * Stops the recorder, sending the pending records. Called when the agent
+     * stops, once the packet workers no longer record.
+     */
+    def stop(): Unit = { }
 }
 
 object FlowRecorder {
     val log = Logger(LoggerFactory.getLogger(classOf[FlowRecorder]))
 
-    def apply(config: MidolmanConfig, hostId: UUID): FlowRecorder = {
+    def apply(config: MidolmanConfig, hostId: UUID,
+              registry: MetricRegistry): FlowRecorder = {
         log.info("Creating flow recorder with " +
                      s"(${config.flowHistory.encoding}) encoding")
         if (config.flowHistory.enabled) {
             config.flowHistory.encoding match {
                 case "json" => new JsonFlowRecorder(
-                    hostId, config.flowHistory)
-                case "binary" => new BinaryFlowRecorder(hostId,
-                                                        config.flowHistory)
+                    hostId, config.flowHistory, registry)
+                case "binary" => new BinaryFlowRecorder(
+                    hostId, config.flowHistory, registry)
                 case "none" => NullFlowRecorder
                 case other =>
                     log.error(s"Invalid encoding ($other) specified")
@@ -76,9 +99,28 @@ object NullFlowRecorder extends FlowRecorder {
 }
 
 /**
-  * Abstract flow recorder example that sends summaries over a udp port
+  * Encodes flow summaries. An encoder is used by a single thread, and the
+  * returned buffer is valid until the next call.
+  */
+trait FlowRecordEncoder {
+    def encodeRecord(pktContext: PacketContext, simRes: MMSimRes): ByteBuffer
+}
+
+/**
+  * Abstract flow recorder that sends summaries over a udp port.
+  *
+  * Each packet worker encodes its summaries into its own lock-free ring, which
+  * is drained by a dedicated exporter thread, such that the workers do not
+  * block on the socket. When the encoding allows it and pack_records is
+  * enabled, the exporter packs the consecutive summaries of a worker into each
+  * datagram, up to the configured datagram size. Summaries are dropped when
+  * the ring of a worker is full, and only one in every sampling_rate
+  * simulations is recorded. The ring of a released worker recorder is removed
+  * once the exporter has sent its pending summaries.
   */
-abstract class AbstractFlowRecorder(config: FlowHistoryConfig) extends FlowRecorder {
+abstract class AbstractFlowRecorder(config: FlowHistoryConfig,
+                                    registry: MetricRegistry)
+        extends FlowRecorder {
     val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
 
     val endpoint: InetSocketAddress = try {
@@ -95,20 +137,182 @@ abstract class AbstractFlowRecorder(config: FlowHistoryConfig) extends FlowRecor
 
     val socket = DatagramChannel.open()
 
+    private val samplingRate = Math.max(config.samplingRate, 1)
+    private val datagramSize = config.datagramSize
+    private val workers = new CopyOnWriteArrayList[WorkerFlowRecorder]()
+    private val exporter = new Thread("flow-history-exporter") {
+        override def run(): Unit = export()
+    }
+    exporter.setDaemon(true)
+    private var exporterStarted = false
+    @volatile private var running = true
+
+    // Used by callers of record() that are not packet workers, and reports
+    // only the recorder metrics, since it does not belong to a worker.
+    private lazy val sharedRecorder = newWorkerRecorder(
+        new FlowRecorderMetrics(registry, "shared"))
+
+    /**
+      * Whether consecutive records can be sent in the same datagram.
+      */
+    protected def packRecords: Boolean = false
+
+    /**
+      * Creates a new encoder, for the exclusive use of a single thread.
+      */
+    protected def newEncoder(): FlowRecordEncoder
+
     final override def record(pktContext: PacketContext, simRes: MMSimRes):
             Unit = {
-        try {
-            if (endpoint != null) {
-                val buffer = encodeRecord(pktContext: PacketContext, simRes)
-                socket.send(buffer, endpoint)
+        val recorder = sharedRecorder
+        recorder.synchronized {
+            recorder.record(pktContext, simRes)
+        }
+    }
+
+    final override def forWorker(metrics: PacketPipelineMetrics): FlowRecorder =
+        newWorkerRecorder(metrics.flowRecords)
+
+    private def newWorkerRecorder(metrics: FlowRecorderMetrics) = {
+        val recorder = new WorkerFlowRecorder(newEncoder(), metrics)
+        workers.add(recorder)
+        exporter.synchronized {
+            if (!exporterStarted && running && endpoint != null) {
+                exporter.start()
+                exporterStarted = true
+            }
+        }
+        recorder
+    }
+
+    override def stop(): Unit = {
+        exporter.synchronized {
+            running = false
+            if (exporterStarted) {
+                LockSupport.unpark(exporter)
+                exporter.join(AbstractFlowRecorder.ExporterStopMillis)
+                if (exporter.isAlive)
+                    log.warn("FlowHistory: Timeout stopping the exporter")
             }
+        }
+        socket.close()
+    }
+
+    /** The number of worker recorders whose records are exported. */
+    private[monitoring] def workerRecorders: Int = workers.size
+
+    private def export(): Unit = {
+        val datagram = ByteBuffer.allocateDirect(datagramSize)
+        while (running) {
+            if (!drainWorkers(datagram))
+                LockSupport.parkNanos(AbstractFlowRecorder.ExporterIdleNanos)
+        }
+        // Send the records recorded before the recorder was stopped.
+        drainWorkers(datagram)
+    }
+
+    private def drainWorkers(datagram: ByteBuffer): Boolean = {
+        var exported = false
+        val it = workers.iterator()
+        while (it.hasNext) {
+            val recorder = it.next()
+            // Read before draining, such that a released recorder is only
+            // removed after sending every record recorded before release().
+            val released = recorder.released
+            exported |= recorder.drain(datagram)
+            if (released)
+                workers.remove(recorder)
+        }
+        exported
+    }
+
+    private def send(buffer: ByteBuffer): Unit = {
+        try {
+            socket.send(buffer, endpoint)
         } catch {
             case t: Throwable => log.warn("FlowHistory: Error sending data", t)
         }
     }
 
-    def encodeRecord(pktContext: PacketContext,
-                     simRes: MMSimRes): ByteBuffer
+    private final class WorkerFlowRecorder(encoder: FlowRecordEncoder,
+                                           metrics: FlowRecorderMetrics)
+            extends FlowRecorder {
+
+        private val ring = new FlowRecordRing(config.ringSize, datagramSize)
+        private var simulations = 0
+        @volatile var released = false
+
+        override def record(pktContext: PacketContext, simRes: MMSimRes):
+                Unit = {
+            if (endpoint eq null)
+                return
+            simulations += 1
+            if (simulations < samplingRate) {
+                metrics.flowRecordsSampledOut.mark()
+                return
+            }
+            simulations = 0
+            try {
+                if (!ring.offer(encoder.encodeRecord(pktContext, simRes)))
+                    metrics.flowRecordsDropped.mark()
+            } catch {
+                case t: Throwable =>
+                    log.warn("FlowHistory: Error encoding data", t)
+            }
+        }
+
+        override def release(): Unit = {
+            released = true
+            exporter.synchronized {
+                // Without an exporter the ring is never drained.
+                if (!exporterStarted)
+                    workers.remove(this)
+            }
+        }
+
+        /**
+          * Sends the records in the ring, returning whether any was sent.
+          * Called by the exporter thread.
+          */
+        def drain(datagram: ByteBuffer): Boolean = {
+            if (ring.isEmpty)
+                return false
+            datagram.clear()
+            var records = 0
+            var record = ring.peek()
+            while (record ne null) {
+                if (records > 0 &&
+                    (!packRecords || record.remaining > datagram.remaining)) {
+                    flush(datagram, records)
+                    records = 0
+                }
+                if (!packRecords || record.remaining > datagram.capacity) {
+                    send(record)
+                    metrics.flowRecordBatchFill.update(1)
+                } else {
+                    datagram.put(record)
+                    records += 1
+                }
+                ring.poll()
+                record = ring.peek()
+            }
+            if (records > 0)
+                flush(datagram, records)
+            true
+        }
+
+        private def flush(datagram: ByteBuffer, records: Int): Unit = {
+            datagram.flip()
+            send(datagram)
+            datagram.clear()
+            metrics.flowRecordBatchFill.update(records)
+        }
+    }
+}
+
+object AbstractFlowRecorder {
+    private val ExporterIdleNanos = TimeUnit.MILLISECONDS.toNanos(1)
+    private val ExporterStopMillis = 5000L
 }
 
 object FlowRecordBuilder {
@@ -19,14 +19,23 @@ package org.midonet.midolman.monitoring
 import java.nio.ByteBuffer
 import java.util.UUID
 
+import com.codahale.metrics.MetricRegistry
+
 import org.midonet.cluster.flowhistory.JsonSerialization
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
 import org.midonet.midolman.config.FlowHistoryConfig
 import org.midonet.midolman.simulation.PacketContext
 
-class JsonFlowRecorder(hostId: UUID, config: FlowHistoryConfig)
-        extends AbstractFlowRecorder(config) {
+class JsonFlowRecorder(hostId: UUID, config: FlowHistoryConfig,
+                       registry: MetricRegistry)
+        extends AbstractFlowRecorder(config, registry) {
+
+    override protected def newEncoder(): FlowRecordEncoder =
+        new JsonFlowRecordEncoder(hostId)
+}
+
+class JsonFlowRecordEncoder(hostId: UUID) extends FlowRecordEncoder {
 
     val serializer = new JsonSerialization
 
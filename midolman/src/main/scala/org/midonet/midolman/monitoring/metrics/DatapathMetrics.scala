@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.monitoring.metrics
 
-import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.{Counter, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
 trait DatapathMeter
@@ -38,5 +38,22 @@ class DatapathMetrics(val registry: MetricRegistry) {
     val flowDeleteErrors = registry.meter(
         name(classOf[DatapathMeter], "flows", "deleteErrors"))
 
+    val flowCreateBatchSize = registry.histogram(
+        name(classOf[DatapathMeter], "flows", "createBatchSize"))
+
+    /** Returns the counter of upcalls admitted by the HTB for a port. */
+    def upcallsAdmitted(port: String): Counter =
+        registry.counter(name(classOf[DatapathMeter], "upcalls", port, "admitted"))
+
+    /** Returns the counter of upcalls dropped by the HTB for a port. */
+    def upcallsDropped(port: String): Counter =
+        registry.counter(name(classOf[DatapathMeter], "upcalls", port, "dropped"))
+
+    /** Removes the upcall counters of a port. */
+    def removeUpcallCounters(port: String): Unit = {
+        registry.remove(name(classOf[DatapathMeter], "upcalls", port, "admitted"))
+        registry.remove(name(classOf[DatapathMeter], "upcalls", port, "dropped"))
+    }
+
 }
 
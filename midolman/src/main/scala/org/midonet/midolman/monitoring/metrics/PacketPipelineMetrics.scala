@@ -21,6 +21,7 @@ import java.util.concurrent.TimeUnit
 import com.codahale.metrics.{Clock, Gauge, MetricRegistry, Timer}
 import com.codahale.metrics.MetricRegistry.name
 
+import org.midonet.midolman.flows.FlowTagIndexer
 import org.midonet.util.metrics.HdrHistogramSlidingTimeWindowReservoir
 
 class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
@@ -56,6 +57,16 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
                       5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
                       Clock.defaultClock)))
 
+    val upcallLatency = registry.register(
+        name(classOf[PacketPipelineHistogram], workerTag, "upcallLatency"),
+        new Timer(new HdrHistogramSlidingTimeWindowReservoir(
+                      5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
+                      Clock.defaultClock)))
+
+    val upcallsDropped = registry.meter(
+        name(classOf[PacketPipelineMeter], workerTag,
+             "upcallsDropped", "packets"))
+
     val currentDpFlowsMetric = registry.register(
         name(classOf[FlowTablesGauge], workerTag, "currentDatapathFlows"),
         new Gauge[Long] {
@@ -63,6 +74,26 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
                 dpFlowsMetric.getCount - dpFlowsRemovedMetric.getCount
     })
 
+    @volatile private var flowTagIndexer: FlowTagIndexer = null
+
+    val flowTagIndexMemory = registry.register(
+        name(classOf[FlowTablesGauge], workerTag, "flowTagIndexMemory"),
+        new Gauge[Long] {
+            override def getValue: Long = {
+                val indexer = flowTagIndexer
+                if (indexer ne null) indexer.tagIndexMemory else 0L
+            }
+    })
+
+    val flowTagIndexTags = registry.register(
+        name(classOf[FlowTablesGauge], workerTag, "flowTagIndexTags"),
+        new Gauge[Long] {
+            override def getValue: Long = {
+                val indexer = flowTagIndexer
+                if (indexer ne null) indexer.indexedTags else 0L
+            }
+    })
+
     val dpFlowsMetric = registry.meter(
         name(classOf[FlowTablesMeter], workerTag,
              "datapathFlowsCreated", "datapathFlows"))
@@ -71,12 +102,39 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
         name(classOf[FlowTablesMeter], workerTag,
              "datapathFlowsRemoved", "datapathFlowsRemoved"))
 
+    val flowRecords = new FlowRecorderMetrics(registry, workerTag)
+
+    val flowStateBatchSize = registry.histogram(
+        name(classOf[PacketPipelineHistogram], workerTag,
+             "flowStateBatchSize"))
+
+    def trackFlowTagIndex(indexer: FlowTagIndexer): Unit = {
+        flowTagIndexer = indexer
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
     }
 }
 
+/**
+ * The metrics of a flow history recorder, reported under the given tag.
+ */
+class FlowRecorderMetrics(val registry: MetricRegistry, tag: String) {
+    val flowRecordsDropped = registry.meter(
+        name(classOf[PacketPipelineMeter], tag,
+             "flowRecordsDropped", "records"))
+
+    val flowRecordsSampledOut = registry.meter(
+        name(classOf[PacketPipelineMeter], tag,
+             "flowRecordsSampledOut", "records"))
+
+    val flowRecordBatchFill = registry.histogram(
+        name(classOf[PacketPipelineHistogram], tag,
+             "flowRecordBatchFill"))
+}
+
 class PacketExecutorMetrics(val registry: MetricRegistry, executorId: Int) {
     val executorTag = s"executor-$executorId"
 
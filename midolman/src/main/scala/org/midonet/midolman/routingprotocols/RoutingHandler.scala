@@ -18,16 +18,17 @@ package org.midonet.midolman.routingprotocols
 import java.io.File
 import java.util.UUID
 
-import scala.collection.generic.CanBuildFrom
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.{Future, Promise}
 import scala.concurrent.duration._
-import scala.util.Try
+import scala.util.{Success, Try}
 import scala.util.control.NonFatal
 
 import akka.actor.ActorRef
 
+import com.codahale.metrics.MetricRegistry
+
 import org.apache.zookeeper.KeeperException
 
 import rx.{Observer, Subscription}
@@ -38,6 +39,7 @@ import org.midonet.midolman._
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.{UpcallDatapathConnectionManager, VirtualMachine}
 import org.midonet.midolman.logging.ActorLogWithoutPath
+import org.midonet.midolman.monitoring.metrics.RoutingMetrics
 import org.midonet.midolman.routingprotocols.RoutingManagerActor.RoutingStorage
 import org.midonet.midolman.routingprotocols.RoutingWorkflow.RoutingInfo
 import org.midonet.midolman.simulation.RouterPort
@@ -105,8 +107,6 @@ class LazyZkConnectionMonitor(down: () => Unit,
 
 object RoutingHandler {
 
-    type CbfRouteSeq = CanBuildFrom[Seq[Future[Route]], Route, Seq[Route]]
-
     val BGP_TCP_PORT: Short = 179
 
     /** A conventional value for Ip prefix of BGP pairs.
@@ -117,6 +117,7 @@ object RoutingHandler {
     // BgpdProcess will notify via these messages
     case object FETCH_BGPD_STATUS
     case object SYNC_PEER_ROUTES
+    case object PUBLISH_PEER_ROUTES
 
     case class PeerRoute(destination: IPv4Subnet, gateway: IPv4Addr)
 
@@ -144,9 +145,10 @@ object RoutingHandler {
               connWatcher: ZkConnectionAwareWatcher,
               selectLoop: SelectLoop,
               vt: VirtualTopology,
-              isQuagga: Boolean) =
+              isQuagga: Boolean,
+              metrics: RoutingMetrics) =
         new RoutingHandler(rport, bgpIdx, flowInvalidator.tell,
-            routingStorage, config, connWatcher, isQuagga) {
+            routingStorage, config, connWatcher, isQuagga, metrics) {
 
             import context.system
 
@@ -264,7 +266,9 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                               val routingStorage: RoutingStorage,
                               val config: MidolmanConfig,
                               val connWatcher: ZkConnectionAwareWatcher,
-                              val isQuagga: Boolean)
+                              val isQuagga: Boolean,
+                              val metrics: RoutingMetrics =
+                                  new RoutingMetrics(new MetricRegistry))
     extends ReactiveActor[BgpPort] with ActorLogWithoutPath
             with SingleThreadExecutionContextProvider {
 
@@ -277,7 +281,19 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
 
     protected final val BGP_VTY_PORT = 2605 + bgpIdx
 
-    private val peerRoutes = mutable.Map[Route, Route]()
+    // The routes learned from the BGP peers, indexed by destination prefix.
+    // A null value indicates that the route has not been published yet.
+    private val peerRoutes = mutable.HashMap[IPv4Subnet, mutable.Map[Route, Route]]()
+    private var peerRouteCount = 0
+
+    // The learned routes waiting to be added to or removed from storage,
+    // which are written in batches at most every batch window.
+    private val pendingAdds = mutable.LinkedHashSet[Route]()
+    private val pendingRemoves = mutable.LinkedHashSet[Route]()
+    private var pendingSince = 0L
+    private var publicationScheduled = false
+    private var reportedPending = 0
+    private var reportedLearned = 0
     private var bgpConfig: BgpRouter = BgpRouter(-1)
     private var bgpPeerIds: Set[UUID] = Set.empty
 
@@ -373,6 +389,12 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
 
         case AddPeerRoutes(destination, paths) =>
             publishLearnedRoutes(destination, paths)
+            schedulePublication()
+            Future.successful(true)
+
+        case PUBLISH_PEER_ROUTES =>
+            publicationScheduled = false
+            publishPendingRoutes()
             Future.successful(true)
 
         case RemovePeerRoute(ribType, destination, gateway) =>
@@ -382,11 +404,13 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 PeerRoute(destination, gateway))
                 .getOrElse(rport.id)
             val route = makeRoute(destination, gateway.toString, portId)
-            peerRoutes.remove(route) match {
+            removePeerRoute(destination, route) match {
                 case None => // route missing
                 case Some(null) => // route not published
-                case Some(r) => handleLearnedRouteError(forgetLearnedRoute(r))
+                    cancelLearnedRoute(route)
+                case Some(r) => forgetLearnedRoute(r)
             }
+            schedulePublication()
             Future.successful(true)
     }
 
@@ -448,11 +472,19 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             .getOrElse(checkBgpdHealth())
     }
 
-    private def forgetLearnedRoute(route: Route): Future[Route] = {
+    private def forgetLearnedRoute(route: Route): Unit = {
         log.info(s"Forgetting learned route: " +
             s"${route.getDstNetworkAddr}/${route.getDstNetworkLength} " +
             s"via ${route.getNextHopGateway}")
-        routingStorage.removeRoute(route, rport.id)
+        if (pendingAdds.isEmpty && pendingRemoves.isEmpty)
+            pendingSince = System.nanoTime()
+        pendingRemoves += route
+    }
+
+    /** Cancels the publication of a route that has not been written to
+      * storage yet. */
+    private def cancelLearnedRoute(route: Route): Unit = {
+        pendingAdds -= route
     }
 
     private def makeRoute(destination: IPv4Subnet, path: ZebraPath): Route = {
@@ -480,6 +512,43 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
     }
 
 
+    private def destinationOf(route: Route): IPv4Subnet = {
+        new IPv4Subnet(route.getDstNetworkAddr, route.getDstNetworkLength)
+    }
+
+    private def addPeerRoute(destination: IPv4Subnet, route: Route): Unit = {
+        val routes = peerRoutes.getOrElseUpdate(destination,
+                                                mutable.HashMap[Route, Route]())
+        if (!routes.contains(route))
+            peerRouteCount += 1
+        routes.put(route, null)
+    }
+
+    private def removePeerRoute(destination: IPv4Subnet,
+                                route: Route): Option[Route] = {
+        val routes = peerRoutes.getOrElse(destination, null)
+        if (routes eq null)
+            return None
+        val removed = routes.remove(route)
+        if (removed.isDefined)
+            peerRouteCount -= 1
+        if (routes.isEmpty)
+            peerRoutes.remove(destination)
+        removed
+    }
+
+    private def containsPeerRoute(route: Route): Boolean = {
+        val routes = peerRoutes.getOrElse(destinationOf(route), null)
+        (routes ne null) && routes.contains(route)
+    }
+
+    /** Marks a route as published, if it has not been removed since. */
+    private def peerRoutePublished(route: Route): Unit = {
+        val routes = peerRoutes.getOrElse(destinationOf(route), null)
+        if ((routes ne null) && routes.get(route).exists(_ eq null))
+            routes.put(route, route)
+    }
+
     /*
      * Publishes routes to a prefix.
      *
@@ -494,86 +563,156 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
      * gracefully. Thus, here's what this method needs to do:
      *
      *   * Calculate which paths are new, by comparing the received set of
-     *     paths with the authoritative 'peerRoutes' variable.
+     *     paths with the routes of the same prefix in 'peerRoutes'.
      *   * Likewise, calculate which routes were previously known hand have
      *     to be forgotten.
      *   * Save the new set of routes to this prefix in 'peerRoutes'. At this
      *     point it's safe to try to commit the changes to storage. A failure
      *     will be handled by resynchronizing storage with 'peerRoutes'.
-     *   * Commit the new paths to storage, delete the forgotten paths from
-     *     storge.
+     *   * Queue the new paths to be committed to storage, and the forgotten
+     *     paths to be deleted from storage, with the next batch.
      */
-    private def publishLearnedRoutes(destination: IPv4Subnet, paths: Set[ZebraPath])(implicit cbf: CbfRouteSeq): Unit = {
+    private def publishLearnedRoutes(destination: IPv4Subnet,
+                                     paths: Set[ZebraPath]): Unit = {
         val newRoutes = paths map (makeRoute(destination, _))
 
-        val lostRoutes = mutable.Buffer[Route]()
-        for (route <- peerRoutes.keys
-             if route.getDstNetworkAddr == destination.getAddress.toString &&
-                 route.getDstNetworkLength == destination.getPrefixLen &&
-                 !newRoutes.contains(route) &&
-                 (peerRoutes(route) ne null)) {
-            lostRoutes.append(peerRoutes(route))
-            peerRoutes.remove(route)
+        val routes = peerRoutes.getOrElse(destination, null)
+        if (routes ne null) {
+            val lostRoutes = routes.filter { case (route, published) =>
+                !newRoutes.contains(route) &&
+                ((published ne null) || pendingAdds.contains(route))
+            }
+            for ((route, published) <- lostRoutes) {
+                removePeerRoute(destination, route)
+                if (published ne null) forgetLearnedRoute(published)
+                else cancelLearnedRoute(route)
+            }
         }
 
-        val gainedRoutes = mutable.Buffer[Route]()
-        for (gained <- newRoutes if !peerRoutes.contains(gained)) {
-            if (peerRoutes.size < config.router.maxBgpPeerRoutes) {
-                gainedRoutes.append(gained)
-                peerRoutes.put(gained, null)
+        for (gained <- newRoutes if !containsPeerRoute(gained)) {
+            if (peerRouteCount < config.router.maxBgpPeerRoutes) {
+                addPeerRoute(destination, gained)
+                publishLearnedRoute(gained)
             } else {
                 log.warn(s"Max number of peer routes reached " +
                     s"(${config.router.maxBgpPeerRoutes}), please check " +
                     s"the max_bgp_peer_routes config option.")
             }
         }
-
-        handleLearnedRouteError {
-            val futures = new ArrayBuffer[Future[Route]]()
-            for (gained <- gainedRoutes) {
-                futures += publishLearnedRoute(gained)
-            }
-            for (lost <- lostRoutes) {
-                futures += forgetLearnedRoute(lost)
-            }
-            Future.sequence(futures.toSeq)(cbf, singleThreadExecutionContext)
-        }
-
-
     }
 
-    private def publishLearnedRoute(route: Route): Future[Route] = {
+    private def publishLearnedRoute(route: Route): Unit = {
         log.info(s"Publishing learned route: " +
             s"${route.getDstNetworkAddr}/${route.getDstNetworkLength} " +
             s"via ${route.getNextHopGateway}")
 
-        peerRoutes.put(route, null)
-        routingStorage.addRoute(route, rport.id).map { _ =>
-            peerRoutes.put(route, route)
-            route
-        }(singleThreadExecutionContext)
+        if (pendingRemoves.remove(route)) {
+            // The route is still in storage.
+            peerRoutePublished(route)
+        } else {
+            if (pendingAdds.isEmpty && pendingRemoves.isEmpty)
+                pendingSince = System.nanoTime()
+            pendingAdds += route
+        }
+    }
+
+    /**
+     * Writes the pending routes to storage when the batch window expires, or
+     * immediately if the batch window is zero.
+     */
+    private def schedulePublication(): Unit = {
+        val window = config.router.bgpRouteBatchWindow
+        if (window <= 0) {
+            publishPendingRoutes()
+        } else if (!publicationScheduled &&
+                   (pendingAdds.nonEmpty || pendingRemoves.nonEmpty)) {
+            publicationScheduled = true
+            context.system.scheduler.scheduleOnce(
+                window millis, self, PUBLISH_PEER_ROUTES)(context.dispatcher)
+        }
+        updateMetrics()
     }
 
-    private def syncPeerRoutes()(implicit cbf: CbfRouteSeq): Unit = {
+    /**
+     * Writes the pending routes to storage as one batch of additions and one
+     * batch of removals. The convergence time is measured from the first
+     * route queued for the batch until storage completes both batches.
+     */
+    private def publishPendingRoutes(): Unit = {
+        if (pendingAdds.isEmpty && pendingRemoves.isEmpty)
+            return
+
+        val added = pendingAdds.toVector
+        val removed = pendingRemoves.toVector
+        val since = pendingSince
+        pendingAdds.clear()
+        pendingRemoves.clear()
+        metrics.routeBatchSize.update(added.size + removed.size)
+
+        handleLearnedRouteError {
+            val adds =
+                if (added.isEmpty) Future.successful(added)
+                else routingStorage.addRoutes(added, rport.id).map { routes =>
+                    routes foreach peerRoutePublished
+                    routes
+                }(singleThreadExecutionContext)
+            val removes =
+                if (removed.isEmpty) Future.successful(removed)
+                else routingStorage.removeRoutes(removed, rport.id)
+            adds.zip(removes).andThen { case Success(_) =>
+                metrics.convergenceTime.update(System.nanoTime() - since,
+                                               NANOSECONDS)
+            }(singleThreadExecutionContext)
+        }
+        updateMetrics()
+    }
+
+    /**
+     * Synchronizes storage with 'peerRoutes' in a single pass over the
+     * learned routes in storage and the peer routes: the routes in storage
+     * that are not peer routes are removed, and the peer routes missing from
+     * storage are added, both in a batch.
+     */
+    private def syncPeerRoutes(): Unit = {
         handleLearnedRouteError {
             routingStorage.learnedRoutes(rport.deviceId, rport.id, rport.hostId)
                           .flatMap {
                 learnedRoutes =>
-                val futures = new ArrayBuffer[Future[Route]]()
-                // Delete routes we don't have anymore
-                for (route <- learnedRoutes if !peerRoutes.contains(route)) {
-                    futures += forgetLearnedRoute(route)
+                val removed = learnedRoutes.iterator
+                                           .filterNot(containsPeerRoute)
+                                           .toVector
+                val added = new ArrayBuffer[Route]()
+                val stored = new ArrayBuffer[Route]()
+                for (routes <- peerRoutes.values; route <- routes.keys) {
+                    if (learnedRoutes.contains(route)) stored += route
+                    else added += route
                 }
-                // Add routes that were not published
-                for ((routeKey, routeValue) <- peerRoutes
-                     if routeValue eq null) {
-                    futures += publishLearnedRoute(routeKey)
-                }
-                Future.sequence(futures.toSeq)(cbf, singleThreadExecutionContext)
+                // Routes already in storage are published.
+                stored foreach peerRoutePublished
+
+                val adds =
+                    if (added.isEmpty) Future.successful(added)
+                    else routingStorage.addRoutes(added, rport.id).map { routes =>
+                        routes foreach peerRoutePublished
+                        routes
+                    }(singleThreadExecutionContext)
+                val removes =
+                    if (removed.isEmpty) Future.successful(removed)
+                    else routingStorage.removeRoutes(removed, rport.id)
+                adds.zip(removes)
             }(singleThreadExecutionContext)
         }
     }
 
+    /** Reports the number of learned and pending routes to the metrics. */
+    private def updateMetrics(): Unit = {
+        val pending = pendingAdds.size + pendingRemoves.size
+        metrics.pendingRoutes.inc(pending - reportedPending)
+        reportedPending = pending
+        metrics.learnedRoutes.inc(peerRouteCount - reportedLearned)
+        reportedLearned = peerRouteCount
+    }
+
     private def clearRoutingWorkflow(): Unit = {
         RoutingWorkflow.routerPortToDatapathInfo.remove(rport.id)
         RoutingWorkflow.inputPortToDatapathInfo.remove(routingInfo.dpPortNo)
@@ -777,7 +916,7 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
         }(singleThreadExecutionContext)
     }
 
-    private def stopBgpd()(implicit cbf: CbfRouteSeq): Future[_] = {
+    private def stopBgpd(): Future[_] = {
         log.info(s"Disabling BGP on port: ${rport.id}")
         clearRoutingWorkflow()
         stopZebra()
@@ -785,14 +924,17 @@ abstract class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
         log.debug("stopping bgpd")
         bgpd.stop()
         invalidateFlows()
-        handleLearnedRouteError {
-            val futures = new ArrayBuffer[Future[Route]]()
-            for (route <- peerRoutes.values) {
-                futures += forgetLearnedRoute(route)
-            }
-            Future.sequence(futures.toSeq)(cbf, singleThreadExecutionContext)
+        // Routes not written to storage yet are discarded, and the published
+        // routes are removed immediately.
+        pendingAdds.clear()
+        for (routes <- peerRoutes.values; published <- routes.values
+             if published ne null) {
+            forgetLearnedRoute(published)
         }
+        publishPendingRoutes()
         peerRoutes.clear()
+        peerRouteCount = 0
+        updateMetrics()
         removeDpPort()
     }
 
@@ -22,6 +22,7 @@ import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor._
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 
 import rx.Subscription
@@ -38,6 +39,7 @@ import org.midonet.containers.Containers
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.UpcallDatapathConnectionManager
 import org.midonet.midolman.logging.ActorLogWithoutPath
+import org.midonet.midolman.monitoring.metrics.RoutingMetrics
 import org.midonet.midolman.routingprotocols.RoutingHandler.PortActive
 import org.midonet.midolman.services.SelectLoopService.ZEBRA_SERVER_LOOP
 import org.midonet.midolman.simulation.RouterPort
@@ -62,6 +64,8 @@ object RoutingManagerActor extends Referenceable {
         def setStatus(portId: UUID, status: String): Future[UUID]
         def addRoute(route: Route, portId: UUID): Future[Route]
         def removeRoute(route: Route, portId: UUID): Future[Route]
+        def addRoutes(routes: Seq[Route], portId: UUID): Future[Seq[Route]]
+        def removeRoutes(routes: Seq[Route], portId: UUID): Future[Seq[Route]]
         def learnedRoutes(routerId: UUID, portId: UUID, hostId: UUID)
         : Future[Set[Route]]
     }
@@ -83,6 +87,21 @@ object RoutingManagerActor extends Referenceable {
                    .map[Route](makeFunc1(_ => route))
                    .asFuture
         }
+        override def addRoutes(routes: Seq[Route], portId: UUID)
+        : Future[Seq[Route]] = {
+            storage.addRoutes(routes.map(Converter.toRouteConfig), Some(portId))
+                   .toList
+                   .map[Seq[Route]](makeFunc1(_ => routes))
+                   .asFuture
+        }
+        override def removeRoutes(routes: Seq[Route], portId: UUID)
+        : Future[Seq[Route]] = {
+            storage.removeRoutes(routes.map(Converter.toRouteConfig),
+                                 Some(portId))
+                   .toList
+                   .map[Seq[Route]](makeFunc1(_ => routes))
+                   .asFuture
+        }
         override def learnedRoutes(routerId: UUID, portId: UUID, hostId: UUID)
         : Future[Set[Route]] = {
             storage.getPortRoutes(portId, hostId)
@@ -126,6 +145,10 @@ class RoutingManagerActor extends ReactiveActor[AnyRef]
     var dpState: DatapathState = null
     var routingStorage: RoutingStorage = null
 
+    @Inject
+    var metricsRegistry: MetricRegistry = null
+    private var metrics: RoutingMetrics = null
+
     private var bgpPortIdx = 0
 
     private val portsSubscription = new CompositeSubscription()
@@ -194,7 +217,8 @@ class RoutingManagerActor extends ReactiveActor[AnyRef]
                                          flowInvalidator, dpState,
                                          upcallConnManager, routingStorage,
                                          config, zkConnWatcher, zebraLoop,
-                                         vt, isQuaggaContainerPort(port))).
+                                         vt, isQuaggaContainerPort(port),
+                                         metrics)).
                         withDispatcher("actors.pinned-dispatcher"),
                     name = port.id.toString)
                 portHandlers.put(port.id, portHandler)
@@ -224,6 +248,7 @@ class RoutingManagerActor extends ReactiveActor[AnyRef]
         super.preStart()
         selfRef = self
         routingStorage = new RoutingStorageImpl(backend.stateStore)
+        metrics = new RoutingMetrics(metricsRegistry)
 
         portsSubscription add VirtualToPhysicalMapper.portsActive.subscribe(this)
     }
@@ -23,6 +23,7 @@ import java.util.{Map => JMap, List => JList}
 import com.google.common.annotations.VisibleForTesting
 
 import org.midonet.midolman.rules.JumpRule
+import org.midonet.midolman.rules.NatRule
 import org.midonet.midolman.rules.Rule
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.rules.RuleResult.Action
@@ -44,7 +45,8 @@ case class Chain(id: UUID,
                  jumpTargets: JMap[UUID, Chain],
                  name: String,
                  metadata: String = "",
-                 ruleLoggers: Seq[RuleLogger] = Seq())
+                 ruleLoggers: Seq[RuleLogger] = Seq(),
+                 classifier: RuleClassifier = null)
     extends VirtualDevice with SimDevice {
     import Chain._
 
@@ -76,12 +78,29 @@ case class Chain(id: UUID,
             traversedChains: ArrayList[UUID]): RuleResult = {
         context.addFlowTag(deviceTag)
         traversedChains.add(id)
+        // When the chain is compiled, only the candidate rules returned by the
+        // classifier are evaluated, and the remaining rules are recorded as
+        // traversed without a match.
+        var candidates =
+            if (classifier eq null) null
+            else classifier.candidates(context.wcmatch)
+        var candidate = 0
         var i = 0
         var res = CONTINUE
         while ((i < rules.size()) && (res.action eq Action.CONTINUE)) {
             val rule = rules.get(i)
+            var processed = true
+            if (candidates eq null) {
+                res = rule.process(context)
+            } else if (candidate < candidates.length &&
+                       candidates(candidate) == i) {
+                candidate += 1
+                res = rule.process(context)
+            } else {
+                res = rule.skip(context)
+                processed = false
+            }
             i += 1
-            res = rule.process(context)
 
             res.action match {
                 case Action.ACCEPT | Action.RETURN =>
@@ -106,8 +125,23 @@ case class Chain(id: UUID,
                 context.recordTraversedRule(rule.id, res)
             }
 
-            if (res.action eq Action.JUMP)
+            val jumped = res.action eq Action.JUMP
+            if (jumped)
                 res = jump(context, res.jumpToChain, traversedChains)
+
+            // A NAT rule that continues, or a jump into a chain that applied
+            // one, may have rewritten the classified fields: the remaining
+            // rules are classified again for the rewritten match.
+            if ((candidates ne null) && processed &&
+                (res.action eq Action.CONTINUE) &&
+                (jumped || rule.isInstanceOf[NatRule])) {
+                candidates = classifier.candidates(context.wcmatch)
+                candidate = 0
+                while (candidate < candidates.length &&
+                       candidates(candidate) < i) {
+                    candidate += 1
+                }
+            }
         }
         assert(res.action ne Action.JUMP)
         res
@@ -18,103 +18,68 @@ package org.midonet.midolman.simulation
 
 import java.util.UUID
 
-import scala.collection.JavaConversions._
-import scala.concurrent.duration._
-import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.concurrent.{ExecutionContext, Future}
 
-import akka.actor.ActorSystem
-
-import com.google.common.annotations.VisibleForTesting
-
-import org.midonet.cluster.data.dhcp.{ExtraDhcpOpt, Host, Opt121, Subnet}
-import org.midonet.cluster.models.Topology
-import org.midonet.cluster.util.IPAddressUtil._
-import org.midonet.cluster.util.IPSubnetUtil._
-import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.NotYetException
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.midolman.topology.VirtualTopology._
-import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.midolman.topology.devices.Dhcp
 
-/** This class enables access to DHCP resources.
-  *
-  * TODO: integrate with the VTA so that Subnets are cached.
+/** This class enables access to DHCP resources. The DHCP configuration of
+  * every bridge subnet is cached by the [[VirtualTopology]], such that the
+  * DHCP requests are answered from memory. If the configuration is not yet
+  * cached, the methods throw a [[NotYetException]] and the simulation is
+  * postponed until the configuration is loaded.
   */
 class DhcpConfigFromNsdb(vt: VirtualTopology)
-                        (implicit val as: ActorSystem, val ec: ExecutionContext)
+                        (implicit val ec: ExecutionContext)
     extends DhcpConfig {
 
-    private final val timeout = 3 seconds
-
+    @throws[NotYetException]
     override def bridgeDhcpSubnets(deviceId: UUID): Seq[Subnet] = {
-        val f = Future.sequence (
-            tryGet(classOf[Bridge], deviceId).subnetIds.map {
-                vt.store.get(classOf[Topology.Dhcp], _) map toSubnet
-            }
-        ) recover { case _ => Seq.empty[Subnet] }
-        Await.result(f, timeout)
+        val dhcps = tryGet(classOf[Bridge], deviceId).subnetIds map {
+            VirtualTopology.get(classOf[Dhcp], _)
+        }
+        val pending = dhcps filterNot { _.isCompleted }
+        if (pending.nonEmpty) {
+            throw NotYetException(Future.sequence(pending),
+                                  s"DHCP configuration for bridge $deviceId " +
+                                  "not yet available")
+        }
+        // Ignore the subnets that failed to load.
+        dhcps flatMap { _.value.get.toOption } map { _.subnet }
     }
 
+    @throws[NotYetException]
     override def dhcpHost(deviceId: UUID, subnet: Subnet, srcMac: String)
     : Option[Host] = {
-        val f = vt.store.get(classOf[Topology.Dhcp], subnet.getId) map {
-            _.getHostsList.find(_.getMac == srcMac).map(toHost)
-        } recover { case _ => None }
-        Await.result(f, timeout)
+        dhcp(deviceId, subnet) flatMap { _.hosts.get(srcMac) }
     }
 
-    @VisibleForTesting
-    private[simulation] def toHost(protoHost: Topology.Dhcp.Host): Host = {
-        val h = new Host()
-        h.setId(h.getId)
-        if (protoHost.hasIpAddress)
-            h.setIp(protoHost.getIpAddress.asIPv4Address)
-        if (protoHost.hasMac)
-            h.setMAC(MAC.fromString(protoHost.getMac))
-        if (protoHost.hasName)
-            h.setName(protoHost.getName)
-        h.setExtraDhcpOpts(protoHost.getExtraDhcpOptsList map { opt =>
-            new ExtraDhcpOpt(opt.getName, opt.getValue)
-        })
+    @throws[NotYetException]
+    override def dhcpReplyTemplate(deviceId: UUID, subnet: Subnet,
+                                   srcMac: String): Option[DhcpReplyTemplate] = {
+        dhcp(deviceId, subnet) flatMap { _.templates.get(srcMac) }
     }
 
-    /** Converts a DHCP Proto object into a legacy cluster Subnet, as used by
-      * the Agent.
+    /** Returns the cached DHCP configuration of a subnet of the bridge, or
+      * [[None]] if the subnet does not exist or does not belong to the
+      * bridge.
       */
-    @VisibleForTesting
-    private[simulation] def toSubnet(dhcp: Topology.Dhcp): Subnet = {
-        val subnet = new Subnet
-        // Mandatory fields.
-        subnet.setId(dhcp.getId.asJava.toString)
-        subnet.setSubnetAddr(fromV4Proto(dhcp.getSubnetAddress))
-
-        // Optional fields
-        if (dhcp.hasDefaultGateway)
-            subnet.setDefaultGateway(dhcp.getDefaultGateway.asIPv4Address)
-        if (dhcp.hasEnabled)
-            subnet.setEnabled(dhcp.getEnabled)
-        if (dhcp.hasInterfaceMtu)
-            subnet.setInterfaceMTU(dhcp.getInterfaceMtu.toShort)
-        if (dhcp.hasServerAddress) {
-            subnet.setServerAddr(dhcp.getServerAddress.asIPv4Address)
-        } else if (dhcp.hasDefaultGateway) {
-            // If the server address is not set, use the default gateway.
-            subnet.setServerAddr(dhcp.getDefaultGateway.asIPv4Address)
-        } else {
-            // Or else, the network broadcast address minus 1.
-            subnet.setServerAddr(
-                IPv4Addr(subnet.getSubnetAddr.toBroadcastAddress.toInt - 1))
+    @throws[NotYetException]
+    private def dhcp(deviceId: UUID, subnet: Subnet): Option[Dhcp] = {
+        val subnetId = try UUID.fromString(subnet.getId) catch {
+            case _: IllegalArgumentException => return None
+        }
+        if (!tryGet(classOf[Bridge], deviceId).subnetIds.contains(subnetId))
+            return None
+        val dhcp = VirtualTopology.get(classOf[Dhcp], subnetId)
+        if (!dhcp.isCompleted) {
+            throw NotYetException(dhcp, s"DHCP configuration for subnet " +
+                                        s"$subnetId not yet available")
         }
-        subnet.setOpt121Routes(dhcp.getOpt121RoutesList.map(opt121 => {
-            val o = new Opt121
-            if (opt121.hasGateway)
-                o.setGateway(opt121.getGateway.asIPv4Address)
-            if (opt121.hasDstSubnet)
-                o.setRtDstSubnet(fromV4Proto(opt121.getDstSubnet))
-            o
-        }))
-        subnet.setDnsServerAddrs(dhcp.getDnsServerAddressList.map(toIPv4Addr))
-        subnet
+        // A subnet that failed to load does not exist.
+        dhcp.value.get.toOption
     }
 }
-
-
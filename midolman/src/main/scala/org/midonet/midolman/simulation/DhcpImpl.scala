@@ -21,9 +21,10 @@ import java.util.UUID
 import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
 import scala.collection.mutable
-import scala.concurrent.duration._
 
-import org.midonet.cluster.data.dhcp.{Host, Opt121, Subnet}
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
 import org.midonet.packets._
 import org.midonet.util.logging.Logger
 
@@ -500,23 +501,28 @@ object MalformedDhcpRequestException extends DhcpException {}
 trait DhcpConfig {
     def bridgeDhcpSubnets(deviceId: UUID): Seq[Subnet]
     def dhcpHost(deviceId: UUID, subnet: Subnet, srcMac: String): Option[Host]
+
+    /** Returns the reply template for the host with the given MAC address in
+      * the given subnet, if the host has a static IP assignment. The default
+      * implementation compiles the template on every call: implementations
+      * caching the DHCP configuration should also cache the templates.
+      */
+    def dhcpReplyTemplate(deviceId: UUID, subnet: Subnet, srcMac: String)
+    : Option[DhcpReplyTemplate] = {
+        dhcpHost(deviceId, subnet, srcMac) filter { _.getIp ne null } map {
+            new DhcpReplyTemplate(subnet, _, DhcpConfig.Log)
+        }
+    }
+}
+
+object DhcpConfig {
+    private val Log = Logger(LoggerFactory.getLogger("org.midonet.devices.dhcp"))
 }
 
 class DhcpImpl(val dhcpConfig: DhcpConfig,
                val request: DHCP, val sourceMac: MAC,
                val underlayMtu: Short, val configMtu: Short,
                val log: Logger) {
-    import DhcpValueParser._
-
-    private var serverAddr: IPv4Addr = null
-    private var serverMac: MAC = null
-    private var routerAddr: IPv4Addr = null
-    private var yiaddr: IPv4Addr = null
-    private var yiAddrMaskLen: Int = 0
-    private var opt121Routes: mutable.Buffer[Opt121] = null
-    private var dnsServerAddrsBytes: List[Array[Byte]] = Nil
-
-    private var interfaceMTU : Short = 0
 
     def handleDHCP(port: Port) : Option[Ethernet] = {
         // These fields are decided based on the port configuration.
@@ -536,91 +542,48 @@ class DhcpImpl(val dhcpConfig: DhcpConfig,
         }
     }
 
-    private type HostAndSubnetOptPair = (Option[Host], Option[Subnet])
-
-    private
-    def getHostAndAssignedSubnet(port: BridgePort): HostAndSubnetOptPair = {
-        // TODO(pino): use an async API
+    private def getReplyTemplate(port: BridgePort): Option[DhcpReplyTemplate] = {
         val subnets = dhcpConfig.bridgeDhcpSubnets(port.deviceId)
 
         // Look for the DHCP's source MAC in the list of hosts in each subnet
-        var host: Option[Host] = None
-        val assignment = subnets.find { subnet =>
+        val mac = sourceMac.toString
+        val iterator = subnets.iterator
+        while (iterator.hasNext) {
+            val subnet = iterator.next()
             log.debug("Looking up assignment for MAC {} on subnet {} ",
                       sourceMac, subnet.getId)
-            if (subnet.getServerAddr == null) {
-                subnet.setServerAddr(IPv4Addr.fromString("0.0.0.0"))
+            val template = dhcpConfig.dhcpReplyTemplate(port.deviceId, subnet,
+                                                        mac)
+            if (template.isDefined) {
+                return template
             }
-            host = dhcpConfig.dhcpHost(port.deviceId, subnet,
-                                       sourceMac.toString)
-            host.isDefined && (host.get.getIp != null)
         }
-        (host, assignment)
+        None
     }
 
     private def dhcpFromBridgePort(port: BridgePort): Option[Ethernet] = {
-        getHostAndAssignedSubnet(port) match {
-            case (Some(host: Host), Some(sub: Subnet)) =>
+        getReplyTemplate(port) match {
+            case Some(template) =>
                 log.debug(s"Found DHCP static assignment for MAC $sourceMac => " +
-                          s"${host.getName} @ ${host.getIp}")
-
-                // TODO(pino): the server MAC should be in configuration.
-                serverMac = MAC.fromString("02:a8:9c:de:39:27")
-                serverAddr = sub.getServerAddr
-                routerAddr = sub.getDefaultGateway
-                yiaddr = host.getIp
-                yiAddrMaskLen = sub.getSubnetAddr.getPrefixLen
-
-                dnsServerAddrsBytes =
-                    Option(sub.getDnsServerAddrs).map{ _.toList}.getOrElse(Nil)
-                        .map { _.toBytes }
-                opt121Routes = sub.getOpt121Routes
+                          s"${template.host.getName} @ ${template.yiaddr}")
 
                 // NOTES on MTU:
                 // - We should never send a DHCP offer MTU option higher than the underlayMtu.
                 // - Subnet mtu takes precedence over global configuration
-
-                (sub.getInterfaceMTU match {
-                    case 0 =>
-                        Some(Math.min(configMtu, underlayMtu).toShort)
-                    case subnetMtu: Short =>
-                        Some(Math.min(subnetMtu, underlayMtu).toShort)
-                }) match {
-                    case Some(minMtu) =>
-                        interfaceMTU = minMtu
-                        log.debug(s"Building DHCP reply for MAC $sourceMac with MTU $interfaceMTU")
-                        makeDhcpReply(port, host)
-                    case _ =>
-                        interfaceMTU = 0
-                        log.warn("Failed to calculate interface MTU, cannot " +
-                                 "build DHCP reply")
-                        None
+                val interfaceMtu = template.subnetMtu match {
+                    case 0 => Math.min(configMtu, underlayMtu).toShort
+                    case subnetMtu => Math.min(subnetMtu, underlayMtu).toShort
                 }
-            case _ =>
+                log.debug(s"Building DHCP reply for MAC $sourceMac with MTU $interfaceMtu")
+                makeDhcpReply(port, template, interfaceMtu)
+            case None =>
                 log.debug("No static DHCP assignment for MAC {}", sourceMac)
                 None
         }
     }
 
-    private def opt121ToByteArray(opt121: Opt121): mutable.ListBuffer[Byte] = {
-        val bytes = mutable.ListBuffer[Byte]()
-        // First append the destination subnet's maskLength
-        val maskLen = opt121.getRtDstSubnet.getPrefixLen.toByte
-        bytes.append(maskLen)
-        // Now append the significant octets of the subnet.
-        val dstBytes = opt121.getRtDstSubnet.getAddress.toBytes
-        if (maskLen > 0) bytes.append(dstBytes(0))
-        if (maskLen > 8) bytes.append(dstBytes(1))
-        if (maskLen > 16) bytes.append(dstBytes(2))
-        if (maskLen > 24) bytes.append(dstBytes(3))
-        // Now append the 4 octets of the gateway.
-        val gwBytes = opt121.getGateway.toBytes
-        bytes.appendAll(gwBytes.toList)
-        bytes
-    }
-
-    private def makeDhcpReply(port: BridgePort,
-                              host: Host): Option[Ethernet] = {
+    private def makeDhcpReply(port: BridgePort, template: DhcpReplyTemplate,
+                              interfaceMtu: Short): Option[Ethernet] = {
         val chaddr = request.getClientHardwareAddress
         if (null == chaddr) {
             log.warn("Dropping DHCP request with null hw addr")
@@ -634,12 +597,13 @@ class DhcpImpl(val dhcpConfig: DhcpConfig,
                   s"hw addr ${MAC.bytesToString(chaddr)} and "+
                   s"ip addr ${request.getClientIPAddress}")
 
-        // Extract all the options and put them in a map
-        val reqOptions = mutable.HashMap[Byte, DHCPOption]()
-        val requestedCodes = mutable.Set[Byte]()
+        // Extract the message type, the server identifier and the requested
+        // IP address options.
+        var typeOpt: DHCPOption = null
+        var serverIdOpt: DHCPOption = null
+        var requestedIpOpt: DHCPOption = null
         request.getOptions foreach { opt =>
             val code = opt.getCode
-            reqOptions.put(code, opt)
             log.debug(s"found option $code:${DHCPOption.CODE_TO_NAME.get(code)}")
             code match {
                 case v if v == DHCPOption.Code.DHCP_TYPE.value =>
@@ -648,6 +612,7 @@ class DhcpImpl(val dhcpConfig: DhcpConfig,
                             + "dhcp msg type option has bad length or data.")
                         throw MalformedDhcpRequestException
                     }
+                    typeOpt = opt
                     val msgType = opt.getData()(0)
                     log.debug("dhcp msg type "+
                         s"$msgType:${DHCPOption.msgTypeToName.get(msgType)}")
@@ -658,80 +623,66 @@ class DhcpImpl(val dhcpConfig: DhcpConfig,
                         throw MalformedDhcpRequestException
                     }
                     opt.getData foreach { c =>
-                        requestedCodes.add(c)
                         log.debug(s"DHCP client requested option "+
                                   s"$c:${DHCPOption.CODE_TO_NAME.get(c)}")
                     }
+                case v if v == DHCPOption.Code.SERVER_ID.value =>
+                    serverIdOpt = opt
+                case v if v == DHCPOption.Code.REQUESTED_IP.value =>
+                    requestedIpOpt = opt
                 case _ => // Do nothing
             }
         }
 
-        // Use mutable.HashMap to eliminate the duplication between the Midolman
-        // DHCP extra option handlings and the Neutron ones.
-        val optionMap = mutable.HashMap[Byte, DHCPOption]()
-        val typeOpt = reqOptions.get(DHCPOption.Code.DHCP_TYPE.value)
-        if (typeOpt == None) {
+        if (typeOpt eq null) {
             log.warn("Dropping DHCP request, no dhcp msg type found")
             throw MalformedDhcpRequestException
         }
 
-        typeOpt.get.getData()(0) match {
+        val msgTypeOption = typeOpt.getData()(0) match {
             case v if v == DHCPOption.MsgType.DISCOVER.value =>
                 log.debug("Received a DHCP Discover message")
                 // Reply with a dchp OFFER.
-                optionMap.put(DHCPOption.Code.DHCP_TYPE.value,
-                    new DHCPOption(
-                        DHCPOption.Code.DHCP_TYPE.value,
-                        DHCPOption.Code.DHCP_TYPE.length,
-                        Array[Byte](DHCPOption.MsgType.OFFER.value)))
+                DhcpReplyTemplate.OfferOption
             case v if v == DHCPOption.MsgType.REQUEST.value =>
                 log.debug("Received a DHCP Request message")
-                // Reply with a dchp ACK.
-                optionMap.put(DHCPOption.Code.DHCP_TYPE.value,
-                    new DHCPOption(
-                        DHCPOption.Code.DHCP_TYPE.value,
-                        DHCPOption.Code.DHCP_TYPE.length,
-                        Array[Byte](DHCPOption.MsgType.ACK.value)))
                 // http://tools.ietf.org/html/rfc2131 Section 3.1, Step 3:
                 // "The client broadcasts a DHCPREQUEST message that MUST include
                 // the 'server identifier' option to indicate which server is has
                 // selected."
                 // TODO(pino): figure out why Linux doesn't send us the server id
                 // and try re-enabling this code.
-                reqOptions.get(DHCPOption.Code.SERVER_ID.value) match {
-                    case None =>
-                        log.debug("No DHCP server id option found.")
-                        // TODO(pino): return Future.successful(false)?
-                    case Some(opt) =>
-                        // The server id should correspond to this port's address.
-                        val theirServId = IPv4Addr.bytesToInt(opt.getData)
-                        if (serverAddr.addr != theirServId) {
-                            log.warn("Dropping DHCP request, client chose server "+
-                                s"${IPv4Addr.intToString(theirServId)} not us $serverAddr")
-                        }
+                if (serverIdOpt eq null) {
+                    log.debug("No DHCP server id option found.")
+                    // TODO(pino): return Future.successful(false)?
+                } else {
+                    // The server id should correspond to this port's address.
+                    val theirServId = IPv4Addr.bytesToInt(serverIdOpt.getData)
+                    if (template.serverAddr.addr != theirServId) {
+                        log.warn("Dropping DHCP request, client chose server "+
+                            s"${IPv4Addr.intToString(theirServId)} not us " +
+                            s"${template.serverAddr}")
+                    }
                 }
                 // The request must contain a requested IP address option.
-                reqOptions.get(DHCPOption.Code.REQUESTED_IP.value) match {
-                    case None =>
-                        log.debug("No requested DHCP ip option found.")
-                        //return Promise.failed(new Exception(
-                        //    "DHCP message with no requested-IP option."))
-                    case Some(opt) =>
-                        // The requested ip must correspond to the yiaddr in our offer.
-                        val reqIp = IPv4Addr.bytesToInt(opt.getData)
-                        // TODO(pino): must keep state and remember the offered ip based
-                        // on the chaddr or the client id option.
-                        if (yiaddr.addr != reqIp) {
-                            log.debug("Sending DHCP NACK: the requested ip "+
-                                s"$reqIp does not match what we offered ($yiaddr)")
-                            // Overwrite the default ACK with a dhcp NACK
-                            optionMap.put(
-                                DHCPOption.Code.DHCP_TYPE.value,
-                                new DHCPOption(
-                                    DHCPOption.Code.DHCP_TYPE.value,
-                                    DHCPOption.Code.DHCP_TYPE.length,
-                                    Array[Byte](DHCPOption.MsgType.NAK.value)))
-                        }
+                if (requestedIpOpt eq null) {
+                    log.debug("No requested DHCP ip option found.")
+                    // Reply with a dchp ACK.
+                    DhcpReplyTemplate.AckOption
+                } else {
+                    // The requested ip must correspond to the yiaddr in our offer.
+                    val reqIp = IPv4Addr.bytesToInt(requestedIpOpt.getData)
+                    // TODO(pino): must keep state and remember the offered ip based
+                    // on the chaddr or the client id option.
+                    if (template.yiaddr.addr != reqIp) {
+                        log.debug("Sending DHCP NACK: the requested ip "+
+                            s"$reqIp does not match what we offered " +
+                            s"(${template.yiaddr})")
+                        DhcpReplyTemplate.NakOption
+                    } else {
+                        // Reply with a dchp ACK.
+                        DhcpReplyTemplate.AckOption
+                    }
                 }
             case msgType =>
                 log.warn("Dropping DHCP request, unsupported msg type "+
@@ -739,147 +690,6 @@ class DhcpImpl(val dhcpConfig: DhcpConfig,
                 throw UnsupportedDhcpRequestException
         }
 
-        val reply = new DHCP
-        reply.setOpCode(DHCP.OPCODE_REPLY)
-        reply.setTransactionId(request.getTransactionId)
-        reply.setHardwareAddressLength(6)
-        reply.setHardwareType(ARP.HW_TYPE_ETHERNET.toByte)
-        reply.setClientHardwareAddress(sourceMac)
-        reply.setServerIPAddress(serverAddr.addr)
-        reply.setYourIPAddress(yiaddr.addr)
-
-        // TODO(pino): do we need to include the DNS option?
-        optionMap.put(DHCPOption.Code.MASK.value,
-            new DHCPOption(DHCPOption.Code.MASK.value,
-                DHCPOption.Code.MASK.length,
-                IPv4Addr.intToBytes(
-                    ~0 << (32 - yiAddrMaskLen))))
-
-        // Generate the broadcast address... this is nwAddr with 1's in the
-        // last 32-nwAddrLength bits.
-        val mask = ~0 >>> yiAddrMaskLen
-        val bcast = mask | yiaddr.addr
-        log.debug("Setting DHCP bcast addr option to {}", IPv4Addr.intToString(bcast))
-        optionMap.put(DHCPOption.Code.BCAST_ADDR.value,
-            new DHCPOption(DHCPOption.Code.BCAST_ADDR.value,
-                DHCPOption.Code.BCAST_ADDR.length,
-                IPv4Addr.intToBytes(bcast)))
-        optionMap.put(DHCPOption.Code.IP_LEASE_TIME.value,
-            new DHCPOption(DHCPOption.Code.IP_LEASE_TIME.value,
-                DHCPOption.Code.IP_LEASE_TIME.length,
-                IPv4Addr.intToBytes((1 day).toSeconds.toInt)))
-        optionMap.put(DHCPOption.Code.INTERFACE_MTU.value,
-            new DHCPOption(DHCPOption.Code.INTERFACE_MTU.value,
-                DHCPOption.Code.INTERFACE_MTU.length,
-                Array[Byte]((interfaceMTU/256).toByte,
-                    (interfaceMTU%256).toByte)))
-        if (routerAddr != null) {
-            optionMap.put(DHCPOption.Code.ROUTER.value,
-                new DHCPOption(DHCPOption.Code.ROUTER.value,
-                    DHCPOption.Code.ROUTER.length,
-                    routerAddr.toBytes))
-        }
-        // in MidoNet the DHCP server is the same as the router
-        optionMap.put(DHCPOption.Code.SERVER_ID.value,
-            new DHCPOption(
-                DHCPOption.Code.SERVER_ID.value,
-                DHCPOption.Code.SERVER_ID.length,
-                serverAddr.toBytes))
-
-        if (dnsServerAddrsBytes.nonEmpty) {
-            val len = 4 * dnsServerAddrsBytes.length
-            val buffer = ByteBuffer.allocate(len)
-            dnsServerAddrsBytes.foreach{ bytes => buffer put bytes}
-            optionMap.put(DHCPOption.Code.DNS.value,
-                new DHCPOption(DHCPOption.Code.DNS.value,
-                    len.toByte, buffer.array))
-        }
-        // If there are classless static routes, add the option.
-        if (null != opt121Routes && opt121Routes.length > 0) {
-            val bytes = mutable.ListBuffer[Byte]()
-            if (routerAddr != null) {
-                // According to RFC 3442, if classless routes (option 121) are
-                // being provided, then the router option should be ignored.
-                // In this case we want to provide the default route with
-                // option 121 in addition to option 3.
-                val opt121DefaultRoute = new Opt121()
-                val univSubnet = IPv4Subnet.fromCidr("0.0.0.0/0")
-
-                opt121DefaultRoute.setGateway(routerAddr)
-                opt121DefaultRoute.setRtDstSubnet(univSubnet)
-
-                log.debug("Found router address. Adding default route to "
-                          + opt121DefaultRoute)
-                opt121Routes += opt121DefaultRoute
-            }
-            opt121Routes foreach { rt =>
-                log.debug("Found classless route {}", rt)
-                bytes.appendAll(opt121ToByteArray(rt))
-            }
-            log.debug("Adding Option 121 (classless static routes) with " +
-                      s"${opt121Routes.length} routes")
-            // Finally, construct the classless static routes option
-            optionMap.put(DHCPOption.Code.CLASSLESS_ROUTES.value,
-                new DHCPOption(
-                    DHCPOption.Code.CLASSLESS_ROUTES.value(),
-                    bytes.length.toByte,
-                    bytes.toArray))
-        }
-
-        // Add extra DHCP options. This overwrite the existing DHCP extra option
-        // set already before calling this method.
-        setExtraDhcpOptions(host, optionMap)
-
-        val options: mutable.ListBuffer[DHCPOption] =
-            optionMap.values.to[mutable.ListBuffer]
-        // And finally add the END option.
-        options.add(new DHCPOption(DHCPOption.Code.END.value,
-            DHCPOption.Code.END.length, null))
-        reply.setOptions(options)
-
-        val udp = new UDP
-        udp.setSourcePort(67)
-        udp.setDestinationPort(68)
-        udp.setPayload(reply)
-
-        val ip = new IPv4
-        ip.setSourceAddress(serverAddr.addr)
-        ip.setDestinationAddress("255.255.255.255")
-        ip.setProtocol(UDP.PROTOCOL_NUMBER)
-        ip.setPayload(udp)
-
-        val eth = new Ethernet
-        eth.setEtherType(IPv4.ETHERTYPE)
-        eth.setPayload(ip)
-
-        eth.setSourceMACAddress(serverMac)
-        eth.setDestinationMACAddress(sourceMac)
-
-        Some(eth)
+        Some(template.reply(request, msgTypeOption, sourceMac, interfaceMtu))
     }
-
-    private
-    def setExtraDhcpOptions(host: Host,
-                            optMap: mutable.Map[Byte, DHCPOption]): Unit =
-        for (opt <- host.getExtraDhcpOpts if host != null) {
-            val dhcpOptOption: Option[DHCPOption] = for {
-                code <- parseDhcpOptionCode(opt.optName)
-                option <- CodeToOption.get(code)
-                value <- parseDhcpOptionValue(code, opt.optValue)
-                if (value.length != 0) &&
-                    (value.length % option.length == 0)
-            } yield new DHCPOption(
-                    code, value.length.toByte, value)
-            if (dhcpOptOption.isDefined) {
-                log.debug(s"Add extra DHCP Option ${opt.optName} " +
-                    s"with value ${opt.optValue}")
-                val dhcpOption = dhcpOptOption.get
-                optMap.put(dhcpOption.getCode, dhcpOption)
-            } else {
-                log.info(s"Invalid DHCP Option: ${opt.optName} " +
-                    s"with value ${opt.optValue}")
-                log.info("This invalid option will be treated as " +
-                    "UNKNOWN")
-            }
-        }
 }
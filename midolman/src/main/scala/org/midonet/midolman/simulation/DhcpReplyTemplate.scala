@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.nio.ByteBuffer
+import java.util.{ArrayList => JArrayList}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import org.midonet.cluster.data.dhcp.{Host, Opt121, Subnet}
+import org.midonet.packets._
+import org.midonet.util.logging.Logger
+
+object DhcpReplyTemplate {
+
+    // TODO(pino): the server MAC should be in configuration.
+    final val ServerMac = MAC.fromString("02:a8:9c:de:39:27")
+
+    private final val BroadcastAddress = 0xffffffff
+
+    private def option(code: DHCPOption.Code, data: Array[Byte]): DHCPOption =
+        new DHCPOption(code.value, data.length.toByte, data)
+
+    private def msgTypeOption(msgType: DHCPOption.MsgType): DHCPOption =
+        option(DHCPOption.Code.DHCP_TYPE, Array[Byte](msgType.value))
+
+    final val OfferOption = msgTypeOption(DHCPOption.MsgType.OFFER)
+    final val AckOption = msgTypeOption(DHCPOption.MsgType.ACK)
+    final val NakOption = msgTypeOption(DHCPOption.MsgType.NAK)
+
+    private final val LeaseTimeOption = option(
+        DHCPOption.Code.IP_LEASE_TIME,
+        IPv4Addr.intToBytes((1 day).toSeconds.toInt))
+
+    private final val EndOption =
+        new DHCPOption(DHCPOption.Code.END.value, DHCPOption.Code.END.length,
+                       null)
+
+    private def mtuOption(mtu: Short): DHCPOption =
+        option(DHCPOption.Code.INTERFACE_MTU,
+               Array[Byte]((mtu / 256).toByte, (mtu % 256).toByte))
+
+    private def opt121ToBytes(opt121: Opt121, bytes: mutable.ArrayBuffer[Byte])
+    : Unit = {
+        // First append the destination subnet's maskLength
+        val maskLen = opt121.getRtDstSubnet.getPrefixLen.toByte
+        bytes += maskLen
+        // Now append the significant octets of the subnet.
+        val dstBytes = opt121.getRtDstSubnet.getAddress.toBytes
+        if (maskLen > 0) bytes += dstBytes(0)
+        if (maskLen > 8) bytes += dstBytes(1)
+        if (maskLen > 16) bytes += dstBytes(2)
+        if (maskLen > 24) bytes += dstBytes(3)
+        // Now append the 4 octets of the gateway.
+        bytes ++= opt121.getGateway.toBytes
+    }
+}
+
+/**
+ * A template for the DHCP replies sent to a host of a DHCP subnet. The
+ * template is compiled once when the DHCP configuration of the subnet or host
+ * changes: all options that do not depend on the request, including the
+ * extra DHCP options of the host, are parsed and encoded in advance, such that
+ * answering a DHCP request only sets the per-request fields of the reply.
+ * Templates are immutable and may be shared by all packet workers.
+ */
+final class DhcpReplyTemplate(val subnet: Subnet, val host: Host, log: Logger) {
+    import DhcpReplyTemplate._
+    import DhcpValueParser._
+
+    val serverAddr: IPv4Addr =
+        if (subnet.getServerAddr ne null) subnet.getServerAddr
+        else IPv4Addr.fromString("0.0.0.0")
+    val yiaddr: IPv4Addr = host.getIp
+    val subnetMtu: Short = subnet.getInterfaceMTU
+
+    // The options of the reply, except the message type and the interface MTU
+    // that are set for each request, unless overridden by the extra options.
+    private val (options, typeOverride, mtuOverride) = compileOptions()
+
+    // The last interface MTU option, which is cached since the MTU seldom
+    // changes.
+    @volatile private var lastMtuOption: DHCPOption = null
+
+    private def compileOptions(): (Array[DHCPOption], DHCPOption, DHCPOption) = {
+        val optionMap = mutable.LinkedHashMap[Byte, DHCPOption]()
+        def put(opt: DHCPOption): Unit = optionMap.put(opt.getCode, opt)
+
+        val routerAddr = subnet.getDefaultGateway
+        val maskLen = subnet.getSubnetAddr.getPrefixLen
+
+        put(option(DHCPOption.Code.MASK,
+                   IPv4Addr.intToBytes(~0 << (32 - maskLen))))
+        // Generate the broadcast address... this is nwAddr with 1's in the
+        // last 32-nwAddrLength bits.
+        put(option(DHCPOption.Code.BCAST_ADDR,
+                   IPv4Addr.intToBytes((~0 >>> maskLen) | yiaddr.addr)))
+        put(LeaseTimeOption)
+        if (routerAddr ne null) {
+            put(option(DHCPOption.Code.ROUTER, routerAddr.toBytes))
+        }
+        // in MidoNet the DHCP server is the same as the router
+        put(option(DHCPOption.Code.SERVER_ID, serverAddr.toBytes))
+
+        val dnsServerAddrs = subnet.getDnsServerAddrs
+        if ((dnsServerAddrs ne null) && !dnsServerAddrs.isEmpty) {
+            val buffer = ByteBuffer.allocate(4 * dnsServerAddrs.size)
+            dnsServerAddrs.asScala foreach { addr => buffer put addr.toBytes }
+            put(option(DHCPOption.Code.DNS, buffer.array))
+        }
+
+        // If there are classless static routes, add the option.
+        val opt121Routes = subnet.getOpt121Routes
+        if ((opt121Routes ne null) && !opt121Routes.isEmpty) {
+            val bytes = mutable.ArrayBuffer[Byte]()
+            opt121Routes.asScala foreach { opt121ToBytes(_, bytes) }
+            if (routerAddr ne null) {
+                // According to RFC 3442, if classless routes (option 121) are
+                // being provided, then the router option should be ignored.
+                // In this case we want to provide the default route with
+                // option 121 in addition to option 3.
+                val defaultRoute = new Opt121()
+                defaultRoute.setGateway(routerAddr)
+                defaultRoute.setRtDstSubnet(IPv4Subnet.fromCidr("0.0.0.0/0"))
+                opt121ToBytes(defaultRoute, bytes)
+            }
+            put(option(DHCPOption.Code.CLASSLESS_ROUTES, bytes.toArray))
+        }
+
+        // Add extra DHCP options. This overwrites the options set above.
+        for (opt <- host.getExtraDhcpOpts.asScala) {
+            val dhcpOption = for {
+                code <- parseDhcpOptionCode(opt.optName)
+                option <- CodeToOption.get(code)
+                value <- parseDhcpOptionValue(code, opt.optValue)
+                if (value.length != 0) &&
+                    (value.length % option.length == 0)
+            } yield new DHCPOption(code, value.length.toByte, value)
+            dhcpOption match {
+                case Some(o) =>
+                    log.debug(s"Add extra DHCP Option ${opt.optName} " +
+                              s"with value ${opt.optValue}")
+                    put(o)
+                case None =>
+                    log.info(s"Invalid DHCP Option: ${opt.optName} " +
+                             s"with value ${opt.optValue}: this invalid " +
+                             "option will be treated as UNKNOWN")
+            }
+        }
+
+        val typeOverride = optionMap.remove(DHCPOption.Code.DHCP_TYPE.value)
+        val mtuOverride = optionMap.remove(DHCPOption.Code.INTERFACE_MTU.value)
+        (optionMap.values.toArray, typeOverride.orNull, mtuOverride.orNull)
+    }
+
+    private def interfaceMtuOption(mtu: Short): DHCPOption = {
+        if (mtuOverride ne null) {
+            return mtuOverride
+        }
+        val last = lastMtuOption
+        if ((last ne null) &&
+            last.getData()(0) == (mtu / 256).toByte &&
+            last.getData()(1) == (mtu % 256).toByte) {
+            last
+        } else {
+            val opt = mtuOption(mtu)
+            lastMtuOption = opt
+            opt
+        }
+    }
+
+    /**
+     * Builds the reply to a DHCP request from this template, with the given
+     * message type option and interface MTU.
+     */
+    def reply(request: DHCP, msgType: DHCPOption, sourceMac: MAC,
+              interfaceMtu: Short): Ethernet = {
+        val replyOptions = new JArrayList[DHCPOption](options.length + 3)
+        replyOptions.add(if (typeOverride ne null) typeOverride else msgType)
+        var index = 0
+        while (index < options.length) {
+            replyOptions.add(options(index))
+            index += 1
+        }
+        replyOptions.add(interfaceMtuOption(interfaceMtu))
+        // And finally add the END option.
+        replyOptions.add(EndOption)
+
+        val reply = new DHCP
+        reply.setOpCode(DHCP.OPCODE_REPLY)
+        reply.setTransactionId(request.getTransactionId)
+        reply.setHardwareAddressLength(6)
+        reply.setHardwareType(ARP.HW_TYPE_ETHERNET.toByte)
+        reply.setClientHardwareAddress(sourceMac)
+        reply.setServerIPAddress(serverAddr.addr)
+        reply.setYourIPAddress(yiaddr.addr)
+        reply.setOptions(replyOptions)
+
+        val udp = new UDP
+        udp.setSourcePort(67)
+        udp.setDestinationPort(68)
+        udp.setPayload(reply)
+
+        val ip = new IPv4
+        ip.setSourceAddress(serverAddr.addr)
+        ip.setDestinationAddress(BroadcastAddress)
+        ip.setProtocol(UDP.PROTOCOL_NUMBER)
+        ip.setPayload(udp)
+
+        val eth = new Ethernet
+        eth.setEtherType(IPv4.ETHERTYPE)
+        eth.setPayload(ip)
+        eth.setSourceMACAddress(ServerMac)
+        eth.setDestinationMACAddress(sourceMac)
+        eth
+    }
+}
@@ -120,9 +120,8 @@ class Router(override val id: UUID,
                                             (implicit context: PacketContext) = {
 
         // Broadcast packet:  Handle if ARP, drop otherwise.
-        val payload = context.ethernet.getPayload
         if (context.wcmatch.getEtherType == ARP.ETHERTYPE)
-            processArp(payload, inPort)
+            processArp(context.ethernet.getPayload, inPort)
         else
             Drop
     }
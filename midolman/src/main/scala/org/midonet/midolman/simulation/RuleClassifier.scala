@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.{Arrays, TreeSet, List => JList}
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.midonet.midolman.rules.{Condition, Rule}
+import org.midonet.odp.FlowMatch
+
+object RuleClassifier {
+
+    /** Chains with fewer rules than this are always evaluated linearly: the
+      * lookup would cost more than the conditions it saves, and it would
+      * needlessly mark the classified fields as seen in the flow match. */
+    final val MinRules = 8
+
+    /** Bound on the number of rule indices stored by a classifier node,
+      * relative to the number of rules it classifies. A dimension whose split
+      * would replicate the wildcard rules beyond this bound is not split. */
+    private final val MaxExpansion = 16
+
+    /**
+     * Builds a classifier for the given rule list, or returns `null` if the
+     * list is too short to benefit from one.
+     */
+    def apply(rules: JList[Rule]): RuleClassifier = {
+        if (rules.size < MinRules) {
+            null
+        } else {
+            val conditions = new Array[Condition](rules.size)
+            var index = 0
+            while (index < conditions.length) {
+                val condition = rules.get(index).getCondition
+                conditions(index) =
+                    if (isIndexable(condition)) condition else null
+                index += 1
+            }
+            new RuleClassifier(
+                buildProtocolNode(conditions, Array.range(0, rules.size)),
+                rules.size)
+        }
+    }
+
+    /**
+     * A condition is indexable when a mismatch on one of its fields implies
+     * a mismatch of the whole condition, and when skipping its evaluation has
+     * no side effects. Inverted conjunctions do not satisfy the former, and
+     * conditions matching on the flow direction do not satisfy the latter,
+     * because determining the direction performs the connection tracking
+     * lookup.
+     */
+    private def isIndexable(condition: Condition): Boolean = {
+        (condition ne null) && !condition.conjunctionInv &&
+        !condition.matchForwardFlow && !condition.matchReturnFlow
+    }
+
+    private def protocolOf(condition: Condition): Int = {
+        if ((condition eq null) || (condition.nwProto eq null) ||
+            condition.nwProtoInv) -1
+        else condition.nwProto.byteValue & 0xFF
+    }
+
+    private def hasDstPortRange(condition: Condition): Boolean = {
+        (condition ne null) && (condition.tpDst ne null) &&
+        !condition.tpDstInv
+    }
+
+    private def dstPortStart(condition: Condition): Long = {
+        val start = condition.tpDst.start
+        if (start eq null) Int.MinValue else start.longValue
+    }
+
+    private def dstPortEnd(condition: Condition): Long = {
+        val end = condition.tpDst.end
+        if (end eq null) Int.MaxValue else end.longValue
+    }
+
+    private def toArray(buffer: ArrayBuffer[Int]): Array[Int] = {
+        val array = new Array[Int](buffer.size)
+        buffer.copyToArray(array)
+        array
+    }
+
+    /**
+     * Splits the given rules by IP protocol. Each protocol matched by at least
+     * one rule gets the rules for that protocol merged in order with the rules
+     * that match any protocol, while every other protocol only gets the latter.
+     */
+    private def buildProtocolNode(conditions: Array[Condition],
+                                  rules: Array[Int]): Node = {
+        val byProtocol = new Array[ArrayBuffer[Int]](256)
+        val any = new ArrayBuffer[Int](rules.length)
+        var indexed = 0
+        var index = 0
+        while (index < rules.length) {
+            val protocol = protocolOf(conditions(rules(index)))
+            if (protocol < 0) {
+                any += rules(index)
+            } else {
+                if (byProtocol(protocol) eq null)
+                    byProtocol(protocol) = new ArrayBuffer[Int]()
+                indexed += 1
+            }
+            index += 1
+        }
+
+        val protocols = byProtocol.count(_ ne null)
+        if (protocols == 0 ||
+            protocols * any.size + indexed > MaxExpansion * rules.length) {
+            return buildDstPortNode(conditions, rules)
+        }
+
+        index = 0
+        while (index < rules.length) {
+            val protocol = protocolOf(conditions(rules(index)))
+            if (protocol < 0) {
+                byProtocol.foreach { buffer =>
+                    if (buffer ne null) buffer += rules(index)
+                }
+            } else {
+                byProtocol(protocol) += rules(index)
+            }
+            index += 1
+        }
+
+        val other = buildDstPortNode(conditions, toArray(any))
+        val nodes = new Array[Node](256)
+        var protocol = 0
+        while (protocol < 256) {
+            nodes(protocol) =
+                if (byProtocol(protocol) eq null) other
+                else buildDstPortNode(conditions, toArray(byProtocol(protocol)))
+            protocol += 1
+        }
+        new ProtocolNode(nodes)
+    }
+
+    /**
+     * Splits the given rules by destination port range. The port space is
+     * divided in the elementary intervals delimited by the bounds of all rule
+     * ranges, such that every interval is either entirely inside or entirely
+     * outside of each range. Adjacent intervals with the same rules are
+     * merged.
+     */
+    private def buildDstPortNode(conditions: Array[Condition],
+                                 rules: Array[Int]): Node = {
+        val bounds = new TreeSet[java.lang.Long]()
+        var index = 0
+        while (index < rules.length) {
+            val condition = conditions(rules(index))
+            if (hasDstPortRange(condition)) {
+                bounds.add(dstPortStart(condition))
+                bounds.add(dstPortEnd(condition) + 1L)
+            }
+            index += 1
+        }
+        if (bounds.isEmpty) {
+            return new Leaf(rules)
+        }
+
+        val points = new Array[Long](bounds.size)
+        val it = bounds.iterator()
+        index = 0
+        while (it.hasNext) {
+            points(index) = it.next()
+            index += 1
+        }
+
+        val intervalBounds = new ArrayBuffer[Long](points.length)
+        val intervalRules = new ArrayBuffer[Array[Int]](points.length + 1)
+        var total = 0L
+        var interval = 0
+        while (interval <= points.length) {
+            // Any port in the interval is representative for all of it.
+            val port =
+                if (interval == 0) points(0) - 1L else points(interval - 1)
+            val candidates = new ArrayBuffer[Int](rules.length)
+            index = 0
+            while (index < rules.length) {
+                val condition = conditions(rules(index))
+                if (!hasDstPortRange(condition) ||
+                    (dstPortStart(condition) <= port &&
+                     port <= dstPortEnd(condition))) {
+                    candidates += rules(index)
+                }
+                index += 1
+            }
+            val array = toArray(candidates)
+            if (intervalRules.isEmpty ||
+                !Arrays.equals(intervalRules.last, array)) {
+                if (intervalRules.nonEmpty)
+                    intervalBounds += port
+                intervalRules += array
+                total += array.length
+            }
+            interval += 1
+        }
+
+        if (intervalRules.size == 1 ||
+            total > MaxExpansion.toLong * rules.length) {
+            new Leaf(rules)
+        } else {
+            new DstPortNode(intervalBounds.toArray,
+                            intervalRules.map(new Leaf(_): Node).toArray)
+        }
+    }
+
+    private[simulation] sealed trait Node {
+        def candidates(fmatch: FlowMatch): Array[Int]
+    }
+
+    private final class Leaf(rules: Array[Int]) extends Node {
+        override def candidates(fmatch: FlowMatch): Array[Int] = rules
+    }
+
+    private final class ProtocolNode(nodes: Array[Node]) extends Node {
+        override def candidates(fmatch: FlowMatch): Array[Int] =
+            nodes(fmatch.getNetworkProto & 0xFF).candidates(fmatch)
+    }
+
+    /**
+     * The node `nodes(i)` holds the rules for ports in the interval
+     * `[bounds(i - 1), bounds(i))`, with the first and last intervals being
+     * unbounded below and above, respectively.
+     */
+    private final class DstPortNode(bounds: Array[Long], nodes: Array[Node])
+        extends Node {
+        override def candidates(fmatch: FlowMatch): Array[Int] = {
+            val port = fmatch.getDstPort
+            var low = 0
+            var high = bounds.length
+            while (low < high) {
+                val mid = (low + high) >>> 1
+                if (bounds(mid) <= port) low = mid + 1
+                else high = mid
+            }
+            nodes(low).candidates(fmatch)
+        }
+    }
+}
+
+/**
+ * A decision tree over the rules of a chain, which for a given packet returns
+ * the ordered indices of the rules that may match it. Every rule left out is
+ * guaranteed not to match the packet, such that evaluating only the candidate
+ * rules in order preserves the first-match semantics of the chain.
+ *
+ * The tree splits first on the IP protocol and then on the destination port
+ * ranges of the rule conditions. Rules whose conditions do not constrain a
+ * dimension, or constrain it with an inverted match, are candidates for every
+ * value of that dimension. The classifier reads the classified fields from the
+ * flow match, which marks them as seen: this is correct because the candidate
+ * set depends on them. Because NAT rules may continue after rewriting these
+ * fields, the chain classifies the remaining rules again after a NAT rule or a
+ * jump.
+ */
+final class RuleClassifier private(root: RuleClassifier.Node,
+                                   val size: Int) {
+
+    /**
+     * Returns the indices of the rules that may match the given flow match,
+     * in ascending order. The returned array is shared and must not be
+     * modified.
+     */
+    def candidates(fmatch: FlowMatch): Array[Int] = root.candidates(fmatch)
+
+}
@@ -26,6 +26,7 @@ import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.TraceState
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
+import org.midonet.odp.{FlowMatches, Packet}
 import org.midonet.odp.flows.FlowAction
 import org.midonet.packets.FlowStateEthernet
 import org.midonet.packets.NatState.NatBinding
@@ -42,6 +43,25 @@ trait StateContext extends Clearable
     var stateMessageLength = 0
     val stateActions = new ArrayList[FlowAction]()
 
+    private var peerUdpShell: FlowStateEthernet = _
+    private var peerPacket: Packet = _
+
+    /**
+     * Returns a packet over the first bytes of the state message, used by the
+     * contexts that send the state aggregated for the peers. The packet is
+     * created on first use and reused along with the context.
+     */
+    def peerStatePacket(length: Int): Packet = {
+        if (peerPacket eq null) {
+            peerUdpShell = new FlowStateEthernet(stateMessage)
+            peerPacket = new Packet(peerUdpShell,
+                                    FlowMatches.fromEthernetPacket(peerUdpShell),
+                                    peerUdpShell.length)
+        }
+        peerUdpShell.limit(length)
+        peerPacket
+    }
+
     def initialize(conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
                    natTx: FlowStateTransaction[NatKey, NatBinding],
                    natLeaser: NatLeaser,
@@ -31,7 +31,7 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.data.storage.model.ArpEntry
 import org.midonet.midolman.{NotYetException, SimulationBackChannel}
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigListener}
 import org.midonet.midolman.PacketWorkflow.GeneratedLogicalPacket
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.simulation._
@@ -79,15 +79,25 @@ object ArpRequestBroker {
  * agents may decide to ARP at the same time for the IP address. To reduce
  * this effect outside of the 1st ARP request, the implementation introduces
  * jitter to the staleness and ARP retry intervals.
+ *
+ * When registered as a listener of the configuration watcher, the broker
+ * applies the changes to the ARP table settings to the following requests
+ * and entries.
  */
-class ArpRequestBroker(config: MidolmanConfig,
+class ArpRequestBroker(initialConfig: MidolmanConfig,
                        backChannel: SimulationBackChannel,
                        triggerBackChannel: () => Unit,
                        clock: UnixClock = UnixClock())
-    extends MidolmanLogging {
+    extends MidolmanLogging with MidolmanConfigListener {
 
     override def logSource = "org.midonet.devices.router.arptable"
 
+    @volatile private var config = initialConfig
+
+    override def configChanged(previous: MidolmanConfig,
+                               current: MidolmanConfig): Unit =
+        config = current
+
     private val brokers = new util.HashMap[UUID, SingleRouterArpRequestBroker]()
 
     def numRouters = brokers.size
@@ -155,7 +165,7 @@ class ArpRequestBroker(config: MidolmanConfig,
 
 class SingleRouterArpRequestBroker(id: UUID,
                                    arpCache: ArpCache,
-                                   config: MidolmanConfig,
+                                   config: => MidolmanConfig,
                                    backChannel: SimulationBackChannel,
                                    triggerBackChannel: () => Unit,
                                    clock: UnixClock = UnixClock())
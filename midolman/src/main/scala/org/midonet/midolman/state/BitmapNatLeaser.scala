@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLongArray, AtomicReferenceArray}
+import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom}
+
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.packets.IPv4Addr
+import org.midonet.packets.NatState.NatBinding
+
+object BitmapNatLeaser {
+    private val BLOCK_SIZE = NatBlock.BLOCK_SIZE // One bit per port in a Long
+    private val TOTAL_BLOCKS = NatBlock.TOTAL_BLOCKS
+    private val BUCKET_BITS = 8
+    private val BUCKETS = 1 << BUCKET_BITS
+    private val EXPIRATION_NANOS = NatLeaser.BLOCK_EXPIRATION.toNanos
+
+    /**
+     * Returns the bucket of the bitmap for the destination IP and port
+     * combination, using the top bits of its Fibonacci hash.
+     */
+    private[state] def bucketOf(uniquefier: Long): Int =
+        ((uniquefier * 0x9E3779B97F4A7C15L) >>> (64 - BUCKET_BITS)).toInt
+
+    /**
+     * The bitmaps of a leased block of BLOCK_SIZE ports. The destinations are
+     * hashed into BUCKETS buckets, each with a bitmap of the ports in the
+     * block that are leased to the destinations in that bucket. A port can be
+     * leased once per bucket, so the same port is shared by destinations in
+     * different buckets. The reference count is the number of bindings in the
+     * block, and it is set to -1 once the block is released.
+     */
+    final class LeasedPorts(val block: NatBlock, now: Long) {
+        val bitmaps = new AtomicLongArray(BUCKETS)
+        val refCount = new AtomicInteger()
+        @volatile var idleSince = now
+        var portIndex = ThreadLocalRandom.current().nextInt()
+
+        def ref(): Boolean = {
+            var count = refCount.get
+            while (count >= 0) {
+                if (refCount.compareAndSet(count, count + 1))
+                    return true
+                count = refCount.get
+            }
+            false
+        }
+
+        def unref(now: Long): Unit =
+            if (refCount.decrementAndGet() == 0)
+                idleSince = now
+
+        /**
+         * Returns the first port within the mask that is free for the bucket,
+         * starting from the port index, or -1 if there is none.
+         */
+        def lease(bucket: Int, mask: Long): Int = {
+            while (true) {
+                val bitmap = bitmaps.get(bucket)
+                val free = ~bitmap & mask
+                if (free == 0L)
+                    return -1
+                val start = portIndex & (BLOCK_SIZE - 1)
+                val bit = (java.lang.Long.numberOfTrailingZeros(
+                    java.lang.Long.rotateRight(free, start)) + start) &
+                          (BLOCK_SIZE - 1)
+                if (bitmaps.compareAndSet(bucket, bitmap, bitmap | (1L << bit))) {
+                    portIndex = bit + 31
+                    return bit
+                }
+            }
+            -1 // not reached
+        }
+
+        /**
+         * Clears the port in the bucket, returning whether it was leased.
+         */
+        def release(bucket: Int, bit: Int): Boolean = {
+            while (true) {
+                val bitmap = bitmaps.get(bucket)
+                if ((bitmap & (1L << bit)) == 0L)
+                    return false
+                if (bitmaps.compareAndSet(bucket, bitmap, bitmap & ~(1L << bit)))
+                    return true
+            }
+            false // not reached
+        }
+    }
+
+    /**
+     * The blocks leased for a NAT target IP address under a device, indexed
+     * by the block index. The last block that leased a port is remembered, so
+     * that allocations start searching from it.
+     */
+    final class IpBlocks {
+        val blocks = new AtomicReferenceArray[LeasedPorts](TOTAL_BLOCKS)
+        @volatile var lastBlock = 0
+    }
+
+    type IpLeases = ConcurrentHashMap[IPv4Addr, IpBlocks]
+
+    type DeviceLeases = ConcurrentHashMap[UUID, IpLeases]
+}
+
+/**
+ * A NatLeaser that keeps the leased ports of each block in fixed-size
+ * bitmaps, instead of a map of destinations for every port. Allocating and
+ * freeing a binding sets and clears a bit with a compare-and-set, without
+ * locking or allocating, and is thread-safe for concurrent callers.
+ *
+ * The destination IP and port of a binding are hashed into one of 256
+ * buckets, and a port can be leased once per bucket. Unlike in the NatLeaser,
+ * where a port is shared by any destinations that differ, two destinations
+ * that hash to the same bucket can never share a port: they are given
+ * different ports, or no binding when the target range has no other free
+ * port. This reduces the oversubscription of each port to at most one
+ * binding per bucket.
+ */
+trait BitmapNatLeaser extends NatLeaser {
+    import BitmapNatLeaser._
+    import NatLeaser.{OBLITERATION_CYCLE, blend, blockOf, firstPortIn}
+
+    private val leases = new DeviceLeases
+
+    @volatile private var lastBlockObliteration = 0L
+
+    @throws(classOf[NotYetException])
+    override def allocateNatBinding(deviceId: UUID,
+                                    destinationIp: IPv4Addr,
+                                    destinationPort: Int,
+                                    natTargets: Array[NatTarget]): NatBinding = {
+        val bucket = bucketOf(blend(destinationIp, destinationPort))
+        val ipLeases = leases.get(deviceId)
+        if (ipLeases ne null) {
+            var i = 0
+            while (i < natTargets.length) {
+                val target = natTargets(i)
+                var ip = target.nwStart
+                while (ip <= target.nwEnd) {
+                    val ipBlocks = ipLeases.get(ip)
+                    if (ipBlocks ne null) {
+                        val port = allocateInPortRange(ipBlocks, bucket,
+                                                       target.tpStart,
+                                                       target.tpEnd)
+                        if (port >= 0) {
+                            return NatBinding(ip, port)
+                        }
+                    }
+                    ip = ip.next
+                }
+                i += 1
+            }
+        }
+
+        throw new NotYetException(
+            fetchNatBlock(deviceId, natTargets, natTargets(0).nwStart, 0))
+    }
+
+    override def freeNatBinding(deviceId: UUID,
+                                destinationIp: IPv4Addr,
+                                destinationPort: Int,
+                                binding: NatBinding): Unit = {
+        val ipLeases = leases.get(deviceId)
+        if (ipLeases eq null)
+            return
+
+        val ipBlocks = ipLeases.get(binding.networkAddress)
+        if (ipBlocks eq null)
+            return
+
+        val port = binding.transportPort
+        val leasedPorts = ipBlocks.blocks.get(blockOf(port))
+        if (leasedPorts ne null) {
+            val bucket = bucketOf(blend(destinationIp, destinationPort))
+            if (leasedPorts.release(bucket, port & (BLOCK_SIZE - 1)))
+                leasedPorts.unref(clock.tick)
+        }
+    }
+
+    /**
+     * Returns the blocks that have had no bindings for longer than the block
+     * expiration to the underlying allocator. Thread-safe for concurrent
+     * callers.
+     */
+    override def obliterateUnusedBlocks(): Unit = {
+        val now = clock.tick
+        if (now - lastBlockObliteration > OBLITERATION_CYCLE) {
+            lastBlockObliteration = now
+            val itDevs = leases.values().iterator()
+            while (itDevs.hasNext) {
+                val itIps = itDevs.next().values().iterator()
+                while (itIps.hasNext) {
+                    obliterateIdleBlocks(itIps.next(), now)
+                }
+            }
+        }
+    }
+
+    override protected def registerNewBlock(block: NatBlock): Unit = {
+        log.debug("Acquiring NAT block {}", block)
+        val ipBlocks = getOrCreateIpBlocks(block.deviceId, block.ip)
+        val leasedPorts = new LeasedPorts(block, clock.tick)
+        while (!ipBlocks.blocks.compareAndSet(block.blockIndex, null, leasedPorts)) {
+            val current = ipBlocks.blocks.get(block.blockIndex)
+            if ((current ne null) && current.refCount.get >= 0) {
+                // The block is already leased: the slot is for the same
+                // device, IP and block index, and therefore for the same
+                // block ownership, so keep using the current lease and its
+                // bindings. The ownership is released when it expires.
+                log.debug("NAT block {} is already leased", block)
+                return
+            }
+            // The current lease is being released: take over its slot, such
+            // that the release does not return the block to the allocator.
+            if ((current ne null) &&
+                ipBlocks.blocks.compareAndSet(block.blockIndex, current,
+                                              leasedPorts))
+                return
+        }
+    }
+
+    private def allocateInPortRange(ipBlocks: IpBlocks, bucket: Int,
+                                    tpStart: Int, tpEnd: Int): Int = {
+        val firstBlock = blockOf(tpStart)
+        val lastBlock = blockOf(tpEnd)
+        val numBlocks = lastBlock - firstBlock + 1
+        val hint = ipBlocks.lastBlock
+        var offset =
+            if (hint >= firstBlock && hint <= lastBlock) hint - firstBlock
+            else 0
+        var i = 0
+        while (i < numBlocks) {
+            val index = firstBlock + offset
+            val leasedPorts = ipBlocks.blocks.get(index)
+            if ((leasedPorts ne null) && leasedPorts.ref()) {
+                val first = firstPortIn(index)
+                val bit = leasedPorts.lease(bucket, portMask(first, tpStart, tpEnd))
+                if (bit >= 0) {
+                    ipBlocks.lastBlock = index
+                    return first + bit
+                }
+                leasedPorts.unref(clock.tick)
+            }
+            offset += 1
+            if (offset == numBlocks)
+                offset = 0
+            i += 1
+        }
+        -1
+    }
+
+    /**
+     * Returns the mask of the ports in the block starting at the given port
+     * that are within the target port range.
+     */
+    private def portMask(firstPort: Int, tpStart: Int, tpEnd: Int): Long = {
+        val low = Math.max(tpStart - firstPort, 0)
+        val high = Math.min(tpEnd - firstPort, BLOCK_SIZE - 1)
+        (-1L >>> (BLOCK_SIZE - 1 - high)) & (-1L << low)
+    }
+
+    private def obliterateIdleBlocks(ipBlocks: IpBlocks, now: Long): Unit = {
+        var i = 0
+        while (i < TOTAL_BLOCKS) {
+            val leasedPorts = ipBlocks.blocks.get(i)
+            if ((leasedPorts ne null) &&
+                now - leasedPorts.idleSince > EXPIRATION_NANOS &&
+                leasedPorts.refCount.compareAndSet(0, -1)) {
+                // The block is only returned to the allocator if it was not
+                // registered again in the meantime.
+                if (ipBlocks.blocks.compareAndSet(i, leasedPorts, null)) {
+                    log.debug("Releasing NAT block {}", leasedPorts.block)
+                    allocator.freeBlock(leasedPorts.block)
+                }
+            }
+            i += 1
+        }
+    }
+
+    private def getOrCreateIpBlocks(deviceId: UUID, ip: IPv4Addr): IpBlocks = {
+        var ipLeases = leases.get(deviceId)
+        if (ipLeases eq null) {
+            ipLeases = new IpLeases
+            val cur = leases.putIfAbsent(deviceId, ipLeases)
+            if (cur ne null)
+                ipLeases = cur
+        }
+        var ipBlocks = ipLeases.get(ip)
+        if (ipBlocks eq null) {
+            ipBlocks = new IpBlocks
+            val cur = ipLeases.putIfAbsent(ip, ipBlocks)
+            if (cur ne null)
+                ipBlocks = cur
+        }
+        ipBlocks
+    }
+}
@@ -26,8 +26,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.ConnTrackState.{ConnTrackKeyAllocator, ConnTrackKeyStore}
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateTransaction, OffHeapFlowStateTable}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -56,6 +56,74 @@ object ConnTrackState {
 
     type ConnTrackKey = ConnTrackKeyStore with FlowStateKey
 
+    /**
+     * Encodes a connection tracking key into eight words: the device ID, the
+     * upper and lower words of the source and destination addresses, the
+     * source and destination ports or ICMP identifiers, and the protocol along
+     * with the family of each address. IPv4 addresses have an upper word of
+     * zero.
+     */
+    object ConnTrackCodec
+        extends OffHeapFlowStateTable.Codec[ConnTrackKey, ConnTrackValue] {
+
+        private final val IPV6_SRC = 0x100L
+        private final val IPV6_DST = 0x200L
+
+        override val keyWords = 8
+
+        override def keyWord(key: ConnTrackKey, index: Int): Long = index match {
+            case 0 =>
+                if (key.deviceId eq null) 0L
+                else key.deviceId.getMostSignificantBits
+            case 1 =>
+                if (key.deviceId eq null) 0L
+                else key.deviceId.getLeastSignificantBits
+            case 2 => upperWord(key.networkSrc)
+            case 3 => lowerWord(key.networkSrc)
+            case 4 => upperWord(key.networkDst)
+            case 5 => lowerWord(key.networkDst)
+            case 6 => (key.icmpIdOrTransportSrc.toLong << 32) |
+                      (key.icmpIdOrTransportDst & 0xFFFFFFFFL)
+            case 7 =>
+                var word = key.networkProtocol & 0xFFL
+                if (key.networkSrc.isInstanceOf[IPv6Addr])
+                    word |= IPV6_SRC
+                if (key.networkDst.isInstanceOf[IPv6Addr])
+                    word |= IPV6_DST
+                word
+        }
+
+        override def decodeKey(words: Array[Long]): ConnTrackKey =
+            ConnTrackKey(address(words(2), words(3), (words(7) & IPV6_SRC) != 0),
+                         (words(6) >> 32).toInt,
+                         address(words(4), words(5), (words(7) & IPV6_DST) != 0),
+                         words(6).toInt,
+                         words(7).toByte,
+                         if (words(0) == 0L && words(1) == 0L) null
+                         else new UUID(words(0), words(1)))
+
+        override def encodeValue(value: ConnTrackValue): Long =
+            if (value.booleanValue) 1L else 0L
+
+        override def decodeValue(word: Long): ConnTrackValue =
+            java.lang.Boolean.valueOf(word != 0L)
+
+        private def upperWord(ip: IPAddr): Long = ip match {
+            case ip6: IPv6Addr => ip6.upperWord
+            case _ => 0L
+        }
+
+        private def lowerWord(ip: IPAddr): Long = ip match {
+            case ip4: IPv4Addr => ip4.addr & 0xFFFFFFFFL
+            case ip6: IPv6Addr => ip6.lowerWord
+            case _ => 0L
+        }
+
+        private def address(upper: Long, lower: Long, ipv6: Boolean): IPAddr =
+            if (ipv6) IPv6Addr(upper, lower)
+            else IPv4Addr.fromInt(lower.toInt)
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
@@ -18,16 +18,17 @@ package org.midonet.midolman.state
 
 import java.net.{DatagramPacket, DatagramSocket, InetAddress}
 import java.nio.ByteBuffer
-import java.util.{ArrayList, Collection, UUID, HashSet => JHashSet, Iterator => JIterator, Set => JSet}
+import java.util.{ArrayList, Collection, Objects, UUID, HashMap => JHashMap, HashSet => JHashSet, Iterator => JIterator, Set => JSet}
 
+import com.codahale.metrics.{Histogram, UniformReservoir}
 import com.google.common.annotations.VisibleForTesting
 import com.typesafe.scalalogging.Logger
 
 import org.slf4j.LoggerFactory
 
-import org.midonet.cluster.flowstate.proto.{FlowState => FlowStateSbe}
+import org.midonet.cluster.flowstate.proto.{FlowState => FlowStateSbe, MessageHeader}
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigListener}
 import org.midonet.midolman.flows.FlowTagIndexer
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.ConnTrackState._
@@ -37,14 +38,83 @@ import org.midonet.midolman.{NotYetException, UnderlayResolver}
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
+import org.midonet.packets.FlowStateStore.IdleExpiration
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets.{Ethernet, FlowStateEthernet, SbeEncoder}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTable
-import org.midonet.services.flowstate.{FlowStateInternalMessageHeaderSize, FlowStateInternalMessageType}
+import org.midonet.services.flowstate.{FlowStateInternalMessageHeaderSize, FlowStateInternalMessageType, MaxBatchSize}
 import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.functors.Callback0
 
+object FlowStateReplicator {
+
+    // Encoded sizes of the flow state message: the message header and sender,
+    // the headers of the five groups and of the nested egress ports group,
+    // and the ingress port.
+    private val MessageOverhead =
+        new MessageHeader().size + FlowStateSbe.BLOCK_LENGTH +
+        FlowStateSbe.Conntrack.sbeHeaderSize + FlowStateSbe.Nat.sbeHeaderSize +
+        FlowStateSbe.Trace.sbeHeaderSize +
+        FlowStateSbe.TraceRequestIds.sbeHeaderSize +
+        FlowStateSbe.PortIds.sbeHeaderSize +
+        FlowStateSbe.PortIds.sbeBlockLength +
+        FlowStateSbe.PortIds.EgressPortIds.sbeHeaderSize
+    private val UuidSize = FlowStateSbe.PortIds.EgressPortIds.sbeBlockLength
+    private val ConntrackSize = FlowStateSbe.Conntrack.sbeBlockLength
+    private val NatSize = FlowStateSbe.Nat.sbeBlockLength
+    // The number of entries of a group is encoded as an uint8.
+    private final val MaxGroupEntries = 255
+
+    /**
+     * The keys accumulated during a batch for the flows with the same peers
+     * and ports, which are sent together in aggregated state packets. The
+     * ports are part of the group because a state message carries a single
+     * set of ports, which the flow state minions associate with all its keys.
+     * The peers and ports of a group are only modified on the probe used to
+     * look up the groups.
+     */
+    private final class PeerGroup(var ingressPort: UUID,
+                                  var egressPorts: ArrayList[UUID],
+                                  var hosts: JSet[UUID]) {
+        val conntrackKeys = new ArrayList[ConnTrackKey]()
+        val natKeys = new ArrayList[NatKey]()
+        val natBindings = new ArrayList[NatBinding]()
+        val keys = new JHashSet[IdleExpiration]()
+        var conntrackIndex = 0
+        var natIndex = 0
+
+        def hasPending: Boolean =
+            conntrackIndex < conntrackKeys.size || natIndex < natKeys.size
+
+        def clear(): Unit = {
+            conntrackKeys.clear()
+            natKeys.clear()
+            natBindings.clear()
+            keys.clear()
+            conntrackIndex = 0
+            natIndex = 0
+        }
+
+        override def hashCode: Int =
+            (Objects.hashCode(ingressPort) * 31 + egressPorts.hashCode) * 31 +
+            hosts.hashCode
+
+        override def equals(other: Any): Boolean = other match {
+            case group: PeerGroup =>
+                Objects.equals(ingressPort, group.ingressPort) &&
+                egressPorts.equals(group.egressPorts) &&
+                hosts.equals(group.hosts)
+            case _ => false
+        }
+    }
+
+    /** Records when a key was last sent to a group of peers. */
+    private final class SentKey(var group: PeerGroup, var value: AnyRef,
+                                var time: Long)
+}
+
 /**
  * A class to replicate per-flow connection state between interested hosts.
  *
@@ -90,6 +160,28 @@ import org.midonet.util.functors.Callback0
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
+ *
+ * The flow state messages for the local flow state minion are batched and
+ * sent in a single datagram when the owning thread calls flushState(), at
+ * the end of each batch of packets, or when the batch is full. The sizes of
+ * the sent batches are recorded in the batchSizes histogram.
+ *
+ * When agent.datapath.aggregate_state_packets is enabled, the keys of the new
+ * flows are not sent to the peers in a state packet per flow. Instead, they
+ * are accumulated per group of peers and ports, and the owning thread takes
+ * the aggregated state messages with nextPeerState() at the end of each
+ * batch of packets. Keys sent to the same peers less than half of their idle
+ * expiration ago are not sent again, because the peers still hold them.
+ * Unlike the per flow state packets, which are executed along with the
+ * packet of their flow, the aggregated state packets are executed after the
+ * packets of the batch. A peer may therefore simulate a reply before it
+ * receives the state of the flow, in which case the flows of the reply are
+ * invalidated once the state arrives.
+ *
+ * The replicator applies the changes to the flow state settings, the control
+ * packet ToS and the aggregation of state packets at runtime, when registered
+ * as a listener of the configuration watcher. The port of the flow state
+ * minion is only read on construction.
  */
 class FlowStateReplicator(
         conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
@@ -99,28 +191,47 @@ class FlowStateReplicator(
         peerResolver: PeerResolver,
         underlay: UnderlayResolver,
         flowInvalidation: FlowTagIndexer,
-        midolmanConfig: MidolmanConfig) {
+        midolmanConfig: MidolmanConfig,
+        batchSizes: Histogram = new Histogram(new UniformReservoir),
+        clock: NanoClock = NanoClock.DEFAULT) extends MidolmanConfigListener {
     import FlowStateAgentPackets._
+    import FlowStateReplicator._
     private val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     private val flowStateEncoder = new SbeEncoder
 
+    @volatile private var currentConfig = midolmanConfig
+
     @VisibleForTesting
-    @inline protected def config = midolmanConfig
+    @inline protected def config = currentConfig
+
+    override def configChanged(previous: MidolmanConfig,
+                               current: MidolmanConfig): Unit =
+        currentConfig = current
 
     /* Used for sending flow state messages to minion */
     protected[state] val flowStateSocket = new DatagramSocket()
     private val flowStatePacket =
         new DatagramPacket(Array.emptyByteArray, 0,
                            InetAddress.getLoopbackAddress, config.flowState.port)
-    private val flowStateBuffer =
-        ByteBuffer.allocate(FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+    private val flowStateBuffer = ByteBuffer.allocate(MaxBatchSize)
+    flowStateBuffer.position(FlowStateInternalMessageHeaderSize)
+    private var batchedMessages = 0
 
     /* Used for message building */
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
-    private[this] val tos = config.datapath.controlPacketTos
+
+    /* Used for aggregating the state sent to peers */
+    private val peerStateEncoder = new SbeEncoder
+    private val pendingGroups = new JHashMap[PeerGroup, PeerGroup]()
+    private val probeGroup = new PeerGroup(null, null, null)
+    private val pendingList = new ArrayList[PeerGroup]()
+    private var pendingIndex = 0
+    private val sentKeys = new JHashMap[IdleExpiration, SentKey]()
+    private var aggregateTime = 0L
+    private var sentKeysExpiration = 0L
 
     private val _conntrackAdder = new Reducer[ConnTrackKey, ConnTrackValue, ArrayList[Callback0]] {
         override def apply(callbacks: ArrayList[Callback0], k: ConnTrackKey,
@@ -165,6 +276,31 @@ class FlowStateReplicator(
         }
     }
 
+    private val _conntrackAggregator = new Reducer[ConnTrackKey, ConnTrackValue,
+                                                   PeerGroup] {
+        override def apply(group: PeerGroup, k: ConnTrackKey,
+                           v: ConnTrackValue): PeerGroup = {
+            // The peers store every received key as a return flow.
+            if (shouldSend(group, k, ConnTrackState.RETURN_FLOW)) {
+                log.debug("aggregate conntrack key: {}", k)
+                group.conntrackKeys.add(k)
+            }
+            group
+        }
+    }
+
+    private val _natAggregator = new Reducer[NatKey, NatBinding, PeerGroup] {
+        override def apply(group: PeerGroup, k: NatKey,
+                           v: NatBinding): PeerGroup = {
+            if (shouldSend(group, k, v)) {
+                log.debug("aggregate nat key: {}", k)
+                group.natKeys.add(k)
+                group.natBindings.add(v)
+            }
+            group
+        }
+    }
+
     private def addTraceState(flowStateMessage: FlowStateSbe,
                               k: TraceKey, ctx: TraceContext): Unit = {
         log.debug("push trace key: {}", k)
@@ -231,7 +367,171 @@ class FlowStateReplicator(
 
         buildFlowState(context)
         if (!txPeers.isEmpty) {
-            hostsToActions(txPeers, context.stateActions)
+            if (config.datapath.aggregateStatePackets &&
+                !context.tracingEnabled) {
+                aggregatePeerState(context)
+            } else {
+                hostsToActions(txPeers, context.stateActions)
+            }
+        }
+    }
+
+    /**
+     * Adds the keys of the context to the pending state of its group of peers
+     * and ports, skipping the keys recently sent to the same group.
+     */
+    private def aggregatePeerState(context: PacketContext): Unit = {
+        probeGroup.ingressPort = context.inputPort
+        probeGroup.egressPorts = context.outPorts
+        probeGroup.hosts = txPeers
+        var group = pendingGroups.get(probeGroup)
+        if (group eq null) {
+            group = new PeerGroup(context.inputPort,
+                                  new ArrayList[UUID](context.outPorts),
+                                  new JHashSet[UUID](txPeers))
+            pendingGroups.put(group, group)
+            pendingList.add(group)
+        }
+        aggregateTime = clock.tick
+        context.conntrackTx.fold(group, _conntrackAggregator)
+        context.natTx.fold(group, _natAggregator)
+    }
+
+    private def shouldSend(group: PeerGroup, k: IdleExpiration,
+                           v: AnyRef): Boolean = {
+        if (!group.keys.add(k))
+            return false
+        val sent = sentKeys.get(k)
+        if ((sent ne null) && sent.group == group && sent.value == v &&
+            aggregateTime - sent.time < k.expiresAfter.toNanos / 2) {
+            log.debug("skip key recently sent to the same peers: {}", k)
+            false
+        } else {
+            true
+        }
+    }
+
+    /**
+     * Records that a key was sent to a group of peers, once it has been
+     * added to a state packet.
+     */
+    private def keySent(group: PeerGroup, k: IdleExpiration, v: AnyRef,
+                        time: Long): Unit = {
+        val sent = sentKeys.get(k)
+        if (sent eq null) {
+            sentKeys.put(k, new SentKey(group, v, time))
+        } else {
+            sent.group = group
+            sent.value = v
+            sent.time = time
+        }
+    }
+
+    /**
+     * Whether there are keys accumulated during the current batch to be sent
+     * to the peers with nextPeerState().
+     */
+    def hasPeerState: Boolean = !pendingList.isEmpty
+
+    /**
+     * Encodes the next aggregated state message for the keys accumulated
+     * during the current batch into the given buffer, which must hold
+     * FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH bytes, and adds the
+     * actions that send it to its peers to the given list. Returns the length
+     * of the message, or 0 when all the accumulated keys have been sent.
+     * Every message carries as many keys of a group as fit in the MTU.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def nextPeerState(message: Array[Byte],
+                      actions: ArrayList[FlowAction]): Int = {
+        while (pendingIndex < pendingList.size) {
+            val group = pendingList.get(pendingIndex)
+            if (group.hasPending) {
+                hostsToActions(group.hosts, actions)
+                val length = if (actions.isEmpty) 0
+                             else encodePeerState(group, message)
+                if (length > 0)
+                    return length
+                actions.clear()
+                group.clear()
+            } else {
+                group.clear()
+                pendingIndex += 1
+            }
+        }
+        if (!pendingList.isEmpty) {
+            pendingGroups.clear()
+            pendingList.clear()
+            pendingIndex = 0
+        }
+        expireSentKeys()
+        0
+    }
+
+    private def encodePeerState(group: PeerGroup, message: Array[Byte]): Int = {
+        val available = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH -
+                        MessageOverhead - group.egressPorts.size * UuidSize
+        val conntracks = Math.max(0, Math.min(Math.min(
+            group.conntrackKeys.size - group.conntrackIndex, MaxGroupEntries),
+            available / ConntrackSize))
+        val nats = Math.max(0, Math.min(Math.min(
+            group.natKeys.size - group.natIndex, MaxGroupEntries),
+            (available - conntracks * ConntrackSize) / NatSize))
+        if (conntracks == 0 && nats == 0) {
+            log.warn("Skipping state for peers {}, too many egress ports: {}",
+                     group.hosts, group.egressPorts)
+            return 0
+        }
+
+        val flowStateMessage = peerStateEncoder.encodeTo(message)
+        uuidToSbe(hostId, flowStateMessage.sender)
+        val now = clock.tick
+
+        val conntrack = flowStateMessage.conntrackCount(conntracks)
+        var i = 0
+        while (i < conntracks) {
+            val k = group.conntrackKeys.get(group.conntrackIndex)
+            connTrackKeyToSbe(k, conntrack.next())
+            keySent(group, k, ConnTrackState.RETURN_FLOW, now)
+            group.conntrackIndex += 1
+            i += 1
+        }
+        val nat = flowStateMessage.natCount(nats)
+        i = 0
+        while (i < nats) {
+            val k = group.natKeys.get(group.natIndex)
+            val v = group.natBindings.get(group.natIndex)
+            natToSbe(k, v, nat.next())
+            keySent(group, k, v, now)
+            group.natIndex += 1
+            i += 1
+        }
+        flowStateMessage.traceCount(0)
+        flowStateMessage.traceRequestIdsCount(0)
+        portIdsToSbe(group.ingressPort, group.egressPorts,
+                     flowStateMessage.portIdsCount(1).next)
+
+        log.debug("Aggregated {} conntrack and {} nat keys for peers {}",
+                  Int.box(conntracks), Int.box(nats), group.hosts)
+        peerStateEncoder.encodedLength()
+    }
+
+    /**
+     * Forgets the keys sent to the peers more than their idle expiration
+     * ago, at most once per second.
+     */
+    private def expireSentKeys(): Unit = {
+        val now = clock.tick
+        if (sentKeys.isEmpty || now - sentKeysExpiration < 1000000000L)
+            return
+        sentKeysExpiration = now
+        val it = sentKeys.entrySet().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            if (now - entry.getValue.time >= entry.getKey.expiresAfter.toNanos)
+                it.remove()
         }
     }
 
@@ -261,6 +561,7 @@ class FlowStateReplicator(
 
     private def hostsToActions(hosts: JSet[UUID],
                                actions: ArrayList[FlowAction]): Unit = {
+        val tos = config.datapath.controlPacketTos
         val hostsIt = hosts.iterator
         while (hostsIt.hasNext) {
             underlay.peerTunnelInfo(hostsIt.next()) match {
@@ -278,17 +579,49 @@ class FlowStateReplicator(
     }
 
 
+    /**
+     * Adds a flow state message to the batch for the flow state minion,
+     * sending the current batch first if the message does not fit in it.
+     */
     private def sendState(msg: Array[Byte], length: Int): Unit = {
-        flowStateBuffer.clear()
-        flowStateBuffer.putInt(FlowStateInternalMessageType.FlowStateMessage)
+        if (batchedMessages > 0 && flowStateBuffer.remaining < length + 4) {
+            flushState()
+        }
         flowStateBuffer.putInt(length)
         flowStateBuffer.put(msg, 0, length)
-        flowStatePacket.setData(flowStateBuffer.array,
-                                0,
-                                length + FlowStateInternalMessageHeaderSize)
+        batchedMessages += 1
+    }
+
+    /**
+     * Sends the batched flow state messages to the flow state minion in a
+     * single datagram.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def flushState(): Unit = {
+        if (batchedMessages == 0)
+            return
+        val size = flowStateBuffer.position
+        flowStateBuffer.putInt(0, FlowStateInternalMessageType.FlowStateBatch)
+        flowStateBuffer.putInt(4, size - FlowStateInternalMessageHeaderSize)
+        flowStatePacket.setData(flowStateBuffer.array, 0, size)
+        batchSizes.update(batchedMessages)
+        batchedMessages = 0
+        flowStateBuffer.clear()
+        flowStateBuffer.position(FlowStateInternalMessageHeaderSize)
         flowStateSocket.send(flowStatePacket)
     }
 
+    /**
+     * Writes the keys of a state message to the local tables. A message may
+     * carry the keys of many flows, and the peers send the keys again before
+     * they expire, so the flows tagged with a key are only invalidated when
+     * the shard of this replicator did not hold the key with the same value.
+     * The flows simulated with the same key and value need not be simulated
+     * again. The lookup does not fall back to the other shards, because the
+     * other workers invalidate their own flows when they receive the key.
+     */
     private def acceptNewState(encoder: SbeEncoder) {
         val msg = encoder.flowStateMessage
         val sender = uuidFromSbe(msg.sender)
@@ -298,8 +631,10 @@ class FlowStateReplicator(
         while (conntrackIter.hasNext()) {
             val k = connTrackKeyFromSbe(conntrackIter.next(), ConnTrackKey)
             log.debug("got new conntrack key: {}", k)
+            val current = conntrackTable.shallowGet(k)
             conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-            flowInvalidation.invalidateFlowsFor(k)
+            if (current != ConnTrackState.RETURN_FLOW)
+                flowInvalidation.invalidateFlowsFor(k)
         }
 
         val natIter = msg.nat
@@ -308,8 +643,10 @@ class FlowStateReplicator(
             val k = natKeyFromSbe(nat, NatKey)
             val v = natBindingFromSbe(nat)
             log.debug("Got new nat mapping: {} -> {}", k, v)
+            val current = natTable.shallowGet(k)
             natTable.touch(k, v)
-            flowInvalidation.invalidateFlowsFor(k)
+            if (current != v)
+                flowInvalidation.invalidateFlowsFor(k)
         }
 
         val traceIter = msg.trace
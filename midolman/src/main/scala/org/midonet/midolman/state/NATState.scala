@@ -28,7 +28,7 @@ import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.NatState._
 import org.midonet.packets._
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateTransaction, OffHeapFlowStateTable}
 
 
 object NatState {
@@ -110,6 +110,53 @@ object NatState {
 
     type NatKey = NatKeyStore with FlowStateKey
 
+    /**
+     * Encodes a NAT key into five words: the device ID, the source and
+     * destination addresses, the source and destination ports, and the
+     * protocol along with the key type. A binding is encoded into a single
+     * word with its address and port.
+     */
+    object NatCodec extends OffHeapFlowStateTable.Codec[NatKey, NatBinding] {
+        // Indexed by the ordinal of the key types.
+        private val KeyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        override val keyWords = 5
+
+        override def keyWord(key: NatKey, index: Int): Long = index match {
+            case 0 =>
+                if (key.deviceId eq null) 0L
+                else key.deviceId.getMostSignificantBits
+            case 1 =>
+                if (key.deviceId eq null) 0L
+                else key.deviceId.getLeastSignificantBits
+            case 2 => (key.networkSrc.addr.toLong << 32) |
+                      (key.networkDst.addr & 0xFFFFFFFFL)
+            case 3 => (key.transportSrc.toLong << 32) |
+                      (key.transportDst & 0xFFFFFFFFL)
+            case 4 => (key.networkProtocol & 0xFFL) |
+                      (key.keyType.ordinal.toLong << 8)
+        }
+
+        override def decodeKey(words: Array[Long]): NatKey =
+            NatKey(KeyTypes((words(4) >>> 8).toInt),
+                   IPv4Addr.fromInt((words(2) >> 32).toInt),
+                   (words(3) >> 32).toInt,
+                   IPv4Addr.fromInt(words(2).toInt),
+                   words(3).toInt,
+                   words(4).toByte,
+                   if (words(0) == 0L && words(1) == 0L) null
+                   else new UUID(words(0), words(1)))
+
+        override def encodeValue(value: NatBinding): Long =
+            (value.networkAddress.addr.toLong << 32) |
+            (value.transportPort & 0xFFFFFFFFL)
+
+        override def decodeValue(word: Long): NatBinding =
+            NatBinding(IPv4Addr.fromInt((word >> 32).toInt), word.toInt)
+    }
+
     class NatKeyOps(val natKey: NatKey) extends AnyVal {
         def returnKey(binding: NatBinding): NatKey = natKey.keyType match {
             case FWD_SNAT =>
@@ -39,9 +39,9 @@ object NatLeaser {
     private val BLOCK_MULT = Integer.numberOfTrailingZeros(BLOCK_SIZE)
     private val BLOCK_MASK = BLOCK_SIZE - 1
     val BLOCK_EXPIRATION = 5 minutes
-    private val OBLITERATION_CYCLE = (1 minute).toNanos
+    private[state] val OBLITERATION_CYCLE = (1 minute).toNanos
 
-    private def blend(ip: IPv4Addr, port: Int): Long =
+    private[state] def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
 
     def blockOf(port: Int) = port >> BLOCK_MULT
@@ -247,7 +247,7 @@ trait NatLeaser {
         null
     }
 
-    private def fetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
+    protected def fetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
                                 targetIp: IPv4Addr, targetIndex: Int): Future[NatBlock] = {
         val target = targets(targetIndex)
         val range = new NatRange(deviceId, targetIp, target.tpStart, target.tpEnd)
@@ -288,7 +288,7 @@ trait NatLeaser {
         }
     }
 
-    private def registerNewBlock(block: NatBlock): Unit = {
+    protected def registerNewBlock(block: NatBlock): Unit = {
         log.debug("Acquiring NAT block {}", block)
         val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
         val leasedBlock = new LeasedBlock(block)
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import com.google.common.annotations.VisibleForTesting
+
+import org.midonet.cluster.data.dhcp.{ExtraDhcpOpt, Host, Opt121, Subnet}
+import org.midonet.cluster.models.Topology.{Dhcp => TopologyDhcp}
+import org.midonet.cluster.util.IPAddressUtil._
+import org.midonet.cluster.util.IPSubnetUtil._
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.simulation.DhcpReplyTemplate
+import org.midonet.midolman.topology.devices.Dhcp
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.util.functors.makeFunc1
+
+object DhcpMapper {
+
+    /** Converts a DHCP host proto object into a legacy cluster Host, as used
+      * by the Agent.
+      */
+    @VisibleForTesting
+    private[midolman] def toHost(protoHost: TopologyDhcp.Host): Host = {
+        val h = new Host()
+        if (protoHost.hasIpAddress)
+            h.setIp(protoHost.getIpAddress.asIPv4Address)
+        if (protoHost.hasMac)
+            h.setMAC(MAC.fromString(protoHost.getMac))
+        if (protoHost.hasName)
+            h.setName(protoHost.getName)
+        h.setExtraDhcpOpts(protoHost.getExtraDhcpOptsList.asScala.map { opt =>
+            new ExtraDhcpOpt(opt.getName, opt.getValue)
+        }.asJava)
+    }
+
+    /** Converts a DHCP proto object into a legacy cluster Subnet, as used by
+      * the Agent.
+      */
+    @VisibleForTesting
+    private[midolman] def toSubnet(dhcp: TopologyDhcp): Subnet = {
+        val subnet = new Subnet
+        // Mandatory fields.
+        subnet.setId(dhcp.getId.asJava.toString)
+        subnet.setSubnetAddr(fromV4Proto(dhcp.getSubnetAddress))
+
+        // Optional fields
+        if (dhcp.hasDefaultGateway)
+            subnet.setDefaultGateway(dhcp.getDefaultGateway.asIPv4Address)
+        if (dhcp.hasEnabled)
+            subnet.setEnabled(dhcp.getEnabled)
+        if (dhcp.hasInterfaceMtu)
+            subnet.setInterfaceMTU(dhcp.getInterfaceMtu.toShort)
+        if (dhcp.hasServerAddress) {
+            subnet.setServerAddr(dhcp.getServerAddress.asIPv4Address)
+        } else if (dhcp.hasDefaultGateway) {
+            // If the server address is not set, use the default gateway.
+            subnet.setServerAddr(dhcp.getDefaultGateway.asIPv4Address)
+        } else {
+            // Or else, the network broadcast address minus 1.
+            subnet.setServerAddr(
+                IPv4Addr(subnet.getSubnetAddr.toBroadcastAddress.toInt - 1))
+        }
+        subnet.setOpt121Routes(dhcp.getOpt121RoutesList.asScala.map(opt121 => {
+            val o = new Opt121
+            if (opt121.hasGateway)
+                o.setGateway(opt121.getGateway.asIPv4Address)
+            if (opt121.hasDstSubnet)
+                o.setRtDstSubnet(fromV4Proto(opt121.getDstSubnet))
+            o
+        }).asJava)
+        subnet.setDnsServerAddrs(
+            dhcp.getDnsServerAddressList.asScala.map(toIPv4Addr).asJava)
+        subnet
+    }
+
+}
+
+/**
+ * A device mapper that exposes an [[rx.Observable]] with notifications for the
+ * DHCP configuration of a bridge subnet. The mapper converts the subnet and
+ * indexes its hosts by MAC address once per update, and compiles the reply
+ * templates of the hosts, such that the simulation answers DHCP requests from
+ * memory.
+ */
+final class DhcpMapper(id: UUID, vt: VirtualTopology)
+    extends DeviceMapper(classOf[Dhcp], id, vt) {
+
+    import DhcpMapper._
+
+    override def logSource = "org.midonet.devices.dhcp"
+    override def logMark = s"dhcp:$id"
+
+    private def buildDhcp(dhcp: TopologyDhcp): Dhcp = {
+        val subnet = toSubnet(dhcp)
+        // A MAC address maps to the first host that has it.
+        val hosts = dhcp.getHostsList.asScala.foldLeft(Map.empty[String, Host]) {
+            case (map, host) if host.hasMac && !map.contains(host.getMac) =>
+                map + (host.getMac -> toHost(host))
+            case (map, _) => map
+        }
+        // Compile the reply templates once per configuration change.
+        val templates = hosts collect {
+            case (mac, host) if host.getIp ne null =>
+                mac -> new DhcpReplyTemplate(subnet, host, log)
+        }
+        Dhcp(id, subnet, hosts, templates)
+    }
+
+    protected override lazy val observable =
+        vt.store.observable(classOf[TopologyDhcp], id)
+            .distinctUntilChanged()
+            .map[Dhcp](makeFunc1(buildDhcp))
+            .observeOn(vt.vtScheduler)
+}
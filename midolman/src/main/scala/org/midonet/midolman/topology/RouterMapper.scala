@@ -17,6 +17,7 @@
 package org.midonet.midolman.topology
 
 import java.lang.{Boolean => JBoolean}
+import java.util.concurrent.TimeUnit
 import java.util.{UUID, ArrayList => JArrayList}
 
 import javax.annotation.Nullable
@@ -24,14 +25,14 @@ import javax.annotation.Nullable
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 
-import rx.Observable
+import rx.{Observable, Scheduler}
 import rx.subjects.{PublishSubject, Subject}
 
 import org.midonet.cluster.data.ZoomConvert
 import org.midonet.cluster.models.Topology.{Route => TopologyRoute, Router => TopologyRouter}
 import org.midonet.cluster.state.RoutingTableStorage._
 import org.midonet.cluster.util.UUIDUtil._
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{IPv4RouteTrie, IPv4RoutingTable, Route}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.simulation.{Chain, LoadBalancer, Mirror, RouterPort, Router => SimulationRouter}
 import org.midonet.midolman.SimulationBackChannel.{BackChannelMessage, Broadcast}
@@ -48,6 +49,11 @@ object RouterMapper {
     private val EmptyRouteSet = Set.empty[Route]
     private val EmptyRouteUpdates = RouteUpdates(EmptyRouteSet, EmptyRouteSet)
 
+    // The time the routes must remain unchanged before the routing table is
+    // compiled to an LPM table, such that a burst of route updates compiles
+    // the table only once.
+    private val RoutingTableCompileDelay = TimeUnit.MILLISECONDS.toNanos(100)
+
     case class InvalidateFlows(routerId: UUID,
                                addedRoutes: Set[Route],
                                deletedRoutes: Set[Route])
@@ -353,29 +359,25 @@ object RouterMapper {
     }
 
     /**
-     * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * Provides an implementation for a router's [[RoutingTable]], wrapping a
+     * routing table with a snapshot of the router's IPv4 routes.
      */
-    private class RouterRoutingTable(routes: mutable.Set[Route])
+    private class RouterRoutingTable(routes: IPv4RoutingTable)
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
-
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
-        }
-
         override def lookup(flowMatch: FlowMatch): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr])
+            routes.lookup(
+                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr].toInt,
+                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr].toInt)
         }
 
         override def lookup(flowMatch: FlowMatch, log: Logger): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr],
-                log.underlying)
+            val src = flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr]
+            val dst = flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
+            val result = routes.lookup(src.toInt, dst.toInt)
+            log.debug(s"lookup: return $result for src $src dst $dst in " +
+                      s"table with ${routes.numRoutes} routes")
+            result
         }
     }
 
@@ -410,8 +412,19 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
     private val ports = new mutable.HashMap[UUID, PortState]
     private var loadBalancer: LoadBalancerState = null
     // Stores all routes received via notifications from the replicated routing
-    // table.
-    private val routes = new mutable.HashSet[Route]
+    // table. The table is persistent: route updates create a new snapshot that
+    // shares most of its structure with the previous one, such that the
+    // devices already built keep an unchanged routing table.
+    private var routes = IPv4RouteTrie.EMPTY
+    // The routing table for the current routes, shared by the router devices
+    // built until the next route update. The table serves lookups from the
+    // routes trie, and it is compiled to an LPM table once the routes have
+    // not changed for the compile delay.
+    private var routingTable = new IPv4RoutingTable(routes)
+    private var routesUpdatedAt = 0L
+    private var compileScheduled = false
+    // The worker compiling the routing table, created with the first compile.
+    private var compileWorker: Scheduler.Worker = null
     // Stores routes received via the router's configuration in storage.
     private val localRoutes = new mutable.HashMap[UUID, RouteState]
     private var arpCache: ArpCache = null
@@ -539,6 +552,9 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         if (arpCache ne null) {
             arpCache.close()
         }
+        if (compileWorker ne null) {
+            compileWorker.unsubscribe()
+        }
     }
 
     /**
@@ -677,13 +693,53 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
                   routeUpdates.removed)
         assertThread()
         // Update the current routes.
-        routes ++= routeUpdates.added
-        routes --= routeUpdates.removed
+        var table = routes
+        for (route <- routeUpdates.added) {
+            table = table.add(route)
+        }
+        for (route <- routeUpdates.removed) {
+            table = table.remove(route)
+        }
+        if (table ne routes) {
+            routes = table
+            routingTable = new IPv4RoutingTable(table)
+            routesUpdatedAt = System.nanoTime()
+            scheduleCompile(RoutingTableCompileDelay)
+        }
         vt.tellBackChannel(InvalidateFlows(
             id, routeUpdates.added, routeUpdates.removed))
         config
     }
 
+    private def scheduleCompile(delay: Long): Unit = {
+        if (!compileScheduled) {
+            compileScheduled = true
+            if (compileWorker eq null) {
+                compileWorker = vt.vtScheduler.createWorker()
+            }
+            compileWorker.schedule(makeAction0(compileRoutingTable()), delay,
+                                   TimeUnit.NANOSECONDS)
+        }
+    }
+
+    /**
+     * Compiles the current routing table to an LPM table, if the routes have
+     * not changed for the compile delay, or otherwise schedules the compile
+     * for when the delay elapses. The router devices already built with the
+     * table serve the next lookups from the LPM table.
+     */
+    private def compileRoutingTable(): Unit = {
+        compileScheduled = false
+        val elapsed = System.nanoTime() - routesUpdatedAt
+        if (elapsed < RoutingTableCompileDelay) {
+            scheduleCompile(RoutingTableCompileDelay - elapsed)
+        } else if (!routingTable.isCompiled) {
+            routingTable.compile()
+            log.debug("Compiled routing table with {} routes",
+                      Int.box(routingTable.numRoutes))
+        }
+    }
+
     /**
      * Called when the ARP cache of the router is created, and it creates
      * the corresponding ARP table.
@@ -729,11 +785,12 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         val device = new SimulationRouter(
             routerId,
             config2,
-            new RouterRoutingTable(routes),
+            new RouterRoutingTable(routingTable),
             tagManager,
             vniToPort.asJava,
             arpCache)
-        log.debug("Build router: {} {}", device, routes)
+        log.debug("Build router: {} with {} routes", device,
+                  Int.box(routes.numRoutes))
 
         device
     }
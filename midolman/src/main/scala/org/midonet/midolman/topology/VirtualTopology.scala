@@ -197,6 +197,8 @@ class VirtualTopology(val backend: MidonetBackend,
             classOf[Port], new PortMapper(_, this, traceChains)),
         classOf[Chain] -> DeviceFactory(
             classOf[Chain], new ChainMapper(_, this, traceChains)),
+        classOf[Dhcp] -> DeviceFactory(
+            classOf[Dhcp], new DhcpMapper(_, this)),
         classOf[Host] -> DeviceFactory(
             classOf[Host], new HostMapper(_, this)),
         classOf[IPAddrGroup] -> DeviceFactory(
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology.devices
+
+import java.util.UUID
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.simulation.DhcpReplyTemplate
+import org.midonet.midolman.topology.VirtualTopology.Device
+
+/**
+ * An implementation of the [[Device]] trait holding the DHCP configuration of
+ * a bridge subnet: the subnet, its static host assignments and the reply
+ * templates of the hosts with an IP address, indexed by the host MAC address.
+ * The class extends the [[Device]] trait, such that it can be used via the
+ * [[org.midonet.midolman.topology.VirtualTopology]].
+ */
+case class Dhcp(id: UUID, subnet: Subnet, hosts: Map[String, Host],
+                templates: Map[String, DhcpReplyTemplate])
+    extends Device
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.io.Closeable
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.duration.Duration
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.Util
+import org.midonet.packets.FlowStateStore.{DEFAULT_EXPIRATION, IdleExpiration}
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.logging.Logger
+
+object OffHeapFlowStateTable {
+
+    /**
+     * Encodes the keys and the values of a flow state table into fixed-width
+     * words. Two keys must be equal if and only if all their words are equal.
+     */
+    trait Codec[K, V] {
+        /** The number of words of an encoded key. */
+        def keyWords: Int
+
+        /** Returns the word at the given index of the encoded key. */
+        def keyWord(key: K, index: Int): Long
+
+        /** Decodes a key from its words. */
+        def decodeKey(words: Array[Long]): K
+
+        def encodeValue(value: V): Long
+
+        def decodeValue(word: Long): V
+    }
+
+    private val UNSAFE = Util.getUnsafe
+
+    /*
+     * Slot layout, in words:
+     *
+     *   META     | version (30 bits) | tag (2 bits) | ref count (32 bits) |
+     *   VALUE    | encoded value                                          |
+     *   DEADLINE | time at which an unreferenced entry expires, in nanos  |
+     *   HASH     | key hash (32 bits)     | idle expiration, in millis    |
+     *   KEY      | encoded key, as many words as the codec requires       |
+     *
+     * The version is incremented on every change of the tag, so that readers
+     * in other threads can detect that a slot was reused while they read it.
+     */
+    private final val META = 0
+    private final val VALUE = 8
+    private final val DEADLINE = 16
+    private final val HASH = 24
+    private final val KEY = 32
+
+    private final val EMPTY = 0
+    private final val BUSY = 1
+    private final val LIVE = 2
+    private final val DEAD = 3
+
+    private final val HEADER_MASK = 0xFFFFFFFF00000000L
+    private final val REF_COUNT_MASK = 0x00000000FFFFFFFFL
+
+    // Every slot is swept for expired entries once per period, spread among
+    // the calls to expireIdleEntries().
+    private final val SWEEP_PERIOD = TimeUnit.SECONDS.toNanos(1)
+    private final val MIN_SWEEP = 1024
+
+    private val DEFAULT_EXPIRATION_MILLIS = DEFAULT_EXPIRATION.toMillis
+
+    @inline private def tagOf(meta: Long): Int = ((meta >>> 32) & 0x3).toInt
+
+    @inline private def refCountOf(meta: Long): Int = meta.toInt
+
+    @inline private def headerOf(meta: Long): Long = meta & HEADER_MASK
+
+    /** Returns the meta word for the next version of a slot. */
+    @inline private def nextMeta(meta: Long, tag: Int, refCount: Int): Long =
+        (((meta >>> 34) + 1) << 34) | (tag.toLong << 32) |
+        (refCount & REF_COUNT_MASK)
+}
+
+/**
+ * A sharded per-flow state table that stores its entries in fixed-width slots
+ * allocated outside of the Java heap, for keys and values that can be encoded
+ * by a [[OffHeapFlowStateTable.Codec]]. Unlike the [[ShardedFlowStateTable]],
+ * the entries of the table do not allocate objects, such that millions of
+ * tracked connections do not add to the garbage collection pauses. Keys and
+ * values are decoded into new objects when read.
+ *
+ * Each shard is an open addressing hash table with linear probing and a fixed
+ * number of slots. When a shard is full, new entries overflow into an on-heap
+ * map with the same semantics.
+ *
+ * THREADING SEMANTICS:
+ *
+ * The threading semantics are those of the [[ShardedFlowStateTable]]: puts
+ * and expirations on a shard must happen in the thread owning the shard. Gets,
+ * refs and unrefs are lock-free and can happen from any thread. A slot is
+ * reused only after its entry expired, and readers validate the version of
+ * the slot after reading it, retrying if it was reused concurrently.
+ *
+ * The memory of the shards is allocated when they are added. Since gets are
+ * lock-free and read all the shards, the memory of the shards is released
+ * together, once the table and every shard have been closed: the owner of the
+ * table closes it, and the owner of each shard, such as a packet worker,
+ * closes its shard once it no longer uses it or the table.
+ */
+class OffHeapFlowStateTable[K <: IdleExpiration, V >: Null]
+        (codec: OffHeapFlowStateTable.Codec[K, V], capacity: Int,
+         val clock: NanoClock = NanoClock.DEFAULT)
+    extends ShardableFlowStateTable[K, V] with Closeable {
+
+    import OffHeapFlowStateTable._
+
+    private val shards = new ArrayList[OffHeapShard]()
+    private val SHARD_NONE: Int = -1
+
+    private val keyWords = codec.keyWords
+    private val slotSize = KEY + keyWords * 8
+
+    private val defaultLogger =
+        Logger(LoggerFactory.getLogger("org.midonet.state.table"))
+
+    // The references to the memory of the shards: one held by the owner of
+    // the table, and one by each shard, released when they are closed.
+    private val references = new AtomicInteger(1)
+    @volatile private var closed = false
+
+    override def addShard(log: Logger = defaultLogger) = {
+        if (closed)
+            throw new IllegalStateException("The table is closed")
+        references.incrementAndGet()
+        val s = new OffHeapShard(shards.size, log)
+        shards.add(s)
+        s
+    }
+
+    /**
+     * Releases the reference of the owner of the table. The off-heap memory of
+     * the shards is released once all the shards are closed too. Closing the
+     * table more than once has no effect.
+     */
+    override def close(): Unit = {
+        if (!closed) {
+            closed = true
+            release()
+        }
+    }
+
+    private def release(): Unit = {
+        if (references.decrementAndGet() == 0) {
+            var i = 0
+            while (i < shards.size) {
+                shards.get(i).free()
+                i += 1
+            }
+        }
+    }
+
+    /**
+     * Fetches a the value associated with a key, skipping the given shard
+     * index.
+     */
+    private[state] def get(key: K, shardToSkip: Int): V = {
+        val hash = hashOf(key)
+        var i = 0
+        while (i < shards.size) {
+            if (i != shardToSkip) {
+                val v: V = shards.get(i).shallowGet(key, hash)
+                if (v != null)
+                    return v
+            }
+            i += 1
+        }
+        null
+    }
+
+    override def putAndRef(key: K, value: V): V = throw new IllegalArgumentException
+
+    override def get(key: K): V = get(key, SHARD_NONE)
+
+    override def ref(key: K): V = {
+        var i = 0
+        while (i < shards.size) {
+            val v = shards.get(i).ref(key)
+            if (v != null)
+                return v
+            i += 1
+        }
+        null
+    }
+
+    override def touch(key: K, value: V) {
+        var i: Int = 0
+        while (i < shards.size) {
+            shards.get(i).touch(key, value)
+            i += 1
+        }
+    }
+
+    override def getRefCount(key: K): Int = {
+        var count = 0
+        var i = 0
+        while (i < shards.size) {
+            count += shards.get(i).getRefCount(key)
+            i += 1
+        }
+        count
+    }
+
+    override def unref(key: K) {
+        val hash = hashOf(key)
+        var i: Int = 0
+        while (i < shards.size) {
+            val v: V = shards.get(i).shallowGet(key, hash)
+            if (v != null)
+                shards.get(i).unref(key)
+            i += 1
+        }
+    }
+
+    override def fold[U](acc: U, func: Reducer[K, V, U]): U = {
+        var i = 0
+        var seed = acc
+        while (i < shards.size) {
+            seed = shards.get(i).fold(seed, func)
+            i += 1
+        }
+        seed
+    }
+
+    override def expireIdleEntries[U](acc: U, func: Reducer[K, V, U]): U = {
+        var i = 0
+        var seed = acc
+        while (i < shards.size) {
+            seed = shards.get(i).expireIdleEntries(seed, func)
+            i += 1
+        }
+        seed
+    }
+
+    override def expireIdleEntries() {
+        var i = 0
+        while (i < shards.size) {
+            shards.get(i).expireIdleEntries()
+            i += 1
+        }
+    }
+
+    private def hashOf(key: K): Int = {
+        var h = 0L
+        var i = 0
+        while (i < keyWords) {
+            h = (h ^ codec.keyWord(key, i)) * 0x9E3779B97F4A7C15L
+            i += 1
+        }
+        (h ^ (h >>> 32)).toInt
+    }
+
+    private val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    /**
+     * A shard within an OffHeapFlowStateTable.
+     *
+     * It stores entries locally but forwards queries to the parent table for
+     * aggregation.
+     */
+    class OffHeapShard(workerId: Int, log: Logger)
+            extends FlowStateTable[K, V] with Closeable {
+        private val slots = Util.findNextPositivePowerOfTwo(
+            Math.max(capacity + capacity / 3, 2))
+        private val mask = slots - 1
+        // The maximum number of non-empty slots, which guarantees that probe
+        // sequences always end in an empty slot.
+        private val maxUsed = slots - slots / 4
+        private var address = {
+            val bytes = slots.toLong * slotSize
+            val a = UNSAFE.allocateMemory(bytes)
+            UNSAFE.setMemory(a, bytes, 0.toByte)
+            a
+        }
+        private val overflow = new TimedExpirationMap[K, V](log, _.expiresAfter)
+
+        private var used = 0
+        private var sweepIndex = 0
+        private var lastSweep = clock.tick
+
+        @inline private def slotAt(index: Int): Long =
+            address + index.toLong * slotSize
+
+        @volatile private var closed = false
+
+        /**
+         * Releases the reference of the shard to the memory of the table,
+         * called once the owner of the shard no longer uses it or the table.
+         * Closing the shard more than once has no effect.
+         */
+        override def close(): Unit = {
+            if (!closed) {
+                closed = true
+                release()
+            }
+        }
+
+        /** Releases the off-heap memory of the shard. */
+        private[state] def free(): Unit = {
+            if (address != 0L) {
+                UNSAFE.freeMemory(address)
+                address = 0L
+            }
+        }
+
+        @inline private def meta(slot: Long): Long =
+            UNSAFE.getLongVolatile(null, slot + META)
+
+        @inline private def setMeta(slot: Long, meta: Long): Unit =
+            UNSAFE.putLongVolatile(null, slot + META, meta)
+
+        @inline private def casMeta(slot: Long, expected: Long, meta: Long) =
+            UNSAFE.compareAndSwapLong(null, slot + META, expected, meta)
+
+        private def matches(key: K, hash: Int, slot: Long): Boolean = {
+            if ((UNSAFE.getLongVolatile(null, slot + HASH) >>> 32).toInt != hash)
+                return false
+            var i = 0
+            while (i < keyWords) {
+                if (UNSAFE.getLongVolatile(null, slot + KEY + i * 8) !=
+                    codec.keyWord(key, i))
+                    return false
+                i += 1
+            }
+            true
+        }
+
+        /**
+         * Returns the live slot holding the key, or 0 if the key is not in
+         * the off-heap table. The meta word of the slot may have changed
+         * after the call returns, so callers must validate its version.
+         */
+        private def find(key: K, hash: Int): Long = {
+            var index = hash & mask
+            var probes = 0
+            while (probes < slots) {
+                val slot = slotAt(index)
+                val m = meta(slot)
+                tagOf(m) match {
+                    case EMPTY => return 0L
+                    case LIVE if matches(key, hash, slot) =>
+                        if (headerOf(meta(slot)) == headerOf(m))
+                            return slot
+                        // The slot was reused while reading the key: retry.
+                        index = (hash & mask) - 1
+                        probes = -1
+                    case _ =>
+                }
+                index = (index + 1) & mask
+                probes += 1
+            }
+            0L
+        }
+
+        private def decodeKey(slot: Long): K = {
+            val words = new Array[Long](keyWords)
+            var i = 0
+            while (i < keyWords) {
+                words(i) = UNSAFE.getLong(slot + KEY + i * 8)
+                i += 1
+            }
+            val key = codec.decodeKey(words)
+            val idle = UNSAFE.getLong(slot + HASH) & REF_COUNT_MASK
+            if (idle != DEFAULT_EXPIRATION_MILLIS)
+                key.expiresAfter = Duration(idle, TimeUnit.MILLISECONDS)
+            key
+        }
+
+        private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
+
+        override def putAndRef(key: K, value: V): V = {
+            val hash = hashOf(key)
+            var index = hash & mask
+            var free = 0L
+            while (true) {
+                val slot = slotAt(index)
+                val m = meta(slot)
+                tagOf(m) match {
+                    case EMPTY =>
+                        if (overflow.get(key) ne null)
+                            return overflow.putAndRef(key, value)
+                        if (free != 0L) {
+                            insert(free, key, hash, value)
+                        } else if (used < maxUsed) {
+                            used += 1
+                            insert(slot, key, hash, value)
+                        } else {
+                            return overflow.putAndRef(key, value)
+                        }
+                        return null
+                    case DEAD if free == 0L =>
+                        free = slot
+                    case LIVE if matches(key, hash, slot) =>
+                        // Only the owner thread expires entries, so the
+                        // reference count cannot become negative here.
+                        var current = m
+                        while (!casMeta(slot, current, current + 1))
+                            current = meta(slot)
+                        val old = UNSAFE.getLongVolatile(null, slot + VALUE)
+                        UNSAFE.putLongVolatile(null, slot + VALUE,
+                                               codec.encodeValue(value))
+                        return codec.decodeValue(old)
+                    case _ =>
+                }
+                index = (index + 1) & mask
+            }
+            null // not reached
+        }
+
+        private def insert(slot: Long, key: K, hash: Int, value: V): Unit = {
+            val busy = nextMeta(meta(slot), BUSY, 0)
+            setMeta(slot, busy)
+            var i = 0
+            while (i < keyWords) {
+                UNSAFE.putLong(slot + KEY + i * 8, codec.keyWord(key, i))
+                i += 1
+            }
+            val idle = Math.min(key.expiresAfter.toMillis, Int.MaxValue)
+            UNSAFE.putLong(slot + HASH, (hash.toLong << 32) | idle)
+            UNSAFE.putLong(slot + DEADLINE, Long.MaxValue)
+            UNSAFE.putLong(slot + VALUE, codec.encodeValue(value))
+            setMeta(slot, nextMeta(busy, LIVE, 1))
+        }
+
+        override def get(key: K) = {
+            val v = shallowGet(key, hashOf(key))
+            if (v != null)
+                v
+            else
+                OffHeapFlowStateTable.this.get(key, workerId)
+        }
+
+        override def shallowGet(key: K): V = shallowGet(key, hashOf(key))
+
+        private[state] def shallowGet(key: K, hash: Int): V = {
+            while (true) {
+                val slot = find(key, hash)
+                if (slot == 0L)
+                    return overflow.get(key)
+                val m = meta(slot)
+                val value = UNSAFE.getLongVolatile(null, slot + VALUE)
+                if (tagOf(m) == LIVE && matches(key, hash, slot) &&
+                    headerOf(meta(slot)) == headerOf(m)) {
+                    return if (refCountOf(m) < 0) null
+                           else codec.decodeValue(value)
+                }
+            }
+            null // not reached
+        }
+
+        override def ref(key: K): V = {
+            val hash = hashOf(key)
+            while (true) {
+                val slot = find(key, hash)
+                if (slot == 0L)
+                    return overflow.ref(key)
+                val seen = meta(slot)
+                var current = seen
+                while (tagOf(current) == LIVE &&
+                       headerOf(current) == headerOf(seen) &&
+                       refCountOf(current) >= 0) {
+                    if (casMeta(slot, current, current + 1)) {
+                        if (matches(key, hash, slot))
+                            return codec.decodeValue(
+                                UNSAFE.getLongVolatile(null, slot + VALUE))
+                        // The slot was reused before the reference was taken.
+                        release(slot)
+                        current = 0L
+                    } else {
+                        current = meta(slot)
+                    }
+                }
+                if (headerOf(current) == headerOf(seen))
+                    return null // The entry is being expired
+            }
+            null // not reached
+        }
+
+        override def getRefCount(key: K): Int = {
+            val slot = find(key, hashOf(key))
+            if (slot == 0L) overflow.getRefCount(key)
+            else refCountOf(meta(slot))
+        }
+
+        override def touch(key: K, value: V): Unit = {
+            putAndRef(key, value)
+            unref(key)
+        }
+
+        override def unref(key: K): Unit = {
+            val slot = find(key, hashOf(key))
+            if (slot == 0L)
+                overflow.unref(key, tickMillis)
+            else if (!release(slot))
+                log.error(s"Decrement a ref count past 0 for $key")
+        }
+
+        /**
+         * Decrements the reference count of a slot, setting the expiration
+         * deadline of the entry before the count reaches zero.
+         */
+        private def release(slot: Long): Boolean = {
+            while (true) {
+                val m = meta(slot)
+                if (refCountOf(m) <= 0)
+                    return false
+                if (refCountOf(m) == 1) {
+                    val idle = UNSAFE.getLong(slot + HASH) & REF_COUNT_MASK
+                    UNSAFE.putLongVolatile(null, slot + DEADLINE,
+                        clock.tick + TimeUnit.MILLISECONDS.toNanos(idle))
+                }
+                if (casMeta(slot, m, m - 1))
+                    return true
+            }
+            false // not reached
+        }
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+            var acc = seed
+            var i = 0
+            while (i < slots) {
+                val slot = slotAt(i)
+                val m = meta(slot)
+                if (tagOf(m) == LIVE) {
+                    val key = decodeKey(slot)
+                    val value = UNSAFE.getLongVolatile(null, slot + VALUE)
+                    if (headerOf(meta(slot)) == headerOf(m))
+                        acc = func(acc, key, codec.decodeValue(value))
+                }
+                i += 1
+            }
+            overflow.fold(acc, func)
+        }
+
+        override def expireIdleEntries(): Unit =
+            expireIdleEntries((), identityReducer)
+
+        /**
+         * Expires the idle entries in the slots swept by this call. The number
+         * of slots swept is proportional to the time elapsed since the
+         * previous call, such that all slots are swept once per second.
+         */
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+            val now = clock.tick
+            val elapsed = now - lastSweep
+            lastSweep = now
+            val sweep =
+                if (elapsed >= SWEEP_PERIOD) slots
+                else Math.min(slots, Math.max(MIN_SWEEP,
+                                              slots * elapsed / SWEEP_PERIOD)).toInt
+            var acc = seed
+            var i = 0
+            while (i < sweep) {
+                val slot = slotAt(sweepIndex)
+                val m = meta(slot)
+                if (tagOf(m) == LIVE && refCountOf(m) == 0 &&
+                    UNSAFE.getLongVolatile(null, slot + DEADLINE) <= now &&
+                    casMeta(slot, m, m | REF_COUNT_MASK)) {
+                    // The reducer is called before the slot is released, so
+                    // that the key cannot be added back in the meantime.
+                    acc = func(acc, decodeKey(slot), codec.decodeValue(
+                        UNSAFE.getLong(slot + VALUE)))
+                    setMeta(slot, nextMeta(m, DEAD, 0))
+                    clearDeadSlots(sweepIndex)
+                }
+                sweepIndex = (sweepIndex + 1) & mask
+                i += 1
+            }
+            overflow.obliterateIdleEntries(tickMillis, acc, func)
+        }
+
+        /**
+         * Empties the dead slots ending at the given index if they are
+         * followed by an empty slot, since no probe sequence can go past them.
+         */
+        private def clearDeadSlots(index: Int): Unit = {
+            if (tagOf(meta(slotAt((index + 1) & mask))) != EMPTY)
+                return
+            var i = index
+            var m = meta(slotAt(i))
+            while (tagOf(m) == DEAD) {
+                setMeta(slotAt(i), nextMeta(m, EMPTY, 0))
+                used -= 1
+                i = (i - 1) & mask
+                m = meta(slotAt(i))
+            }
+        }
+    }
+}
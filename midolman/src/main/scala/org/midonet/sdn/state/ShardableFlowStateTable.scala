@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import org.midonet.util.logging.Logger
+
+/**
+ * A per-flow state table that aggregates a number of shards, each of them
+ * owned by a different thread.
+ */
+trait ShardableFlowStateTable[K, V] extends FlowStateTable[K, V] {
+
+    /**
+     * Adds a new shard to this table.
+     */
+    def addShard(log: Logger): FlowStateTable[K, V]
+}
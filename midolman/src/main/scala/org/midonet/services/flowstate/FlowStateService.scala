@@ -125,7 +125,8 @@ class FlowStateService @Inject()(nodeContext: Context,
     private[flowstate] def startServerFrontEnds() = {
         writeMessageHandler = new FlowStateWriteHandler(streamContext,
             cassandraSession)
-        udpFrontend = ServerFrontEnd.udp(writeMessageHandler, port)
+        udpFrontend = ServerFrontEnd.udpWithDatagramSize(
+            writeMessageHandler, port, MaxMessageSize)
 
         readMessageHandler = new FlowStateReadHandler(streamContext)
         tcpFrontend = ServerFrontEnd.tcp(readMessageHandler, port)
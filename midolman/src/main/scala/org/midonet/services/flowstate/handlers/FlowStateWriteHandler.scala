@@ -22,7 +22,7 @@ import java.util.UUID
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable
-import scala.collection.mutable.MutableList
+import scala.collection.mutable.{ArrayBuffer, MutableList}
 import scala.util.control.NonFatal
 
 import com.datastax.driver.core.Session
@@ -43,6 +43,7 @@ import io.netty.channel.{ChannelHandlerContext, SimpleChannelInboundHandler}
 
 trait FlowStateOp
 case class PushState(encoder: SbeEncoder) extends FlowStateOp
+case class PushStateBatch(encoders: Seq[SbeEncoder]) extends FlowStateOp
 case class UpdateOwnedPorts(portIds: Set[UUID]) extends FlowStateOp
 case class InvalidOp(e: Throwable) extends FlowStateOp
 
@@ -88,6 +89,8 @@ class FlowStateWriteHandler(context: Context,
         parseDatagram(msg) match {
             case PushState(sbe) => // push state to storage
                 pushNewState(sbe)
+            case PushStateBatch(encoders) =>
+                encoders foreach pushNewState
             case UpdateOwnedPorts(portIds) =>
                 Log debug s"Received new owned ports: $portIds}"
                 cachedOwnedPortIds = portIds
@@ -108,6 +111,8 @@ class FlowStateWriteHandler(context: Context,
                     handleFlowStateMessage(messageData)
                 case FlowStateInternalMessageType.OwnedPortsUpdate =>
                     handleUpdateOwnedPorts(messageData)
+                case FlowStateInternalMessageType.FlowStateBatch =>
+                    handleFlowStateBatch(messageData)
                 case _ =>
                     InvalidOp(new IllegalArgumentException(
                         s"Message header invalid: $messageType"))
@@ -126,6 +131,18 @@ class FlowStateWriteHandler(context: Context,
         PushState(encoder)
     }
 
+    private def handleFlowStateBatch(buffer: ByteBuffer): FlowStateOp = {
+        val encoders = new ArrayBuffer[SbeEncoder]()
+        while (buffer.hasRemaining) {
+            val encoder = new SbeEncoder()
+            val data = new Array[Byte](buffer.getInt)
+            buffer.get(data)
+            encoder.decodeFrom(data)
+            encoders += encoder
+        }
+        PushStateBatch(encoders)
+    }
+
     private def handleUpdateOwnedPorts(buffer: ByteBuffer): FlowStateOp = {
         var ownedPorts = Set.empty[UUID]
         while (buffer.position < buffer.limit()) {
@@ -31,10 +31,14 @@ package object flowstate {
       * | if UUID list -> big endian (msb, lsb)              |
       * |                                                    |
       * +----------------------------------------------------+
+      *
+      * The data of a flow state batch is a sequence of flow state messages,
+      * each one preceded by its size in bytes (4 bytes).
       */
     object FlowStateInternalMessageType {
         val FlowStateMessage: Int = 0x01
         val OwnedPortsUpdate: Int = 0x02
+        val FlowStateBatch: Int = 0x03
     }
 
 
@@ -49,5 +53,11 @@ package object flowstate {
     val MaxPortIds = (65536 / 16) - 1
     val FlowStateInternalMessageHeaderSize = 8
 
+    /**
+      * Maximum size of a flow state batch sent to the flow state minion: the
+      * maximum payload of a UDP datagram over IPv4.
+      */
+    val MaxBatchSize = 65507
+
 }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.google.protobuf.Message
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+import org.midonet.cluster.topology.TopologyBuilder
+
+object ZoomSerializationBenchmark {
+    val ReferenceCount = 512
+}
+
+/**
+ * Compares the text and binary storage formats of the ZOOM objects, for
+ * large ports, routers and chains, with many references to other objects.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomSerializationBenchmark extends TopologyBuilder {
+    import ZoomSerializationBenchmark._
+
+    @Param(Array("port", "router", "chain"))
+    var objectType: String = _
+
+    @Param(Array("text", "binary"))
+    var format: String = _
+
+    var obj: Message = _
+    var data: Array[Byte] = _
+
+    private def ids(): Set[UUID] =
+        (0 until ReferenceCount).map(_ => UUID.randomUUID()).toSet
+
+    @JmhSetup
+    def setup(): Unit = {
+        obj = objectType match {
+            case "port" =>
+                createRouterPort(routerId = Some(UUID.randomUUID()),
+                                 inboundFilterId = Some(UUID.randomUUID()),
+                                 outboundFilterId = Some(UUID.randomUUID()),
+                                 peerId = Some(UUID.randomUUID()),
+                                 hostId = Some(UUID.randomUUID()),
+                                 interfaceName = Some("benchmark"),
+                                 portGroupIds = ids(), routeIds = ids())
+            case "router" =>
+                createRouter(name = Some("benchmark"),
+                             inboundFilterId = Some(UUID.randomUUID()),
+                             outboundFilterId = Some(UUID.randomUUID()),
+                             routeIds = ids().toSeq, portIds = ids())
+            case "chain" =>
+                createChain(name = Some("benchmark"), ruleIds = ids())
+        }
+        data = serialize(obj, format == "binary")
+    }
+
+    @Benchmark
+    def serializeObject(): Array[Byte] = {
+        serialize(obj, format == "binary")
+    }
+
+    @Benchmark
+    def deserializeObject(): AnyRef = {
+        deserialize(data, obj.getClass)
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, HashMap, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.simulation.{Chain, PacketContext, RuleClassifier}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, TCP, UDP}
+import org.midonet.util.Range
+
+/**
+ * Compares the linear and compiled evaluation of a chain with security group
+ * like rules, each accepting a protocol, a destination port and a source
+ * subnet. The packet matches the last rule, such that linear evaluation
+ * traverses the whole chain.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(5)
+@State(Scope.Thread)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var ruleCount: Int = _
+
+    @Param(Array("linear", "compiled"))
+    var mode: String = _
+
+    var chain: Chain = _
+    var context: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val chainId = UUID.randomUUID()
+        val rules = new ArrayList[Rule](ruleCount)
+        for (index <- 0 until ruleCount) {
+            val cond = new Condition()
+            cond.nwProto =
+                if (index % 2 == 0) TCP.PROTOCOL_NUMBER else UDP.PROTOCOL_NUMBER
+            cond.tpDst = new Range[Integer](1000 + index)
+            cond.nwSrcIp = IPv4Subnet.fromCidr("10.0.0.0/8")
+            val rule = new LiteralRule(cond, Action.ACCEPT, chainId)
+            rule.id = UUID.randomUUID()
+            rules.add(rule)
+        }
+
+        val classifier = if (mode == "compiled") RuleClassifier(rules) else null
+        chain = new Chain(chainId, rules, new HashMap[UUID, Chain](), "chain",
+                          classifier = classifier)
+
+        val last = rules.get(ruleCount - 1).getCondition
+        val fmatch = new FlowMatch()
+        fmatch.setNetworkProto(last.nwProto)
+        fmatch.setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+        fmatch.setNetworkDst(IPv4Addr.fromString("10.0.0.2"))
+        fmatch.setSrcPort(5000)
+        fmatch.setDstPort(last.tpDst.start)
+        context = PacketContext.generated(1, null, fmatch)
+    }
+
+    @Benchmark
+    def process(): RuleResult = {
+        context.resetFlowContext()
+        context.resetRecordedContext()
+        chain.process(context)
+    }
+}
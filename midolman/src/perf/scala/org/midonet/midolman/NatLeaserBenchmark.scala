@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+
+import scala.concurrent.Future
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.NatBlockAllocator.NoFreeNatBlocksException
+import org.midonet.midolman.state._
+import org.midonet.packets.IPv4Addr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.logging.Logger
+
+object NatLeaserBenchmark {
+    val Destinations = 4096
+
+    /**
+     * Grants every block of the requested range once, synchronously.
+     */
+    class BlockAllocator extends NatBlockAllocator {
+        private val leased = new Array[Boolean](NatBlock.TOTAL_BLOCKS)
+
+        override def allocateBlockInRange(natRange: NatRange) = synchronized {
+            var block = NatLeaser.blockOf(natRange.tpPortStart)
+            while (block <= NatLeaser.blockOf(natRange.tpPortEnd) &&
+                   leased(block)) {
+                block += 1
+            }
+            if (block <= NatLeaser.blockOf(natRange.tpPortEnd)) {
+                leased(block) = true
+                Future.successful(
+                    new NatBlock(natRange.deviceId, natRange.ip, block))
+            } else {
+                Future.failed(NoFreeNatBlocksException)
+            }
+        }
+
+        override def freeBlock(natBlock: NatBlock): Unit = synchronized {
+            leased(natBlock.blockIndex) = false
+        }
+    }
+
+    @State(Scope.Thread)
+    class DestinationHolder {
+        val ips = Array.fill(Destinations)(IPv4Addr.random)
+        val ports = Array.fill(Destinations)(
+            ThreadLocalRandom.current().nextInt(1, 65536))
+        var index = 0
+
+        def next(): Int = {
+            index = (index + 1) & (Destinations - 1)
+            index
+        }
+    }
+}
+
+/**
+ * Measures the allocation and release of a SNAT binding for a random
+ * destination, with a number of bindings already leased, for the map-based
+ * and the bitmap-based NAT leasers.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(5)
+@State(Scope.Benchmark)
+class NatLeaserBenchmark {
+    import NatLeaserBenchmark._
+
+    @Param(Array("map", "bitmap"))
+    var leaser: String = _
+
+    @Param(Array("0", "10000"))
+    var leasedBindings: Int = _
+
+    val deviceId = UUID.randomUUID()
+    val targets = Array(new NatTarget(IPv4Addr.fromString("10.0.0.1"),
+                                      IPv4Addr.fromString("10.0.0.1")))
+    var natLeaser: NatLeaser = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        natLeaser = leaser match {
+            case "map" => new NatLeaser {
+                override val log = Logger(NOPLogger.NOP_LOGGER)
+                override val allocator = new BlockAllocator
+                override val clock = NanoClock.DEFAULT
+            }
+            case "bitmap" => new BitmapNatLeaser {
+                override val log = Logger(NOPLogger.NOP_LOGGER)
+                override val allocator = new BlockAllocator
+                override val clock = NanoClock.DEFAULT
+            }
+        }
+        for (i <- 0 until leasedBindings) {
+            allocate(IPv4Addr.random,
+                     ThreadLocalRandom.current().nextInt(1, 65536))
+        }
+    }
+
+    private def allocate(ip: IPv4Addr, port: Int): NatBinding =
+        try {
+            natLeaser.allocateNatBinding(deviceId, ip, port, targets)
+        } catch { case _: NotYetException =>
+            // The block allocator completes synchronously.
+            allocate(ip, port)
+        }
+
+    @Benchmark
+    @Threads(1)
+    def allocateAndFree(holder: DestinationHolder): NatBinding = {
+        val index = holder.next()
+        val ip = holder.ips(index)
+        val port = holder.ports(index)
+        val binding = allocate(ip, port)
+        natLeaser.freeNatBinding(deviceId, ip, port, binding)
+        binding
+    }
+
+    @Benchmark
+    @Threads(4)
+    def allocateAndFreeConcurrently(holder: DestinationHolder): NatBinding =
+        allocateAndFree(holder)
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.config
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Measures the cost of reading agent settings used on the packet processing
+ * path, when looking them up in the Typesafe configuration as the accessors
+ * did before, and when reading them from the configuration snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class MidolmanConfigBenchmark {
+
+    val config = MidolmanConfig.forTests
+
+    @Benchmark
+    def lookupSettings(bh: Blackhole): Unit = {
+        bh.consume(config.flowState.getBoolean(
+            "agent.minions.flow_state.local_push_state"))
+        bh.consume(config.datapath.getInt(
+            "agent.datapath.control_packet_tos").toByte)
+        bh.consume(config.arptable.getDuration(
+            "agent.arptable.arp_timeout", TimeUnit.MILLISECONDS))
+    }
+
+    @Benchmark
+    def readSnapshot(bh: Blackhole): Unit = {
+        bh.consume(config.flowState.localPushState)
+        bh.consume(config.datapath.controlPacketTos)
+        bh.consume(config.arptable.timeout)
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.datapath
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.lmax.disruptor.{EventPoller, RingBuffer}
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
+import org.midonet.util.concurrent.{BackChannelEventProcessor, RoundRobinEventProcessor}
+
+object DatapathChannelBenchmark {
+    val Workers = 4
+    val OutputChannels = 2
+    val Capacity = 1024
+
+    /**
+     * Consumes the events of the channel, releasing the references like the
+     * packet executors and the flow processor do.
+     */
+    class Consumer(index: Int) extends EventPoller.Handler[PacketContextHolder] {
+        override def onEvent(event: PacketContextHolder, sequence: Long,
+                             endOfBatch: Boolean): Boolean = {
+            if (index == 0) event.flowCreateRef = null
+            else event.packetExecRef = null
+            true
+        }
+    }
+
+    @State(Scope.Thread)
+    class Worker {
+        var channel: DatapathChannel = _
+
+        @JmhSetup
+        def setup(benchmark: DatapathChannelBenchmark): Unit = {
+            channel = benchmark.channel.forWorker(
+                benchmark.workers.getAndIncrement() % Workers)
+        }
+    }
+}
+
+/**
+ * Measures the throughput of the hand-off from the simulation workers to the
+ * datapath output channels, for the channel with a multi-producer RingBuffer
+ * shared by all workers, and for the sharded channel with a single-producer
+ * RingBuffer per worker. Every benchmark thread is a worker, and the output
+ * channels only release the references of the events.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class DatapathChannelBenchmark {
+    import DatapathChannelBenchmark._
+
+    @Param(Array("shared", "sharded"))
+    var channelType: String = _
+
+    var channel: WorkerDatapathChannels = _
+    val workers = new AtomicInteger()
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        channel = channelType match {
+            case "shared" =>
+                val ringBuffer = RingBuffer.createMultiProducer(
+                    DisruptorDatapathChannel.Factory, Capacity)
+                new DisruptorDatapathChannel(
+                    ringBuffer,
+                    Array.tabulate(OutputChannels) { index =>
+                        new BackChannelEventProcessor(
+                            ringBuffer, new Consumer(index),
+                            RoundRobinEventProcessor.NoBackChannel)
+                    })
+            case "sharded" =>
+                val ringBuffers = Array.fill(Workers)(
+                    RingBuffer.createSingleProducer(
+                        DisruptorDatapathChannel.Factory, Capacity))
+                new ShardedDatapathChannel(
+                    ringBuffers,
+                    Array.tabulate(OutputChannels) { index =>
+                        val consumer = new Consumer(index)
+                        new RoundRobinEventProcessor(
+                            ringBuffers,
+                            Array.fill[EventPoller.Handler[PacketContextHolder]](
+                                Workers)(consumer),
+                            RoundRobinEventProcessor.NoBackChannel)
+                    })
+        }
+        channel.start()
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = {
+        channel.stop()
+    }
+
+    @Benchmark
+    @Threads(4)
+    def handoff(worker: Worker): Long = {
+        worker.channel.handoff(null)
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.scalalogging.Logger
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.sdn.flows.FlowTagger.{DeviceTag, FlowTag, TunnelKeyTag}
+
+object FlowTagIndexerBenchmark {
+    val Devices = 16
+    val DeviceTagsPerFlow = 8
+
+    class Indexer extends FlowIndexer {
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val removed = new ArrayList[ManagedFlow]()
+
+        override def removeFlow(flow: ManagedFlow): Unit =
+            removed.add(flow)
+    }
+}
+
+/**
+ * Measures the cost of registering and removing a flow in the flow tag index,
+ * and of invalidating the flows of a tag shared by a fraction of the flows,
+ * with an index holding a given number of flows. Every flow has tags for
+ * several devices, shared with other flows, and two tags of its own. The
+ * tags are new instances every time, as allocated by the simulation.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowTagIndexerBenchmark {
+    import FlowTagIndexerBenchmark._
+
+    @Param(Array("10000", "100000"))
+    var flowCount: Int = _
+
+    val devices = (0 until Devices).map(_ => UUID.randomUUID()).toArray
+
+    var indexer: Indexer with FlowTagIndexer = _
+    var flow: ManagedFlow = _
+    var nextKey = 0L
+    var nextDevice = 0
+
+    private def tags(key: Long): ArrayList[FlowTag] = {
+        val tags = new ArrayList[FlowTag](DeviceTagsPerFlow + 2)
+        var i = 0
+        while (i < DeviceTagsPerFlow) {
+            tags.add(DeviceTag(devices(((key + i) % Devices).toInt)))
+            i += 1
+        }
+        tags.add(TunnelKeyTag(key))
+        tags.add(TunnelKeyTag(-key - 1))
+        tags
+    }
+
+    private def newFlow(key: Long): ManagedFlow = {
+        val flow = new ManagedFlow(null)
+        flow.tags.addAll(tags(key))
+        flow
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        indexer = new Indexer with FlowTagIndexer
+        while (nextKey < flowCount) {
+            indexer.registerFlow(newFlow(nextKey))
+            nextKey += 1
+        }
+        flow = newFlow(nextKey)
+    }
+
+    @Benchmark
+    def registerAndRemove(): Unit = {
+        flow.tags.clear()
+        flow.tags.addAll(tags(nextKey))
+        nextKey += 1
+        indexer.registerFlow(flow)
+        indexer.removeFlow(flow)
+    }
+
+    @Benchmark
+    def invalidateAndRegister(): Int = {
+        indexer.removed.clear()
+        indexer.invalidateFlowsFor(DeviceTag(devices(nextDevice)))
+        nextDevice = (nextDevice + 1) % Devices
+        val removed = indexer.removed
+        var i = 0
+        while (i < removed.size()) {
+            indexer.registerFlow(removed.get(i))
+            i += 1
+        }
+        removed.size()
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.concurrent.TimeUnit
+import java.util.{HashSet, UUID}
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+object RoutingTableBenchmark {
+    val RouteCount = 100000
+
+    /** Creates learned routes with random prefixes between /8 and /32, like
+      * the routes of a full BGP table. */
+    def learnedRoutes(random: Random, count: Int): Array[Route] = {
+        val portId = UUID.randomUUID()
+        Array.fill(count) {
+            val route = new Route(0, 0, random.nextInt(),
+                                  8 + random.nextInt(25), NextHop.PORT,
+                                  portId, random.nextInt(), 100, null, null)
+            route.setLearned(true)
+            route
+        }
+    }
+}
+
+/**
+ * Measures the cost of applying learned routes to the routing table of a
+ * router, where every update produces a new snapshot of the table for the
+ * simulation.
+ *
+ * The `learnRoutes` benchmark applies 100k learned routes to the persistent
+ * routing table, one-by-one or in bursts, taking a snapshot after every burst
+ * as the router mapper does when it builds a new router device. The
+ * `updateTrie` and `rebuildTable` benchmarks measure the cost of a single
+ * route update with 100k routes in the table, when applying the update to the
+ * persistent table and when rebuilding the LPM table from all routes as
+ * before. The `compileTable` benchmark measures the cost of compiling the LPM
+ * table from a trie snapshot, which the router mapper does once a burst of
+ * updates is over.
+ */
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+    import RoutingTableBenchmark._
+
+    @Param(Array("1", "100", "10000"))
+    var burstSize: Int = _
+
+    val random = new Random(42)
+    val routes = learnedRoutes(random, RouteCount)
+    val extra = learnedRoutes(random, 1)(0)
+
+    var table: IPv4RouteTrie = _
+    val routeSet = new HashSet[Route]()
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        table = IPv4RouteTrie.EMPTY
+        for (route <- routes) {
+            table = table.add(route)
+            routeSet.add(route)
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.SingleShotTime))
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    @Fork(1)
+    def learnRoutes(bh: Blackhole): Int = {
+        var snapshot = IPv4RouteTrie.EMPTY
+        var index = 0
+        while (index < routes.length) {
+            val end = Math.min(index + burstSize, routes.length)
+            while (index < end) {
+                snapshot = snapshot.add(routes(index))
+                index += 1
+            }
+            bh.consume(snapshot)
+        }
+        snapshot.numRoutes()
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.AverageTime))
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    def updateTrie(bh: Blackhole): Unit = {
+        val added = table.add(extra)
+        bh.consume(added)
+        bh.consume(added.remove(extra))
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.AverageTime))
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 3)
+    @Fork(1)
+    def rebuildTable(bh: Blackhole): Unit = {
+        routeSet.add(extra)
+        bh.consume(IPv4LpmTable.build(routeSet))
+        routeSet.remove(extra)
+        bh.consume(IPv4LpmTable.build(routeSet))
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.AverageTime))
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 3)
+    @Fork(1)
+    def compileTable(bh: Blackhole): Unit = {
+        bh.consume(IPv4LpmTable.build(table))
+    }
+}
+
+/**
+ * Measures the cost of a route lookup with 100k learned routes, in the LPM
+ * table compiled from the routes, in the persistent routing table that serves
+ * the lookups until the LPM table is compiled, and in the legacy pointer-based
+ * routing table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class RoutingTableLookupBenchmark {
+    import RoutingTableBenchmark._
+
+    val random = new Random(42)
+    val routes = learnedRoutes(random, RouteCount)
+    val addresses = Array.fill(1024)(random.nextInt())
+
+    var table: IPv4RouteTrie = _
+    var lpm: IPv4LpmTable = _
+    var legacy: RoutingTable = _
+    var index = 0
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        table = IPv4RouteTrie.EMPTY
+        legacy = new RoutingTable()
+        for (route <- routes) {
+            table = table.add(route)
+            legacy.addRoute(route)
+        }
+        lpm = IPv4LpmTable.build(table)
+    }
+
+    private def nextAddress(): Int = {
+        index = (index + 1) & (addresses.length - 1)
+        addresses(index)
+    }
+
+    @Benchmark
+    def lookupLpm(bh: Blackhole): Unit = {
+        val address = nextAddress()
+        bh.consume(lpm.lookup(address, address))
+    }
+
+    @Benchmark
+    def lookupTrie(bh: Blackhole): Unit = {
+        val address = nextAddress()
+        bh.consume(table.lookup(address, address))
+    }
+
+    @Benchmark
+    def lookupLegacy(bh: Blackhole): Unit = {
+        val address = nextAddress()
+        bh.consume(legacy.lookup(address, address))
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.cluster.data.dhcp.{ExtraDhcpOpt, Host, Opt121, Subnet}
+import org.midonet.packets._
+import org.midonet.util.logging.Logger
+
+object DhcpBenchmark {
+    val DnsServers = 8
+    val Routes = 32
+    val ExtraOptions = Seq(
+        "host-name" -> "benchmark-host",
+        "15" -> "benchmark.midonet.org",
+        "domain-search" -> "a.midonet.org, b.midonet.org, c.midonet.org",
+        "ntp-servers" -> "10.0.0.1, 10.0.0.2, 10.0.0.3, 10.0.0.4",
+        "44" -> "10.0.0.5, 10.0.0.6",
+        "netbios-over-tcp-ip-node-type" -> "0x8",
+        "19" -> "false",
+        "default-ip-ttl" -> "64",
+        "tcp-keepalive-interval" -> "7200",
+        "121" ->
+            "10.1.0.0/16, 10.0.0.1, 10.2.0.0/16, 10.0.0.1, 10.3.0.0/16, 10.0.0.1")
+}
+
+/**
+ * Measures the throughput of DHCP replies for a host with a large set of
+ * options, when the reply template is cached with the DHCP configuration, and
+ * when it is compiled for every request, as the DHCP implementation did before
+ * using templates.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class DhcpBenchmark {
+    import DhcpBenchmark._
+
+    @Param(Array("true", "false"))
+    var cachedTemplate: Boolean = _
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val mac = MAC.random()
+    val port = new BridgePort(id = UUID.randomUUID(),
+                              hostId = UUID.randomUUID(),
+                              interfaceName = "benchmark",
+                              networkId = UUID.randomUUID())
+
+    var config: DhcpConfig = _
+    var discover: DHCP = _
+    var request: DHCP = _
+
+    private def dhcpRequest(msgType: DHCPOption.MsgType): DHCP = {
+        new DHCP()
+            .setOpCode(DHCP.OPCODE_REQUEST)
+            .setHardwareType(ARP.HW_TYPE_ETHERNET.toByte)
+            .setHardwareAddressLength(6)
+            .setClientHardwareAddress(mac)
+            .setOptions(Seq(
+                new DHCPOption(DHCPOption.Code.DHCP_TYPE.value,
+                               DHCPOption.Code.DHCP_TYPE.length,
+                               Array[Byte](msgType.value))).asJava)
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val subnet = new Subnet()
+        subnet.setId(UUID.randomUUID().toString)
+        subnet.setSubnetAddr(IPv4Subnet.fromCidr("10.0.0.0/16"))
+        subnet.setDefaultGateway(IPv4Addr.fromString("10.0.0.1"))
+        subnet.setServerAddr(IPv4Addr.fromString("10.0.0.2"))
+        subnet.setInterfaceMTU(1450.toShort)
+        subnet.setDnsServerAddrs(
+            (0 until DnsServers).map(_ => IPv4Addr.random).asJava)
+        subnet.setOpt121Routes((0 until Routes).map { _ =>
+            val route = new Opt121()
+            route.setRtDstSubnet(IPv4Addr.random.subnet(24))
+            route.setGateway(IPv4Addr.fromString("10.0.0.1"))
+            route
+        }.asJava)
+
+        val host = new Host()
+        host.setMAC(mac)
+        host.setIp(IPv4Addr.fromString("10.0.1.1"))
+        host.setName("benchmark")
+        host.setExtraDhcpOpts(ExtraOptions.map {
+            case (name, value) => new ExtraDhcpOpt(name, value)
+        }.asJava)
+
+        val template = new DhcpReplyTemplate(subnet, host, log)
+        config = new DhcpConfig {
+            override def bridgeDhcpSubnets(deviceId: UUID): Seq[Subnet] =
+                Seq(subnet)
+            override def dhcpHost(deviceId: UUID, subnet: Subnet,
+                                  srcMac: String): Option[Host] =
+                Some(host)
+            override def dhcpReplyTemplate(deviceId: UUID, subnet: Subnet,
+                                           srcMac: String)
+            : Option[DhcpReplyTemplate] =
+                if (cachedTemplate) Some(template)
+                else super.dhcpReplyTemplate(deviceId, subnet, srcMac)
+        }
+
+        discover = dhcpRequest(DHCPOption.MsgType.DISCOVER)
+        request = dhcpRequest(DHCPOption.MsgType.REQUEST)
+    }
+
+    @Benchmark
+    def offer(): Array[Byte] = {
+        DhcpImpl(config, port, discover, mac, 1500, 1500, log).get.serialize()
+    }
+
+    @Benchmark
+    def ack(): Array[Byte] = {
+        DhcpImpl(config, port, request, mac, 1500, 1500, log).get.serialize()
+    }
+}
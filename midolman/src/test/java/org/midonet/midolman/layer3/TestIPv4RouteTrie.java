@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Addr;
+
+public class TestIPv4RouteTrie {
+
+    private final Random random = new Random(42);
+
+    private Route route(int src, int srcLength, int dst, int dstLength,
+                        int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyTable() {
+        IPv4RouteTrie table = IPv4RouteTrie.EMPTY;
+        Assert.assertTrue(table.lookup(0x0a000001, 0x0a000002).isEmpty());
+        Assert.assertTrue(table.lookup(0, 0xFFFFFFFF).isEmpty());
+        Assert.assertEquals(0, table.numRoutes());
+        Assert.assertEquals(0, table.numPrefixes());
+    }
+
+    @Test
+    public void testLongestPrefixAndWeight() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a010000, 16, 200);
+        Route rt4 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt5 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt6 = route(0xc0a80000, 16, 0x0a010100, 24, 100);
+
+        IPv4RouteTrie table = IPv4RouteTrie.EMPTY;
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5, rt6 }) {
+            table = table.add(rt);
+        }
+
+        Assert.assertEquals(6, table.numRoutes());
+        Assert.assertEquals(4, table.numPrefixes());
+        assertRoutes(table, "1.2.3.4", "8.8.8.8", rt1);
+        assertRoutes(table, "1.2.3.4", "10.2.0.1", rt2);
+        assertRoutes(table, "1.2.3.4", "10.1.2.1", rt4, rt5);
+        // The source does not match rt6, so the /16 routes are returned.
+        assertRoutes(table, "1.2.3.4", "10.1.1.1", rt4, rt5);
+        assertRoutes(table, "192.168.0.1", "10.1.1.1", rt6);
+        assertRoutes(table, "1.2.3.4", "255.255.255.255", rt1);
+        assertRoutes(table, "1.2.3.4", "0.0.0.0", rt1);
+    }
+
+    @Test
+    public void testUpdatesDoNotModifySnapshot() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 24, 100);
+        IPv4RouteTrie table1 = IPv4RouteTrie.EMPTY.add(rt1);
+        IPv4RouteTrie table2 = table1.add(rt2);
+        IPv4RouteTrie table3 = table2.remove(rt1);
+
+        assertRoutes(table1, "1.2.3.4", "10.0.0.1", rt1);
+        assertRoutes(table2, "1.2.3.4", "10.0.0.1", rt2);
+        assertRoutes(table2, "1.2.3.4", "10.0.1.1", rt1);
+        assertRoutes(table3, "1.2.3.4", "10.0.0.1", rt2);
+        assertRoutes(table3, "1.2.3.4", "10.0.1.1");
+        Assert.assertTrue(IPv4RouteTrie.EMPTY.lookup(0, 0x0a000001).isEmpty());
+    }
+
+    @Test
+    public void testDuplicateAndMissingRoutes() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        IPv4RouteTrie table = IPv4RouteTrie.EMPTY.add(rt1);
+
+        Assert.assertSame(table, table.add(rt1));
+        Assert.assertSame(table, table.remove(rt2));
+        Assert.assertSame(IPv4RouteTrie.EMPTY, IPv4RouteTrie.EMPTY.remove(rt1));
+
+        IPv4RouteTrie removed = table.remove(rt1);
+        Assert.assertEquals(0, removed.numRoutes());
+        Assert.assertEquals(0, removed.numPrefixes());
+        Assert.assertTrue(removed.lookup(0, 0x0a000001).isEmpty());
+    }
+
+    @Test
+    public void testHostBitsAreIgnored() {
+        Route rt = route(0, 0, 0x0a0000FF, 24, 100);
+        IPv4RouteTrie table = IPv4RouteTrie.EMPTY.add(rt);
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt);
+        Assert.assertEquals(0, table.remove(rt).numRoutes());
+    }
+
+    @Test
+    public void testLookupsDoNotAllocate() {
+        IPv4RouteTrie table = IPv4RouteTrie.EMPTY
+            .add(route(0, 0, 0x0a000000, 8, 100))
+            .add(route(0, 0, 0x0a000000, 8, 100));
+
+        List<Route> routes = table.lookup(0x01020304, 0x0a000001);
+        Assert.assertEquals(2, routes.size());
+        Assert.assertSame(routes, table.lookup(0x01020304, 0x0a000001));
+    }
+
+    @Test
+    public void testSameResultsAsRoutingTable() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<Route> routes = new ArrayList<>();
+            RoutingTable legacy = new RoutingTable();
+            IPv4RouteTrie table = IPv4RouteTrie.EMPTY;
+            int count = 1 + random.nextInt(500);
+            for (int index = 0; index < count; index++) {
+                int dstLength = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+                int dstMask = dstLength == 0 ? 0 : ~0 << (32 - dstLength);
+                Route rt = route(random.nextInt(), srcLength,
+                                 random.nextInt() & 0xF0FFFFFF & dstMask,
+                                 dstLength, 100 + random.nextInt(3));
+                routes.add(rt);
+                legacy.addRoute(rt);
+                table = table.add(rt);
+            }
+
+            for (int lookup = 0; lookup < 2000; lookup++) {
+                int src = random.nextInt();
+                int dst = random.nextInt() & 0xF0FFFFFF;
+                Assert.assertEquals(
+                    new HashSet<>(legacy.lookup(src, dst)),
+                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    @Test
+    public void testRemovedRoutesSameAsRebuiltTable() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<Route> routes = new ArrayList<>();
+            IPv4RouteTrie table = IPv4RouteTrie.EMPTY;
+            int count = 1 + random.nextInt(500);
+            for (int index = 0; index < count; index++) {
+                int dstLength = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+                Route rt = route(random.nextInt(), srcLength,
+                                 random.nextInt() & 0xF0FFFFFF, dstLength,
+                                 100 + random.nextInt(3));
+                routes.add(rt);
+                table = table.add(rt);
+            }
+            // Remove some of the routes to exercise the removal of prefixes
+            // and the compaction of the trie.
+            for (int index = 0; index < count / 2; index++) {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                table = table.remove(rt);
+            }
+
+            IPv4RouteTrie expected = IPv4RouteTrie.EMPTY;
+            for (Route rt : routes) {
+                expected = expected.add(rt);
+            }
+            Assert.assertEquals(expected.numRoutes(), table.numRoutes());
+            Assert.assertEquals(expected.numPrefixes(), table.numPrefixes());
+            for (int lookup = 0; lookup < 2000; lookup++) {
+                int src = random.nextInt();
+                int dst = random.nextInt() & 0xF0FFFFFF;
+                Assert.assertEquals(
+                    new HashSet<>(expected.lookup(src, dst)),
+                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledTableWithOverlappingPrefixes() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt4 = route(0xc0a80000, 16, 0x0a010100, 24, 100);
+        Route rt5 = route(0, 0, 0x0a010101, 32, 100);
+        Route rt6 = route(0, 0, 0x0a010101, 32, 200);
+        Route rt7 = route(0, 0, 0xFFFFFFFF, 32, 100);
+        Route rt8 = route(0, 0, 0, 32, 100);
+
+        IPv4RouteTrie trie = IPv4RouteTrie.EMPTY;
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5, rt6, rt7,
+                                      rt8 }) {
+            trie = trie.add(rt);
+        }
+        IPv4LpmTable table = IPv4LpmTable.build(trie);
+
+        Assert.assertEquals(trie.numRoutes(), table.numRoutes());
+        Assert.assertEquals(trie.numPrefixes(), table.numPrefixes());
+        assertSameLookups(trie, table);
+        assertRoutes(table, "1.2.3.4", "10.1.1.1", rt5);
+        assertRoutes(table, "192.168.0.1", "10.1.1.2", rt4);
+        assertRoutes(table, "1.2.3.4", "10.1.1.2", rt3);
+        assertRoutes(table, "1.2.3.4", "255.255.255.255", rt7);
+        assertRoutes(table, "1.2.3.4", "255.255.255.254", rt1);
+        assertRoutes(table, "1.2.3.4", "0.0.0.0", rt8);
+        assertRoutes(table, "1.2.3.4", "0.0.0.1", rt1);
+    }
+
+    @Test
+    public void testCompiledTableAfterRouteRemoval() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt4 = route(0, 0, 0x0a010100, 24, 100);
+        Route rt5 = route(0, 0, 0x0a010101, 32, 100);
+
+        IPv4RouteTrie trie = IPv4RouteTrie.EMPTY;
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5 }) {
+            trie = trie.add(rt);
+        }
+        trie = trie.remove(rt1).remove(rt3).remove(rt5);
+        IPv4LpmTable table = IPv4LpmTable.build(trie);
+
+        Assert.assertEquals(2, table.numRoutes());
+        Assert.assertEquals(2, table.numPrefixes());
+        assertSameLookups(trie, table);
+        assertRoutes(table, "1.2.3.4", "10.1.1.1", rt4);
+        assertRoutes(table, "1.2.3.4", "10.1.2.1", rt2);
+        assertRoutes(table, "1.2.3.4", "11.0.0.1");
+
+        trie = trie.remove(rt2).remove(rt4);
+        table = IPv4LpmTable.build(trie);
+        Assert.assertEquals(0, table.numRoutes());
+        Assert.assertEquals(0, table.numPrefixes());
+        assertRoutes(table, "1.2.3.4", "10.1.1.1");
+    }
+
+    @Test
+    public void testCompiledTableSameResultsAsTrie() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<Route> routes = new ArrayList<>();
+            IPv4RouteTrie trie = IPv4RouteTrie.EMPTY;
+            int count = 1 + random.nextInt(500);
+            for (int index = 0; index < count; index++) {
+                int dstLength = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+                Route rt = route(random.nextInt(), srcLength,
+                                 random.nextInt() & 0xF0FFFFFF, dstLength,
+                                 100 + random.nextInt(3));
+                routes.add(rt);
+                trie = trie.add(rt);
+            }
+            for (int index = 0; index < count / 2; index++) {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                trie = trie.remove(rt);
+            }
+
+            IPv4LpmTable table = IPv4LpmTable.build(trie);
+            IPv4LpmTable expected = IPv4LpmTable.build(routes);
+            Assert.assertEquals(expected.numRoutes(), table.numRoutes());
+            Assert.assertEquals(expected.numPrefixes(), table.numPrefixes());
+            assertSameLookups(trie, table);
+            for (int lookup = 0; lookup < 2000; lookup++) {
+                int src = random.nextInt();
+                int dst = random.nextInt() & 0xF0FFFFFF;
+                Assert.assertEquals(
+                    new HashSet<>(expected.lookup(src, dst)),
+                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    /** Checks that the table returns the same routes as the trie, for random
+      * addresses and for the addresses around the bounds of every prefix. */
+    private void assertSameLookups(IPv4RouteTrie trie, IPv4LpmTable table) {
+        final List<Integer> addresses = new ArrayList<>();
+        trie.forEachPrefix(new IPv4RouteTrie.PrefixVisitor() {
+            @Override
+            public void visit(int addr, int length, PrefixRoutes routes) {
+                int last = addr | (length == 0 ? ~0 : ~(~0 << (32 - length)));
+                addresses.add(addr - 1);
+                addresses.add(addr);
+                addresses.add(last);
+                addresses.add(last + 1);
+            }
+        });
+        for (int lookup = 0; lookup < 1000; lookup++) {
+            addresses.add(random.nextInt());
+        }
+        for (int dst : addresses) {
+            for (int src : new int[] { 0x01020304, 0xc0a80001,
+                                       random.nextInt() }) {
+                Assert.assertEquals(new HashSet<>(trie.lookup(src, dst)),
+                                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    private void assertRoutes(IPv4LpmTable table, String src, String dst,
+                              Route... expected) {
+        List<Route> routes = table.lookup(IPv4Addr.fromString(src).toInt(),
+                                          IPv4Addr.fromString(dst).toInt());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(expected)),
+                            new HashSet<>(routes));
+    }
+
+    private void assertRoutes(IPv4RouteTrie table, String src, String dst,
+                              Route... expected) {
+        List<Route> routes = table.lookup(IPv4Addr.fromString(src).toInt(),
+                                          IPv4Addr.fromString(dst).toInt());
+        Set<Route> actual = new HashSet<>(routes);
+        Assert.assertEquals(expected.length, routes.size());
+        for (Route rt : expected) {
+            Assert.assertTrue(actual.contains(rt));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Addr;
+
+public class TestIPv4RoutingTable {
+
+    private final Random random = new Random(42);
+
+    private Route route(int src, int srcLength, int dst, int dstLength,
+                        int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyTable() {
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        Assert.assertTrue(table.lookup(IPv4Addr.fromString("10.0.0.1"),
+                                       IPv4Addr.fromString("10.0.0.2"))
+                               .isEmpty());
+        Assert.assertTrue(table.lookup(IPv4Addr.fromString("0.0.0.0"),
+                                       IPv4Addr.fromString("255.255.255.255"))
+                               .isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixAndWeight() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a010000, 16, 200);
+        Route rt4 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt5 = route(0, 0, 0x0a010000, 16, 100);
+        Route rt6 = route(0xc0a80000, 16, 0x0a010100, 24, 100);
+
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5, rt6 }) {
+            table.addRoute(rt);
+        }
+
+        assertRoutes(table, "1.2.3.4", "8.8.8.8", rt1);
+        assertRoutes(table, "1.2.3.4", "10.2.0.1", rt2);
+        assertRoutes(table, "1.2.3.4", "10.1.2.1", rt4, rt5);
+        // The source does not match rt6, so the /16 routes are returned.
+        assertRoutes(table, "1.2.3.4", "10.1.1.1", rt4, rt5);
+        assertRoutes(table, "192.168.0.1", "10.1.1.1", rt6);
+        assertRoutes(table, "1.2.3.4", "255.255.255.255", rt1);
+        assertRoutes(table, "1.2.3.4", "0.0.0.0", rt1);
+    }
+
+    @Test
+    public void testLookupsDoNotAllocate() {
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(route(0, 0, 0x0a000000, 8, 100));
+        table.addRoute(route(0, 0, 0x0a000000, 8, 100));
+        table.compile();
+
+        IPv4Addr src = IPv4Addr.fromString("1.2.3.4");
+        IPv4Addr dst = IPv4Addr.fromString("10.0.0.1");
+        List<Route> routes = table.lookup(src, dst);
+        Assert.assertEquals(2, routes.size());
+        Assert.assertSame(routes, table.lookup(src, dst));
+    }
+
+    @Test
+    public void testAddRouteAfterLookup() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 24, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt1);
+        table.addRoute(rt2);
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt2);
+    }
+
+    @Test
+    public void testSameResultsAsRoutingTable() {
+        for (int iteration = 0; iteration < 20; iteration++) {
+            RoutingTable legacy = new RoutingTable();
+            IPv4RoutingTable table = new IPv4RoutingTable();
+            int count = 1 + random.nextInt(500);
+            for (int index = 0; index < count; index++) {
+                int dstLength = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+                int dstMask = dstLength == 0 ? 0 : ~0 << (32 - dstLength);
+                Route rt = route(random.nextInt(), srcLength,
+                                 random.nextInt() & 0xF0FFFFFF & dstMask,
+                                 dstLength, 100 + random.nextInt(3));
+                legacy.addRoute(rt);
+                table.addRoute(rt);
+            }
+
+            for (int lookup = 0; lookup < 2000; lookup++) {
+                int src = random.nextInt();
+                int dst = random.nextInt() & 0xF0FFFFFF;
+                Assert.assertEquals(
+                    new HashSet<>(legacy.lookup(src, dst)),
+                    new HashSet<>(table.lookup(new IPv4Addr(src),
+                                               new IPv4Addr(dst))));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveRoute() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 24, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.compile();
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt2);
+
+        table.removeRoute(rt2);
+        Assert.assertFalse(table.isCompiled());
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt1);
+        table.compile();
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt1);
+
+        table.removeRoute(rt1);
+        Assert.assertEquals(0, table.numRoutes());
+        assertRoutes(table, "1.2.3.4", "10.0.0.1");
+    }
+
+    @Test
+    public void testTableFromTrieSnapshot() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 24, 100);
+        IPv4RouteTrie routes = IPv4RouteTrie.EMPTY.add(rt1).add(rt2);
+        IPv4RoutingTable table = new IPv4RoutingTable(routes);
+
+        Assert.assertFalse(table.isCompiled());
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt2);
+        assertRoutes(table, "1.2.3.4", "10.0.1.1", rt1);
+
+        table.compile();
+        Assert.assertTrue(table.isCompiled());
+        assertRoutes(table, "1.2.3.4", "10.0.0.1", rt2);
+        assertRoutes(table, "1.2.3.4", "10.0.1.1", rt1);
+
+        table.addRoute(route(0, 0, 0x0b000000, 8, 100));
+        Assert.assertSame(routes, new IPv4RoutingTable(routes).routes());
+        Assert.assertEquals(2, routes.numRoutes());
+        Assert.assertEquals(3, table.numRoutes());
+    }
+
+    private void assertRoutes(IPv4RoutingTable table, String src, String dst,
+                              Route... expected) {
+        List<Route> routes = table.lookup(IPv4Addr.fromString(src),
+                                          IPv4Addr.fromString(dst));
+        Assert.assertEquals(expected.length, routes.size());
+        for (Route rt : expected) {
+            Assert.assertTrue(routes.contains(rt));
+        }
+    }
+}
@@ -101,10 +101,122 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
-    private def createFlow(exp: FlowExpirationIndexer.Expiration) = {
+    feature ("Flows are expired when idle") {
+
+        val statsRequests = Queue[ManagedFlow]()
+        val idleFlowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer {
+            override val idleExpiration = true
+            override def requestFlowStats(flow: ManagedFlow): Boolean = {
+                statsRequests += flow
+                true
+            }
+        }
+
+        scenario ("Active flows have their expiration extended") {
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleFlowExpiration.registerFlow(flow)
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            statsRequests should have size 1
+            statsRequests.dequeue() should be (flow)
+
+            idleFlowExpiration.flowStatsReceived(flow, packets = 10, clock.tick)
+            removedFlows should be (empty)
+            flow.absoluteExpirationNanos should be (
+                2 * FlowExpirationIndexer.FLOW_EXPIRATION.value)
+
+            clock.time = 2 * FlowExpirationIndexer.FLOW_EXPIRATION.value
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests.dequeue() should be (flow)
+            idleFlowExpiration.flowStatsReceived(flow, packets = 10, clock.tick)
+            removedFlows should be (empty)
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("Flows are removed if their statistics are not available") {
+            val flow = createFlow(FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION)
+            idleFlowExpiration.registerFlow(flow)
+            clock.time = FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION.value
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests.dequeue() should be (flow)
+            idleFlowExpiration.flowStatsFailed(flow)
+            removedFlows should be (empty)
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Stateful and error flows expire after a hard timeout") {
+            idleFlowExpiration.registerFlow(createFlow(FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION))
+            idleFlowExpiration.registerFlow(createFlow(FlowExpirationIndexer.STATEFUL_FLOW_EXPIRATION))
+            clock.time = Long.MaxValue
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests should be (empty)
+            removedFlows should have size 2
+        }
+
+        scenario ("Recently active flows are evicted last") {
+            val exp = FlowExpirationIndexer.FLOW_EXPIRATION
+            val oldFlows = List(createFlow(exp), createFlow(exp))
+            oldFlows foreach idleFlowExpiration.registerFlow
+            clock.time = exp.value / 2
+            val newerFlows = List(createFlow(exp, clock.tick),
+                                  createFlow(exp, clock.tick))
+            newerFlows foreach idleFlowExpiration.registerFlow
+
+            clock.time = exp.value
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests should have size 2
+            statsRequests.clear()
+            idleFlowExpiration.flowStatsReceived(oldFlows(0), packets = 1, clock.tick)
+            idleFlowExpiration.flowStatsReceived(oldFlows(1), packets = 0, clock.tick)
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (oldFlows(1))
+
+            idleFlowExpiration.registerFlow(createFlow(exp, clock.tick))
+            idleFlowExpiration.registerFlow(createFlow(exp, clock.tick))
+            idleFlowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (newerFlows(0))
+        }
+
+        scenario ("The number of pending statistics requests is capped") {
+            val cappedFlowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer {
+                override val idleExpiration = true
+                override val maxPendingFlowStats = 1
+                override def requestFlowStats(flow: ManagedFlow): Boolean = {
+                    statsRequests += flow
+                    true
+                }
+            }
+            val flows = List(
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION),
+                createFlow(FlowExpirationIndexer.FLOW_EXPIRATION))
+            flows foreach cappedFlowExpiration.registerFlow
+
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            cappedFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests should have size 1
+            statsRequests.dequeue() should be (flows(0))
+
+            cappedFlowExpiration.flowStatsReceived(flows(0), packets = 1, clock.tick)
+            cappedFlowExpiration.checkFlowsExpiration(clock.tick)
+            statsRequests should have size 1
+            statsRequests.dequeue() should be (flows(1))
+            removedFlows should be (empty)
+        }
+    }
+
+    private def createFlow(exp: FlowExpirationIndexer.Expiration,
+                           now: Long = 0L) = {
         val flow = new ManagedFlow(null)
         flow.ref()
-        flow.absoluteExpirationNanos = exp.value
+        flow.absoluteExpirationNanos = now + exp.value
         flow.expirationType = exp.typeId
         flow
     }
@@ -24,9 +24,10 @@ import org.scalatest.junit.JUnitRunner
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.midolman.flows.{ManagedFlow, FlowTagIndexer, FlowIndexer}
+import org.midonet.midolman.flows.{ManagedFlow, FlowTagIndexer, FlowIndexer, FlowTagRegistry}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.DpPortTag
 
 @RunWith(classOf[JUnitRunner])
 class FlowTagIndexerTest extends MidolmanSpec {
@@ -103,19 +104,16 @@ class FlowTagIndexerTest extends MidolmanSpec {
             val flow2 = new ManagedFlow(null)
             flow2.tags.add(tag1)
             flow2.tags.add(tag2)
+            flowInvalidation.registerFlow(flow2)
 
-            flowInvalidation.flowsFor(tag1) should contain
-                theSameElementsAs (List(flow1, flow2))
-            flowInvalidation.flowsFor(tag2) should contain
-                theSameElementsAs (List(flow1, flow2))
+            flowInvalidation.flowsFor(tag1) should contain theSameElementsAs List(flow1, flow2)
+            flowInvalidation.flowsFor(tag2) should contain theSameElementsAs List(flow1, flow2)
 
             flowInvalidation.removeFlow(flow1)
             removedFlows should contain theSameElementsAs List(flow1)
 
-            flowInvalidation.flowsFor(tag1) should contain
-                theSameElementsAs (List(flow2))
-            flowInvalidation.flowsFor(tag2) should contain
-                theSameElementsAs (List(flow2))
+            flowInvalidation.flowsFor(tag1) should contain theSameElementsAs List(flow2)
+            flowInvalidation.flowsFor(tag2) should contain theSameElementsAs List(flow2)
         }
 
         scenario ("A tag is removed when it contains no more flows") {
@@ -123,8 +121,7 @@ class FlowTagIndexerTest extends MidolmanSpec {
             flow.tags.add(tag1)
             flowInvalidation.registerFlow(flow)
 
-            flowInvalidation.flowsFor(tag1) should contain
-                theSameElementsAs (List(flow))
+            flowInvalidation.flowsFor(tag1) should contain theSameElementsAs List(flow)
 
             flowInvalidation.removeFlow(flow)
             removedFlows should contain theSameElementsAs List(flow)
@@ -133,4 +130,80 @@ class FlowTagIndexerTest extends MidolmanSpec {
         }
 
     }
+
+    feature ("Tags are interned") {
+        scenario ("Equal tags share the same flows") {
+            val flow1 = new ManagedFlow(null)
+            flow1.tags.add(DpPortTag(10))
+            val flow2 = new ManagedFlow(null)
+            flow2.tags.add(DpPortTag(10))
+            flowInvalidation.registerFlow(flow1)
+            flowInvalidation.registerFlow(flow2)
+
+            flowInvalidation.flowsFor(DpPortTag(10)) should contain theSameElementsAs List(flow1, flow2)
+
+            flowInvalidation.invalidateFlowsFor(DpPortTag(10))
+            removedFlows should contain theSameElementsAs List(flow1, flow2)
+            flowInvalidation.flowsFor(DpPortTag(10)) should be (null)
+        }
+
+        scenario ("Duplicate tags of a flow are indexed once") {
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag1)
+            flow.tags.add(tag1)
+            flowInvalidation.registerFlow(flow)
+
+            flowInvalidation.flowsFor(tag1).size shouldBe 1
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should contain theSameElementsAs List(flow)
+        }
+
+        scenario ("Tags are released when they have no flows") {
+            val indexer = new FlowAddRemover(Queue[ManagedFlow]())
+                              with FlowTagIndexer
+            val flows = for (i <- 0 until 100) yield {
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flow.tags.add(DpPortTag(1000 + i))
+                indexer.registerFlow(flow)
+                flow
+            }
+            indexer.indexedTags shouldBe 101
+            val memory = indexer.tagIndexMemory
+
+            for (flow <- flows.take(50)) indexer.removeFlow(flow)
+            indexer.indexedTags shouldBe 51
+            indexer.flowsFor(tag1) should have size 50
+            indexer.flowsFor(DpPortTag(1000)) should be (null)
+            indexer.flowsFor(DpPortTag(1099)) should have size 1
+
+            indexer.invalidateFlowsFor(tag1)
+            indexer.indexedTags shouldBe 0
+            indexer.tagIndexMemory should be <= memory
+            flows.foreach(_.tagIndex shouldBe FlowTagIndexer.NoIndex)
+        }
+    }
+
+    feature ("The tag registry assigns dense identifiers") {
+        scenario ("Identifiers are reused after release") {
+            val registry = new FlowTagRegistry(4)
+            val ids = for (i <- 0 until 16) yield registry.intern(DpPortTag(i))
+            ids shouldBe (0 until 16)
+            registry.intern(DpPortTag(3)) shouldBe 3
+            registry.size shouldBe 16
+
+            registry.release(3)
+            registry.release(7)
+            registry.id(DpPortTag(3)) shouldBe FlowTagRegistry.NoId
+            registry.tag(7) should be (null)
+            registry.size shouldBe 14
+
+            for (i <- 0 until 16 if i != 3 && i != 7) {
+                registry.id(DpPortTag(i)) shouldBe i
+            }
+            Set(registry.intern(DpPortTag(20)),
+                registry.intern(DpPortTag(21))) shouldBe Set(3, 7)
+            registry.tag(registry.id(DpPortTag(21))) shouldBe DpPortTag(21)
+        }
+    }
 }
@@ -24,7 +24,6 @@ import scala.concurrent.Future
 import akka.actor.ActorSystem
 import com.codahale.metrics.MetricRegistry
 import com.google.inject.Injector
-import com.lmax.disruptor.{RingBuffer, SequenceBarrier}
 import com.typesafe.config.{ConfigFactory, ConfigValueFactory}
 import org.reflections.Reflections
 
@@ -33,7 +32,6 @@ import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.storage.FlowStateStorage
 import org.midonet.midolman.SimulationBackChannel.BackChannelMessage
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.datapath.FlowProcessor
 import org.midonet.midolman.host.scanner.InterfaceScanner
 import org.midonet.midolman.io._
@@ -134,8 +132,7 @@ class MockMidolmanModule(override val hostId: UUID,
         new MockFlowProcessor(flowsTable)
 
     protected override def datapathChannel(
-            ringBuffer: RingBuffer[PacketContextHolder],
-            barrier: SequenceBarrier,
+            capacity: Int,
             flowProcessor: FlowProcessor,
             dpState: DatapathState,
             families: OvsNetlinkFamilies,
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.config
+
+import scala.collection.mutable
+
+import com.typesafe.config.ConfigFactory
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.conf.MidoTestConfigurator
+
+@RunWith(classOf[JUnitRunner])
+class MidolmanConfigWatcherTest extends FeatureSpec
+                                with Matchers
+                                with GivenWhenThen {
+
+    private def agentConfig(localPushState: Boolean) =
+        MidoTestConfigurator.forAgents(ConfigFactory.parseString(
+            s"agent.minions.flow_state.local_push_state : $localPushState"))
+
+    feature("Watcher publishes configuration snapshots") {
+        scenario("A configuration change replaces the snapshot") {
+            Given("A watcher with an initial configuration")
+            val initial = new MidolmanConfig(agentConfig(false))
+            val watcher = new MidolmanConfigWatcher(initial)
+            val changes = mutable.Buffer[(MidolmanConfig, MidolmanConfig)]()
+            watcher.addListener(new MidolmanConfigListener {
+                override def configChanged(previous: MidolmanConfig,
+                                           current: MidolmanConfig): Unit =
+                    changes += ((previous, current))
+            })
+
+            When("The configuration changes")
+            watcher.onNext(agentConfig(true))
+
+            Then("The watcher returns a new snapshot")
+            watcher.get should not be theSameInstanceAs (initial)
+            watcher.get.flowState.localPushState shouldBe true
+
+            And("The initial snapshot is not modified")
+            initial.flowState.localPushState shouldBe false
+
+            And("The listener is notified with both snapshots")
+            changes shouldBe Seq((initial, watcher.get))
+        }
+
+        scenario("An unchanged configuration keeps the snapshot") {
+            Given("A watcher with an initial configuration")
+            val initial = new MidolmanConfig(agentConfig(false))
+            val watcher = new MidolmanConfigWatcher(initial)
+            var notifications = 0
+            watcher.addListener(new MidolmanConfigListener {
+                override def configChanged(previous: MidolmanConfig,
+                                           current: MidolmanConfig): Unit =
+                    notifications += 1
+            })
+
+            When("The same configuration is observed")
+            watcher.onNext(agentConfig(false))
+
+            Then("The snapshot is not replaced")
+            watcher.get shouldBe theSameInstanceAs (initial)
+            notifications shouldBe 0
+        }
+
+        scenario("An invalid configuration keeps the snapshot") {
+            Given("A watcher with an initial configuration")
+            val initial = new MidolmanConfig(agentConfig(false))
+            val watcher = new MidolmanConfigWatcher(initial)
+            var notifications = 0
+            watcher.addListener(new MidolmanConfigListener {
+                override def configChanged(previous: MidolmanConfig,
+                                           current: MidolmanConfig): Unit =
+                    notifications += 1
+            })
+
+            When("A configuration with an invalid setting is observed")
+            watcher.onNext(MidoTestConfigurator.forAgents(
+                ConfigFactory.parseString(
+                    "agent.datapath.control_packet_tos : not-a-tos")))
+
+            Then("The snapshot is not replaced")
+            watcher.get shouldBe theSameInstanceAs (initial)
+            notifications shouldBe 0
+        }
+
+        scenario("A failing listener does not prevent the others") {
+            Given("A watcher with a failing listener and another listener")
+            val watcher =
+                new MidolmanConfigWatcher(new MidolmanConfig(agentConfig(false)))
+            var notifications = 0
+            watcher.addListener(new MidolmanConfigListener {
+                override def configChanged(previous: MidolmanConfig,
+                                           current: MidolmanConfig): Unit =
+                    throw new IllegalStateException()
+            })
+            watcher.addListener(new MidolmanConfigListener {
+                override def configChanged(previous: MidolmanConfig,
+                                           current: MidolmanConfig): Unit =
+                    notifications += 1
+            })
+
+            When("The configuration changes")
+            watcher.onNext(agentConfig(true))
+
+            Then("The second listener is notified")
+            notifications shouldBe 1
+        }
+    }
+}
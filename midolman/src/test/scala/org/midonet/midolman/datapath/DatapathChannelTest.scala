@@ -22,7 +22,7 @@ import java.util.concurrent.{TimeUnit, LinkedBlockingQueue}
 import java.util.{UUID, ArrayList}
 
 import akka.testkit.TestProbe
-import com.lmax.disruptor.{SequenceBarrier, RingBuffer}
+import com.lmax.disruptor.{EventPoller, SequenceBarrier, RingBuffer}
 import org.jctools.queues.SpscArrayQueue
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -42,7 +42,7 @@ import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowAction, FlowActions}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
 import org.midonet.util.collection.ArrayObjectPool
-import org.midonet.util.concurrent.{BackChannelEventProcessor, EventPollerHandlerAdapter, AggregateEventPollerHandler}
+import org.midonet.util.concurrent.{BackChannelEventProcessor, EventPollerHandlerAdapter, AggregateEventPollerHandler, RoundRobinEventProcessor}
 
 @RunWith(classOf[JUnitRunner])
 class DatapathChannelTest extends MidolmanSpec {
@@ -243,6 +243,116 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    feature ("FlowProcessor batches flow creates") {
+        scenario ("Flow creates are written at the end of a batch") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            val metrics = new DatapathMetrics(metricRegistry)
+            val batchFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies,
+                maxPendingRequests = 1024, maxRequestSize = 2048, batchFactory,
+                batchFactory.selectorProvider, simBackChannel,
+                metrics, clock, flowCreateBatchSize = 8)
+
+            def flowCreate(mark: Int): PacketContextHolder = {
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                context.flow.mark = mark
+                new PacketContextHolder(null, context)
+            }
+
+            val managedFlow = new ManagedFlow(null)
+            val flowDelete = new FlowOperation(TestProbe().ref,
+                                               new ArrayObjectPool(0, _ => null),
+                                               new SpscArrayQueue(16))
+            flowDelete.reset(FlowOperation.DELETE, managedFlow, retries = 0)
+
+            for (seq <- 0 until 3) {
+                batchFp.onEvent(flowCreate(seq + 100), seq, endOfBatch = false)
+            }
+            batchChannel.packetsWritten.get() should be (0)
+            batchFp.tryEject(0, datapathId, managedFlow.flowMatch,
+                             flowDelete) should be (false)
+
+            batchFp.onEvent(flowCreate(103), 3, endOfBatch = true)
+            batchChannel.packetsWritten.get() should be (1)
+            batchFp.tryEject(3, datapathId, managedFlow.flowMatch,
+                             flowDelete) should be (true)
+
+            val bb = batchChannel.written.poll()
+            var offset = 0
+            for (seq <- 0 until 4) {
+                bb.getInt(offset + NetlinkMessage.NLMSG_SEQ_OFFSET) should be (seq + 100)
+                bb.getInt(offset + NetlinkMessage.GENL_HEADER_SIZE) should be (datapathId)
+                offset += NetlinkMessage.align(bb.getInt(offset))
+            }
+            offset should be (bb.position())
+
+            metrics.flowCreateBatchSize.getSnapshot.getMax should be (4)
+        }
+    }
+
+    feature ("ShardedDatapathChannel hands off the output of every worker") {
+        scenario ("Workers hand off through their own ring buffer") {
+            val ringBuffers = Array.fill(2)(
+                RingBuffer.createSingleProducer[PacketContextHolder](
+                    DisruptorDatapathChannel.Factory, capacity))
+            val sharded = new ShardedDatapathChannel(
+                ringBuffers,
+                Array.empty[RoundRobinEventProcessor[PacketContextHolder]])
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+
+            sharded.forWorker(1).handoff(context) should be (
+                DatapathChannel.shardSequence(1, 0))
+            sharded.forWorker(1).handoff(context) should be (
+                DatapathChannel.shardSequence(1, 1))
+            sharded.forWorker(0).handoff(context) should be (0)
+
+            ringBuffers(0).getCursor should be (0)
+            ringBuffers(1).getCursor should be (1)
+            ringBuffers(1).get(1).flowCreateRef should be (context)
+        }
+
+        scenario ("Flows are deleted only after they are created in their shard") {
+            val shardFactory = new MockNetlinkChannelFactory
+            val shardChannel = shardFactory.channel
+            val shardFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies,
+                maxPendingRequests = 1024, maxRequestSize = 2048, shardFactory,
+                shardFactory.selectorProvider, simBackChannel,
+                new DatapathMetrics(metricRegistry), clock)
+            val handlers = Array.tabulate[EventPoller.Handler[PacketContextHolder]](
+                2)(shardFp.shardHandler)
+
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+
+            val managedFlow = new ManagedFlow(null)
+            managedFlow.flowMatch.reset(context.origMatch)
+            val flowDelete = new FlowOperation(TestProbe().ref,
+                                               new ArrayObjectPool(0, _ => null),
+                                               new SpscArrayQueue(16))
+            flowDelete.reset(FlowOperation.DELETE, managedFlow, retries = 0)
+
+            val sequence = DatapathChannel.shardSequence(1, 0)
+            shardFp.tryEject(sequence, datapathId, managedFlow.flowMatch,
+                             flowDelete) should be (false)
+
+            handlers(1).onEvent(new PacketContextHolder(null, context), 0,
+                                endOfBatch = true)
+            shardChannel.packetsWritten.get() should be (1)
+
+            shardFp.tryEject(DatapathChannel.shardSequence(0, 0), datapathId,
+                             managedFlow.flowMatch, flowDelete) should be (false)
+            shardFp.tryEject(DatapathChannel.shardSequence(1, 1), datapathId,
+                             managedFlow.flowMatch, flowDelete) should be (false)
+            shardFp.tryEject(sequence, datapathId, managedFlow.flowMatch,
+                             flowDelete) should be (true)
+        }
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
@@ -18,18 +18,24 @@ package org.midonet.midolman.io
 
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
+
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
-import org.scalatest.{OneInstancePerTest, ShouldMatchers, BeforeAndAfter, FeatureSpec}
+import org.scalatest.{OneInstancePerTest, ShouldMatchers, BeforeAndAfter, FeatureSpec, GivenWhenThen}
 
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.monitoring.metrics.DatapathMetrics
+import org.midonet.odp.DpPort
 import org.midonet.odp.ports.{NetDevPort, VxLanTunnelPort, GreTunnelPort}
 import org.midonet.util._
+import org.midonet.util.concurrent.MockClock
 
 @RunWith(classOf[JUnitRunner])
 class TokenBucketPolicyTest extends FeatureSpec
                             with BeforeAndAfter
                             with ShouldMatchers
+                            with GivenWhenThen
                             with OneInstancePerTest {
     var policy: TokenBucketPolicy = _
     val multiplier = 2
@@ -151,4 +157,72 @@ class TokenBucketPolicyTest extends FeatureSpec
             totalTokens should be <= (counter.getValue + 256)
         }
     }
+
+    feature("Upcall admission") {
+        val confStr =
+            """
+              |agent.datapath.global_incoming_burst_capacity = 4
+              |agent.datapath.vm_incoming_burst_capacity = 4
+              |agent.datapath.adaptive_admission = true
+              |agent.datapath.adaptive_admission_interval = 1s
+            """.stripMargin
+
+        scenario("Admitted and dropped upcalls are counted per port") {
+            val metrics = new DatapathMetrics(new MetricRegistry)
+            val policy = new TokenBucketPolicy(
+                MidolmanConfig.forTests(confStr),
+                new TokenBucketTestRate, multiplier,
+                new Bucket(_, 1, null, 0, false), metrics)
+            val port = new NetDevPort("vm")
+            val tb = policy link (port, VirtualMachine)
+
+            val admitted = (0 until 10) count { _ => tb.consumeToken() }
+
+            admitted should be < 10
+            metrics.upcallsAdmitted("vm").getCount should be (admitted.toLong)
+            metrics.upcallsDropped("vm").getCount should be (10L - admitted)
+
+            policy unlink port
+            metrics.registry.getCounters.isEmpty should be (true)
+        }
+
+        scenario("Ports exceeding their fair share are limited under pressure") {
+            val clock = new MockClock
+            val policy = new TokenBucketPolicy(
+                MidolmanConfig.forTests(confStr),
+                new TokenBucketTestRate, multiplier,
+                new Bucket(_, 1, null, 0, false), clock = clock)
+            val port1 = DpPort.fakeFrom(new NetDevPort("vm1"), 1)
+            val port2 = DpPort.fakeFrom(new NetDevPort("vm2"), 2)
+            val tb1 = policy link (port1, VirtualMachine)
+            policy link (port2, VirtualMachine)
+            policy portCreated port1
+            policy portCreated port2
+            policy.adaptive should be (true)
+
+            When("The first port runs out of tokens")
+            (0 until 10) foreach { _ => tb1.consumeToken() }
+
+            And("Its packets take most of the simulation time")
+            policy.recordSimulation(2, 0L, 1000L)
+            policy admissionShare port1 should be (TokenBucketPolicy.FullShare)
+            clock.time = (1 second).toNanos
+            policy.recordSimulation(1, clock.time, clock.time + 9000L)
+
+            Then("The first port is limited to its fair share")
+            val share = policy admissionShare port1
+            share should be < TokenBucketPolicy.FullShare
+            share should be >= TokenBucketPolicy.MinShare
+            policy admissionShare port2 should be (TokenBucketPolicy.FullShare)
+
+            And("The first port drops upcalls before taking tokens")
+            tb1.consumeToken() should be (false)
+
+            When("The buckets no longer run out of tokens")
+            policy.rebalance()
+
+            Then("The first port is no longer limited")
+            policy admissionShare port1 should be (TokenBucketPolicy.FullShare)
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import scala.collection.mutable.ArrayBuffer
+
+import com.codahale.metrics.Meter
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+
+import org.midonet.odp.{FlowMatch, Packet}
+
+@RunWith(classOf[JUnitRunner])
+class UpcallRingsTest extends FeatureSpec
+                      with Matchers
+                      with OneInstancePerTest {
+
+    val dropped = new Meter()
+    val rings = new UpcallRings(4, dropped)
+    val received = new ArrayBuffer[Packet]()
+    val handler: Packet => Unit = received += _
+
+    private def packet() = new Packet(new Array[Byte](64), new FlowMatch())
+
+    feature("Packets are handed over through the rings") {
+        scenario("Packets are drained in order") {
+            val producer = rings.newProducer()
+            rings.hasPackets shouldBe false
+
+            val packets = for (i <- 0 until 4) yield packet()
+            packets foreach { p => producer.publish(p) shouldBe true }
+            rings.hasPackets shouldBe true
+
+            rings.drain(handler, 16) shouldBe 4
+            received shouldBe packets
+            rings.hasPackets shouldBe false
+            rings.drain(handler, 16) shouldBe 0
+        }
+
+        scenario("Draining is bounded per ring") {
+            val producer1 = rings.newProducer()
+            val producer2 = rings.newProducer()
+            val packets1 = for (i <- 0 until 3) yield packet()
+            val packets2 = for (i <- 0 until 3) yield packet()
+            packets1 foreach producer1.publish
+            packets2 foreach producer2.publish
+
+            rings.drain(handler, 2) shouldBe 4
+            received shouldBe packets1.take(2) ++ packets2.take(2)
+            rings.drain(handler, 2) shouldBe 2
+            received.drop(4) shouldBe Seq(packets1(2), packets2(2))
+        }
+
+        scenario("Packets that do not fit are dropped") {
+            val producer = rings.newProducer()
+            for (i <- 0 until 4) {
+                producer.publish(packet()) shouldBe true
+            }
+            producer.publish(packet()) shouldBe false
+            dropped.getCount shouldBe 1
+        }
+
+        scenario("Closed producers are no longer drained") {
+            val producer1 = rings.newProducer()
+            val producer2 = rings.newProducer()
+            producer1.publish(packet())
+            val p = packet()
+            producer2.publish(p)
+
+            producer1.close()
+            rings.drain(handler, 16) shouldBe 1
+            received shouldBe Seq(p)
+        }
+
+        scenario("Publishing wakes an idle worker up once") {
+            val producer = rings.newProducer()
+            var wakeUps = 0
+            rings.setWaker(() => wakeUps += 1)
+
+            producer.publish(packet())
+            wakeUps shouldBe 0
+
+            rings.markIdle() shouldBe false
+            rings.drain(handler, 16) shouldBe 1
+            rings.markIdle() shouldBe true
+
+            producer.publish(packet())
+            producer.publish(packet())
+            wakeUps shouldBe 1
+        }
+
+        scenario("Packets are handed over between threads") {
+            val producer = rings.newProducer()
+            val packets = for (i <- 0 until 10000) yield packet()
+            val thread = new Thread {
+                override def run(): Unit = {
+                    for (p <- packets) {
+                        while (!producer.publish(p)) { }
+                    }
+                }
+            }
+            thread.start()
+            while (received.size < packets.size) {
+                rings.drain(handler, 16)
+            }
+            thread.join()
+            received shouldBe packets
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.midonet.midolman.monitoring
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 
 import java.net.{DatagramPacket, DatagramSocket}
 import java.nio.ByteBuffer
@@ -25,6 +26,7 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
 import org.codehaus.jackson.map.ObjectMapper
+import com.codahale.metrics.MetricRegistry
 import com.google.common.io.BaseEncoding
 import com.google.common.net.HostAndPort
 
@@ -32,6 +34,7 @@ import org.midonet.cluster.flowhistory._
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.SimulationResult
 import org.midonet.midolman.config.{FlowHistoryConfig, MidolmanConfig}
+import org.midonet.midolman.monitoring.metrics.{PacketPipelineMeter, PacketPipelineMetrics}
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
@@ -40,12 +43,13 @@ import org.midonet.odp.flows._
 import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.MidonetEventually
 
 @RunWith(classOf[JUnitRunner])
-class FlowRecorderTest extends MidolmanSpec {
+class FlowRecorderTest extends MidolmanSpec with MidonetEventually {
     feature("flow recording construction") {
         scenario("unconfigured flow history yields null recorder") {
-            val recorder = FlowRecorder(config, hostId)
+            val recorder = FlowRecorder(config, hostId, new MetricRegistry)
             recorder should be (NullFlowRecorder)
         }
     }
@@ -98,7 +102,7 @@ class FlowRecorderTest extends MidolmanSpec {
                 """.stripMargin
             val conf = MidolmanConfig.forTests(confStr)
 
-            val recorder = FlowRecorder(conf, hostId)
+            val recorder = FlowRecorder(conf, hostId, new MetricRegistry)
 
             val data = new Array[Byte](4096)
             val datagram = new DatagramPacket(data, data.length)
@@ -146,7 +150,7 @@ class FlowRecorderTest extends MidolmanSpec {
                 """.stripMargin
             val conf = MidolmanConfig.forTests(confStr)
 
-            val recorder = FlowRecorder(conf, hostId)
+            val recorder = FlowRecorder(conf, hostId, new MetricRegistry)
 
             val data = new Array[Byte](409600)
             val datagram = new DatagramPacket(data, data.length)
@@ -180,6 +184,250 @@ class FlowRecorderTest extends MidolmanSpec {
         }
     }
 
+    feature("Flow records are exported in batches") {
+        scenario("binary records are packed into datagrams") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50024"
+                |agent.flow_history.datagram_size=4096
+                |agent.flow_history.pack_records=true
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val metrics = new PacketPipelineMetrics(new MetricRegistry, 0)
+            val recorder = FlowRecorder(conf, hostId, metrics.registry)
+                .forWorker(metrics)
+
+            val data = new Array[Byte](409600)
+            val datagram = new DatagramPacket(data, data.length)
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                val contexts = for (i <- 0 until 20) yield newContext()
+                for (ctx <- contexts) {
+                    recorder.record(ctx, PacketWorkflow.NoOp)
+                }
+
+                val records = new ArrayBuffer[FlowRecord]
+                while (records.size < contexts.size) {
+                    sock.receive(datagram)
+                    val received = binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength).asScala
+                    if (received.size > 1)
+                        datagram.getLength should be <= 4096
+                    records ++= received
+                }
+
+                records should be (contexts map { ctx =>
+                    FlowRecordBuilder.buildRecord(hostId, ctx,
+                                                  PacketWorkflow.NoOp)
+                })
+                metrics.flowRecords.flowRecordBatchFill.getSnapshot.getMax should be > 0L
+                metrics.flowRecords.flowRecordsDropped.getCount shouldBe 0
+            } finally {
+                sock.close()
+            }
+        }
+
+        scenario("binary records are not packed by default") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50026"
+                |agent.flow_history.datagram_size=4096
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val metrics = new PacketPipelineMetrics(new MetricRegistry, 0)
+            val recorder = FlowRecorder(conf, hostId, metrics.registry)
+                .forWorker(metrics)
+
+            val data = new Array[Byte](409600)
+            val datagram = new DatagramPacket(data, data.length)
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                val contexts = for (i <- 0 until 5) yield newContext()
+                for (ctx <- contexts) {
+                    recorder.record(ctx, PacketWorkflow.NoOp)
+                }
+
+                for (i <- 0 until contexts.size) {
+                    sock.receive(datagram)
+                    binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength) should have size 1
+                }
+                metrics.flowRecords.flowRecordBatchFill.getSnapshot.getMax shouldBe 1L
+            } finally {
+                sock.close()
+            }
+        }
+
+        scenario("pending records are sent when the recorder stops") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50024"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val metrics = new PacketPipelineMetrics(new MetricRegistry, 0)
+            val recorder = FlowRecorder(conf, hostId, metrics.registry)
+            val workerRecorder = recorder.forWorker(metrics)
+
+            val data = new Array[Byte](409600)
+            val datagram = new DatagramPacket(data, data.length)
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                for (i <- 0 until 5) {
+                    workerRecorder.record(newContext(), PacketWorkflow.NoOp)
+                }
+                recorder.stop()
+
+                var received = 0
+                while (received < 5) {
+                    sock.receive(datagram)
+                    received += binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength).size
+                }
+                received shouldBe 5
+            } finally {
+                sock.close()
+            }
+        }
+
+        scenario("released worker recorders are removed once drained") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50024"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val metrics = new PacketPipelineMetrics(new MetricRegistry, 0)
+            val recorder = FlowRecorder(conf, hostId, metrics.registry)
+                .asInstanceOf[AbstractFlowRecorder]
+            val workerRecorder = recorder.forWorker(metrics)
+            recorder.workerRecorders shouldBe 1
+
+            val data = new Array[Byte](409600)
+            val datagram = new DatagramPacket(data, data.length)
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                for (i <- 0 until 5) {
+                    workerRecorder.record(newContext(), PacketWorkflow.NoOp)
+                }
+                workerRecorder.release()
+
+                var received = 0
+                while (received < 5) {
+                    sock.receive(datagram)
+                    received += binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength).size
+                }
+                received shouldBe 5
+                eventually {
+                    recorder.workerRecorders shouldBe 0
+                }
+            } finally {
+                recorder.stop()
+                sock.close()
+            }
+        }
+
+        scenario("records are sampled") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50025"
+                |agent.flow_history.sampling_rate=2
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val metrics = new PacketPipelineMetrics(new MetricRegistry, 0)
+            val recorder = FlowRecorder(conf, hostId, metrics.registry)
+                .forWorker(metrics)
+
+            val data = new Array[Byte](409600)
+            val datagram = new DatagramPacket(data, data.length)
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                val contexts = for (i <- 0 until 4) yield newContext()
+                for (ctx <- contexts) {
+                    recorder.record(ctx, PacketWorkflow.NoOp)
+                }
+
+                val records = new ArrayBuffer[FlowRecord]
+                while (records.size < 2) {
+                    sock.receive(datagram)
+                    records ++= binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength).asScala
+                }
+
+                records map (_.inPort) should be (
+                    Seq(contexts(1).inPortId, contexts(3).inPortId))
+                metrics.flowRecords.flowRecordsSampledOut.getCount shouldBe 2
+            } finally {
+                sock.close()
+            }
+        }
+
+        scenario("the shared recorder reports only recorder metrics") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50027"
+                |agent.flow_history.sampling_rate=2
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+            val registry = new MetricRegistry
+            val recorder = FlowRecorder(conf, hostId, registry)
+
+            try {
+                recorder.record(newContext(), PacketWorkflow.NoOp)
+
+                registry.getNames.asScala.filter(_.contains("worker-")) shouldBe empty
+                registry.meter(
+                    MetricRegistry.name(classOf[PacketPipelineMeter], "shared",
+                                        "flowRecordsSampledOut", "records"))
+                    .getCount shouldBe 1
+            } finally {
+                recorder.stop()
+            }
+        }
+
+        scenario("the ring rejects records when full") {
+            val ring = new FlowRecordRing(4, 16)
+            for (i <- 0 until 4) {
+                ring.offer(ByteBuffer.wrap(Array.fill[Byte](8)(i.toByte))) shouldBe true
+            }
+            ring.offer(ByteBuffer.wrap(new Array[Byte](8))) shouldBe false
+
+            ring.peek().get(0) shouldBe 0
+            ring.poll()
+            ring.offer(ByteBuffer.wrap(new Array[Byte](64))) shouldBe true
+
+            for (i <- 1 until 4) {
+                ring.peek().get(0) shouldBe i
+                ring.poll()
+            }
+            ring.peek().remaining shouldBe 64
+            ring.poll()
+            ring.isEmpty shouldBe true
+            ring.peek() shouldBe null
+        }
+    }
+
     private def newContext(): PacketContext = {
         val ethernet = { eth addr MAC.random -> MAC.random } <<
             { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
@@ -218,19 +466,23 @@ class FlowRecorderTest extends MidolmanSpec {
     }
 
     class TestFlowRecorder(conf: FlowHistoryConfig)
-            extends AbstractFlowRecorder(conf) {
+            extends AbstractFlowRecorder(conf, new MetricRegistry) {
         val buffer = ByteBuffer.allocate(0)
-        override def encodeRecord(pktContext: PacketContext,
-                                  simRes: SimulationResult): ByteBuffer = {
-            buffer
+        override def newEncoder() = new FlowRecordEncoder {
+            override def encodeRecord(pktContext: PacketContext,
+                                      simRes: SimulationResult): ByteBuffer = {
+                buffer
+            }
         }
     }
 
     class ErrorFlowRecorder(conf: FlowHistoryConfig)
-            extends AbstractFlowRecorder(conf) {
-        override def encodeRecord(pktContext: PacketContext,
-                                  simRes: SimulationResult): ByteBuffer = {
-            throw new RuntimeException("foobar")
+            extends AbstractFlowRecorder(conf, new MetricRegistry) {
+        override def newEncoder() = new FlowRecordEncoder {
+            override def encodeRecord(pktContext: PacketContext,
+                                      simRes: SimulationResult): ByteBuffer = {
+                throw new RuntimeException("foobar")
+            }
         }
     }
 }
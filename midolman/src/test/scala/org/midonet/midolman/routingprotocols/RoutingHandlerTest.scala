@@ -30,6 +30,7 @@ import org.mockito.ArgumentMatcher
 import org.mockito.Matchers.{eq => Eq, _}
 import org.mockito.Mockito._
 import org.scalatest._
+import org.scalatest.concurrent.Eventually._
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.mock.MockitoSugar
 
@@ -61,7 +62,9 @@ class RoutingHandlerTest extends FeatureSpecLike
     def vty = bgpd.vty
     var routingHandler: ActorRef = _
     var invalidations = List[FlowTag]()
-    val config = MidolmanConfig.forTests
+    // Write the learned routes immediately, unless a test sets a window.
+    val config = MidolmanConfig.forTests(
+        "agent.router.bgp_route_batch_window : 0ms")
     implicit var as: ActorSystem = _
     val peerRouteToPortAccount = mutable.Map[PeerRoute, UUID]()
 
@@ -277,9 +280,22 @@ class RoutingHandlerTest extends FeatureSpecLike
         }
     }
 
-    def pushRoute(dst: String, gws: String*): Unit = {
+    def matchRoutes(routes: (String, String)*): ArgumentMatcher[Seq[Route]] =
+        new ArgumentMatcher[Seq[Route]] {
+            override def matches(o: AnyRef): Boolean = {
+                val rs = o.asInstanceOf[Seq[Route]]
+                rs.size == routes.size && routes.forall { case (dst, gw) =>
+                    rs.exists(matchRoute(dst, gw).matches(_))
+                }
+            }
+        }
+
+    def pushRoute(dst: String, gws: String*): Unit =
+        pushRoute(routingHandler, dst, gws: _*)
+
+    def pushRoute(handler: ActorRef, dst: String, gws: String*): Unit = {
         val addrs = (gws map (gw => IPv4Addr.fromString(gw))).toSet
-        routingHandler ! RoutingHandler.AddPeerRoutes(
+        handler ! RoutingHandler.AddPeerRoutes(
             IPv4Subnet.fromCidr(dst),
             addrs map (gw => ZebraPath(RIBType.BGP, gw, 100)))
     }
@@ -395,6 +411,49 @@ class RoutingHandlerTest extends FeatureSpecLike
             verify(routingStorage).addRoute(argThat(matchRoute(dst2, gw)),
                                             Eq(rport.id))
         }
+
+        scenario("the routes of an update are published in a batch") {
+            val dst = "10.10.10.0/24"
+            val gw1 = "192.168.80.254"
+            val gw2 = "192.168.80.253"
+
+            pushRoute(dst, gw1, gw2)
+            verify(routingStorage).addRoutes(
+                argThat(matchRoutes(dst -> gw1, dst -> gw2)), Eq(rport.id))
+
+            pushRoute(dst, gw2)
+            verify(routingStorage).removeRoutes(
+                argThat(matchRoutes(dst -> gw1)), Eq(rport.id))
+        }
+
+        scenario("routes are accumulated during the batch window") {
+            val dst1 = "10.10.10.0/24"
+            val dst2 = "10.10.20.0/24"
+            val dst3 = "10.10.30.0/24"
+            val gw = "192.168.80.254"
+
+            val handler = TestActorRef(new TestableRoutingHandler(
+                rport, invalidations ::= _, routingStorage,
+                MidolmanConfig.forTests(
+                    "agent.router.bgp_route_batch_window : 200ms"),
+                bgpd, false, peerRouteToPortAccount))
+
+            pushRoute(handler, dst1, gw)
+            pushRoute(handler, dst2, gw)
+            pushRoute(handler, dst3, gw)
+            handler ! RoutingHandler.RemovePeerRoute(RIBType.BGP,
+                IPv4Subnet.fromCidr(dst3), IPv4Addr.fromString(gw))
+            verify(routingStorage, never()).addRoutes(anyObject(), anyObject())
+
+            eventually(timeout(5 seconds)) {
+                verify(routingStorage).addRoutes(
+                    argThat(matchRoutes(dst1 -> gw, dst2 -> gw)), Eq(rport.id))
+            }
+            verify(routingStorage, never()).addRoute(
+                argThat(matchRoute(dst3, gw)), anyObject())
+            verify(routingStorage, never()).removeRoutes(anyObject(),
+                                                         anyObject())
+        }
     }
 
     feature("reacts to changes in the bgp session configuration") {
@@ -469,6 +528,26 @@ class MockRoutingStorage extends RoutingStorage {
         }
     }
 
+    override def addRoutes(routes: Seq[Route], portId: UUID)
+    : Future[Seq[Route]] = {
+        routes.foreach(addRoute(_, portId))
+        if (broken) {
+            Promise.failed(new StateAccessException("whatever")).future
+        } else {
+            Promise.successful(routes).future
+        }
+    }
+
+    override def removeRoutes(routes: Seq[Route], portId: UUID)
+    : Future[Seq[Route]] = {
+        routes.foreach(removeRoute(_, portId))
+        if (broken) {
+            Promise.failed(new StateAccessException("whatever")).future
+        } else {
+            Promise.successful(routes).future
+        }
+    }
+
     override def learnedRoutes(routerId: UUID, portId: UUID, hostId: UUID)
     : Future[Set[Route]] = {
         if (broken) {
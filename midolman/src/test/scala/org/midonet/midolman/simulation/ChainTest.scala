@@ -17,8 +17,15 @@ package org.midonet.midolman.simulation
 
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.packets.{IPAddr, IPv4, IPv4Addr, TCP}
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -272,6 +279,53 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    /*
+     * compiledChain:
+     *   DNAT tcp 80 to 8080 and continue
+     *   Accept tcp 1000 to 1005 <-- Never matched
+     *   Accept tcp 8080 <-- Stop here, after the DNAT
+     *   Drop <-- Never reached
+     */
+    def testCompiledChainAfterDnatWithContinue(): Unit = {
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+        pktMatch.setNetworkSrc(IPAddr.fromString("10.0.0.1"))
+        pktMatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+        pktMatch.setSrcPort(12345)
+        pktMatch.setDstPort(80)
+        pktCtx = PacketContext.generated(1, null, pktMatch)
+        pktCtx.initialize(
+            new FlowStateTransaction[ConnTrackKey, ConnTrackValue](
+                new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard()),
+            new FlowStateTransaction[NatKey, NatBinding](
+                new ShardedFlowStateTable[NatKey, NatBinding]().addShard()),
+            HappyGoLuckyLeaser,
+            new FlowStateTransaction[TraceKey, TraceContext](
+                new ShardedFlowStateTable[TraceKey, TraceContext]().addShard()))
+
+        def tcpCondition(port: Int) = {
+            val condition = new Condition()
+            condition.nwProto = TCP.PROTOCOL_NUMBER
+            condition.tpDst = new Range[Integer](port)
+            condition
+        }
+
+        val target = IPv4Addr.fromString("10.0.0.2").toInt
+        val dnatRule = new DynamicForwardNatRule(
+            tcpCondition(80), Action.CONTINUE, null, true,
+            Set(new NatTarget(target, target, 8080, 8080)).asJava)
+        val otherRules =
+            for (port <- 1000 to 1005)
+                yield new LiteralRule(tcpCondition(port), Action.ACCEPT)
+        val rules = (dnatRule +: otherRules) ++
+                    List(new LiteralRule(tcpCondition(8080), Action.ACCEPT),
+                         new LiteralRule(Condition.TRUE, Action.DROP))
+        val c = makeChain(rules.toList, compiled = true)
+
+        c.classifier should not be null
+        applyChain(c).action shouldBe Action.ACCEPT
+        pktCtx.wcmatch.getDstPort shouldBe 8080
+    }
+
     private def applyChain(c: Chain) = {
         pktCtx.currentDevice = ownerId
         if (c ne null)
@@ -281,12 +335,15 @@ class ChainTest extends Suite
     }
 
     private def makeChain(rules: List[Rule],
-                          jumpTargets: List[Chain] = Nil): Chain = {
+                          jumpTargets: List[Chain] = Nil,
+                          compiled: Boolean = false): Chain = {
         val chainId = UUID.randomUUID
         val jumpTargetMap = jumpTargets.map(c => (c.id, c)).toMap.asJava
         val name = "Chain-" + chainId.toString
         rules.foreach(_.chainId = chainId)
-        new Chain(chainId, rules.asJava, jumpTargetMap, name)
+        val ruleList = rules.asJava
+        new Chain(chainId, ruleList, jumpTargetMap, name,
+                  classifier = if (compiled) RuleClassifier(ruleList) else null)
     }
 
     private def makeJumpRule(target: Chain) =
@@ -27,11 +27,11 @@ import org.midonet.cluster.data.dhcp.Subnet
 import org.midonet.cluster.data.storage.Storage
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.topology.TopologyBuilder
-import org.midonet.cluster.util.IPSubnetUtil._
+import org.midonet.cluster.util.IPAddressUtil._
 import org.midonet.midolman.NotYetException
-import org.midonet.midolman.topology.VirtualTopology
+import org.midonet.midolman.topology.{DhcpMapper, VirtualTopology}
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.packets.{IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.util.MidonetEventually
 
 @RunWith(classOf[JUnitRunner])
@@ -109,11 +109,10 @@ class DhcpConfigFromNsdbTest extends MidolmanSpec
             store.create(b)
 
             val dhcps = (1 to 3).toList map { i =>
-                val dhcp = createDhcp(bId)
-                dhcp.toBuilder.addAllHosts(List(
+                val dhcp = createDhcp(bId).toBuilder.addAllHosts(List(
                     createDhcpHost(s"h-$i", MAC.random(), IPv4Addr.random),
                     createDhcpHost(s"h-$i", MAC.random(), IPv4Addr.random)
-                ))
+                )).build()
                 store.create(dhcp)
                 dhcp
             }
@@ -125,23 +124,27 @@ class DhcpConfigFromNsdbTest extends MidolmanSpec
                 _b.subnetIds should have size dhcps.size
             }
 
-            When("The subnets are requested ")
-            val subnets = cfg.bridgeDhcpSubnets(bId)
+            When("The subnets are requested")
+            val subnets = eventually {
+                cfg.bridgeDhcpSubnets(bId)
+            }
 
             Then("The list of subnets is as expected")
             subnets should have size dhcps.size
 
             dhcps zip subnets foreach {
-                case (d, s) => cfg.toSubnet(d) shouldEqual s
+                case (d, s) => DhcpMapper.toSubnet(d) shouldEqual s
                 case _ => fail("Unexpected")
             }
 
             And("The hosts can be found")
-            dhcps foreach { dhcp => dhcp.getHostsList foreach { h =>
-                val addr = dhcp.getSubnetAddress.asJava.asInstanceOf[IPv4Subnet]
-                val _h = cfg.dhcpHost(bId, cfg.toSubnet(dhcp), h.getMac)
-                _h shouldBe h
-            }}
+            dhcps zip subnets foreach { case (dhcp, subnet) =>
+                dhcp.getHostsList foreach { h =>
+                    val _h = cfg.dhcpHost(bId, subnet, h.getMac)
+                    _h.map(_.getName) shouldBe Some(h.getName)
+                    _h.map(_.getIp) shouldBe Some(h.getIpAddress.asIPv4Address)
+                }
+            }
 
             And("Non existing hosts are not found")
             cfg.dhcpHost(bId, subnets.head, "aa:bb:cc:dd:ee:ff") shouldBe None
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.cluster.data.dhcp.{ExtraDhcpOpt, Host, Opt121, Subnet}
+import org.midonet.packets._
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class DhcpReplyTemplateTest extends FeatureSpec with Matchers
+                            with GivenWhenThen {
+
+    private val log = Logger(NOPLogger.NOP_LOGGER)
+    private val mac = MAC.random()
+    private val gateway = IPv4Addr.fromString("10.0.0.1")
+
+    private def newSubnet(): Subnet = {
+        val route = new Opt121()
+        route.setRtDstSubnet(IPv4Subnet.fromCidr("192.168.0.0/16"))
+        route.setGateway(gateway)
+        val subnet = new Subnet()
+        subnet.setId(UUID.randomUUID().toString)
+        subnet.setSubnetAddr(IPv4Subnet.fromCidr("10.0.0.0/24"))
+        subnet.setDefaultGateway(gateway)
+        subnet.setServerAddr(IPv4Addr.fromString("10.0.0.2"))
+        subnet.setDnsServerAddrs(List(IPv4Addr.fromString("8.8.8.8")).asJava)
+        subnet.setOpt121Routes(List(route).asJava)
+        subnet
+    }
+
+    private def newHost(extraOpts: (String, String)*): Host = {
+        val host = new Host()
+        host.setMAC(mac)
+        host.setIp(IPv4Addr.fromString("10.0.0.10"))
+        host.setExtraDhcpOpts(extraOpts.map {
+            case (name, value) => new ExtraDhcpOpt(name, value)
+        }.asJava)
+    }
+
+    private def newRequest(): DHCP = {
+        new DHCP().setOpCode(DHCP.OPCODE_REQUEST)
+                  .setTransactionId(0x12345678)
+                  .setClientHardwareAddress(mac)
+    }
+
+    private def dhcpOf(eth: Ethernet): DHCP = {
+        eth.getPayload.getPayload.getPayload.asInstanceOf[DHCP]
+    }
+
+    private def optionOf(dhcp: DHCP, code: DHCPOption.Code): DHCPOption = {
+        dhcp.getOptions.asScala.find(_.getCode == code.value).orNull
+    }
+
+    feature("The template builds DHCP replies") {
+        scenario("The reply contains the subnet and host configuration") {
+            Given("A template")
+            val template = new DhcpReplyTemplate(newSubnet(), newHost(), log)
+
+            When("Building a reply")
+            val reply = template.reply(newRequest(),
+                                       DhcpReplyTemplate.OfferOption, mac,
+                                       1400.toShort)
+
+            Then("The reply has the request and host fields")
+            val dhcp = dhcpOf(reply)
+            dhcp.getOpCode shouldBe DHCP.OPCODE_REPLY
+            dhcp.getTransactionId shouldBe 0x12345678
+            dhcp.getYourIPAddress shouldBe IPv4Addr.fromString("10.0.0.10").addr
+            dhcp.getServerIPAddress shouldBe IPv4Addr.fromString("10.0.0.2").addr
+            reply.getDestinationMACAddress shouldBe mac
+
+            And("The reply has the subnet options")
+            optionOf(dhcp, DHCPOption.Code.DHCP_TYPE).getData shouldBe
+                Array(DHCPOption.MsgType.OFFER.value)
+            optionOf(dhcp, DHCPOption.Code.MASK).getData shouldBe
+                IPv4Addr.fromString("255.255.255.0").toBytes
+            optionOf(dhcp, DHCPOption.Code.BCAST_ADDR).getData shouldBe
+                IPv4Addr.fromString("10.0.0.255").toBytes
+            optionOf(dhcp, DHCPOption.Code.ROUTER).getData shouldBe
+                gateway.toBytes
+            optionOf(dhcp, DHCPOption.Code.DNS).getData shouldBe
+                IPv4Addr.fromString("8.8.8.8").toBytes
+            optionOf(dhcp, DHCPOption.Code.INTERFACE_MTU).getData shouldBe
+                Array[Byte](5, 120)
+
+            And("The classless routes include the default route")
+            optionOf(dhcp, DHCPOption.Code.CLASSLESS_ROUTES).getData shouldBe
+                Array[Byte](16, 192.toByte, 168.toByte, 10, 0, 0, 1,
+                            0, 10, 0, 0, 1)
+
+            And("The last option is the END option")
+            dhcp.getOptions.asScala.last.getCode shouldBe
+                DHCPOption.Code.END.value
+        }
+
+        scenario("Replies do not modify the template") {
+            Given("A template")
+            val subnet = newSubnet()
+            val template = new DhcpReplyTemplate(subnet, newHost(), log)
+
+            When("Building two replies with different MTUs")
+            val reply1 = dhcpOf(template.reply(newRequest(),
+                                               DhcpReplyTemplate.OfferOption,
+                                               mac, 1400.toShort))
+            val reply2 = dhcpOf(template.reply(newRequest(),
+                                               DhcpReplyTemplate.AckOption,
+                                               mac, 1500.toShort))
+
+            Then("The replies have their own message type and MTU")
+            optionOf(reply1, DHCPOption.Code.DHCP_TYPE).getData shouldBe
+                Array(DHCPOption.MsgType.OFFER.value)
+            optionOf(reply2, DHCPOption.Code.DHCP_TYPE).getData shouldBe
+                Array(DHCPOption.MsgType.ACK.value)
+            optionOf(reply2, DHCPOption.Code.INTERFACE_MTU).getData shouldBe
+                Array[Byte](5, 220.toByte)
+
+            And("The other options are the same")
+            reply1.getOptions.size shouldBe reply2.getOptions.size
+            optionOf(reply1, DHCPOption.Code.CLASSLESS_ROUTES) shouldBe
+                optionOf(reply2, DHCPOption.Code.CLASSLESS_ROUTES)
+
+            And("The subnet routes are not modified")
+            subnet.getOpt121Routes should have size 1
+        }
+
+        scenario("Extra options override the template options") {
+            Given("A template for a host with extra options")
+            val template = new DhcpReplyTemplate(
+                newSubnet(),
+                newHost("interface-mtu" -> "1300", "host-name" -> "foobar",
+                        "I am" -> "an invalid option"),
+                log)
+
+            When("Building a reply")
+            val dhcp = dhcpOf(template.reply(newRequest(),
+                                             DhcpReplyTemplate.OfferOption,
+                                             mac, 1400.toShort))
+
+            Then("The reply has the extra options")
+            optionOf(dhcp, DHCPOption.Code.INTERFACE_MTU).getData shouldBe
+                Array[Byte](5, 20)
+            optionOf(dhcp, DHCPOption.Code.HOST_NAME).getData shouldBe
+                "foobar".getBytes
+
+            And("Each option appears once")
+            val codes = dhcp.getOptions.asScala.map(_.getCode)
+            codes.distinct.size shouldBe codes.size
+        }
+    }
+}
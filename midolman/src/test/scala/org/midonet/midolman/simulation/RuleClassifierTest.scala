@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.{ArrayList, HashMap, UUID}
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{ICMP, TCP, UDP}
+import org.midonet.util.Range
+
+@RunWith(classOf[JUnitRunner])
+class RuleClassifierTest extends FeatureSpec with Matchers {
+
+    private val random = new Random(42)
+    private val chainId = UUID.randomUUID()
+
+    private def condition(proto: Option[Byte] = None,
+                          protoInv: Boolean = false,
+                          dstPorts: Option[Range[Integer]] = None,
+                          dstPortsInv: Boolean = false,
+                          conjunctionInv: Boolean = false): Condition = {
+        val cond = new Condition()
+        proto foreach { p => cond.nwProto = p }
+        cond.nwProtoInv = protoInv
+        dstPorts foreach { r => cond.tpDst = r }
+        cond.tpDstInv = dstPortsInv
+        cond.conjunctionInv = conjunctionInv
+        cond
+    }
+
+    private def rule(cond: Condition,
+                     action: Action = Action.ACCEPT): Rule = {
+        val r = new LiteralRule(cond, action, chainId)
+        r.id = UUID.randomUUID()
+        r
+    }
+
+    private def randomRule(): Rule = {
+        val proto = random.nextInt(4) match {
+            case 0 => None
+            case 1 => Some(TCP.PROTOCOL_NUMBER)
+            case 2 => Some(UDP.PROTOCOL_NUMBER)
+            case 3 => Some(ICMP.PROTOCOL_NUMBER)
+        }
+        val dstPorts = random.nextInt(4) match {
+            case 0 => None
+            case 1 => Some(new Range[Integer](random.nextInt(20)))
+            case 2 =>
+                val start = random.nextInt(20)
+                Some(new Range[Integer](start, start + random.nextInt(5)))
+            case 3 => Some(new Range[Integer](null, random.nextInt(20)))
+        }
+        val action = random.nextInt(4) match {
+            case 0 => Action.ACCEPT
+            case 1 => Action.DROP
+            case 2 => Action.REJECT
+            case 3 => Action.RETURN
+        }
+        rule(condition(proto, random.nextInt(8) == 0, dstPorts,
+                       random.nextInt(8) == 0, random.nextInt(16) == 0),
+             action)
+    }
+
+    private def packet(proto: Byte, dstPort: Int): PacketContext = {
+        val fmatch = new FlowMatch()
+        fmatch.setNetworkProto(proto)
+        fmatch.setDstPort(dstPort)
+        PacketContext.generated(1, null, fmatch)
+    }
+
+    private def chain(rules: Seq[Rule], compiled: Boolean): Chain = {
+        val list = new ArrayList[Rule](rules.asJava)
+        new Chain(chainId, list, new HashMap[UUID, Chain](), "chain",
+                  classifier = if (compiled) RuleClassifier(list) else null)
+    }
+
+    feature("Rule classifier construction") {
+        scenario("Short rule lists are not compiled") {
+            val rules = new ArrayList[Rule]()
+            for (index <- 0 until RuleClassifier.MinRules - 1) {
+                rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER))))
+            }
+            RuleClassifier(rules) shouldBe null
+
+            rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER))))
+            RuleClassifier(rules) should not be null
+        }
+    }
+
+    feature("Rule classifier returns the candidate rules") {
+        scenario("Rules are classified by protocol and destination port") {
+            val rules = new ArrayList[Rule]()
+            for (port <- 0 until 8) {
+                rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER),
+                                         dstPorts = Some(new Range[Integer](port)))))
+            }
+            rules.add(rule(condition(Some(UDP.PROTOCOL_NUMBER))))
+            rules.add(rule(condition()))
+            val classifier = RuleClassifier(rules)
+
+            classifier.candidates(packet(TCP.PROTOCOL_NUMBER, 3).wcmatch) shouldBe
+                Array(3, 9)
+            classifier.candidates(packet(TCP.PROTOCOL_NUMBER, 80).wcmatch) shouldBe
+                Array(9)
+            classifier.candidates(packet(UDP.PROTOCOL_NUMBER, 3).wcmatch) shouldBe
+                Array(8, 9)
+            classifier.candidates(packet(ICMP.PROTOCOL_NUMBER, 0).wcmatch) shouldBe
+                Array(9)
+        }
+
+        scenario("Inverted conditions are candidates for every packet") {
+            val rules = new ArrayList[Rule]()
+            for (port <- 0 until 6) {
+                rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER),
+                                         dstPorts = Some(new Range[Integer](port)))))
+            }
+            rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER), protoInv = true)))
+            rules.add(rule(condition(Some(TCP.PROTOCOL_NUMBER),
+                                     dstPorts = Some(new Range[Integer](1)),
+                                     dstPortsInv = true)))
+            rules.add(rule(condition(Some(UDP.PROTOCOL_NUMBER),
+                                     conjunctionInv = true)))
+            val classifier = RuleClassifier(rules)
+
+            classifier.candidates(packet(TCP.PROTOCOL_NUMBER, 2).wcmatch) shouldBe
+                Array(2, 6, 7, 8)
+            classifier.candidates(packet(UDP.PROTOCOL_NUMBER, 2).wcmatch) shouldBe
+                Array(6, 8)
+        }
+
+        scenario("Conditions on the flow direction are always candidates") {
+            val rules = new ArrayList[Rule]()
+            for (port <- 0 until 8) {
+                val cond = condition(Some(TCP.PROTOCOL_NUMBER),
+                                     dstPorts = Some(new Range[Integer](port)))
+                cond.matchForwardFlow = port == 0
+                cond.matchReturnFlow = port == 1
+                rules.add(rule(cond))
+            }
+            val classifier = RuleClassifier(rules)
+
+            classifier.candidates(packet(UDP.PROTOCOL_NUMBER, 5).wcmatch) shouldBe
+                Array(0, 1)
+        }
+    }
+
+    feature("Compiled chains preserve the chain semantics") {
+        scenario("Compiled and linear chains return the same results") {
+            for (iteration <- 0 until 50) {
+                val rules = for (index <- 0 until 8 + random.nextInt(64))
+                    yield randomRule()
+                val linear = chain(rules, compiled = false)
+                val compiled = chain(rules, compiled = true)
+
+                for (proto <- Seq(TCP.PROTOCOL_NUMBER, UDP.PROTOCOL_NUMBER,
+                                  ICMP.PROTOCOL_NUMBER);
+                     port <- 0 until 30) {
+                    val linearContext = packet(proto, port)
+                    val compiledContext = packet(proto, port)
+
+                    val linearResult = linear.process(linearContext)
+                    val compiledResult = compiled.process(compiledContext)
+
+                    compiledResult.action shouldBe linearResult.action
+                    compiledContext.traversedRules shouldBe
+                        linearContext.traversedRules
+                    compiledContext.traversedRuleResults shouldBe
+                        linearContext.traversedRuleResults
+                    compiledContext.traversedRulesMatched shouldBe
+                        linearContext.traversedRulesMatched
+                    compiledContext.traversedRulesApplied shouldBe
+                        linearContext.traversedRulesApplied
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch}
+
+import scala.collection.mutable
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.NatBlockAllocator.NoFreeNatBlocksException
+import org.midonet.midolman.state.NatLeaser.{NoNatBindingException, blend, blockOf}
+import org.midonet.packets.IPv4Addr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class BitmapNatLeaserTest extends FeatureSpec
+                                  with ShouldMatchers
+                                  with OneInstancePerTest {
+
+    val dev = UUID.randomUUID()
+    val clock = new MockClock()
+    val allocatedBlocks = mutable.Set[NatBlock]()
+    val natLeaser = new BitmapNatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val allocator: NatBlockAllocator = new NatBlockAllocator {
+            override def allocateBlockInRange(natRange: NatRange) =
+                (natRange.tpPortStart to natRange.tpPortEnd) map { port =>
+                    new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
+                } find { block =>
+                    if (allocatedBlocks contains block) {
+                        false
+                    } else {
+                        allocatedBlocks += block
+                        true
+                    }
+                } map Future.successful getOrElse Future.failed(NoFreeNatBlocksException)
+
+            override def freeBlock(natBlock: NatBlock): Unit = {}
+        }
+
+        override val clock = BitmapNatLeaserTest.this.clock
+    }
+
+    private def bucketOf(ip: IPv4Addr, port: Int): Int =
+        BitmapNatLeaser.bucketOf(blend(ip, port))
+
+    /* Returns the first destination IP after the given one whose bucket for
+     * the port is, or is not, the bucket of the given destination. */
+    private def nextDestination(ip: IPv4Addr, port: Int,
+                                sameBucket: Boolean): IPv4Addr = {
+        val bucket = bucketOf(ip, port)
+        var next = ip.next
+        while ((bucketOf(next, port) == bucket) != sameBucket)
+            next = next.next
+        next
+    }
+
+    feature("NatBindings are allocated") {
+        scenario("Simple case") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11000,
+                                          30000)
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, IPv4Addr.random, 10, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, IPv4Addr.random, 10, Array(natTarget))
+
+            binding.networkAddress should be (natTarget.nwStart)
+            binding.transportPort should be >= natTarget.tpStart
+            binding.transportPort should be <= natTarget.tpEnd
+        }
+
+        scenario("Destinations in different buckets share a port") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11000,
+                                          11000)
+            val ip1 = IPv4Addr.random
+            val ip2 = nextDestination(ip1, 10, sameBucket = false)
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip1, 10, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip1, 10, Array(natTarget))
+            val otherBinding = natLeaser.allocateNatBinding(dev, ip2, 10, Array(natTarget))
+
+            binding should be (otherBinding)
+        }
+
+        scenario("Destinations in the same bucket do not share a port") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11000,
+                                          11000)
+            val ip1 = IPv4Addr.random
+            val ip2 = nextDestination(ip1, 10, sameBucket = true)
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip1, 10, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip1, 10, Array(natTarget))
+            binding.networkAddress should be (natTarget.nwStart)
+            binding.transportPort should be (natTarget.tpStart)
+
+            val f = intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip2, 10, Array(natTarget))
+            }
+
+            trap { f.waitFor.value.get.get } should be (NoNatBindingException)
+        }
+
+        scenario("Round robin allocation") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11200,
+                                          30000)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            val nextBinding = natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+
+            binding.networkAddress should be (natTarget.nwStart)
+            binding.transportPort should be >= natTarget.tpStart
+            binding.transportPort should be <= natTarget.tpEnd
+
+            nextBinding.networkAddress should be (binding.networkAddress)
+            nextBinding.transportPort should not be binding.transportPort
+        }
+
+        scenario("Multiple blocks same IP") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          NatBlock.BLOCK_SIZE - 1,
+                                          NatBlock.BLOCK_SIZE)
+            val ip = IPv4Addr.random
+            val port = 0
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            val nextBinding = natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+
+            binding.networkAddress should be (IPv4Addr("10.0.1.1"))
+            binding.transportPort should be (NatBlock.BLOCK_SIZE - 1)
+
+            nextBinding.networkAddress should be (IPv4Addr("10.0.1.1"))
+            nextBinding.transportPort should be (NatBlock.BLOCK_SIZE)
+
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 0),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1)))
+        }
+
+        scenario("Concurrent allocations lease distinct bindings") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            }
+
+            val threads = 4
+            val bindings = new ConcurrentHashMap[NatBinding, Integer]()
+            val latch = new CountDownLatch(1)
+            val workers = for (t <- 0 until threads) yield new Thread {
+                override def run(): Unit = {
+                    latch.await()
+                    for (i <- 0 until NatBlock.BLOCK_SIZE / threads) {
+                        val binding = natLeaser.allocateNatBinding(
+                            dev, ip, 80, Array(natTarget))
+                        bindings.put(binding, t)
+                    }
+                }
+            }
+            workers foreach (_.start())
+            latch.countDown()
+            workers foreach (_.join())
+
+            bindings.size should be (NatBlock.BLOCK_SIZE)
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            }
+        }
+    }
+
+    feature("NatBindings are released") {
+        scenario("Multiple references") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1,
+                                          2)
+            val ip = IPv4Addr.random
+            val port = 0
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            val otherBinding = natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+
+            binding.networkAddress should be (otherBinding.networkAddress)
+            binding.transportPort should not be otherBinding.transportPort
+
+            natLeaser.freeNatBinding(dev, ip, port, binding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            natLeaser.obliterateUnusedBlocks()
+
+            val recoveredBinding = natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            recoveredBinding should be (binding)
+
+            natLeaser.freeNatBinding(dev, ip, port, recoveredBinding)
+            natLeaser.freeNatBinding(dev, ip, port, otherBinding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            natLeaser.obliterateUnusedBlocks()
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+        }
+
+        scenario("Freeing a binding twice releases it once") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1,
+                                          2)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            }
+
+            val binding = natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            val otherBinding = natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            natLeaser.freeNatBinding(dev, ip, 80, binding)
+            natLeaser.freeNatBinding(dev, ip, 80, binding)
+
+            clock.time += (NatLeaser.BLOCK_EXPIRATION * 2).toNanos
+            natLeaser.obliterateUnusedBlocks()
+
+            natLeaser.allocateNatBinding(dev, ip, 80, Array(natTarget)) should be (binding)
+            natLeaser.freeNatBinding(dev, ip, 80, otherBinding)
+        }
+    }
+
+    feature("NAT blocks are registered once") {
+        scenario("A block registered twice keeps its lease") {
+            var freed = 0
+            val leaser = new BitmapNatLeaser {
+                override val log = Logger(NOPLogger.NOP_LOGGER)
+                override val allocator = new MockNatBlockAllocator {
+                    override def freeBlock(natBlock: NatBlock): Unit =
+                        freed += 1
+                }
+                override val clock = BitmapNatLeaserTest.this.clock
+                def register(block: NatBlock): Unit = registerNewBlock(block)
+            }
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1,
+                                          2)
+            val ip = IPv4Addr.random
+            val block = new NatBlock(dev, IPv4Addr("10.0.1.1"), 0)
+
+            leaser.register(block)
+            val binding = leaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+            leaser.register(block)
+            val otherBinding = leaser.allocateNatBinding(dev, ip, 80, Array(natTarget))
+
+            otherBinding should not be binding
+
+            leaser.freeNatBinding(dev, ip, 80, binding)
+            leaser.freeNatBinding(dev, ip, 80, otherBinding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION * 2).toNanos
+            leaser.obliterateUnusedBlocks()
+
+            freed should be (1)
+        }
+    }
+}
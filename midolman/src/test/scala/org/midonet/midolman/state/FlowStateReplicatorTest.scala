@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.net.DatagramSocket
+import java.net.{DatagramPacket, DatagramSocket}
 import java.nio.ByteBuffer
 import java.util.{ArrayList, Collection, HashSet => JHashSet}
 import java.util.{UUID, Set => JSet}
@@ -26,6 +26,7 @@ import scala.collection.JavaConversions._
 import scala.concurrent.Future
 import scala.concurrent.duration._
 
+import com.codahale.metrics.{Histogram, UniformReservoir}
 import com.typesafe.config.ConfigFactory
 
 import org.slf4j.helpers.NOPLogger
@@ -39,7 +40,7 @@ import org.midonet.cluster.services.MidonetBackend._
 import org.midonet.cluster.services.vxgw.FloodingProxyHerald.FloodingProxy
 import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.cluster.util.UUIDUtil.{fromProto, toProto}
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, MidolmanConfigWatcher}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.{HostRequestProxy, UnderlayResolver}
 import org.midonet.midolman.datapath.StatePacketExecutor
@@ -57,7 +58,9 @@ import org.midonet.packets.NatState._
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.services.flowstate.{FlowStateInternalMessageHeaderSize, FlowStateInternalMessageType}
+import org.midonet.util.concurrent.{MockClock, NanoClock}
 import org.midonet.util.functors.Callback0
 import org.midonet.util.reactivex._
 import org.mockito.Mockito._
@@ -192,6 +195,13 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
             """.stripMargin
         ))
 
+    val aggregateMidolmanConfig = MidolmanConfig.forTests(
+        ConfigFactory.parseString(
+            s"""
+               |agent.datapath.aggregate_state_packets : true
+            """.stripMargin
+        ))
+
     override def beforeTest(): Unit = {
         ingressPortNoGroup = makePort(hostId)
         egressPortNoGroup = makePort(hostId)
@@ -396,6 +406,9 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
             val (packet, context) = sendState(ingressPort.getId, egressPort1.getId)
             acceptPushedState(packet)
 
+            And("The flow state batch is flushed")
+            recipient.flushState()
+
             Then("The flow state is forwarded to the minion")
             verify(recipient.flowStateSocket, times(1)).send(mockito.any())
             recipient.localConfig = midolmanConfig
@@ -409,9 +422,265 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
             val (packet, context) = sendState(ingressPort.getId, egressPort1.getId)
             acceptPushedState(packet)
 
+            And("The flow state batch is flushed")
+            recipient.flushState()
+
             Then("The flow state is forwarded to the minion")
             verify(recipient.flowStateSocket, times(0)).send(mockito.any())
         }
+
+        scenario("Configuration changes apply to the incoming keys") {
+            Given("A replicator listening to the configuration changes")
+            val watcher = new MidolmanConfigWatcher(midolmanConfig)
+            val replicator = new ShardedFlowStateReplicator(
+                new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard(),
+                new ShardedFlowStateTable[NatKey, NatBinding]().addShard())
+            watcher.addListener(replicator)
+
+            When("The local flow state storage is enabled at runtime")
+            watcher.onNext(localStoreMidolmanConfig.conf)
+
+            And("The replicator accepts a state message")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (packet, _) = sendState(ingressPort.getId, egressPort1.getId)
+            replicator.accept(packet.getEthernet)
+            replicator.flushState()
+
+            Then("The flow state is forwarded to the minion")
+            verify(replicator.flowStateSocket, times(1)).send(mockito.any())
+        }
+
+        scenario("Flow state messages are sent to the minion in batches") {
+            Given("Two conntrack keys in separate transactions")
+            val contexts = for (key <- connTrackKeys) yield {
+                connTrackTx.putAndRef(key, ConnTrackState.RETURN_FLOW)
+                val (_, context) = sendState(ingressPort.getId,
+                                             egressPort1.getId)
+                sender.touchState(context)
+                context
+            }
+
+            Then("No datagram is sent before the batch is flushed")
+            verify(sender.flowStateSocket, times(0)).send(mockito.any())
+
+            When("The batch is flushed")
+            sender.flushState()
+
+            Then("A single datagram is sent with both messages")
+            val captor = ArgumentCaptor.forClass(classOf[DatagramPacket])
+            verify(sender.flowStateSocket, times(1)).send(captor.capture())
+            val datagram = captor.getValue
+            val buffer = ByteBuffer.wrap(datagram.getData, datagram.getOffset,
+                                         datagram.getLength)
+            buffer.getInt shouldBe FlowStateInternalMessageType.FlowStateBatch
+            buffer.getInt shouldBe
+                datagram.getLength - FlowStateInternalMessageHeaderSize
+            for (context <- contexts) {
+                val length = buffer.getInt
+                length shouldBe context.stateMessageLength
+                val data = new Array[Byte](length)
+                buffer.get(data)
+                data shouldBe context.stateMessage.take(length)
+            }
+            buffer.hasRemaining shouldBe false
+
+            And("The batch size is recorded")
+            sender.batchSizeHistogram.getSnapshot.getValues shouldBe Array(2L)
+
+            When("The empty batch is flushed")
+            sender.flushState()
+
+            Then("No other datagram is sent")
+            verify(sender.flowStateSocket, times(1)).send(mockito.any())
+        }
+    }
+
+    feature("Aggregated L4 flow state replication") {
+        def aggregatingSender(clock: NanoClock = NanoClock.DEFAULT): Unit = {
+            sender = new TestableFlowStateReplicator(
+                senderUnderlay, aggregateMidolmanConfig, clock)
+            connTrackTx = new ConnTrackTx(sender.conntrackTable)
+            natTx = new NatTx(sender.natTable)
+            traceTx = new TraceTx(sender.traceTable)
+        }
+
+        def peerStatePackets(): List[(Packet, List[FlowAction])] = {
+            val actions = new ArrayList[FlowAction]()
+            var packets = List.empty[(Packet, List[FlowAction])]
+            var message = new Array[Byte](
+                FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+            var length = sender.nextPeerState(message, actions)
+            while (length > 0) {
+                val udpShell = new FlowStateEthernet(message)
+                udpShell.limit(length)
+                val packet = new Packet(udpShell,
+                                        FlowMatches.fromEthernetPacket(udpShell))
+                packets :+= ((packet, actions.toList))
+                actions.clear()
+                message = new Array[Byte](
+                    FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+                length = sender.nextPeerState(message, actions)
+            }
+            packets
+        }
+
+        scenario("Keys of a batch with the same peers are sent in one packet") {
+            Given("A replicator aggregating the state for peers")
+            aggregatingSender()
+
+            When("The keys of two flows are added to the replicator")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (_, context1) = sendState(ingressPort.getId, egressPort1.getId)
+            connTrackTx.putAndRef(connTrackKeys(1), ConnTrackState.RETURN_FLOW)
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+            }
+            val (_, context2) = sendState(ingressPort.getId, egressPort1.getId)
+
+            Then("The contexts do not send state packets")
+            context1.stateActions should have size 0
+            context2.stateActions should have size 0
+
+            And("The contexts have the messages for the flow state minion")
+            context1.stateMessageLength should be > 0
+            context2.stateMessageLength should be > 0
+
+            When("The aggregated state is taken at the end of the batch")
+            val packets = peerStatePackets()
+
+            Then("A single packet is sent to the peers")
+            packets should have size 1
+            val (packet, actions) = packets.head
+            actions should not be empty
+
+            And("The peer's stateful tables should contain all the keys")
+            acceptPushedState(packet)
+            for (key <- connTrackKeys) {
+                recipient.conntrackTable.get(key) shouldBe ConnTrackState.RETURN_FLOW
+            }
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) shouldBe v
+            }
+
+            And("There is no other state for the batch")
+            peerStatePackets() shouldBe empty
+        }
+
+        scenario("Aggregated packets are smaller than the MTU") {
+            Given("A replicator aggregating the state for peers")
+            aggregatingSender()
+
+            When("The keys of many flows are added to the replicator")
+            val keys = for (index <- 1 to 300) yield
+                ConnTrackKey(IPv4Addr.fromInt(0x0a000000 + index), 1000 + index,
+                             "10.1.0.1", 80, 6, conntrackDevice)
+            for (key <- keys) {
+                connTrackTx.putAndRef(key, ConnTrackState.RETURN_FLOW)
+                sendState(ingressPort.getId, egressPort1.getId)
+            }
+
+            Then("The keys are sent in a few packets smaller than the MTU")
+            val packets = peerStatePackets()
+            packets.size should be > 1
+            packets.size should be < 30
+            for ((packet, _) <- packets) {
+                packet.getData.length should be <= (FlowStateEthernet.MTU -
+                    FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+                acceptPushedState(packet)
+            }
+
+            And("The peer's stateful tables should contain all the keys")
+            for (key <- keys) {
+                recipient.conntrackTable.get(key) shouldBe ConnTrackState.RETURN_FLOW
+            }
+        }
+
+        scenario("Keys recently sent to the same peers are not sent again") {
+            Given("A replicator aggregating the state for peers")
+            val clock = new MockClock
+            aggregatingSender(clock)
+
+            When("A key is sent to the peers")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort1.getId)
+            peerStatePackets() should have size 1
+
+            And("Another flow has the same key shortly after")
+            clock.time += 1.second.toNanos
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort1.getId)
+
+            Then("The key is not sent again")
+            peerStatePackets() shouldBe empty
+
+            When("Another flow with different peers has the same key")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort2.getId)
+
+            Then("The key is sent to those peers")
+            peerStatePackets() should have size 1
+
+            When("The key is used after half of its idle expiration")
+            clock.time += connTrackKeys.head.expiresAfter.toNanos / 2
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort2.getId)
+
+            Then("The key is sent again to refresh the peers")
+            peerStatePackets() should have size 1
+        }
+
+        scenario("Keys that could not be sent are sent with the next flow") {
+            Given("A replicator aggregating the state for peers")
+            aggregatingSender()
+
+            When("A key is added while there is no route to the peers")
+            senderUnderlay.peers = Map.empty
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort1.getId)
+
+            Then("No packet is sent to the peers")
+            peerStatePackets() shouldBe empty
+
+            When("Another flow has the same key once the peers are reachable")
+            senderUnderlay.peers = peers
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendState(ingressPort.getId, egressPort1.getId)
+
+            Then("The key is sent to the peers")
+            peerStatePackets() should have size 1
+        }
+
+        scenario("Flows with tracing send their own state packet") {
+            Given("A replicator aggregating the state for peers")
+            aggregatingSender()
+
+            When("The keys of a traced flow are added to the replicator")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val context = packetContextFor(ethernet, ingressPort.getId)
+            context.outPorts.add(egressPort1.getId)
+            context.enableTracing(UUID.randomUUID())
+            sender.accumulateNewKeys(context)
+            connTrackTx.commit()
+
+            Then("The context sends the state to the peers")
+            context.stateActions should not be empty
+            peerStatePackets() shouldBe empty
+        }
+
+        scenario("Known keys do not invalidate the peer's flows") {
+            Given("A key received from a peer")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendAndAcceptTransactions()
+            mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
+            mockFlowInvalidation.getAndClear()
+
+            When("The peer receives the same key again")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            sendAndAcceptTransactions()
+
+            Then("The flows tagged with the key are not invalidated")
+            mockFlowInvalidation.tags shouldBe empty
+        }
     }
 
     feature("Unref callbacks are correctly added") {
@@ -613,6 +882,56 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
             Then("Flows tagged with it should be invalidated")
             mockFlowInvalidation should haveInvalidated (k)
         }
+
+        scenario("For nat keys whose binding changed") {
+            Given("A nat key received from a peer")
+            val (k, v) = natMappings.head
+            natTx.putAndRef(k, v)
+            sendAndAcceptTransactions()
+            mockFlowInvalidation.getAndClear()
+
+            When("The host receives the key with another binding")
+            natTx.putAndRef(k, NatBinding("5.6.7.8", 23456))
+            sendAndAcceptTransactions()
+
+            Then("Flows tagged with it should be invalidated")
+            mockFlowInvalidation should haveInvalidated (k)
+        }
+
+        scenario("For keys received by another shard") {
+            Given("Two replicators with shards of the same tables")
+            val conntrackTable =
+                new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]()
+            val natTable = new ShardedFlowStateTable[NatKey, NatBinding]()
+            val replicator1 = new ShardedFlowStateReplicator(
+                conntrackTable.addShard(), natTable.addShard())
+            val replicator2 = new ShardedFlowStateReplicator(
+                conntrackTable.addShard(), natTable.addShard())
+
+            When("The first replicator receives a conntrack key")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (packet1, _) = sendState(ingressPort.getId, egressPort1.getId)
+            replicator1.accept(packet1.getEthernet)
+            mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
+            mockFlowInvalidation.getAndClear()
+
+            And("The second replicator receives the same key")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (packet2, _) = sendState(ingressPort.getId, egressPort1.getId)
+            replicator2.accept(packet2.getEthernet)
+
+            Then("The flows of the second worker should be invalidated")
+            mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
+            mockFlowInvalidation.getAndClear()
+
+            When("The first replicator receives the key again")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (packet3, _) = sendState(ingressPort.getId, egressPort1.getId)
+            replicator1.accept(packet3.getEthernet)
+
+            Then("No flows should be invalidated")
+            mockFlowInvalidation.tags shouldBe empty
+        }
     }
 
     feature("Importing flow state from storage") {
@@ -631,14 +950,18 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
     }
 
     class TestableFlowStateReplicator(
-            val underlay: UnderlayResolver) extends {
+            val underlay: UnderlayResolver,
+            replicatorConfig: MidolmanConfig = midolmanConfig,
+            clock: NanoClock = NanoClock.DEFAULT) extends {
         val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
         val natTable = new MockFlowStateTable[NatKey, NatBinding]()
         val traceTable = new MockFlowStateTable[TraceKey, TraceContext]()
-        var localConfig = midolmanConfig
+        var localConfig = replicatorConfig
+        val batchSizeHistogram = new Histogram(new UniformReservoir)
     } with FlowStateReplicator(conntrackTable, natTable, traceTable,
                                hostId, peerResolver, underlay,
-                               mockFlowInvalidation, midolmanConfig) {
+                               mockFlowInvalidation, midolmanConfig,
+                               batchSizeHistogram, clock) {
 
         var numIncomingFlowStateMessagesReceived = 0
 
@@ -657,8 +980,20 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
         }
     }
 
+    class ShardedFlowStateReplicator(
+            conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
+            natTable: FlowStateTable[NatKey, NatBinding])
+        extends FlowStateReplicator(
+            conntrackTable, natTable,
+            new MockFlowStateTable[TraceKey, TraceContext](),
+            hostId, peerResolver, recipientUnderlay, mockFlowInvalidation,
+            midolmanConfig) {
+
+        override val flowStateSocket = mock(classOf[DatagramSocket])
+    }
+
     class MockUnderlayResolver(hostId: UUID, hostIp: IPv4Addr,
-                               peers: Map[UUID, IPv4Addr]) extends UnderlayResolver {
+                               var peers: Map[UUID, IPv4Addr]) extends UnderlayResolver {
 
         import org.midonet.midolman.UnderlayResolver.Route
 
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue, RETURN_FLOW}
+import org.midonet.midolman.state.NatState.{NatCodec, NatKey}
+import org.midonet.packets.NatState._
+import org.midonet.packets.{FlowStateStore, ICMP, IPv4Addr, IPv6Addr, TCP}
+import org.midonet.sdn.state.OffHeapFlowStateTable
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class OffHeapFlowStateTableTest extends FeatureSpec
+                                with Matchers
+                                with BeforeAndAfter
+                                with OneInstancePerTest {
+
+    val clock = new MockClock()
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val device = UUID.randomUUID()
+    val expiration = FlowStateStore.DEFAULT_EXPIRATION.toNanos
+
+    val connTrackTable = new OffHeapFlowStateTable[ConnTrackKey, ConnTrackValue](
+        ConnTrackCodec, 64, clock)
+    val natTable = new OffHeapFlowStateTable[NatKey, NatBinding](
+        NatCodec, 64, clock)
+
+    after {
+        connTrackTable.close()
+        natTable.close()
+    }
+
+    private def connTrackKey(i: Int): ConnTrackKey =
+        ConnTrackKey(IPv4Addr.fromInt(0x0a000000 + i), 1024 + i,
+                     IPv4Addr("10.1.0.1"), 80, TCP.PROTOCOL_NUMBER, device)
+
+    private def natKey(i: Int): NatKey =
+        NatKey(FWD_SNAT, IPv4Addr.fromInt(0x0a000000 + i), 1024 + i,
+               IPv4Addr("10.1.0.1"), 80, TCP.PROTOCOL_NUMBER, device)
+
+    private def binding(i: Int) = NatBinding(IPv4Addr("192.168.0.1"), 1024 + i)
+
+    private def collector[K, V] = new Reducer[K, V, List[(K, V)]] {
+        override def apply(acc: List[(K, V)], key: K, value: V) =
+            (key, value) :: acc
+    }
+
+    feature("Entries are encoded off-heap") {
+        scenario("Connection tracking keys are decoded as they were stored") {
+            val shard = connTrackTable.addShard(log)
+            val keys = List(
+                connTrackKey(1),
+                ConnTrackKey(IPv4Addr("10.0.0.1"), -42, IPv4Addr("10.0.0.2"),
+                             -42, ICMP.PROTOCOL_NUMBER, device),
+                ConnTrackKey(IPv6Addr("fe80::1"), 1234, IPv6Addr("fe80::2"),
+                             80, TCP.PROTOCOL_NUMBER, device),
+                ConnTrackKey(IPv4Addr("10.0.0.1"), 65535, IPv4Addr("10.0.0.2"),
+                             0, TCP.PROTOCOL_NUMBER, UUID.randomUUID()))
+
+            for (key <- keys) {
+                shard.putAndRef(key, RETURN_FLOW) shouldBe null
+            }
+
+            for (key <- keys) {
+                shard.get(key) should be theSameInstanceAs RETURN_FLOW
+            }
+            val entries = shard.fold(List.empty[(ConnTrackKey, ConnTrackValue)],
+                                     collector[ConnTrackKey, ConnTrackValue])
+            entries.map(_._1) should contain theSameElementsAs keys
+        }
+
+        scenario("NAT keys and bindings are decoded as they were stored") {
+            val shard = natTable.addShard(log)
+            val keyTypes = List(FWD_SNAT, FWD_DNAT, FWD_STICKY_DNAT,
+                                REV_SNAT, REV_DNAT, REV_STICKY_DNAT)
+            val keys = keyTypes.zipWithIndex map { case (keyType, i) =>
+                NatKey(keyType, IPv4Addr("255.255.255.254"), 65535 - i,
+                       IPv4Addr.fromInt(i), i, TCP.PROTOCOL_NUMBER, device)
+            }
+
+            for ((key, i) <- keys.zipWithIndex) {
+                shard.putAndRef(key, binding(i)) shouldBe null
+            }
+
+            for ((key, i) <- keys.zipWithIndex) {
+                shard.get(key) shouldBe binding(i)
+            }
+            val entries = shard.fold(List.empty[(NatKey, NatBinding)],
+                                     collector[NatKey, NatBinding])
+            entries should contain theSameElementsAs keys.zipWithIndex.map {
+                case (key, i) => (key, binding(i))
+            }
+        }
+
+        scenario("Putting an existing key replaces its value") {
+            val shard = natTable.addShard(log)
+            shard.putAndRef(natKey(1), binding(1))
+            shard.putAndRef(natKey(1), binding(2)) shouldBe binding(1)
+            shard.get(natKey(1)) shouldBe binding(2)
+            shard.getRefCount(natKey(1)) shouldBe 2
+        }
+    }
+
+    feature("Entries are shared among shards") {
+        scenario("Entries are visible from other shards") {
+            val shard1 = natTable.addShard(log)
+            val shard2 = natTable.addShard(log)
+
+            shard1.putAndRef(natKey(1), binding(1))
+            shard2.putAndRef(natKey(2), binding(2))
+
+            shard1.get(natKey(2)) shouldBe binding(2)
+            shard2.get(natKey(1)) shouldBe binding(1)
+            natTable.get(natKey(1)) shouldBe binding(1)
+            natTable.get(natKey(3)) shouldBe null
+        }
+
+        scenario("Entries are referenced from other shards") {
+            val shard1 = natTable.addShard(log)
+            natTable.addShard(log)
+
+            shard1.putAndRef(natKey(1), binding(1))
+            natTable.ref(natKey(1)) shouldBe binding(1)
+            natTable.getRefCount(natKey(1)) shouldBe 2
+            natTable.unref(natKey(1))
+            natTable.unref(natKey(1))
+            shard1.getRefCount(natKey(1)) shouldBe 0
+        }
+    }
+
+    feature("Entries expire when idle") {
+        scenario("Unreferenced entries expire after their idle expiration") {
+            val shard = natTable.addShard(log)
+            shard.putAndRef(natKey(1), binding(1))
+            shard.putAndRef(natKey(2), binding(2))
+            shard.unref(natKey(1))
+            shard.unref(natKey(2))
+            shard.ref(natKey(2))
+
+            clock.time += expiration
+            shard.expireIdleEntries(List.empty[(NatKey, NatBinding)],
+                                    collector[NatKey, NatBinding]) shouldBe
+                List((natKey(1), binding(1)))
+
+            shard.get(natKey(1)) shouldBe null
+            shard.ref(natKey(1)) shouldBe null
+            shard.getRefCount(natKey(1)) shouldBe 0
+            shard.get(natKey(2)) shouldBe binding(2)
+        }
+
+        scenario("Referencing an entry resets its expiration") {
+            val shard = natTable.addShard(log)
+            shard.touch(natKey(1), binding(1))
+
+            clock.time += expiration / 2
+            shard.touch(natKey(1), binding(1))
+
+            clock.time += expiration / 2 + 1
+            shard.expireIdleEntries()
+            shard.get(natKey(1)) shouldBe binding(1)
+
+            clock.time += expiration / 2
+            shard.expireIdleEntries()
+            shard.get(natKey(1)) shouldBe null
+        }
+
+        scenario("Entries keep the idle expiration of their key") {
+            val shard = natTable.addShard(log)
+            val key = natKey(1)
+            key.expiresAfter = 5 seconds
+            shard.touch(key, binding(1))
+
+            clock.time += (5 seconds).toNanos
+            val expired = shard.expireIdleEntries(
+                List.empty[(NatKey, NatBinding)], collector[NatKey, NatBinding])
+            expired shouldBe List((key, binding(1)))
+            expired.head._1.expiresAfter shouldBe (5 seconds)
+        }
+
+        scenario("The slots of expired entries are reused") {
+            val shard = connTrackTable.addShard(log)
+            for (round <- 0 until 10; i <- 0 until 64) {
+                val key = connTrackKey(round * 64 + i)
+                shard.touch(key, RETURN_FLOW)
+                shard.get(key) should be theSameInstanceAs RETURN_FLOW
+                if (i % 16 == 15) {
+                    clock.time += expiration
+                    shard.expireIdleEntries()
+                    shard.get(key) shouldBe null
+                }
+            }
+            shard.fold(0, new Reducer[ConnTrackKey, ConnTrackValue, Int] {
+                override def apply(acc: Int, key: ConnTrackKey,
+                                   value: ConnTrackValue) = acc + 1
+            }) shouldBe 0
+        }
+    }
+
+    feature("Entries beyond the capacity are stored in the heap") {
+        scenario("Overflowing entries keep the table semantics") {
+            val shard = natTable.addShard(log)
+            for (i <- 0 until 256) {
+                shard.putAndRef(natKey(i), binding(i))
+            }
+            for (i <- 0 until 256) {
+                natTable.get(natKey(i)) shouldBe binding(i)
+                shard.ref(natKey(i)) shouldBe binding(i)
+                shard.getRefCount(natKey(i)) shouldBe 2
+                shard.unref(natKey(i))
+                shard.unref(natKey(i))
+            }
+
+            clock.time += expiration
+            shard.expireIdleEntries(List.empty[(NatKey, NatBinding)],
+                                    collector[NatKey, NatBinding]) should
+                contain theSameElementsAs (0 until 256).map(i =>
+                    (natKey(i), binding(i)))
+            for (i <- 0 until 256) {
+                natTable.get(natKey(i)) shouldBe null
+            }
+        }
+    }
+
+    feature("The memory of the table is released when closed") {
+        scenario("A closed table does not add shards") {
+            natTable.addShard(log).putAndRef(natKey(1), binding(1))
+            natTable.close()
+            natTable.close()
+
+            an [IllegalStateException] should be thrownBy natTable.addShard(log)
+        }
+
+        scenario("Shards are readable until they are all closed") {
+            val shard1 = natTable.addShard(log)
+            val shard2 = natTable.addShard(log)
+            shard1.putAndRef(natKey(1), binding(1))
+            shard2.putAndRef(natKey(2), binding(2))
+
+            natTable.close()
+            shard1.close()
+
+            shard2.get(natKey(1)) shouldBe binding(1)
+            shard2.get(natKey(2)) shouldBe binding(2)
+
+            shard2.close()
+            shard2.close()
+        }
+    }
+
+    feature("Entries are read concurrently") {
+        scenario("Readers see consistent entries while slots are reused") {
+            val owner = natTable.addShard(log)
+            val reader = natTable.addShard(log)
+            for (i <- 0 until 8) {
+                owner.putAndRef(natKey(i), binding(i))
+            }
+
+            val running = new AtomicBoolean(true)
+            val errors = new AtomicInteger()
+            val thread = new Thread {
+                override def run(): Unit = {
+                    while (running.get) {
+                        for (i <- 0 until 8) {
+                            if (reader.get(natKey(i)) != binding(i))
+                                errors.incrementAndGet()
+                        }
+                        for (i <- 8 until 40) {
+                            val value = reader.get(natKey(i))
+                            if ((value ne null) && value != binding(i))
+                                errors.incrementAndGet()
+                        }
+                    }
+                }
+            }
+            thread.start()
+
+            for (round <- 0 until 1000) {
+                for (i <- 8 until 40) {
+                    owner.touch(natKey(i), binding(i))
+                }
+                clock.time += expiration
+                owner.expireIdleEntries()
+            }
+            running.set(false)
+            thread.join()
+
+            errors.get shouldBe 0
+        }
+    }
+}
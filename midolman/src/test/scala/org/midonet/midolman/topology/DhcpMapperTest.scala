@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.DurationInt
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import rx.Observable
+
+import org.midonet.cluster.data.storage.{NotFoundException, Storage}
+import org.midonet.cluster.models.Topology.{Dhcp => TopologyDhcp}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.IPAddressUtil._
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.topology.TopologyTest.DeviceObserver
+import org.midonet.midolman.topology.devices.Dhcp
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.packets.{IPv4Addr, MAC}
+
+@RunWith(classOf[JUnitRunner])
+class DhcpMapperTest extends MidolmanSpec with TopologyBuilder {
+
+    private var vt: VirtualTopology = _
+    private var store: Storage = _
+    private final val timeout = 5 seconds
+
+    protected override def beforeTest(): Unit = {
+        vt = injector.getInstance(classOf[VirtualTopology])
+        store = injector.getInstance(classOf[MidonetBackend]).store
+    }
+
+    private def createStoredDhcp(): TopologyDhcp = {
+        val bridge = createBridge()
+        store.create(bridge)
+        val dhcp = createDhcp(bridge.getId.asJava).toBuilder
+            .addHosts(createDhcpHost("host1", MAC.random(), IPv4Addr.random))
+            .addHosts(createDhcpHost("host2", MAC.random(), IPv4Addr.random))
+            .build()
+        store.create(dhcp)
+        dhcp
+    }
+
+    private def shouldBeDhcpOf(device: Dhcp, dhcp: TopologyDhcp): Unit = {
+        device.id shouldBe dhcp.getId.asJava
+        device.subnet shouldBe DhcpMapper.toSubnet(dhcp)
+        device.hosts.keySet shouldBe dhcp.getHostsList.asScala.map(_.getMac).toSet
+        device.templates.keySet shouldBe device.hosts.keySet
+        for (host <- dhcp.getHostsList.asScala) {
+            val h = device.hosts(host.getMac)
+            h.getName shouldBe host.getName
+            h.getMAC shouldBe MAC.fromString(host.getMac)
+            h.getIp shouldBe host.getIpAddress.asIPv4Address
+        }
+    }
+
+    feature("The DHCP mapper emits DHCP devices") {
+        scenario("The mapper emits error for non-existing DHCP") {
+            Given("A DHCP identifier")
+            val id = UUID.randomUUID
+
+            And("A DHCP mapper")
+            val mapper = new DhcpMapper(id, vt)
+
+            And("An observer to the DHCP mapper")
+            val obs = new DeviceObserver[Dhcp](vt)
+
+            When("The observer subscribes to an observable on the mapper")
+            Observable.create(mapper).subscribe(obs)
+
+            Then("The observer should see a NotFoundException")
+            obs.awaitCompletion(timeout)
+            obs.getOnErrorEvents should have size 1
+            val e = obs.getOnErrorEvents.get(0).asInstanceOf[NotFoundException]
+            e.clazz shouldBe classOf[TopologyDhcp]
+            e.id shouldBe id
+        }
+
+        scenario("The mapper emits an existing DHCP with its hosts") {
+            Given("A DHCP with hosts")
+            val dhcp = createStoredDhcp()
+
+            And("A DHCP mapper")
+            val mapper = new DhcpMapper(dhcp.getId.asJava, vt)
+
+            And("An observer to the DHCP mapper")
+            val obs = new DeviceObserver[Dhcp](vt)
+
+            When("The observer subscribes to an observable on the mapper")
+            Observable.create(mapper).subscribe(obs)
+
+            Then("The observer should see the DHCP")
+            obs.awaitOnNext(1, timeout) shouldBe true
+            shouldBeDhcpOf(obs.getOnNextEvents.get(0), dhcp)
+
+            When("Adding a host to the DHCP")
+            val updatedDhcp = dhcp.toBuilder
+                .addHosts(createDhcpHost("host3", MAC.random(), IPv4Addr.random))
+                .build()
+            store.update(updatedDhcp)
+
+            Then("The observer should see the updated DHCP")
+            obs.awaitOnNext(2, timeout) shouldBe true
+            shouldBeDhcpOf(obs.getOnNextEvents.get(1), updatedDhcp)
+        }
+
+        scenario("The mapper keeps the first host with a MAC address") {
+            Given("A DHCP with two hosts with the same MAC address")
+            val bridge = createBridge()
+            store.create(bridge)
+            val mac = MAC.random()
+            val dhcp = createDhcp(bridge.getId.asJava).toBuilder
+                .addHosts(createDhcpHost("host1", mac, IPv4Addr.random))
+                .addHosts(createDhcpHost("host2", mac, IPv4Addr.random))
+                .build()
+            store.create(dhcp)
+
+            And("A DHCP mapper")
+            val mapper = new DhcpMapper(dhcp.getId.asJava, vt)
+
+            And("An observer to the DHCP mapper")
+            val obs = new DeviceObserver[Dhcp](vt)
+
+            When("The observer subscribes to an observable on the mapper")
+            Observable.create(mapper).subscribe(obs)
+
+            Then("The DHCP maps the MAC address to the first host")
+            obs.awaitOnNext(1, timeout) shouldBe true
+            val device = obs.getOnNextEvents.get(0)
+            device.hosts should have size 1
+            device.hosts(mac.toString).getName shouldBe "host1"
+        }
+
+        scenario("The mapper completes on DHCP delete") {
+            Given("A DHCP")
+            val dhcp = createStoredDhcp()
+
+            And("A DHCP mapper")
+            val mapper = new DhcpMapper(dhcp.getId.asJava, vt)
+
+            And("An observer to the DHCP mapper")
+            val obs = new DeviceObserver[Dhcp](vt)
+
+            When("The observer subscribes to an observable on the mapper")
+            Observable.create(mapper).subscribe(obs)
+
+            Then("The observer should see the DHCP")
+            obs.awaitOnNext(1, timeout) shouldBe true
+
+            When("The DHCP is deleted")
+            store.delete(classOf[TopologyDhcp], dhcp.getId)
+
+            Then("The observer receives an onComplete notification")
+            obs.awaitCompletion(timeout)
+            obs.getOnCompletedEvents should have size 1
+        }
+    }
+}
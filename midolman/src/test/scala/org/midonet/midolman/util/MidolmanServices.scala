@@ -35,7 +35,7 @@ import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.state.PortStateStorage._
 import org.midonet.midolman.SimulationBackChannel
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
+import org.midonet.midolman.datapath.{FlowProcessor, WorkerDatapathChannels}
 import org.midonet.midolman.flows.FlowTagIndexer
 import org.midonet.midolman.io.UpcallDatapathConnectionManager
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
@@ -90,7 +90,7 @@ trait MidolmanServices {
     }
 
     def mockDpChannel = {
-        injector.getInstance(classOf[DatapathChannel])
+        injector.getInstance(classOf[WorkerDatapathChannels])
                 .asInstanceOf[MockDatapathChannel]
     }
 
@@ -19,14 +19,15 @@ package org.midonet.midolman.util.mock
 import java.util.{ArrayList, List => JList, Map => JMap}
 
 import com.typesafe.scalalogging.Logger
-import org.midonet.midolman.datapath.{DatapathChannel, StatePacketExecutor}
+import org.midonet.midolman.datapath.{DatapathChannel, StatePacketExecutor, WorkerDatapathChannels}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.{Flow, FlowMatch, Packet}
 import org.slf4j.helpers.NOPLogger
 
 class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
-    extends DatapathChannel with StatePacketExecutor {
+    extends DatapathChannel with WorkerDatapathChannels
+    with StatePacketExecutor {
     val log = Logger(NOPLogger.NOP_LOGGER)
     var packetExecCb: (Packet, JList[FlowAction]) => Unit = _
     var statePacketExecCb: (Packet, JList[FlowAction]) => Unit = _
@@ -75,6 +76,8 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         0
     }
 
+    override def forWorker(index: Int): DatapathChannel = this
+
     override def start(): Unit = { }
     override def stop(): Unit = { }
 }
@@ -226,6 +226,22 @@ trait FlowStateBaseTest extends FeatureSpec
         (udp, protos, encoder)
     }
 
+    protected def flowStateBatchMessage(encoders: Seq[SbeEncoder],
+                                        port: Int = 6688): DatagramPacket = {
+        val udpBuffer = ByteBuffer.allocate(MaxBatchSize)
+        udpBuffer.putInt(FlowStateInternalMessageType.FlowStateBatch)
+        udpBuffer.putInt(encoders.map(_.encodedLength() + 4).sum)
+        for (encoder <- encoders) {
+            udpBuffer.putInt(encoder.encodedLength())
+            udpBuffer.put(encoder.flowStateBuffer.array, 0,
+                          encoder.encodedLength())
+        }
+        udpBuffer.flip()
+
+        new DatagramPacket(Unpooled.wrappedBuffer(udpBuffer),
+                           new InetSocketAddress(port))
+    }
+
     protected def createValidFlowStatePorts(context: stream.Context) = {
         val validPorts = (1 to 3) map { _ => randomUUID }
 
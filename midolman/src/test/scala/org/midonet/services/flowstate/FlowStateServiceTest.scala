@@ -329,6 +329,48 @@ class FlowStateServiceTest extends FlowStateBaseTest
             Then("The message is saved in local storage")
             handler.getWrites shouldBe 1
         }
+
+        scenario("Service handle calls storage for every message in a batch") {
+            Given("A flow state message handler")
+            val handler = new TestableWriteHandler(streamContext)
+            And("A batch of three messages")
+            val messages = for (i <- 0 until 3) yield
+                validFlowStateInternalMessage(numConntracks = 1, numNats = 1)
+            val datagram = flowStateBatchMessage(messages.map(_._3))
+
+            When("The batch is handled")
+            handler.channelRead0(null, datagram)
+
+            Then("The handler sends the keys of every message to legacy storage")
+            val mockedLegacyStorage = handler.getLegacyStorage
+            for ((_, protos, _) <- messages) {
+                verify(mockedLegacyStorage, times(1)).touchConnTrackKey(
+                    mockito.eq(protos.conntrackKeys.head),
+                    mockito.eq(protos.ingressPort), mockito.any())
+            }
+            verify(mockedLegacyStorage, times(3)).submit()
+
+            Then("Every message is saved in local storage")
+            handler.getWrites shouldBe 3
+        }
+
+        scenario("Service handle ignores truncated batches") {
+            Given("A flow state message handler")
+            val handler = new TestableWriteHandler(streamContext)
+            And("A truncated batch")
+            val encoder = validFlowStateInternalMessage()._3
+            val datagram = flowStateBatchMessage(Seq(encoder))
+            val content = datagram.content()
+            content.setInt(FlowStateInternalMessageHeaderSize,
+                           encoder.encodedLength() + 1)
+
+            When("The batch is handled")
+            handler.channelRead0(null, datagram)
+
+            Then("The batch is ignored")
+            verify(handler.getLegacyStorage, times(0)).submit()
+            handler.getWrites shouldBe 0
+        }
     }
 
     feature("Flow state read message handling") {
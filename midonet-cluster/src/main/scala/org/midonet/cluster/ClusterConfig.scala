@@ -113,6 +113,8 @@ class C3POConfig(val conf: Config) extends ScheduledMinionConfig[C3POMinion] {
     def jdbcDriver = conf.getString(s"$prefix.jdbc_driver_class")
     def user = conf.getString(s"$prefix.user")
     def password = conf.getString(s"$prefix.password")
+    def pipelined = conf.getBoolean(s"$prefix.pipelined")
+    def maxBatchOperations = conf.getInt(s"$prefix.max_batch_operations")
 }
 
 class HeartbeatConfig(val conf: Config) extends ScheduledMinionConfig[Heartbeat] {
@@ -169,6 +171,7 @@ class RestApiConfig(val conf: Config) extends MinionConfig[RestApi] {
         conf.getDuration(s"$prefix.https_idle_timeout", TimeUnit.MILLISECONDS)
     def nsdbLockTimeoutMs =
         conf.getDuration(s"$prefix.nsdb_lock_timeout", TimeUnit.MILLISECONDS)
+    def topologyIndex = conf.getBoolean(s"$prefix.topology_index")
 }
 
 class ContainersConfig(val conf: Config) extends MinionConfig[ContainerService] {
@@ -189,6 +192,7 @@ class StateProxyConfig(val conf: Config) extends MinionConfig[StateProxy] {
         conf.getInt(s"$prefix.initial_subscriber_queue_size")
     def notifyBatchSize =
         conf.getInt(s"$prefix.notify_batch_size")
+    def incrementalCache = conf.getBoolean(s"$prefix.incremental_cache")
     def cacheThreads = conf.getInt(s"$prefix.cache_threads")
     def serverAddress = conf.getString(s"$prefix.server.address")
     def serverPort = conf.getInt(s"$prefix.server.port")
@@ -20,6 +20,7 @@ import java.sql.Driver
 
 import javax.sql.DataSource
 
+import scala.collection.mutable.ArrayBuffer
 import scala.util.control.NonFatal
 
 import com.google.inject.Inject
@@ -30,7 +31,7 @@ import org.apache.curator.framework.recipes.leader.LeaderLatch
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.data.neutron.{DataStateUpdater, SqlNeutronImporter, importer}
-import org.midonet.cluster.data.storage.{StateTableStorage, Storage}
+import org.midonet.cluster.data.storage.{ReadOnlyStorage, StateTableStorage, Storage}
 import org.midonet.cluster.models.Neutron._
 import org.midonet.cluster.services.c3po.C3POStorageManager._
 import org.midonet.cluster.services.c3po.NeutronDeserializer.toMessage
@@ -94,6 +95,7 @@ class C3POMinion @Inject()(nodeContext: Context,
         }
         leaderLatch.close()
         super.doStop()
+        dataMgr.stop()
     }
 
     // Delegates to a static method to enable testing without creating a
@@ -116,15 +118,28 @@ class C3POMinion @Inject()(nodeContext: Context,
             val txns = neutronImporter.getTasksSince(lastTaskId)
             log.debug(".. {} transaction(s) to import: {}", txns.size, txns)
 
+            // In pipelined mode, the transactions between flushes are
+            // executed together.
+            val pending = new ArrayBuffer[Transaction]
+            def execPending(): Unit = if (pending.nonEmpty) {
+                dataMgr.interpretAndExecTxns(pending,
+                                             config.c3po.maxBatchOperations)
+                pending.clear()
+            }
+
             for (txn <- txns) {
                 if (txn.isFlushTxn) {
+                    execPending()
                     log.info(".. flushing storage")
                     dataMgr.flushTopology()
                     neutronImporter.deleteTask(txn.lastTaskId)
+                } else if (config.c3po.pipelined) {
+                    pending += translateTxn(txn)
                 } else {
                     dataMgr.interpretAndExecTxn(translateTxn(txn))
                 }
             }
+            execPending()
 
             val newLastTaskId = dataMgr.lastProcessedTaskId
             log.debug(".. updating last processed task ID: {}.", newLastTaskId)
@@ -196,7 +211,22 @@ object C3POMinion {
                         seqDispenser: SequenceDispenser,
                         config: ClusterConfig,
                         pathBldr: PathBuilder): C3POStorageManager = {
-        val dataMgr = new C3POStorageManager(storage)
+        // The translators read through a storage that tracks their reads,
+        // which allows the storage manager to pipeline the transactions.
+        val trackingStorage = new ReadTrackingStorage(storage)
+        val dataMgr = new C3POStorageManager(storage, trackingStorage)
+        initTranslators(dataMgr, trackingStorage, stateTableStorage,
+                        seqDispenser, config, pathBldr)
+        dataMgr.init()
+        dataMgr
+    }
+
+    private def initTranslators(dataMgr: C3POStorageManager,
+                                storage: ReadOnlyStorage,
+                                stateTableStorage: StateTableStorage,
+                                seqDispenser: SequenceDispenser,
+                                config: ClusterConfig,
+                                pathBldr: PathBuilder): Unit = {
         List(classOf[AgentMembership] -> new AgentMembershipTranslator(storage),
              classOf[FirewallLog] -> new FirewallLogTranslator(storage),
              classOf[FloatingIp] ->
@@ -244,8 +274,6 @@ object C3POMinion {
          .foreach { pair =>
             dataMgr.registerTranslator(pair._1, pair._2)
         }
-        dataMgr.init()
-        dataMgr
     }
 }
 
@@ -16,12 +16,15 @@
 
 package org.midonet.cluster.services.c3po
 
-import java.util.concurrent.TimeUnit
-import java.util.{HashMap => JHashMap, Map => JMap}
+import java.util.concurrent.{ExecutorService, Executors, TimeUnit}
+import java.util.{HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet}
 
-import scala.concurrent.Await
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
 import scala.util.control.NonFatal
+import scala.util.Failure
 
 import com.google.protobuf.Message
 import org.slf4j.LoggerFactory
@@ -30,6 +33,7 @@ import org.midonet.cluster.C3poStorageManagerLog
 import org.midonet.cluster.data.storage._
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.services.c3po.translators.{TranslationException, Translator}
+import org.midonet.util.concurrent.NamedThreadFactory
 
 object C3POStorageManager {
 
@@ -99,8 +103,13 @@ object OpType extends Enumeration {
 
 /** C3PO that translates an operation on an external model into corresponding
   * storage operations on internal Mido models.
+  *
+  * @param readTracker The storage through which the translators read, which
+  *                    enables the pipelined execution of transactions. When
+  *                    null, transactions are always executed sequentially.
   */
-class C3POStorageManager(storage: Storage) {
+class C3POStorageManager(storage: Storage,
+                         readTracker: ReadTrackingStorage = null) {
     import org.midonet.cluster.services.c3po.C3POStorageManager._
 
     private val log = LoggerFactory.getLogger(C3poStorageManagerLog)
@@ -108,6 +117,11 @@ class C3POStorageManager(storage: Storage) {
     private val apiTranslators = new JHashMap[Class[_], Translator[_]]()
     private var initialized = false
 
+    // The thread committing the pipelined transactions, which is only
+    // started by the first pipelined execution.
+    private var commitExecutor: ExecutorService = null
+    private var commitContext: ExecutionContext = null
+
     def registerTranslator[T <: Message](clazz: Class[T],
                                          translator: Translator[T])
     : Unit = apiTranslators.put(clazz, translator)
@@ -142,6 +156,30 @@ class C3POStorageManager(storage: Storage) {
             throw new ProcessingException("C3PODataManager initialisation", e)
     }
 
+    /** Stops the thread committing the pipelined transactions, waiting for
+      * the pending commits. */
+    def stop(): Unit = {
+        val executor = synchronized { commitExecutor }
+        if (executor eq null) return
+        executor.shutdown()
+        if (!executor.awaitTermination(TIMEOUT.toMillis,
+                                       TimeUnit.MILLISECONDS)) {
+            log.warn("Pending C3PO commits did not complete in {}", TIMEOUT)
+            executor.shutdownNow()
+        }
+    }
+
+    /** Returns the context of the thread committing the pipelined
+      * transactions, starting the thread on first use. */
+    private def pipelineContext: ExecutionContext = synchronized {
+        if (commitExecutor eq null) {
+            commitExecutor = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("c3po-commit", isDaemon = true))
+            commitContext = ExecutionContext.fromExecutor(commitExecutor)
+        }
+        commitContext
+    }
+
     /** Returns the ID of the last Task that was processed by the cluster */
     @throws[ProcessingException]
     def lastProcessedTaskId: Int = {
@@ -219,6 +257,258 @@ class C3POStorageManager(storage: Storage) {
         }
     }
 
+    /** Interprets and executes a sequence of transactions in pipelined mode.
+      * The tasks are translated while the operations of the previous tasks
+      * are committed, and consecutive tasks are coalesced into a single
+      * storage multi of at most `maxBatchOps` operations, which also records
+      * the last task of the batch as the last processed task. The batches
+      * are committed in order. When the multi of a batch fails, its tasks
+      * are committed one by one, such that the tasks preceding the failed
+      * task are still processed, and the failed task prevents the commit of
+      * all the following ones.
+      *
+      * A task whose translation read an object written by a task that is not
+      * committed yet, or failed while such objects were pending, is
+      * translated again once all previous tasks have been committed, such
+      * that dependent resources are processed in the same order and against
+      * the same state as in the sequential mode. Without a read tracker, the
+      * transactions are executed sequentially. */
+    @throws[ProcessingException]
+    def interpretAndExecTxns(txns: Seq[Transaction], maxBatchOps: Int)
+    : Unit = {
+        assert(initialized)
+
+        if (readTracker eq null) {
+            txns foreach interpretAndExecTxn
+            return
+        }
+
+        val pipeline = new Pipeline(maxBatchOps)
+        try {
+            for (txn <- txns; task <- txn.tasks) {
+                pipeline.execute(txn, task)
+            }
+            pipeline.commit()
+            pipeline.await()
+        } catch {
+            case NonFatal(e) =>
+                // Commit the tasks translated before the failure, and wait
+                // for all commits such that the last processed task is
+                // accurate.
+                pipeline.abort()
+                throw e
+        }
+    }
+
+    /** The operations of a task in a batch. */
+    private case class BatchTask(txnId: String, taskId: Int,
+                                 ops: Seq[PersistenceOp])
+
+    /** A group of consecutive tasks that are committed in the same storage
+      * multi. The batch includes the identifiers and classes of the objects
+      * written by its tasks, which for a delete include the objects
+      * referenced by the deleted object, since the storage bindings update
+      * them when the delete is committed. */
+    private class Batch {
+        val tasks = new ArrayBuffer[BatchTask]
+        val ops = new ArrayBuffer[PersistenceOp]
+        val ids = new JHashSet[String]
+        val classes = new JHashSet[Class[_]]
+        var firstTaskId = 0
+        var lastTaskId = 0
+        var commit: Future[Unit] = _
+
+        def isEmpty = tasks.isEmpty
+
+        def add(txn: Transaction, task: Task[_ <: Message],
+                taskOps: Seq[PersistenceOp], deletedRefs: JSet[String])
+        : Unit = {
+            if (isEmpty) firstTaskId = task.taskId
+            lastTaskId = task.taskId
+            tasks += BatchTask(txn.txnId, task.taskId, taskOps)
+            ops ++= taskOps
+            ids.addAll(deletedRefs)
+            for (op <- taskOps) op match {
+                case CreateOp(obj) => addWrite(obj.getClass, obj)
+                case UpdateOp(obj, _) => addWrite(obj.getClass, obj)
+                case DeleteOp(clazz, id, _) =>
+                    classes.add(clazz)
+                    ids.add(ReadTrackingStorage.idString(id))
+                case _ =>
+            }
+        }
+
+        private def addWrite(clazz: Class[_], obj: AnyRef): Unit = {
+            classes.add(clazz)
+            ReadTrackingStorage.addReferencedIds(obj, ids)
+        }
+
+        override def toString = s"tasks $firstTaskId to $lastTaskId"
+    }
+
+    /** Executes the tasks of the pipelined mode. This class is not
+      * thread-safe and its methods must be called from the C3PO thread,
+      * whereas the batches are committed on the commit thread. */
+    private class Pipeline(maxBatchOps: Int) {
+
+        private val context = pipelineContext
+        private var batch = new Batch
+        private val committing = new mutable.Queue[Batch]
+        private var lastCommit: Future[Unit] = Future.successful(())
+
+        def execute(txn: Transaction, task: Task[_ <: Message]): Unit = {
+            completeCommits()
+
+            var ops = translate(txn, task, retry = true)
+            if ((ops eq null) || conflicts) {
+                log.debug(s"Task ${task.taskId} read objects written by " +
+                          "pending tasks: translating after commit")
+                commit()
+                await()
+                ops = translate(txn, task, retry = false)
+            }
+            val deletedRefs = deletedReferences(ops)
+
+            if (!batch.isEmpty && batch.ops.size + ops.size >= maxBatchOps) {
+                commit()
+            }
+            batch.add(txn, task, ops, deletedRefs)
+        }
+
+        /** Returns the identifiers referenced by the objects that the given
+          * operations delete. An object written by a pending task is loaded
+          * once the pending tasks are committed, such that its references
+          * are up to date. */
+        private def deletedReferences(ops: Seq[PersistenceOp])
+        : JSet[String] = {
+            val ids = new JHashSet[String]
+            for (op <- ops) op match {
+                case DeleteOp(clazz, id, _) =>
+                    if (pending(ReadTrackingStorage.idString(id))) {
+                        commit()
+                        await()
+                    }
+                    try {
+                        val obj = Await.result(storage.get(clazz, id), TIMEOUT)
+                        ReadTrackingStorage.addReferencedIds(obj, ids)
+                    } catch {
+                        // The storage ignores or fails the delete.
+                        case _: NotFoundException =>
+                    }
+                case _ =>
+            }
+            ids
+        }
+
+        private def pending(id: String): Boolean = {
+            batch.ids.contains(id) || committing.exists(_.ids.contains(id))
+        }
+
+        /** Commits the current batch, after the previous batches. */
+        def commit(): Unit = {
+            if (batch.isEmpty) return
+
+            val current = batch
+            val ops = current.ops.toList :+ UpdateOp(
+                C3POState.at(current.lastTaskId))
+            batch = new Batch
+
+            current.commit = lastCommit.map { _ =>
+                try {
+                    storage.multi(ops)
+                    log.info(s"Executed C3PO $current")
+                } catch {
+                    case NonFatal(e) if current.tasks.size > 1 =>
+                        log.warn(s"Failed to commit C3PO $current: " +
+                                 "committing each task", e)
+                        current.tasks foreach commitTask
+                    case NonFatal(e) => throw failure(current.tasks.head, e)
+                }
+            }(context)
+            committing += current
+            lastCommit = current.commit
+        }
+
+        /** Commits the operations of a single task of a failed batch. */
+        private def commitTask(task: BatchTask): Unit = try {
+            storage.multi(task.ops :+ UpdateOp(C3POState.at(task.taskId)))
+            log.info(s"Executed a C3PO task with ID: ${task.taskId}.")
+        } catch {
+            case NonFatal(e) => throw failure(task, e)
+        }
+
+        private def failure(task: BatchTask, e: Throwable)
+        : ProcessingException = e match {
+            case se: StorageException => new ProcessingException(
+                s"Failed to persist task ${task.taskId} " +
+                s"in transaction ${task.txnId}.", se)
+            case _ => new ProcessingException(
+                s"Failed to execute task ${task.taskId} " +
+                s"in transaction ${task.txnId}.", e)
+        }
+
+        /** Waits for the commit of all batches. */
+        @throws[ProcessingException]
+        def await(): Unit = {
+            Await.ready(lastCommit, Duration.Inf)
+            committing.clear()
+            lastCommit.value match {
+                case Some(Failure(e: ProcessingException)) => throw e
+                case Some(Failure(e)) => throw new ProcessingException(
+                    "Failed to commit C3PO tasks.", e)
+                case _ =>
+            }
+        }
+
+        /** Commits the current batch and waits for the commit of all
+          * batches, ignoring any failure. */
+        def abort(): Unit = {
+            commit()
+            Await.ready(lastCommit, Duration.Inf)
+            committing.clear()
+        }
+
+        /** Removes the committed batches, such that their writes no longer
+          * conflict with the following translations. */
+        private def completeCommits(): Unit = {
+            while (committing.nonEmpty && committing.head.commit.isCompleted) {
+                committing.dequeue().commit.value match {
+                    case Some(Failure(e: ProcessingException)) => throw e
+                    case Some(Failure(e)) => throw new ProcessingException(
+                        "Failed to commit C3PO tasks.", e)
+                    case _ =>
+                }
+            }
+        }
+
+        private def conflicts: Boolean = {
+            readTracker.conflicts(batch.ids, batch.classes) ||
+            committing.exists(b => readTracker.conflicts(b.ids, b.classes))
+        }
+
+        /** Translates the task, tracking the objects it reads. When `retry`
+          * is set and the translation fails after reading objects written
+          * by pending tasks, for instance because it did not find an object
+          * created by them, the method returns null such that the task is
+          * translated again once they are committed. */
+        private def translate(txn: Transaction, task: Task[_ <: Message],
+                              retry: Boolean): Seq[PersistenceOp] = {
+            readTracker.begin()
+            try toPersistenceOps(task) catch {
+                case NonFatal(_) if retry && conflicts => null
+                case te: TranslationException => throw new ProcessingException(
+                    s"Failed to translate task ${task.taskId} " +
+                    s"in transaction ${txn.txnId}.", te)
+                case pe: ProcessingException => throw pe
+                case NonFatal(e) => throw new ProcessingException(
+                    s"Failed to execute task ${task.taskId} " +
+                    s"in transaction ${txn.txnId}.", e)
+            } finally {
+                readTracker.end()
+            }
+        }
+    }
+
     @throws[ProcessingException]
     private def toPersistenceOps[T <: Message](task: Task[T])
     : Seq[PersistenceOp] = {
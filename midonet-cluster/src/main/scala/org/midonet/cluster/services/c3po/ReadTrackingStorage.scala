@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.c3po
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.{List => JList, Set => JSet}
+
+import scala.concurrent.Future
+
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType
+import com.google.protobuf.Message
+
+import org.midonet.cluster.data.ObjId
+import org.midonet.cluster.data.storage.{ProtoFieldBinding, ReadOnlyStorage}
+import org.midonet.cluster.models.Commons
+import org.midonet.util.concurrent.CallingThreadExecutionContext
+
+object ReadTrackingStorage {
+
+    /** Returns the string representation of an object identifier. */
+    @inline
+    def idString(id: ObjId): String = ProtoFieldBinding.getIdString(id)
+
+    /**
+     * Adds to the given set the identifiers of all UUID fields of a protocol
+     * buffer message, including the fields of nested messages.
+     */
+    def addReferencedIds(obj: Any, ids: JSet[String]): Unit = obj match {
+        case id: Commons.UUID =>
+            ids.add(idString(id))
+        case message: Message =>
+            val iterator = message.getAllFields.entrySet().iterator()
+            while (iterator.hasNext) {
+                val entry = iterator.next()
+                if (entry.getKey.getJavaType == JavaType.MESSAGE) {
+                    entry.getValue match {
+                        case list: JList[_] =>
+                            var index = 0
+                            while (index < list.size()) {
+                                addReferencedIds(list.get(index), ids)
+                                index += 1
+                            }
+                        case value =>
+                            addReferencedIds(value, ids)
+                    }
+                }
+            }
+        case _ =>
+    }
+
+    private def newSet[T](): JSet[T] = ConcurrentHashMap.newKeySet[T]()
+}
+
+/**
+ * A [[ReadOnlyStorage]] used by the C3PO translators, which records the
+ * objects read while translating a task. For every read, the storage records
+ * the requested identifiers and the identifiers referenced by the returned
+ * objects, since the storage bindings modify an object when any of the
+ * objects it references is created, updated or deleted. Reads of all objects
+ * of a class record the class.
+ *
+ * The pipelined [[C3POStorageManager]] uses this information to determine
+ * whether a translation read any object written by a task that was not yet
+ * committed.
+ */
+class ReadTrackingStorage(store: ReadOnlyStorage) extends ReadOnlyStorage {
+
+    import ReadTrackingStorage._
+
+    @volatile private var tracking = false
+    private val readIds = newSet[String]()
+    private val readClasses = newSet[Class[_]]()
+
+    /** Starts recording the reads, discarding those previously recorded. */
+    def begin(): Unit = {
+        readIds.clear()
+        readClasses.clear()
+        tracking = true
+    }
+
+    /** Stops recording the reads. */
+    def end(): Unit = {
+        tracking = false
+    }
+
+    /**
+     * Indicates whether the reads recorded between the last [[begin()]] and
+     * [[end()]] include any of the given identifiers or classes.
+     */
+    def conflicts(ids: JSet[String], classes: JSet[Class[_]]): Boolean = {
+        val classIterator = readClasses.iterator()
+        while (classIterator.hasNext) {
+            if (classes.contains(classIterator.next()))
+                return true
+        }
+        val idIterator = readIds.iterator()
+        while (idIterator.hasNext) {
+            if (ids.contains(idIterator.next()))
+                return true
+        }
+        false
+    }
+
+    override def get[T](clazz: Class[T], id: ObjId): Future[T] = {
+        if (tracking) {
+            readIds.add(idString(id))
+            store.get(clazz, id).map(recordObject)(CallingThreadExecutionContext)
+        } else {
+            store.get(clazz, id)
+        }
+    }
+
+    override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
+    : Future[Seq[T]] = {
+        if (tracking) {
+            for (id <- ids) readIds.add(idString(id))
+            store.getAll(clazz, ids).map(recordObjects)(
+                CallingThreadExecutionContext)
+        } else {
+            store.getAll(clazz, ids)
+        }
+    }
+
+    override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        if (tracking) {
+            readClasses.add(clazz)
+            store.getAll(clazz).map(recordObjects)(
+                CallingThreadExecutionContext)
+        } else {
+            store.getAll(clazz)
+        }
+    }
+
+    override def exists(clazz: Class[_], id: ObjId): Future[Boolean] = {
+        if (tracking) {
+            readIds.add(idString(id))
+        }
+        store.exists(clazz, id)
+    }
+
+    private def recordObject[T](obj: T): T = {
+        addReferencedIds(obj, readIds)
+        obj
+    }
+
+    private def recordObjects[T](objs: Seq[T]): Seq[T] = {
+        for (obj <- objs) addReferencedIds(obj, readIds)
+        objs
+    }
+}
@@ -73,6 +73,7 @@ object RestApi {
     def servletModule(backend: MidonetBackend, ec: ExecutionContext,
                       curator: CuratorFramework, config: ClusterConfig,
                       reflections: Reflections, authService: AuthService,
+                      topologyIndex: TopologyIndex,
                       log: Logger) = new JerseyServletModule {
 
         val resProvider = new ResourceProvider(reflections, log)
@@ -96,6 +97,7 @@ object RestApi {
             bind(classOf[MidonetBackend]).toInstance(backend)
             bind(classOf[MidonetBackendConfig]).toInstance(config.backend)
             bind(classOf[SequenceDispenser]).toInstance(sequenceDispenser)
+            bind(classOf[TopologyIndex]).toInstance(topologyIndex)
             bind(classOf[MidoNodeConfigurator])
                 .toInstance(MidoNodeConfigurator(
                 curator.usingNamespace(config.backend.rootKey.stripPrefix("/")),
@@ -142,6 +144,7 @@ class RestApi @Inject()(nodeContext: Context,
     private val log = Logger(LoggerFactory.getLogger(RestApiLog))
     private val executor = createThreadPool()
     private val executionContext = ExecutionContext.fromExecutor(executor)
+    private val topologyIndex = new TopologyIndex(backend.store, config.restApi)
 
     override def isEnabled = config.restApi.isEnabled
 
@@ -161,6 +164,7 @@ class RestApi @Inject()(nodeContext: Context,
                              else Array(http, https))
 
         try {
+            topologyIndex.start()
             server.setHandler(prepareContext())
             server.start()
             notifyStarted()
@@ -171,6 +175,7 @@ class RestApi @Inject()(nodeContext: Context,
 
     override def doStop(): Unit = {
         try {
+            topologyIndex.stop()
             if (server ne null) {
                 server.stop()
             }
@@ -198,7 +203,8 @@ class RestApi @Inject()(nodeContext: Context,
         context.addEventListener(new GuiceServletContextListener {
             override def getInjector: Injector = {
                 createInjector(servletModule(backend, executionContext, curator,
-                                             config, reflections, authService, log))
+                                             config, reflections, authService,
+                                             topologyIndex, log))
             }
         })
         val allDispatchers = util.EnumSet.allOf(classOf[DispatcherType])
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap, ConcurrentSkipListSet}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success}
+
+import com.google.protobuf.Message
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory.getLogger
+
+import rx.subscriptions.CompositeSubscription
+import rx.{Observable, Subscriber}
+
+import org.midonet.cluster.data.storage.{NotFoundException, ProtoFieldBinding, ReadOnlyStorage}
+import org.midonet.cluster.data.storage.TransactionManager.getIdString
+import org.midonet.cluster.models.Topology.{Chain, Network, Port, PortGroup, Router}
+import org.midonet.cluster.{RestApiConfig, RestApiLog}
+import org.midonet.util.concurrent.CallingThreadExecutionContext
+
+object TopologyIndex {
+
+    /** The key of a secondary index: the name of an indexed message field
+      * and the field value. The value of an identifier field is the string
+      * of the identifier. */
+    case class Key(field: String, value: String)
+
+    /** The classes cached by the index, with the message fields for which
+      * the index maintains a secondary index. */
+    final val IndexedClasses: Map[Class[_ <: Message], Seq[String]] = Map(
+        classOf[Chain] -> Seq("tenant_id"),
+        classOf[Network] -> Seq("tenant_id"),
+        classOf[Port] -> Seq("network_id", "router_id", "host_id"),
+        classOf[PortGroup] -> Seq("tenant_id"),
+        classOf[Router] -> Seq("tenant_id"))
+
+    /** Returns the identifier of a topology message as a string, which
+      * determines the order of the listed objects. */
+    def idOf(message: Message): String = {
+        val descriptor = message.getDescriptorForType
+        ProtoFieldBinding.getIdString(
+            message.getField(descriptor.findFieldByName("id")))
+    }
+
+    private def fieldValue(message: Message, field: String): String = {
+        val descriptor = message.getDescriptorForType.findFieldByName(field)
+        if ((descriptor ne null) && message.hasField(descriptor)) {
+            ProtoFieldBinding.getIdString(message.getField(descriptor))
+        } else null
+    }
+
+    /**
+     * The cache of the objects of a class, ordered by identifier, together
+     * with the secondary indexes of the class. The updates are serialized by
+     * the class index, whereas the reads are lock-free.
+     */
+    private final class ClassIndex(fields: Seq[String]) {
+
+        val objects = new ConcurrentSkipListMap[String, Message]()
+        val indexes = fields.map(field =>
+            field -> new ConcurrentHashMap[String, ConcurrentSkipListSet[String]]())
+            .toMap
+
+        @volatile var ready = false
+        private var snapshot: Set[String] = null
+        private val observed = new mutable.HashSet[String]
+
+        def update(message: Message): Unit = synchronized {
+            val id = idOf(message)
+            val previous = objects.put(id, message)
+            for ((field, index) <- indexes) {
+                val oldValue =
+                    if (previous ne null) fieldValue(previous, field) else null
+                val newValue = fieldValue(message, field)
+                if (oldValue != newValue) {
+                    removeEntry(index, oldValue, id)
+                    addEntry(index, newValue, id)
+                }
+            }
+            observe(id)
+        }
+
+        def delete(id: String): Unit = synchronized {
+            val previous = objects.remove(id)
+            if (previous ne null) {
+                for ((field, index) <- indexes) {
+                    removeEntry(index, fieldValue(previous, field), id)
+                }
+            }
+            observe(id)
+        }
+
+        /** Sets the identifiers of the objects that existed when the index
+          * started watching the class: the index becomes ready once it has
+          * observed all of them. */
+        def loaded(ids: Set[String]): Unit = synchronized {
+            snapshot = ids -- observed
+            observed.clear()
+            ready = snapshot.isEmpty
+        }
+
+        def clear(): Unit = synchronized {
+            ready = false
+            snapshot = null
+            observed.clear()
+            objects.clear()
+            for (index <- indexes.values) index.clear()
+        }
+
+        private def observe(id: String): Unit = {
+            if (snapshot eq null) {
+                observed += id
+            } else if (!ready) {
+                snapshot -= id
+                ready = snapshot.isEmpty
+            }
+        }
+
+        private def addEntry(index: ConcurrentHashMap[String, ConcurrentSkipListSet[String]],
+                             value: String, id: String): Unit = {
+            if (value ne null) {
+                var ids = index.get(value)
+                if (ids eq null) {
+                    ids = new ConcurrentSkipListSet[String]()
+                    index.put(value, ids)
+                }
+                ids.add(id)
+            }
+        }
+
+        private def removeEntry(index: ConcurrentHashMap[String, ConcurrentSkipListSet[String]],
+                                value: String, id: String): Unit = {
+            if (value ne null) {
+                val ids = index.get(value)
+                if (ids ne null) {
+                    ids.remove(id)
+                    if (ids.isEmpty) index.remove(value)
+                }
+            }
+        }
+    }
+
+}
+
+/**
+ * An in-memory index of the topology objects listed by the REST API. For the
+ * [[TopologyIndex.IndexedClasses]], the index watches the objects in storage,
+ * caches them ordered by identifier, and maintains secondary indexes for the
+ * fields commonly used to filter the listed objects, the tenant of the devices
+ * and the device and host of the ports, such that a list request is served
+ * from memory, in pages starting after a given marker identifier, and its
+ * latency does not depend on the total number of objects.
+ *
+ * A class is served from the index only after the index has loaded all the
+ * objects existing when the index started watching the class. Since the index
+ * is updated asynchronously, an object written by a request may be listed
+ * only after a short delay.
+ */
+class TopologyIndex(store: ReadOnlyStorage, config: RestApiConfig) {
+
+    import TopologyIndex._
+
+    private val log = Logger(getLogger(RestApiLog))
+    private val classes = IndexedClasses.map { case (clazz, fields) =>
+        clazz -> new ClassIndex(fields)
+    }
+    private val subscriptions = new CompositeSubscription
+
+    /**
+     * Starts watching the indexed classes, if the index is enabled.
+     */
+    def start(): Unit = {
+        if (!config.topologyIndex) {
+            return
+        }
+        log.info("Starting the topology index for classes " +
+                 classes.keys.map(_.getSimpleName).mkString(", "))
+        for ((clazz, index) <- classes) {
+            watch(clazz.asInstanceOf[Class[Message]], index)
+        }
+    }
+
+    /**
+     * Stops watching the indexed classes and clears the index.
+     */
+    def stop(): Unit = {
+        subscriptions.clear()
+        for (index <- classes.values) index.clear()
+    }
+
+    /**
+     * Indicates whether the objects of the given class are served from the
+     * index.
+     */
+    def isReady(clazz: Class[_]): Boolean = {
+        classes.get(clazz.asInstanceOf[Class[_ <: Message]]) match {
+            case Some(index) => index.ready
+            case None => false
+        }
+    }
+
+    /**
+     * Returns an iterator over the objects of the given class, ordered by
+     * identifier, starting after the given marker identifier, or from the
+     * first object if the marker is null. The method returns [[None]] if the
+     * class is not served from the index.
+     */
+    def objects(clazz: Class[_], marker: String): Option[Iterator[Message]] = {
+        readyIndex(clazz) map { index =>
+            val objects =
+                if (marker eq null) index.objects
+                else index.objects.tailMap(marker, false)
+            objects.values.iterator.asScala
+        }
+    }
+
+    /**
+     * Returns an iterator over the objects of the given class matching the
+     * given secondary index key, ordered by identifier, starting after the
+     * given marker identifier. The method returns [[None]] if the class is
+     * not served from the index, or the key field is not indexed.
+     */
+    def objects(clazz: Class[_], key: Key, marker: String)
+    : Option[Iterator[Message]] = {
+        readyIndex(clazz) flatMap { index =>
+            index.indexes.get(key.field) map { secondary =>
+                val ids = secondary.get(key.value)
+                if (ids eq null) {
+                    Iterator.empty
+                } else {
+                    val range = if (marker eq null) ids
+                                else ids.tailSet(marker, false)
+                    range.iterator.asScala
+                         .map(index.objects.get)
+                         .filter(_ ne null)
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the objects of the given class with the given identifiers, in
+     * the same order. The method returns [[None]] if the class is not served
+     * from the index, or if any of the objects is not found in the index.
+     */
+    def get(clazz: Class[_], ids: Seq[Any]): Option[Seq[Message]] = {
+        val index = readyIndex(clazz).orNull
+        if (index eq null) {
+            return None
+        }
+        val messages = new Array[Message](ids.size)
+        val iterator = ids.iterator
+        var position = 0
+        while (iterator.hasNext) {
+            val message = index.objects.get(getIdString(clazz, iterator.next()))
+            if (message eq null) {
+                return None
+            }
+            messages(position) = message
+            position += 1
+        }
+        Some(messages)
+    }
+
+    private def readyIndex(clazz: Class[_]): Option[ClassIndex] = {
+        classes.get(clazz.asInstanceOf[Class[_ <: Message]]) match {
+            case Some(index) if index.ready => Some(index)
+            case _ => None
+        }
+    }
+
+    /**
+     * Subscribes to the objects of the given class, and loads the identifiers
+     * of the existing objects to determine when the index is ready.
+     */
+    private def watch(clazz: Class[Message], index: ClassIndex): Unit = {
+        subscriptions add store.observable(clazz).subscribe(
+            new Subscriber[Observable[Message]] {
+                override def onNext(observable: Observable[Message]): Unit = {
+                    val subscriber = new ObjectSubscriber(clazz, index)
+                    subscriptions add subscriber
+                    observable subscribe subscriber
+                }
+                override def onCompleted(): Unit = {
+                    log.warn(s"Topology index for ${clazz.getSimpleName} " +
+                             "completed unexpectedly")
+                    index.clear()
+                }
+                override def onError(e: Throwable): Unit = {
+                    log.warn(s"Topology index for ${clazz.getSimpleName} " +
+                             "failed", e)
+                    index.clear()
+                }
+            })
+
+        store.getAll(clazz).onComplete {
+            case Success(messages) =>
+                index.loaded(messages.map(idOf).toSet)
+            case Failure(e) =>
+                log.warn(s"Failed to load the ${clazz.getSimpleName} " +
+                         "objects for the topology index", e)
+        }(CallingThreadExecutionContext)
+    }
+
+    /**
+     * Subscriber for a single object, which updates the index with every
+     * object notification, and removes the object when deleted. The
+     * subscriber removes itself from the index subscriptions when the object
+     * observable terminates.
+     */
+    private class ObjectSubscriber(clazz: Class[Message], index: ClassIndex)
+        extends Subscriber[Message] {
+
+        private var id: String = null
+
+        override def onNext(message: Message): Unit = {
+            try {
+                id = idOf(message)
+                index.update(message)
+            } catch {
+                case NonFatal(e) =>
+                    log.warn(s"Failed to index ${clazz.getSimpleName} " +
+                             s"$message", e)
+            }
+        }
+
+        override def onCompleted(): Unit = {
+            if (id ne null) index.delete(id)
+            subscriptions remove this
+        }
+
+        override def onError(e: Throwable): Unit = {
+            e match {
+                case nfe: NotFoundException =>
+                    index.delete(getIdString(clazz, nfe.id))
+                case _ =>
+                    log.warn(s"Topology index subscription for " +
+                             s"${clazz.getSimpleName} $id failed", e)
+                    if (id ne null) index.delete(id)
+            }
+            subscriptions remove this
+        }
+    }
+}
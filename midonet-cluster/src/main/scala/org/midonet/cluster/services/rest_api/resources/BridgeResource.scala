@@ -31,6 +31,7 @@ import org.midonet.cluster.rest_api.models._
 import org.midonet.cluster.rest_api.validation.MessageProperty._
 import org.midonet.cluster.rest_api.{BadRequestHttpException, ConflictHttpException}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.midolman.state.PathBuilder
 
@@ -104,6 +105,10 @@ class BridgeResource @Inject()(resContext: ResourceContext,
     }
 
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        queryIndexKey("tenant_id")
+    }
+
     protected override def listFilter(bridges: Seq[Bridge]): Seq[Bridge] = {
         val tenantId = resContext.uriInfo
             .getQueryParameters.getFirst("tenant_id")
@@ -29,6 +29,7 @@ import com.google.inject.servlet.RequestScoped
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, AllowDelete, AllowGet, AllowList, _}
 import org.midonet.cluster.rest_api.models.{Chain, _}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 
 @ApiResource(version = 1, name = "chains", template = "chainTemplate")
@@ -49,6 +50,10 @@ class ChainResource @Inject()(resContext: ResourceContext)
         new ChainRuleResource(id, resContext)
     }
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        queryIndexKey("tenant_id")
+    }
+
     protected override def listFilter(chains: Seq[Chain]): Seq[Chain] = {
         val tenantId = resContext.uriInfo.getQueryParameters
                                          .getFirst("tenant_id")
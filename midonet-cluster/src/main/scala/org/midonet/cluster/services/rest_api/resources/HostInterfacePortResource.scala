@@ -31,6 +31,7 @@ import org.midonet.cluster.rest_api.models.{Host, HostInterfacePort, Port}
 import org.midonet.cluster.rest_api.validation.MessageProperty.{HOST_INTERFACE_IS_USED, HOST_IS_NOT_IN_ANY_TUNNEL_ZONE, PORT_ALREADY_BOUND, getMessage}
 import org.midonet.cluster.rest_api.{ConflictHttpException, NotFoundHttpException}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource.ResourceContext
 
 @RequestScoped
@@ -55,7 +56,9 @@ class HostInterfacePortResource @Inject()(hostId: UUID,
     override def list(@HeaderParam("Accept") accept: String)
     : JList[HostInterfacePort] = {
         val host = getResource(classOf[Host], hostId)
-        listResources(classOf[HostInterfacePort], host.portIds.asScala).asJava
+        listResources(classOf[HostInterfacePort],
+                      TopologyIndex.Key("host_id", hostId.toString),
+                      host.portIds.asScala).asJava
     }
 
     @POST
@@ -20,13 +20,14 @@ import java.lang.annotation.Annotation
 import java.net.URI
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
-import java.util.{ConcurrentModificationException, List => JList, Set => JSet}
+import java.util.{ConcurrentModificationException, UUID, List => JList, Set => JSet}
 import javax.validation.{ConstraintViolation, Validator}
 import javax.ws.rs._
 import javax.ws.rs.core.Response.Status._
 import javax.ws.rs.core._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent._
 import scala.concurrent.duration._
 import scala.reflect.ClassTag
@@ -47,6 +48,8 @@ import org.midonet.cluster.rest_api._
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, AllowGet, AllowList, AllowUpdate}
 import org.midonet.cluster.rest_api.models.UriResource
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.rest_api.TopologyIndex
+import org.midonet.cluster.services.rest_api.TopologyIndex.idOf
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.cluster.util.SequenceDispenser
 import org.midonet.cluster.util.logging.ProtoTextPrettifier.makeReadable
@@ -169,7 +172,80 @@ object MidonetResource {
                                           lockFactory: ZookeeperLockFactory,
                                           uriInfo: UriInfo,
                                           validator: Validator,
-                                          seqDispenser: SequenceDispenser)
+                                          seqDispenser: SequenceDispenser,
+                                          topologyIndex: TopologyIndex)
+
+    /**
+     * The page of a list request, set by the `marker` and `limit` query
+     * parameters. The page includes at most `limit` resources, with an
+     * identifier greater than the `marker` identifier, ordered by identifier.
+     * Lists of the identifiers stored in a parent resource keep the stored
+     * order instead, which may be meaningful, such as for the rules of a
+     * chain, and their page starts after the `marker` resource. When neither
+     * parameter is set, the page includes all resources, in the storage order.
+     */
+    case class ListPage(marker: String, limit: Int) {
+
+        def isDefined: Boolean = (marker ne null) || limit != Int.MaxValue
+
+        /** Selects the messages of this page, from the given messages. */
+        def select(messages: Seq[Message]): Iterator[Message] = {
+            if (isDefined) {
+                messages.map(message => (idOf(message), message))
+                        .filter { case (id, _) => (marker eq null) || id > marker }
+                        .sortBy(_._1)
+                        .iterator
+                        .map(_._2)
+            } else {
+                messages.iterator
+            }
+        }
+
+        /** Returns the position of the first message of this page in the
+          * given ordered messages, which is after the `marker` message. */
+        def start(messages: Seq[Message]): Int = {
+            if (marker eq null) {
+                0
+            } else {
+                val index = messages.indexWhere(idOf(_) == marker)
+                if (index < 0) {
+                    throw new BadRequestHttpException(
+                        s"Invalid ${ListPage.MarkerParam} $marker: the " +
+                        "marker is not in the list")
+                }
+                index + 1
+            }
+        }
+    }
+
+    object ListPage {
+        final val MarkerParam = "marker"
+        final val LimitParam = "limit"
+
+        def apply(params: MultivaluedMap[String, String]): ListPage = {
+            val marker = params.getFirst(MarkerParam) match {
+                case null => null
+                case value =>
+                    try UUID.fromString(value).toString
+                    catch { case e: IllegalArgumentException => value }
+            }
+            val limit = params.getFirst(LimitParam) match {
+                case null => Int.MaxValue
+                case value =>
+                    try {
+                        val limit = Integer.parseInt(value)
+                        if (limit <= 0) throw new NumberFormatException(value)
+                        limit
+                    } catch {
+                        case e: NumberFormatException =>
+                            throw new BadRequestHttpException(
+                                s"Invalid $LimitParam $value: the limit must " +
+                                "be a positive integer")
+                    }
+            }
+            ListPage(marker, limit)
+        }
+    }
 
 }
 
@@ -251,13 +327,19 @@ abstract class MidonetResource[T >: Null <: UriResource]
     @GET
     def list(@HeaderParam("Accept") accept: String): JList[T] = {
         validateMediaType(accept, getAnnotation(classOf[AllowList]).value())
+        val clazz = tag.runtimeClass.asInstanceOf[Class[T]]
+        val page = ListPage(uriInfo.getQueryParameters)
         val ids = listIds
-        val list = if (ids eq null) {
-            listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]]))
+        val key = listIndexKey
+        if (ids eq null) {
+            listPage(listMessages(clazz, key, page), 0, clazz, page).asJava
+        } else if (key ne null) {
+            listPage(listMessages(clazz, ids, key, page), 0, clazz, page).asJava
         } else {
-            listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]], ids))
+            val messages = listMessages(clazz, ids)
+            val start = page.start(messages)
+            listPage(messages.iterator.drop(start), start, clazz, page).asJava
         }
-        list.asJava
     }
 
     @POST
@@ -321,8 +403,22 @@ abstract class MidonetResource[T >: Null <: UriResource]
 
     protected def listIds: Seq[Any] = null
 
+    /** Returns the key of the topology index that selects the listed
+      * resources, or null if the list is not selected by an indexed field.
+      * The [[listFilter]] or the [[listIds]] must apply the same selection,
+      * for when the list is not served from the index. */
+    protected def listIndexKey: TopologyIndex.Key = null
+
     protected def listFilter(list: Seq[T]): Seq[T] = list
 
+    /** Filters the listed resources, where the `offset` is the position of
+      * the first resource in the list, for the filters that depend on the
+      * order of the resources. The resources are passed in chunks when the
+      * list is paged. */
+    protected def listFilter(list: Seq[T], offset: Int): Seq[T] = {
+        listFilter(list)
+    }
+
     protected def createFilter(t: T, tx: ResourceTransaction): Unit = {
         tx.create(t)
     }
@@ -373,6 +469,98 @@ abstract class MidonetResource[T >: Null <: UriResource]
              .getOrThrow
     }
 
+    /**
+     * Returns the resources of the given class selected by the given key of
+     * the topology index, if the index serves the class, or otherwise the
+     * resources with the specified identifiers from storage.
+     */
+    protected def listResources[U >: Null <: UriResource](
+            clazz: Class[U], key: TopologyIndex.Key, ids: Seq[Any]): Seq[U] = {
+        resContext.topologyIndex.objects(UriResource.getZoomClass(clazz), key,
+                                         null) match {
+            case Some(messages) => messages.map(fromProto(_, clazz)).toList
+            case None => listResources(clazz, ids)
+        }
+    }
+
+    /**
+     * Returns the key of the topology index for the given message field, with
+     * the value of the query parameter having the same name, or null if the
+     * request does not set the parameter.
+     */
+    protected def queryIndexKey(field: String): TopologyIndex.Key = {
+        uriInfo.getQueryParameters.getFirst(field) match {
+            case null => null
+            case value => TopologyIndex.Key(field, value)
+        }
+    }
+
+    /**
+     * Returns the messages of all objects of the given class for the specified
+     * page, from the topology index if the class is indexed, or otherwise from
+     * storage.
+     */
+    private def listMessages(clazz: Class[T], key: TopologyIndex.Key,
+                             page: ListPage): Iterator[Message] = {
+        val zoomClass = UriResource.getZoomClass(clazz)
+        val index = resContext.topologyIndex
+        val indexed = if (key eq null) index.objects(zoomClass, page.marker)
+                      else index.objects(zoomClass, key, page.marker)
+        indexed getOrElse {
+            page.select(store.getAll(zoomClass).getOrThrow)
+        }
+    }
+
+    /**
+     * Returns the messages of the objects of the given class with the
+     * specified identifiers for the given page. The messages are selected
+     * from the topology index by the given key, or by the identifiers if the
+     * index contains all of them, or otherwise from storage.
+     */
+    private def listMessages(clazz: Class[T], ids: Seq[Any],
+                             key: TopologyIndex.Key, page: ListPage)
+    : Iterator[Message] = {
+        val zoomClass = UriResource.getZoomClass(clazz)
+        resContext.topologyIndex.objects(zoomClass, key, page.marker) getOrElse {
+            page.select(listMessages(clazz, ids))
+        }
+    }
+
+    /**
+     * Returns the messages of the objects of the given class with the
+     * specified identifiers, in the order of the identifiers, from the
+     * topology index if the index contains all of them, or otherwise from
+     * storage.
+     */
+    private def listMessages(clazz: Class[T], ids: Seq[Any]): Seq[Message] = {
+        val zoomClass = UriResource.getZoomClass(clazz)
+        resContext.topologyIndex.get(zoomClass, ids) getOrElse {
+            store.getAll(zoomClass, ids).getOrThrow
+        }
+    }
+
+    /**
+     * Converts the given messages to resources and filters them with the
+     * [[listFilter]], until the page is full. The messages are converted in
+     * chunks, such that only the messages needed to fill the page are
+     * converted. The `offset` is the position of the first message in the
+     * list.
+     */
+    private def listPage(messages: Iterator[Message], offset: Int,
+                         clazz: Class[T], page: ListPage): Seq[T] = {
+        val resources = new ArrayBuffer[T]
+        var position = offset
+        while (messages.hasNext && resources.size < page.limit) {
+            val chunk = new ArrayBuffer[T]
+            while (messages.hasNext && chunk.size < page.limit - resources.size) {
+                chunk += fromProto(messages.next(), clazz)
+            }
+            resources ++= listFilter(chunk, position)
+            position += chunk.size
+        }
+        resources
+    }
+
     protected def getResource[U >: Null <: UriResource](clazz: Class[U], id: Any)
     : U = {
         store.get(UriResource.getZoomClass(clazz), id)
@@ -28,6 +28,7 @@ import com.google.inject.servlet.RequestScoped
 import org.midonet.cluster.rest_api.annotation._
 import org.midonet.cluster.rest_api.models.{Port, PortGroup, PortGroupPort}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource.ResourceContext
 
 @ApiResource(version = 1, name = "portGroups", template = "portGroupTemplate")
@@ -44,6 +45,10 @@ import org.midonet.cluster.services.rest_api.resources.MidonetResource.ResourceC
 class PortGroupResource @Inject()(resContext: ResourceContext)
     extends MidonetResource[PortGroup](resContext) {
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        queryIndexKey("tenant_id")
+    }
+
     protected override def listFilter(portGroups: Seq[PortGroup]): Seq[PortGroup] = {
         val portIdStr = uriInfo.getQueryParameters.getFirst("port_id")
         val portId = if (portIdStr == null) null else UUID.fromString(portIdStr)
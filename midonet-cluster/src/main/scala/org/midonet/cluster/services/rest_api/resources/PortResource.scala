@@ -45,6 +45,7 @@ import org.midonet.cluster.rest_api.models._
 import org.midonet.cluster.rest_api.validation.MessageProperty._
 import org.midonet.cluster.services.MidonetBackend.{ActiveKey, BgpKey}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.cluster.util.SequenceDispenser.OverlayTunnelKey
 import org.midonet.cluster.util.UUIDUtil._
@@ -176,6 +177,10 @@ class BridgePortResource @Inject()(bridgeId: UUID,
         getResource(classOf[Bridge], bridgeId).portIds.asScala
     }
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        TopologyIndex.Key("network_id", bridgeId.toString)
+    }
+
     protected override def createFilter(port: Port,
                                         tx: ResourceTransaction): Unit = {
         val bridgePort = port match {
@@ -238,6 +243,10 @@ class RouterPortResource @Inject()(routerId: UUID, resContext: ResourceContext)
         getResource(classOf[Router], routerId).portIds.asScala
     }
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        TopologyIndex.Key("router_id", routerId.toString)
+    }
+
     protected override def createFilter(port:RouterPort,
                                         tx: ResourceTransaction): Unit = {
         ensureTunnelKey(port)
@@ -26,6 +26,7 @@ import com.google.inject.servlet.RequestScoped
 import org.midonet.cluster.rest_api.annotation._
 import org.midonet.cluster.rest_api.models.Router
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.rest_api.TopologyIndex
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.midolman.state.PathBuilder
 
@@ -70,6 +71,10 @@ class RouterResource @Inject()(resContext: ResourceContext,
         new RouterBgpPeerResource(id, resContext)
     }
 
+    protected override def listIndexKey: TopologyIndex.Key = {
+        queryIndexKey("tenant_id")
+    }
+
     protected override def listFilter(routers: Seq[Router]): Seq[Router] = {
         val tenantId = resContext.uriInfo.getQueryParameters
                                          .getFirst("tenant_id")
@@ -72,8 +72,9 @@ class ChainRuleResource @Inject()(chainId: UUID, resContext: ResourceContext)
         getResource(classOf[Chain], chainId).ruleIds.asScala
     }
 
-    protected override def listFilter(rules: Seq[Rule]): Seq[Rule] = {
-        for (index <- rules.indices) rules(index).position = index + 1
+    protected override def listFilter(rules: Seq[Rule], offset: Int)
+    : Seq[Rule] = {
+        for (index <- rules.indices) rules(index).position = offset + index + 1
         rules
     }
 
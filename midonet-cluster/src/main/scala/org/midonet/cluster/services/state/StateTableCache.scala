@@ -305,6 +305,19 @@ object StateTableCache {
 
     private type TableEntries = util.HashMap[KeyValue, TableEntry]
 
+    /**
+      * A child node of the state table seen by an incremental cache, with its
+      * decoded entry, or `null` if the node name cannot be decoded, and the
+      * last refresh generation in which the child was present.
+      */
+    private class TableChild(val entry: TableEntry, var generation: Long)
+
+    /**
+      * The children of the state table read from storage for a given
+      * version.
+      */
+    private class TableChildren(val names: util.List[String], val stat: Stat)
+
     private final val NoSubscriptions = new Array[Subscription](0)
     private final val NoUpdates = new Array[Update](0)
     private final val EmptyPendingMap = Map.empty[Subscription, Runnable]
@@ -377,6 +390,20 @@ class StateTableCache(val config: StateProxyConfig,
     private val diffAddCache = new util.ArrayList[TableEntry](8)
     private val diffRemoveCache = new util.ArrayList[TableEntry](8)
 
+    // The latest table children that have not been processed yet, in
+    // incremental mode.
+    private val pendingChildren = new AtomicReference[TableChildren]()
+
+    // State of the incremental mode: the child nodes seen in the previous
+    // version, and the candidate entries for every key, from which the
+    // cache selects the current entry.
+    private[state] val incremental = config.incrementalCache
+    private val children = new util.HashMap[String, TableChild]
+    private val keyEntries =
+        new util.HashMap[KeyValue, util.ArrayList[TableEntry]]
+    private val changedKeys = new util.HashSet[KeyValue]
+    private var generation = 0L
+
     private val path = storage.tablePath(objectClass, objectId, name, args: _*)
     protected[state] val logId =
         s"${objectClass.getSimpleName}/$objectId/$name"
@@ -642,26 +669,50 @@ class StateTableCache(val config: StateProxyConfig,
     /**
       * Processes the entries received by an update operation. The method
       * updates the cache and notifies all subscriber of the map changes.
-      * Processing is done on the dispatcher thread.
+      * Processing is done on the dispatcher thread. In incremental mode, if
+      * several updates are received before the dispatcher processes them,
+      * only the latest one is processed, such that a burst of changes results
+      * in a single notification to the subscribers.
       */
     private def processEntries(entries: util.List[String], stat: Stat): Unit = {
+        if (!incremental) {
+            executor.submit(makeRunnable {
+                processEntriesSafe(entries, stat)
+            })
+            return
+        }
+        if (pendingChildren.getAndSet(new TableChildren(entries, stat)) ne null) {
+            // The dispatcher has not yet processed the previous entries, and
+            // will process these instead.
+            return
+        }
         executor.submit(makeRunnable {
-            try {
-                processEntriesUnsafe(entries, stat)
-            } catch {
-                case NonFatal(e) =>
-                    // We should never get here, when we do there is a bug, in
-                    // which case the cache may be corrupted: terminate all
-                    // subscriptions.
-                    val message =
-                        s"($logId) Unexpected exception when processing " +
-                        s"cache entries for version ${stat.getPzxid}"
-                    Log.error(message, e)
-                    close(new IllegalStateException(message))
-            }
+            val latest = pendingChildren.getAndSet(null)
+            processEntriesSafe(latest.names, latest.stat)
         })
     }
 
+    /**
+      * Processes the entries on the dispatcher thread, closing the cache if
+      * the processing fails.
+      */
+    private def processEntriesSafe(entries: util.List[String],
+                                   stat: Stat): Unit = {
+        try {
+            processEntriesUnsafe(entries, stat)
+        } catch {
+            case NonFatal(e) =>
+                // We should never get here, when we do there is a bug, in
+                // which case the cache may be corrupted: terminate all
+                // subscriptions.
+                val message =
+                    s"($logId) Unexpected exception when processing " +
+                    s"cache entries for version ${stat.getPzxid}"
+                Log.error(message, e)
+                close(new IllegalStateException(message))
+        }
+    }
+
     /**
       * Unsafely processes the entries during an update of the table cache.
       * Exceptions thrown by this method indicate a bug, however they must be
@@ -670,8 +721,8 @@ class StateTableCache(val config: StateProxyConfig,
       * dispatcher thread.
       */
     @throws[Exception]
-    private def processEntriesUnsafe(entries: util.List[String],
-                                     stat: Stat): Unit = {
+    private[state] def processEntriesUnsafe(entries: util.List[String],
+                                            stat: Stat): Unit = {
         val currentCache = cache
         if (currentCache eq null) {
             return
@@ -686,50 +737,12 @@ class StateTableCache(val config: StateProxyConfig,
         diffAddCache.clear()
         diffRemoveCache.clear()
 
-        val newCache = new TableEntries
-
-        // Add/update new entries in the cache.
-        val entryIterator = entries.iterator()
-        while (entryIterator.hasNext) {
-            val newEntry = decodeEntry(entryIterator.next())
-            // Ignore entries that cannot be decoded.
-            if (newEntry != null) {
-                // Compute the diff with respect to the previous version
-                // of the cache.
-                val currentEntry = newCache.get(newEntry.key)
-                if ((currentEntry eq null) ||
-                    currentEntry.version == PersistentVersion ||
-                    (currentEntry.version < newEntry.version &&
-                     newEntry.version != PersistentVersion)) {
-
-                    newCache.put(newEntry.key, newEntry)
-                }
-            }
-        }
-
-        // Compute the added entries.
-        var cacheIterator = newCache.values().iterator()
-        while (cacheIterator.hasNext) {
-            val newEntry = cacheIterator.next()
-            val oldEntry = currentCache.get(newEntry.key)
-            if ((oldEntry eq null) || oldEntry.version != newEntry.version) {
-                diffAddCache.add(newEntry)
-            }
-        }
-
-        // Compute the removed entries.
-        cacheIterator = currentCache.values().iterator()
-        while (cacheIterator.hasNext) {
-            val oldEntry = cacheIterator.next()
-            val newEntry = newCache.get(oldEntry.key)
-            if (newEntry eq null) {
-                diffRemoveCache.add(oldEntry)
-            }
+        if (incremental) {
+            updateEntriesIncremental(currentCache, entries)
+        } else {
+            updateEntries(currentCache, entries)
         }
 
-        // Update the cache.
-        cache = newCache
-
         // Compute the differential updates based on the current batch size.
         val updateCount = diffAddCache.size() + diffRemoveCache.size()
         val updates = if (updateCount > 0) {
@@ -828,6 +841,146 @@ class StateTableCache(val config: StateProxyConfig,
         }
     }
 
+    /**
+      * Updates the cache by decoding all entries and comparing them with the
+      * current cache.
+      */
+    private def updateEntries(currentCache: TableEntries,
+                              entries: util.List[String]): Unit = {
+        val newCache = new TableEntries
+
+        // Add/update new entries in the cache.
+        val entryIterator = entries.iterator()
+        while (entryIterator.hasNext) {
+            val newEntry = decodeEntry(entryIterator.next())
+            // Ignore entries that cannot be decoded.
+            if (newEntry != null) {
+                val currentEntry = newCache.get(newEntry.key)
+                if (replaces(currentEntry, newEntry)) {
+                    newCache.put(newEntry.key, newEntry)
+                }
+            }
+        }
+
+        // Compute the added entries.
+        var cacheIterator = newCache.values().iterator()
+        while (cacheIterator.hasNext) {
+            val newEntry = cacheIterator.next()
+            val oldEntry = currentCache.get(newEntry.key)
+            if ((oldEntry eq null) || oldEntry.version != newEntry.version) {
+                diffAddCache.add(newEntry)
+            }
+        }
+
+        // Compute the removed entries.
+        cacheIterator = currentCache.values().iterator()
+        while (cacheIterator.hasNext) {
+            val oldEntry = cacheIterator.next()
+            val newEntry = newCache.get(oldEntry.key)
+            if (newEntry eq null) {
+                diffRemoveCache.add(oldEntry)
+            }
+        }
+
+        // Update the cache.
+        cache = newCache
+    }
+
+    /**
+      * Updates the cache in place by decoding only the child nodes that were
+      * added or removed since the previous version, and by selecting again
+      * the entry of their keys.
+      */
+    private def updateEntriesIncremental(currentCache: TableEntries,
+                                         entries: util.List[String]): Unit = {
+        generation += 1
+        changedKeys.clear()
+
+        // Decode the added children.
+        val entryIterator = entries.iterator()
+        while (entryIterator.hasNext) {
+            val name = entryIterator.next()
+            val child = children.get(name)
+            if (child eq null) {
+                val newEntry = decodeEntry(name)
+                children.put(name, new TableChild(newEntry, generation))
+                // Ignore entries that cannot be decoded.
+                if (newEntry ne null) {
+                    var candidates = keyEntries.get(newEntry.key)
+                    if (candidates eq null) {
+                        candidates = new util.ArrayList[TableEntry](1)
+                        keyEntries.put(newEntry.key, candidates)
+                    }
+                    candidates.add(newEntry)
+                    changedKeys.add(newEntry.key)
+                }
+            } else {
+                child.generation = generation
+            }
+        }
+
+        // Remove the children that are no longer present.
+        val childIterator = children.values().iterator()
+        while (childIterator.hasNext) {
+            val child = childIterator.next()
+            if (child.generation != generation) {
+                childIterator.remove()
+                if (child.entry ne null) {
+                    val candidates = keyEntries.get(child.entry.key)
+                    candidates.remove(child.entry)
+                    if (candidates.isEmpty) {
+                        keyEntries.remove(child.entry.key)
+                    }
+                    changedKeys.add(child.entry.key)
+                }
+            }
+        }
+
+        // Select the entry of the changed keys, and compute the diff.
+        val keyIterator = changedKeys.iterator()
+        while (keyIterator.hasNext) {
+            val key = keyIterator.next()
+            val candidates = keyEntries.get(key)
+            val oldEntry = currentCache.get(key)
+            var newEntry: TableEntry = null
+            if (candidates ne null) {
+                var index = 0
+                while (index < candidates.size()) {
+                    if (replaces(newEntry, candidates.get(index))) {
+                        newEntry = candidates.get(index)
+                    }
+                    index += 1
+                }
+            }
+
+            if (newEntry eq null) {
+                if (oldEntry ne null) {
+                    currentCache.remove(key)
+                    diffRemoveCache.add(oldEntry)
+                }
+            } else if (newEntry ne oldEntry) {
+                currentCache.put(key, newEntry)
+                if ((oldEntry eq null) || oldEntry.version != newEntry.version) {
+                    diffAddCache.add(newEntry)
+                }
+            }
+        }
+    }
+
+    /**
+      * Indicates whether a table entry replaces the current entry for the
+      * same key: ephemeral entries replace persistent entries, and the entry
+      * with the highest version replaces the other ephemeral entries.
+      */
+    @inline
+    private def replaces(currentEntry: TableEntry,
+                         newEntry: TableEntry): Boolean = {
+        (currentEntry eq null) ||
+        currentEntry.version == PersistentVersion ||
+        (currentEntry.version < newEntry.version &&
+         newEntry.version != PersistentVersion)
+    }
+
     /**
       * Computes the latency of a state table operation assuming that the
       * context includes the start timestamp. Returns -1 otherwise.
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.tools
+
+import scala.util.control.NonFatal
+
+import com.google.inject.Guice
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.ClusterConfig
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.storage.MidonetBackendModule
+
+/**
+ * Stand-alone application that rewrites in binary format the topology
+ * objects that are stored in ZooKeeper in text format. The migration can
+ * run while the cluster and agents are running, once all of them have been
+ * upgraded to a version that reads the binary format. The optional argument
+ * is the path of the cluster configuration file.
+ */
+object ZoomFormatMigratorApp extends App {
+    private val log = LoggerFactory.getLogger(this.getClass)
+
+    private val config =
+        if (args.isEmpty) ClusterConfig() else ClusterConfig(args(0))
+
+    private val injector = Guice.createInjector(
+        new MidonetBackendModule(config.backend, None))
+
+    private val backend = injector.getInstance(classOf[MidonetBackend])
+
+    private val status = try {
+        backend.startAsync().awaitRunning()
+        backend.store match {
+            case zoom: ZookeeperObjectMapper =>
+                val count = zoom.migrateToBinaryFormat()
+                log.info(s"Migrated $count objects to binary format")
+                0
+            case store =>
+                log.error(s"Storage $store does not support format migration")
+                1
+        }
+    } catch {
+        case NonFatal(e) =>
+            log.error("Failed to migrate the storage format", e)
+            1
+    } finally {
+        backend.stopAsync()
+    }
+    System.exit(status)
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import com.google.protobuf.Message
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.rest_api.models.{Port, Router, Rule}
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.{IPSubnetUtil, RangeUtil}
+import org.midonet.cluster.util.UUIDUtil._
+
+object ZoomConvertBenchmark {
+    val ReferenceCount = 16
+}
+
+/**
+ * Measures the throughput of the conversions between the API models and the
+ * Protocol Buffers messages, for router ports, jump rules with a condition,
+ * and routers. Running the benchmark against different revisions compares
+ * the cost of the conversion implementations.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomConvertBenchmark extends TopologyBuilder {
+    import ZoomConvertBenchmark._
+
+    @Param(Array("port", "rule", "router"))
+    var objectType: String = _
+
+    var proto: Message = _
+    var protoClass: Class[Message] = _
+    var pojo: ZoomObject = _
+    var pojoClass: Class[ZoomObject] = _
+
+    private def ids(): Set[UUID] =
+        (0 until ReferenceCount).map(_ => UUID.randomUUID()).toSet
+
+    @JmhSetup
+    def setup(): Unit = {
+        objectType match {
+            case "port" =>
+                proto = createRouterPort(routerId = Some(UUID.randomUUID()),
+                                         inboundFilterId = Some(UUID.randomUUID()),
+                                         outboundFilterId = Some(UUID.randomUUID()),
+                                         peerId = Some(UUID.randomUUID()),
+                                         hostId = Some(UUID.randomUUID()),
+                                         interfaceName = Some("benchmark"),
+                                         portGroupIds = ids(),
+                                         routeIds = ids())
+                protoClass = classOf[Topology.Port].asInstanceOf[Class[Message]]
+                pojoClass = classOf[Port].asInstanceOf[Class[ZoomObject]]
+            case "rule" =>
+                val condition = Commons.Condition.newBuilder
+                    .addAllInPortIds(ids().map(_.asProto).asJava)
+                    .setDlType(0x0800)
+                    .setDlSrc("02:00:00:00:00:01")
+                    .setNwProto(6)
+                    .setNwSrcIp(IPSubnetUtil.toProto("10.0.0.0/24"))
+                    .setTpDst(RangeUtil.toProto(80, 8080))
+                    .setFragmentPolicy(Commons.Condition.FragmentPolicy.ANY)
+                    .build()
+                proto = createJumpRuleBuilder(UUID.randomUUID(),
+                                              chainId = Some(UUID.randomUUID()),
+                                              jumpChainId = Some(UUID.randomUUID()))
+                    .setCondition(condition)
+                    .build()
+                protoClass = classOf[Topology.Rule].asInstanceOf[Class[Message]]
+                pojoClass = classOf[Rule].asInstanceOf[Class[ZoomObject]]
+            case "router" =>
+                proto = createRouter(name = Some("benchmark"),
+                                     inboundFilterId = Some(UUID.randomUUID()),
+                                     outboundFilterId = Some(UUID.randomUUID()),
+                                     routeIds = ids().toSeq, portIds = ids())
+                protoClass = classOf[Topology.Router].asInstanceOf[Class[Message]]
+                pojoClass = classOf[Router].asInstanceOf[Class[ZoomObject]]
+        }
+        pojo = ZoomConvert.fromProto(proto, pojoClass)
+    }
+
+    @Benchmark
+    def toProto(): Message = {
+        ZoomConvert.toProto(pojo, protoClass)
+    }
+
+    @Benchmark
+    def fromProto(): ZoomObject = {
+        ZoomConvert.fromProto(proto, pojoClass)
+    }
+}
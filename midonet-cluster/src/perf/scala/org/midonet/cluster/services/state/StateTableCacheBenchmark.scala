@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.state
+
+import java.util
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import com.typesafe.config.ConfigFactory
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.zookeeper.data.Stat
+import org.mockito.Mockito.mock
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.StateProxyConfig
+import org.midonet.cluster.data.storage.StateTableStorage
+import org.midonet.cluster.rest_api.models.Bridge
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.packets.MAC
+import org.midonet.util.concurrent.SameThreadButAfterExecutorService
+
+/**
+ * Measures the cost of processing a single child change of a MAC table, as a
+ * function of the table size, when the cache decodes all children and when
+ * it processes only the changed children.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class StateTableCacheBenchmark {
+
+    @Param(Array("1000", "10000", "50000"))
+    var tableSize: Int = _
+
+    @Param(Array("true", "false"))
+    var incremental: Boolean = _
+
+    var cache: StateTableCache = _
+    var entries: util.List[String] = _
+    var entriesWithChange: util.List[String] = _
+    var version = 0L
+    var changed = false
+
+    private def entry(version: Int): String = {
+        s"${MAC.random()},${UUID.randomUUID()},${"%010d".format(version)}"
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val config = new StateProxyConfig(ConfigFactory.parseString(
+            s"""
+               |cluster.state_proxy.initial_subscriber_queue_size : 16
+               |cluster.state_proxy.notify_batch_size : 64
+               |cluster.state_proxy.incremental_cache : $incremental
+             """.stripMargin))
+        cache = new StateTableCache(config, mock(classOf[StateTableStorage]),
+                                    mock(classOf[CuratorFramework]),
+                                    new AtomicLong(), classOf[Bridge],
+                                    UUID.randomUUID(), classOf[MAC],
+                                    classOf[UUID], MidonetBackend.MacTable,
+                                    Seq.empty,
+                                    new SameThreadButAfterExecutorService,
+                                    _ => { })
+
+        entries = new util.ArrayList[String](tableSize)
+        for (index <- 0 until tableSize) {
+            entries.add(entry(index))
+        }
+        entriesWithChange = new util.ArrayList[String](entries)
+        entriesWithChange.add(entry(tableSize))
+
+        cache.processEntriesUnsafe(entries, nextStat())
+    }
+
+    private def nextStat(): Stat = {
+        version += 1
+        val stat = new Stat()
+        stat.setPzxid(version)
+        stat
+    }
+
+    @Benchmark
+    def processChange(): Unit = {
+        changed = !changed
+        cache.processEntriesUnsafe(if (changed) entriesWithChange else entries,
+                                   nextStat())
+    }
+}
@@ -65,6 +65,7 @@ import static org.midonet.cluster.services.rest_api.MidonetMediaTypes.APPLICATIO
 @Suite.SuiteClasses({TestRule.TestRuleCreateBadRequest.class,
                      TestRule.TestMacFields.class,
                      TestRule.TestFragmentPolicy.class,
+                     TestRule.TestRulePages.class,
                      TestRule.TestRuleCrudSuccess.class})
 public class TestRule {
 
@@ -336,6 +337,52 @@ public class TestRule {
         }
     }
 
+    public static class TestRulePages extends TestRuleBase {
+
+        private DtoRule[] getPage(String marker, int limit) {
+            UriBuilder builder = UriBuilder.fromUri(chain1.getRules())
+                                           .queryParam("limit", limit);
+            if (marker != null) {
+                builder.queryParam("marker", marker);
+            }
+            return dtoResource.getAndVerifyOk(builder.build(),
+                    APPLICATION_RULE_COLLECTION_JSON_V2(), DtoRule[].class);
+        }
+
+        @Test
+        public void testPagesInChainOrder() {
+            // Insert every rule at the first position, such that the chain
+            // order is the reverse of the creation order.
+            UUID[] ids = new UUID[5];
+            for (int index = ids.length - 1; index >= 0; index--) {
+                DtoRule rule = newAcceptRule();
+                rule.setPosition(1);
+                ids[index] = dtoResource.postAndVerifyCreated(
+                    chain1.getRules(), APPLICATION_RULE_JSON_V2(), rule,
+                    DtoRule.class).getId();
+            }
+
+            DtoRule[] page = getPage(null, 2);
+            assertEquals(2, page.length);
+            assertEquals(ids[0], page[0].getId());
+            assertEquals(1, page[0].getPosition());
+            assertEquals(ids[1], page[1].getId());
+            assertEquals(2, page[1].getPosition());
+
+            page = getPage(ids[1].toString(), 2);
+            assertEquals(2, page.length);
+            assertEquals(ids[2], page[0].getId());
+            assertEquals(3, page[0].getPosition());
+            assertEquals(ids[3], page[1].getId());
+            assertEquals(4, page[1].getPosition());
+
+            page = getPage(ids[3].toString(), 2);
+            assertEquals(1, page.length);
+            assertEquals(ids[4], page[0].getId());
+            assertEquals(5, page[0].getPosition());
+        }
+    }
+
     @RunWith(Parameterized.class)
     public static class TestEtherType extends TestRuleBase {
 
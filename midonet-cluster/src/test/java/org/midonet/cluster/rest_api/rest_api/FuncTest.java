@@ -54,6 +54,7 @@ import org.midonet.cluster.rest_api.serialization.ObjectMapperProvider;
 import org.midonet.cluster.services.MidonetBackend;
 import org.midonet.cluster.services.MidonetBackendService;
 import org.midonet.cluster.services.rest_api.RestApi;
+import org.midonet.cluster.services.rest_api.TopologyIndex;
 import org.midonet.cluster.storage.ArpStateTable;
 import org.midonet.cluster.storage.Ip4MacStateTable;
 import org.midonet.cluster.storage.MacIdStateTable;
@@ -183,6 +184,7 @@ public class FuncTest {
             FuncTest._injector = Guice.createInjector(
                 RestApi.servletModule(
                     backend, ec, curator, cfg, reflections, authService,
+                    new TopologyIndex(backend.store(), cfg.restApi()),
                     Logger.apply(getLogger(getClass()))),
                 new AbstractModule() {
                     @Override
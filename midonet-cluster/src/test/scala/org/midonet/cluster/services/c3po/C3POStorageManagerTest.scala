@@ -19,21 +19,26 @@ package org.midonet.cluster.services.c3po
 import java.util
 import java.util.{Map => JMap}
 
-import scala.concurrent.{Future, Promise}
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future, Promise}
+import scala.util.Try
 
 import com.google.protobuf.Message
 import org.junit.runner.RunWith
 import org.mockito.ArgumentMatcher
 import org.mockito.Matchers.{any, anyObject, argThat}
-import org.mockito.Mockito.{doThrow, mock, never, verify, when}
+import org.mockito.Mockito.{doThrow, mock, never, times, verify, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{BeforeAndAfterEach, FlatSpec}
 
-import org.midonet.cluster.data.storage.{CreateOp, DeleteOp, PersistenceOp, Storage, StorageException, UpdateOp}
+import org.midonet.cluster.data.storage.{CreateOp, DeleteOp, InMemoryStorage, PersistenceOp, Storage, StorageException, UpdateOp}
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Neutron.{NeutronNetwork, NeutronPort, NeutronRoute}
-import org.midonet.cluster.models.Topology.{Network, Port}
-import org.midonet.cluster.services.c3po.translators.{NetworkTranslator, TranslationException, Translator}
+import org.midonet.cluster.models.Topology.{Network, Port, Route}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.c3po.translators.{NetworkTranslator, OperationList, TranslationException, Translator}
 import org.midonet.cluster.util.UUIDUtil.randomUuidProto
 import org.midonet.midolman.state.PathBuilder
 
@@ -267,6 +272,187 @@ class C3POStorageManagerTest extends FlatSpec with BeforeAndAfterEach {
         }
     }
 
+    private def pipelinedManager(): (C3POStorageManager, ReadTrackingStorage) = {
+        val tracker = new ReadTrackingStorage(storage)
+        val manager = new C3POStorageManager(storage, tracker)
+        manager.init()
+
+        when(mockNetworkTranslator
+                .translateOp(Create(neutronNetwork)))
+                .thenReturn(List(Create(neutronNetwork),
+                                 Create(midoNetwork)))
+        val translators: TranslatorMap = new util.HashMap()
+        translators.put(classOf[NeutronNetwork], mockNetworkTranslator)
+        translators.put(classOf[NeutronPort], mockPortTranslator)
+        manager.registerTranslators(translators)
+        (manager, tracker)
+    }
+
+    "Pipelined transactions" should "coalesce independent tasks in a " +
+                                    "single multi call" in {
+        val (manager, _) = pipelinedManager()
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(midoPort)))
+
+        manager.interpretAndExecTxns(
+            Seq(txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))), 10)
+
+        verify(storage).multi(List(
+                CreateOp(neutronNetwork),
+                CreateOp(midoNetwork),
+                CreateOp(neutronNetworkPort),
+                CreateOp(midoPort),
+                UpdateOp(C3POState.at(3))))
+    }
+
+    it should "limit the number of operations of a multi call" in {
+        val (manager, _) = pipelinedManager()
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(midoPort)))
+
+        manager.interpretAndExecTxns(
+            Seq(txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))), 3)
+
+        verify(storage).multi(List(
+                CreateOp(neutronNetwork),
+                CreateOp(midoNetwork),
+                UpdateOp(C3POState.at(2))))
+        verify(storage).multi(List(
+                CreateOp(neutronNetworkPort),
+                CreateOp(midoPort),
+                UpdateOp(C3POState.at(3))))
+    }
+
+    private def storedPipelinedManager()
+    : (C3POStorageManager, InMemoryStorage, ReadTrackingStorage) = {
+        val store = new InMemoryStorage
+        MidonetBackend.setupBindings(store, store)
+        val tracker = new ReadTrackingStorage(store)
+        val manager = new C3POStorageManager(store, tracker)
+        manager.init()
+
+        when(mockNetworkTranslator
+                .translateOp(Create(neutronNetwork)))
+                .thenReturn(List(Create(neutronNetwork),
+                                 Create(midoNetwork)))
+        val translators: TranslatorMap = new util.HashMap()
+        translators.put(classOf[NeutronNetwork], mockNetworkTranslator)
+        translators.put(classOf[NeutronPort], mockPortTranslator)
+        manager.registerTranslators(translators)
+        (manager, store, tracker)
+    }
+
+    it should "translate dependent tasks after the previous commit" in {
+        val (manager, store, tracker) = storedPipelinedManager()
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenAnswer(new Answer[OperationList] {
+                    override def answer(invocation: InvocationOnMock)
+                    : OperationList = {
+                        // The port translator reads the network, which
+                        // does not exist until the first task is committed.
+                        Await.result(tracker.get(classOf[Network], networkId),
+                                     5 seconds)
+                        List(Create(neutronNetworkPort), Create(midoPort))
+                    }
+                })
+
+        manager.interpretAndExecTxns(
+            Seq(txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))), 10)
+
+        val port = Await.result(store.get(classOf[Port], portId), 5 seconds)
+        assert(port.getNetworkId === networkId)
+        assert(manager.lastProcessedTaskId === 3)
+        verify(mockPortTranslator, times(2))
+            .translateOp(Create(neutronNetworkPort))
+        manager.stop()
+    }
+
+    it should "translate tasks reading the references of a deleted object " +
+              "after the previous commit" in {
+        val (manager, store, tracker) = storedPipelinedManager()
+        val routeId = randomUuidProto
+        val route = Route.newBuilder().setId(routeId)
+                                      .setNextHopPortId(portId)
+                                      .build
+        store.multi(Seq(CreateOp(neutronNetwork), CreateOp(midoNetwork),
+                        CreateOp(midoPort), CreateOp(route)))
+
+        when(mockNetworkTranslator
+                .translateOp(Delete(classOf[NeutronNetwork], networkId)))
+                .thenReturn(List(Delete(classOf[NeutronNetwork], networkId),
+                                 Delete(classOf[Network], networkId)))
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenAnswer(new Answer[OperationList] {
+                    override def answer(invocation: InvocationOnMock)
+                    : OperationList = {
+                        // The port translator reads a route of the network
+                        // port, which the network delete removes in cascade.
+                        Try(Await.result(tracker.get(classOf[Route], routeId),
+                                         5 seconds))
+                        List(Create(neutronNetworkPort))
+                    }
+                })
+
+        manager.interpretAndExecTxns(
+            Seq(txn("txn1", c3poDelete(2, classOf[NeutronNetwork], networkId)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))), 10)
+
+        assert(!Await.result(store.exists(classOf[Route], routeId), 5 seconds))
+        assert(manager.lastProcessedTaskId === 3)
+        verify(mockPortTranslator, times(2))
+            .translateOp(Create(neutronNetworkPort))
+        manager.stop()
+    }
+
+    it should "commit each task of a failed batch" in {
+        val (manager, store, _) = storedPipelinedManager()
+        // The port references a network that does not exist.
+        val orphanPort = midoPort.toBuilder
+                                 .setNetworkId(randomUuidProto)
+                                 .build
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(orphanPort)))
+
+        intercept[ProcessingException] {
+            manager.interpretAndExecTxns(
+                Seq(txn("txn1", c3poCreate(2, neutronNetwork)),
+                    txn("txn2", c3poCreate(3, neutronNetworkPort))), 10)
+        }
+
+        Await.result(store.get(classOf[Network], networkId), 5 seconds)
+        assert(!Await.result(store.exists(classOf[Port], portId), 5 seconds))
+        assert(manager.lastProcessedTaskId === 2)
+        manager.stop()
+    }
+
+    it should "not commit the tasks following a failed commit" in {
+        val (manager, _) = pipelinedManager()
+        when(mockPortTranslator
+                .translateOp(Create(neutronNetworkPort)))
+                .thenReturn(List(Create(neutronNetworkPort),
+                                 Create(midoPort)))
+        doThrow(new StorageException("Storage failure test"))
+                .when(storage).multi(any(classOf[Seq[PersistenceOp]]))
+
+        intercept[ProcessingException] {
+            manager.interpretAndExecTxns(
+                Seq(txn("txn1", c3poCreate(2, neutronNetwork)),
+                    txn("txn2", c3poCreate(3, neutronNetworkPort))), 3)
+        }
+        verify(storage, times(1)).multi(any(classOf[Seq[PersistenceOp]]))
+    }
+
     "C3PO Storage Mgr" should "return the last processed C3PO task ID." in {
         val lastProcessed = storageManager.lastProcessedTaskId
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.UUID
+
+import com.google.protobuf.Message
+import com.typesafe.config.ConfigFactory
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.RestApiConfig
+import org.midonet.cluster.data.storage.InMemoryStorage
+import org.midonet.cluster.models.Topology.{Network, Port, Router}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.rest_api.TopologyIndex.Key
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.UUIDUtil._
+
+@RunWith(classOf[JUnitRunner])
+class TopologyIndexTest extends FeatureSpec with Matchers with GivenWhenThen
+                        with BeforeAndAfter with TopologyBuilder {
+
+    private var store: InMemoryStorage = _
+
+    before {
+        store = new InMemoryStorage
+        MidonetBackend.setupBindings(store, store)
+    }
+
+    private def newIndex(enabled: Boolean = true): TopologyIndex = {
+        new TopologyIndex(store, new RestApiConfig(ConfigFactory.parseString(
+            s"cluster.rest_api.topology_index : $enabled")))
+    }
+
+    private def ids(messages: Seq[Message]): Seq[String] = {
+        messages.map(TopologyIndex.idOf).sorted
+    }
+
+    feature("Index lifecycle") {
+        scenario("A disabled index does not serve any class") {
+            Given("A disabled index")
+            val index = newIndex(enabled = false)
+            store.create(createRouter())
+
+            When("Starting the index")
+            index.start()
+
+            Then("The index does not serve the routers")
+            index.isReady(classOf[Router]) shouldBe false
+            index.objects(classOf[Router], null) shouldBe None
+        }
+
+        scenario("A stopped index does not serve any class") {
+            Given("A started index")
+            val index = newIndex()
+            index.start()
+            index.isReady(classOf[Router]) shouldBe true
+
+            When("Stopping the index")
+            index.stop()
+
+            Then("The index does not serve the routers")
+            index.isReady(classOf[Router]) shouldBe false
+        }
+
+        scenario("Classes not indexed are not served") {
+            val index = newIndex()
+            index.start()
+            index.isReady(classOf[UUID]) shouldBe false
+            index.objects(classOf[UUID], null) shouldBe None
+        }
+    }
+
+    feature("Index lists the objects in order") {
+        scenario("Existing and new objects are listed by identifier") {
+            Given("Existing routers")
+            val routers1 = for (i <- 0 until 5) yield createRouter()
+            routers1 foreach store.create
+
+            When("Starting the index")
+            val index = newIndex()
+            index.start()
+
+            Then("The index lists the routers ordered by identifier")
+            index.isReady(classOf[Router]) shouldBe true
+            index.objects(classOf[Router], null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(routers1)
+
+            When("Creating new routers")
+            val routers2 = for (i <- 0 until 5) yield createRouter()
+            routers2 foreach store.create
+
+            Then("The index lists all routers")
+            val all = ids(routers1 ++ routers2)
+            index.objects(classOf[Router], null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe all
+
+            And("The index lists the routers after a marker")
+            index.objects(classOf[Router], all(3)).get.toList
+                 .map(TopologyIndex.idOf) shouldBe all.drop(4)
+            index.objects(classOf[Router], all.last).get.toList shouldBe empty
+        }
+
+        scenario("Updated and deleted objects") {
+            Given("A started index with a router")
+            val index = newIndex()
+            index.start()
+            val router = createRouter(name = Some("router-0"))
+            store.create(router)
+
+            When("Updating the router")
+            val updated = router.toBuilder.setName("router-1").build()
+            store.update(updated)
+
+            Then("The index lists the updated router")
+            index.objects(classOf[Router], null).get.toList shouldBe Seq(updated)
+
+            When("Deleting the router")
+            store.delete(classOf[Router], router.getId)
+
+            Then("The index does not list the router")
+            index.objects(classOf[Router], null).get.toList shouldBe empty
+        }
+
+        scenario("Objects are returned by identifier") {
+            Given("A started index with two routers")
+            val index = newIndex()
+            index.start()
+            val router1 = createRouter()
+            val router2 = createRouter()
+            store.create(router1)
+            store.create(router2)
+
+            Then("The index returns the routers in the requested order")
+            index.get(classOf[Router],
+                      Seq(router2.getId, router1.getId)) shouldBe
+                Some(Seq(router2, router1))
+
+            And("The index does not return the routers if one is missing")
+            index.get(classOf[Router],
+                      Seq(router1.getId, UUID.randomUUID())) shouldBe None
+        }
+    }
+
+    feature("Index maintains the secondary indexes") {
+        scenario("Objects are listed by tenant") {
+            Given("A started index with routers for two tenants")
+            val index = newIndex()
+            index.start()
+            val routers1 = for (i <- 0 until 3)
+                yield createRouter(tenandId = Some("tenant-1"))
+            val routers2 = for (i <- 0 until 3)
+                yield createRouter(tenandId = Some("tenant-2"))
+            (routers1 ++ routers2) foreach store.create
+
+            Then("The index lists the routers of each tenant")
+            index.objects(classOf[Router], Key("tenant_id", "tenant-1"), null)
+                 .get.toList.map(TopologyIndex.idOf) shouldBe ids(routers1)
+            index.objects(classOf[Router], Key("tenant_id", "tenant-2"), null)
+                 .get.toList.map(TopologyIndex.idOf) shouldBe ids(routers2)
+            index.objects(classOf[Router], Key("tenant_id", "tenant-3"), null)
+                 .get.toList shouldBe empty
+
+            And("The index lists the routers of a tenant after a marker")
+            val tenant1 = ids(routers1)
+            index.objects(classOf[Router], Key("tenant_id", "tenant-1"),
+                          tenant1.head).get.toList
+                 .map(TopologyIndex.idOf) shouldBe tenant1.tail
+
+            When("Moving a router to a different tenant")
+            val moved = routers1.head.toBuilder.setTenantId("tenant-2").build()
+            store.update(moved)
+
+            Then("The index lists the router for the new tenant")
+            index.objects(classOf[Router], Key("tenant_id", "tenant-1"), null)
+                 .get.toList.map(TopologyIndex.idOf) shouldBe
+                ids(routers1.tail)
+            index.objects(classOf[Router], Key("tenant_id", "tenant-2"), null)
+                 .get.toList.map(TopologyIndex.idOf) shouldBe
+                ids(routers2 :+ moved)
+
+            When("Deleting the router")
+            store.delete(classOf[Router], moved.getId)
+
+            Then("The index does not list the router")
+            index.objects(classOf[Router], Key("tenant_id", "tenant-2"), null)
+                 .get.toList.map(TopologyIndex.idOf) shouldBe ids(routers2)
+        }
+
+        scenario("Ports are listed by device and host") {
+            Given("A started index with a bridge, a router and a host")
+            val index = newIndex()
+            index.start()
+            val bridge = createBridge()
+            val router = createRouter()
+            val host = createHost()
+            store.create(bridge)
+            store.create(router)
+            store.create(host)
+
+            When("Creating ports for the bridge and the router")
+            val bridgePorts = for (i <- 0 until 3)
+                yield createBridgePort(bridgeId = Some(bridge.getId.asJava),
+                                       hostId = Some(host.getId.asJava),
+                                       interfaceName = Some(s"eth$i"))
+            val routerPorts = for (i <- 0 until 3)
+                yield createRouterPort(routerId = Some(router.getId.asJava))
+            (bridgePorts ++ routerPorts) foreach store.create
+
+            Then("The index lists the ports of each device")
+            val bridgeKey = Key("network_id", bridge.getId.asJava.toString)
+            val routerKey = Key("router_id", router.getId.asJava.toString)
+            index.objects(classOf[Port], bridgeKey, null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(bridgePorts)
+            index.objects(classOf[Port], routerKey, null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(routerPorts)
+
+            And("The index lists the ports bound to the host")
+            val hostKey = Key("host_id", host.getId.asJava.toString)
+            index.objects(classOf[Port], hostKey, null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(bridgePorts)
+
+            When("Unbinding a port from the host")
+            val unbound = bridgePorts.head.toBuilder.clearHostId()
+                                     .clearInterfaceName().build()
+            store.update(unbound)
+
+            Then("The index does not list the port for the host")
+            index.objects(classOf[Port], hostKey, null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(bridgePorts.tail)
+            index.objects(classOf[Port], bridgeKey, null).get.toList
+                 .map(TopologyIndex.idOf) shouldBe ids(bridgePorts)
+        }
+
+        scenario("Fields that are not indexed are not served") {
+            val index = newIndex()
+            index.start()
+            store.create(createBridge(tenantId = Some("tenant")))
+
+            index.isReady(classOf[Network]) shouldBe true
+            index.objects(classOf[Network], Key("tenant_id", "tenant"), null)
+                 .get.toList should have size 1
+            index.objects(classOf[Network], Key("name", "bridge"), null) shouldBe
+                None
+        }
+    }
+}
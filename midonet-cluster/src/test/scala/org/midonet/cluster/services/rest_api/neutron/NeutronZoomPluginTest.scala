@@ -60,6 +60,8 @@ class NeutronZoomPluginTest extends FeatureSpec
         val backendConfig = new MidonetBackendConfig(ConfigFactory.parseString(s"""
            |zookeeper.zookeeper_hosts : "${zk.getConnectString}"
            |zookeeper.root_key : "$zkRoot"
+           |zookeeper.binary_serialization : false
+           |zookeeper.transaction_read_through : false
            |state_proxy.enabled : false
         """.stripMargin)
         )
@@ -80,7 +82,8 @@ class NeutronZoomPluginTest extends FeatureSpec
                                              lockFactory = null,
                                              uriInfo = null,
                                              validator = null,
-                                             seqDispenser = null)
+                                             seqDispenser = null,
+                                             topologyIndex = null)
         val lockFactory = new ZookeeperLockFactory(curator, paths)
         val sequenceDispenser = new SequenceDispenser(curator, backendConfig)
         val c3po = C3POMinion.initDataManager(backend.store,
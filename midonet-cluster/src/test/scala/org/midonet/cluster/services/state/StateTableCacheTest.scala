@@ -148,6 +148,7 @@ class StateTableCacheTest extends FeatureSpec with Matchers with GivenWhenThen
             s"""
                |cluster.state_proxy.initial_subscriber_queue_size : 16
                |cluster.state_proxy.notify_batch_size : 4
+               |cluster.state_proxy.incremental_cache : true
              """.stripMargin))
     }
 
@@ -155,14 +156,18 @@ class StateTableCacheTest extends FeatureSpec with Matchers with GivenWhenThen
         storage.tablePath(classOf[Bridge], id, MidonetBackend.MacTable)
     }
 
-    private def newCache(create: Boolean = true, id: UUID = UUID.randomUUID())(
+    private def newCache(create: Boolean = true, id: UUID = UUID.randomUUID(),
+                         incremental: Boolean = true)(
                          onClose: => Unit)
     : StateTableCache = {
         if (create) {
             zkClient.create().creatingParentsIfNeeded()
                     .forPath(tablePath(id))
         }
-        new StateTableCache(proxyConfig, storage, zkClient, counter,
+        val config = new StateProxyConfig(ConfigFactory.parseString(
+            s"cluster.state_proxy.incremental_cache : $incremental")
+            .withFallback(proxyConfig.conf))
+        new StateTableCache(config, storage, zkClient, counter,
                             classOf[Bridge], id, classOf[MAC],
                             classOf[UUID], MidonetBackend.MacTable, Seq.empty,
                             new SameThreadButAfterExecutorService,
@@ -917,4 +922,105 @@ class StateTableCacheTest extends FeatureSpec with Matchers with GivenWhenThen
         }
     }
 
+    feature("Cache processes changes incrementally") {
+        scenario("Incremental and full caches emit the same updates") {
+            Given("An incremental and a full state table cache")
+            val id = UUID.randomUUID()
+            val incrementalCache = newCache(create = true, id) { }
+            val fullCache = newCache(create = false, id,
+                                     incremental = false) { }
+
+            incrementalCache.incremental shouldBe true
+            fullCache.incremental shouldBe false
+
+            And("An observer for each cache")
+            val observer1 = new TestObserver
+            val observer2 = new TestObserver
+
+            When("The observers subscribe")
+            incrementalCache.subscribe(observer1, lastVersion = None)
+            fullCache.subscribe(observer2, lastVersion = None)
+
+            Then("Both observers receive an empty snapshot")
+            observer1.awaitOnNext(1, timeout) shouldBe true
+            observer2.awaitOnNext(1, timeout) shouldBe true
+
+            val key1 = MAC.random()
+            val key2 = MAC.random()
+            val value1_1 = UUID.randomUUID()
+            val value1_2 = UUID.randomUUID()
+            val value1_3 = UUID.randomUUID()
+            val value2 = UUID.randomUUID()
+
+            val changes = Seq[(String, () => Unit, (Any, Any))](
+                ("Adding a persistent entry",
+                    () => addPersistent(id, key1, value1_1), key1 -> value1_1),
+                ("Adding an ephemeral entry for the same key",
+                    () => addEphemeral(id, key1, value1_2, 1), key1 -> value1_2),
+                ("Adding an entry with a higher version",
+                    () => addEphemeral(id, key1, value1_3, 3), key1 -> value1_3),
+                ("Adding an entry for a second key",
+                    () => addEphemeral(id, key2, value2, 2), key2 -> value2),
+                ("Removing the entry with the higher version",
+                    () => removeEntry(id, key1, value1_3, 3), key1 -> value1_2),
+                ("Removing the ephemeral entry",
+                    () => removeEntry(id, key1, value1_2, 1), key1 -> value1_1),
+                ("Removing the entry of the second key",
+                    () => removeEntry(id, key2, value2, 2), key2 -> null))
+
+            for (((description, change, expected), index) <-
+                     changes.zipWithIndex) {
+                When(description)
+                change()
+
+                Then("Both observers receive the same update")
+                observer1.awaitOnNext(index + 2, timeout) shouldBe true
+                observer2.awaitOnNext(index + 2, timeout) shouldBe true
+                observer1.getOnNextEvents.get(index + 1) shouldBeUpdateFor(
+                    begin = true, end = true, expected)
+                observer2.getOnNextEvents.get(index + 1) shouldBeUpdateFor(
+                    begin = true, end = true, expected)
+                observer1.getOnNextEvents.get(index + 1).getUpdate.getEntriesList shouldBe
+                    observer2.getOnNextEvents.get(index + 1).getUpdate.getEntriesList
+            }
+
+            incrementalCache.close()
+            fullCache.close()
+        }
+
+        scenario("Incremental cache ignores entries that cannot be decoded") {
+            Given("A state table cache")
+            val id = UUID.randomUUID()
+            val cache = newCache(create = true, id) { }
+
+            And("An observer")
+            val observer = new TestObserver
+            cache.subscribe(observer, lastVersion = None)
+            observer.awaitOnNext(1, timeout) shouldBe true
+
+            When("Adding an invalid entry and a valid entry")
+            zkClient.create().withMode(CreateMode.EPHEMERAL)
+                    .forPath(s"${tablePath(id)}/invalid")
+            val key = MAC.random()
+            val value = UUID.randomUUID()
+            addEphemeral(id, key, value, 0)
+
+            Then("The observer receives only the valid entry")
+            observer.awaitOnNext(2, timeout) shouldBe true
+            observer.getOnNextEvents.get(1) shouldBeUpdateFor(begin = true,
+                end = true, key -> value)
+
+            When("Removing the invalid entry and the valid entry")
+            zkClient.delete().forPath(s"${tablePath(id)}/invalid")
+            removeEntry(id, key, value, 0)
+
+            Then("The observer receives the removal of the valid entry")
+            observer.awaitOnNext(3, timeout) shouldBe true
+            observer.getOnNextEvents.get(2) shouldBeUpdateFor(begin = true,
+                end = true, key -> null)
+
+            cache.close()
+        }
+    }
+
 }
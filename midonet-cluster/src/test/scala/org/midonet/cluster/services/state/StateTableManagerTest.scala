@@ -93,6 +93,7 @@ class StateTableManagerTest extends FeatureSpec with Matchers
            |cluster.state_proxy.server.shutdown_timeout : 10ms
            |cluster.state_proxy.initial_subscriber_queue_size : 4
            |cluster.state_proxy.notify_batch_size : 16
+           |cluster.state_proxy.incremental_cache : true
          """.stripMargin))
 
     private def newBackend = new TestBackend
@@ -251,6 +251,35 @@ public class Ethernet extends BasePacket {
         return bytes.length;
     }
 
+    /**
+     * Whether the frame between the position and the limit of the buffer has
+     * a complete Ethernet header, including its VLAN tags, such that it can
+     * be deserialized without a {@link MalformedPacketException}. The payload
+     * is not checked, since a payload that cannot be deserialized is kept as
+     * {@link Data}. The buffer is not modified.
+     */
+    public static boolean isWellFormed(ByteBuffer bb) {
+        if (bb.remaining() < MIN_HEADER_LEN)
+            return false;
+        int limit = bb.limit();
+        int offset = bb.position() + MIN_HEADER_LEN - 2;
+        short etherType = getShort(bb, offset);
+        while (etherType == VLAN_TAGGED_FRAME ||
+               etherType == PROVIDER_BRIDGING_TAG) {
+            offset += HEADER_TPID_LEN;
+            if (offset + 2 > limit)
+                return false;
+            etherType = getShort(bb, offset);
+        }
+        return true;
+    }
+
+    /* Reads a big endian short regardless of the order of the buffer. */
+    private static short getShort(ByteBuffer bb, int offset) {
+        return (short) (((bb.get(offset) & 0xff) << 8) |
+                        (bb.get(offset + 1) & 0xff));
+    }
+
     public static Ethernet deserialize(byte[] data)
             throws MalformedPacketException {
         ByteBuffer bb = ByteBuffer.wrap(data, 0, data.length);
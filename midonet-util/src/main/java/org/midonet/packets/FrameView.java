@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view over the headers of a raw Ethernet frame. The fields are
+ * read straight from the frame bytes, without deserializing the frame into
+ * an {@link Ethernet} object graph. A view can be reused for several frames
+ * by calling {@link #wrap(ByteBuffer)}.
+ *
+ * Fields which are not present in the frame, or which do not fit in it, are
+ * reported as -1.
+ */
+public final class FrameView {
+
+    private static final int IPV4_MIN_HEADER_LEN = 20;
+    private static final int TCP_FLAGS_OFFSET = 13;
+
+    private ByteBuffer frame;
+    private int start;
+    private int length;
+    private int etherType;
+    private int networkOffset;
+    private int networkProto;
+    private int transportOffset;
+
+    public FrameView wrap(byte[] frame) {
+        return wrap(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Wraps the frame between the position and the limit of the buffer. The
+     * buffer is not modified, and its position and limit must not change
+     * while it is wrapped.
+     */
+    public FrameView wrap(ByteBuffer frame) {
+        this.frame = frame;
+        start = frame.position();
+        length = frame.remaining();
+        etherType = -1;
+        networkOffset = -1;
+        networkProto = -1;
+        transportOffset = -1;
+
+        if (length < Ethernet.MIN_HEADER_LEN)
+            return this;
+
+        int offset = 12;
+        int type = getShort(offset);
+        while (type == (Ethernet.VLAN_TAGGED_FRAME & 0xffff) ||
+               type == (Ethernet.PROVIDER_BRIDGING_TAG & 0xffff)) {
+            offset += 4;
+            if (offset + 2 > length)
+                return this;
+            type = getShort(offset);
+        }
+        etherType = type;
+        networkOffset = offset + 2;
+
+        if (etherType == IPv4.ETHERTYPE &&
+            networkOffset + IPV4_MIN_HEADER_LEN <= length) {
+            int headerLength = (getByte(networkOffset) & 0xf) * 4;
+            networkProto = getByte(networkOffset + 9);
+            if (headerLength >= IPV4_MIN_HEADER_LEN &&
+                networkOffset + headerLength < length) {
+                transportOffset = networkOffset + headerLength;
+            }
+        }
+        return this;
+    }
+
+    /** The frame wrapped by this view. */
+    public ByteBuffer frame() {
+        return frame;
+    }
+
+    /** The ether type following the VLAN tags, if any. */
+    public int etherType() {
+        return etherType;
+    }
+
+    /** The IPv4 protocol number. */
+    public int networkProto() {
+        return networkProto;
+    }
+
+    public int transportSource() {
+        return transportPort(0);
+    }
+
+    public int transportDestination() {
+        return transportPort(2);
+    }
+
+    /** The TCP flags, for a TCP segment. */
+    public int tcpFlags() {
+        if (networkProto != TCP.PROTOCOL_NUMBER || transportOffset < 0 ||
+            transportOffset + TCP_FLAGS_OFFSET >= length)
+            return -1;
+        return getByte(transportOffset + TCP_FLAGS_OFFSET);
+    }
+
+    /**
+     * Whether the frame may contain a TCP SYN segment, either directly or
+     * within a tunnel that the {@link Ethernet} deserializer decodes. The
+     * result is conservative: frames that cannot be inspected by this view
+     * are reported as possibly containing one.
+     */
+    public boolean mayContainTcpSyn() {
+        if (etherType == (IPv6.ETHERTYPE & 0xffff))
+            return true;
+        if (etherType != IPv4.ETHERTYPE)
+            return false;
+        switch (networkProto) {
+            case TCP.PROTOCOL_NUMBER:
+                int flags = tcpFlags();
+                return flags < 0 || (flags & TCP.Flag.Syn.bit) != 0;
+            case UDP.PROTOCOL_NUMBER:
+                return transportSource() == UDP.VXLAN ||
+                       transportDestination() == UDP.VXLAN;
+            case GRE.PROTOCOL_NUMBER:
+                return true;
+            default:
+                return networkProto < 0;
+        }
+    }
+
+    private int transportPort(int offset) {
+        if ((networkProto != TCP.PROTOCOL_NUMBER &&
+             networkProto != UDP.PROTOCOL_NUMBER) || transportOffset < 0 ||
+            transportOffset + offset + 2 > length)
+            return -1;
+        return getShort(transportOffset + offset);
+    }
+
+    private int getByte(int offset) {
+        return frame.get(start + offset) & 0xff;
+    }
+
+    private int getShort(int offset) {
+        return (getByte(offset) << 8) | getByte(offset + 1);
+    }
+}
@@ -42,6 +42,7 @@ public class ServerFrontEnd extends AbstractService {
     private final boolean datagram;
     private final int port;
     private final Integer rcvbufSize;
+    private final Integer datagramSize;
     private final EventLoopGroup boss;
     private final EventLoopGroup wrkr = new NioEventLoopGroup();
     private ChannelFuture sock;
@@ -50,24 +51,35 @@ public class ServerFrontEnd extends AbstractService {
 
     public static ServerFrontEnd udp(ChannelInboundHandlerAdapter adapter,
                                      int port) {
-        return new ServerFrontEnd(adapter, port, true, null);
+        return new ServerFrontEnd(adapter, port, true, null, null);
     }
     public static ServerFrontEnd udp(ChannelInboundHandlerAdapter adapter,
                                      int port, Integer rcvbufSize) {
-        return new ServerFrontEnd(adapter, port, true, rcvbufSize);
+        return new ServerFrontEnd(adapter, port, true, rcvbufSize, rcvbufSize);
+    }
+
+    /**
+     * Creates a UDP server that reads datagrams of up to datagramSize bytes,
+     * keeping the default size of the socket receive buffer.
+     */
+    public static ServerFrontEnd udpWithDatagramSize(
+            ChannelInboundHandlerAdapter adapter, int port, int datagramSize) {
+        return new ServerFrontEnd(adapter, port, true, null, datagramSize);
     }
 
     public static ServerFrontEnd tcp(ChannelInboundHandlerAdapter adapter,
                                      int port) {
-        return new ServerFrontEnd(adapter, port, false, null);
+        return new ServerFrontEnd(adapter, port, false, null, null);
     }
 
     private ServerFrontEnd(ChannelInboundHandlerAdapter adapter, int port,
-                           boolean datagram, Integer rcvbufSize) {
+                           boolean datagram, Integer rcvbufSize,
+                           Integer datagramSize) {
         this.adapter = adapter;
         this.port = port;
         this.datagram = datagram;
         this.rcvbufSize = rcvbufSize;
+        this.datagramSize = datagramSize;
         if(datagram) {
             boss = null;
         } else {
@@ -86,9 +98,10 @@ public class ServerFrontEnd extends AbstractService {
                     .channel(NioDatagramChannel.class)
                     .handler(adapter);
                 if (rcvbufSize != null)
-                    boot.option(ChannelOption.SO_RCVBUF, rcvbufSize)
-                        .option(ChannelOption.RCVBUF_ALLOCATOR,
-                                new FixedRecvByteBufAllocator(rcvbufSize));
+                    boot.option(ChannelOption.SO_RCVBUF, rcvbufSize);
+                if (datagramSize != null)
+                    boot.option(ChannelOption.RCVBUF_ALLOCATOR,
+                                new FixedRecvByteBufAllocator(datagramSize));
                 sock = boot.bind(port).sync();
             } else {
                 log.info("Starting Netty TCP server on port {}", port);
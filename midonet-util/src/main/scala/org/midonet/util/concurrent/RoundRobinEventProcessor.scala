@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.lmax.disruptor.EventPoller.PollState
+import com.lmax.disruptor._
+
+import org.midonet.util.concurrent.WakerUpper.Parkable
+
+object RoundRobinEventProcessor {
+    val DEFAULT_RETRIES = 200
+
+    /** A back channel that never has any work. */
+    object NoBackChannel extends DisruptorBackChannel {
+        override def shouldProcess(): Boolean = false
+        override def process(): Unit = { }
+    }
+}
+
+/**
+ * An event processor that consumes the entries of several RingBuffers, such as
+ * the single-producer RingBuffers of a sharded channel. The processor polls
+ * the RingBuffers in round-robin order, delegating the available events of
+ * every RingBuffer to the event handler at the same position, and responds to
+ * work from a BackChannel after every round. When there are no events in any
+ * of the RingBuffers or work from the BackChannel, it registers the underlying
+ * thread with WakerUpper.
+ *
+ * The processor does not gate the RingBuffers: the owner must add the sequence
+ * of the processor for every RingBuffer as a gating sequence of that
+ * RingBuffer. Since the same handler may be used for several RingBuffers, the
+ * processor notifies the start and shutdown only to the given lifecycle-aware
+ * objects.
+ */
+class RoundRobinEventProcessor[T >: Null](ringBuffers: Array[RingBuffer[T]],
+                                          eventHandlers: Array[EventPoller.Handler[T]],
+                                          backChannel: DisruptorBackChannel,
+                                          lifecycleAware: LifecycleAware*)
+    extends Runnable with Parkable {
+
+    import RoundRobinEventProcessor._
+
+    require(ringBuffers.length == eventHandlers.length,
+            "There must be one event handler for every ring buffer")
+
+    private val running = new AtomicBoolean(false)
+    private val pollers = ringBuffers.map(_.newPoller())
+
+    var exceptionHandler = new FatalExceptionHandler
+
+    /** Returns the sequence of the processor for the RingBuffer at the
+      * given position. */
+    def getSequence(index: Int): Sequence =
+        pollers(index).getSequence
+
+    def halt(): Unit =
+        running.set(false)
+
+    def isRunning: Boolean =
+        running.get
+
+    override def shouldWakeUp(): Boolean = {
+        if (backChannel.shouldProcess() || !isRunning) {
+            return true
+        }
+
+        var i = 0
+        while (i < pollers.length) {
+            if (ringBuffers(i).isPublished(pollers(i).getSequence.get() + 1))
+                return true
+            i += 1
+        }
+        false
+    }
+
+    override def run(): Unit = {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Thread is already running")
+        }
+
+        notifyStart()
+
+        try {
+            var retries = DEFAULT_RETRIES
+            while (running.get()) {
+                var processing = false
+                var i = 0
+                while (i < pollers.length) {
+                    if (pollers(i).poll(eventHandlers(i)) == PollState.PROCESSING)
+                        processing = true
+                    i += 1
+                }
+                retries = if (processing) DEFAULT_RETRIES else park(retries)
+                backChannel.process()
+            }
+        } finally {
+            notifyShutdown()
+            running.set(false)
+        }
+    }
+
+    private def notifyStart(): Unit =
+        lifecycleAware foreach { aware =>
+            try {
+                aware.onStart()
+            } catch { case ex: Throwable =>
+                exceptionHandler.handleOnStartException(ex)
+            }
+        }
+
+    private def notifyShutdown(): Unit =
+        lifecycleAware foreach { aware =>
+            try {
+                aware.onShutdown()
+            } catch { case ex: Throwable =>
+                exceptionHandler.handleOnShutdownException(ex)
+            }
+        }
+}
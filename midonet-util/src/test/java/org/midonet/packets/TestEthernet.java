@@ -225,6 +225,11 @@ public class TestEthernet {
             return Arrays.asList(data);
         }
 
+        @Test
+        public void testIsWellFormed() {
+            Assert.assertTrue(Ethernet.isWellFormed(ByteBuffer.wrap(data)));
+        }
+
         @Test
         public void TestDeserialize() throws Exception {
 
@@ -298,5 +303,10 @@ public class TestEthernet {
             Ethernet packet = new Ethernet();
             packet.deserialize(buff);
         }
+
+        @Test
+        public void testIsNotWellFormed() {
+            Assert.assertFalse(Ethernet.isWellFormed(ByteBuffer.wrap(data)));
+        }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class FrameViewTest extends FeatureSpec with Matchers {
+
+    private val view = new FrameView
+
+    private def tcpFrame(flags: Short): Array[Byte] = {
+        val frame: Ethernet =
+            { eth addr "02:00:00:00:00:01" -> "02:00:00:00:00:02" } <<
+            { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+            { tcp ports 1234 ---> 80 flags flags }
+        frame.serialize()
+    }
+
+    feature("The view reads the headers of a raw frame") {
+        scenario("TCP segments") {
+            view.wrap(tcpFrame(TCP.Flag.Syn.bit.toShort))
+            view.etherType shouldBe IPv4.ETHERTYPE
+            view.networkProto shouldBe TCP.PROTOCOL_NUMBER
+            view.transportSource shouldBe 1234
+            view.transportDestination shouldBe 80
+            view.tcpFlags shouldBe TCP.Flag.Syn.bit
+        }
+
+        scenario("VLAN tagged UDP datagrams") {
+            val frame: Ethernet =
+                { eth addr "02:00:00:00:00:01" -> "02:00:00:00:00:02" vlan 10 } <<
+                { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+                { udp ports 53 ---> 40000.toShort } <<
+                { payload("test") }
+            view.wrap(frame.serialize())
+            view.etherType shouldBe IPv4.ETHERTYPE
+            view.networkProto shouldBe UDP.PROTOCOL_NUMBER
+            view.transportSource shouldBe 53
+            view.transportDestination shouldBe 40000
+            view.tcpFlags shouldBe -1
+        }
+
+        scenario("Frames in a larger buffer") {
+            val frame = tcpFrame(TCP.Flag.Syn.bit.toShort)
+            val buffer = ByteBuffer.allocateDirect(frame.length + 8)
+            buffer.position(4)
+            buffer.put(frame)
+            buffer.position(4).limit(4 + frame.length)
+            view.wrap(buffer)
+            view.etherType shouldBe IPv4.ETHERTYPE
+            view.networkProto shouldBe TCP.PROTOCOL_NUMBER
+            view.transportSource shouldBe 1234
+            view.transportDestination shouldBe 80
+            view.tcpFlags shouldBe TCP.Flag.Syn.bit
+            buffer.position() shouldBe 4
+            buffer.limit() shouldBe 4 + frame.length
+        }
+
+        scenario("Truncated frames") {
+            view.wrap(new Array[Byte](10))
+            view.etherType shouldBe -1
+            view.networkProto shouldBe -1
+            view.transportSource shouldBe -1
+
+            view.wrap(tcpFrame(0).take(30))
+            view.etherType shouldBe IPv4.ETHERTYPE
+            view.networkProto shouldBe -1
+            view.mayContainTcpSyn() shouldBe true
+        }
+    }
+
+    feature("The view detects frames that may contain a TCP SYN") {
+        scenario("TCP segments") {
+            view.wrap(tcpFrame(TCP.Flag.Syn.bit.toShort))
+                .mayContainTcpSyn() shouldBe true
+            view.wrap(tcpFrame(TCP.Flag.Ack.bit.toShort))
+                .mayContainTcpSyn() shouldBe false
+        }
+
+        scenario("Other frames") {
+            val arpFrame: Ethernet =
+                { eth addr "02:00:00:00:00:01" -> eth_bcast } <<
+                { arp.req mac "02:00:00:00:00:01" -> eth_zero ip "10.0.0.1" --> "10.0.0.2" }
+            view.wrap(arpFrame.serialize()).mayContainTcpSyn() shouldBe false
+
+            val udpFrame: Ethernet =
+                { eth addr "02:00:00:00:00:01" -> "02:00:00:00:00:02" } <<
+                { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+                { udp ports 53 ---> 40000.toShort } <<
+                { payload("test") }
+            view.wrap(udpFrame.serialize()).mayContainTcpSyn() shouldBe false
+        }
+
+        scenario("VXLAN tunnels") {
+            val frame: Ethernet =
+                { eth addr "02:00:00:00:00:01" -> "02:00:00:00:00:02" } <<
+                { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+                { udp ports 40000 ---> UDP.VXLAN.toShort } <<
+                { vxlan vni 10 } <<
+                { eth addr "02:00:00:00:00:03" -> "02:00:00:00:00:04" } <<
+                { ip4 addr "10.0.1.1" --> "10.0.1.2" } <<
+                { tcp ports 1234 ---> 80 flags TCP.Flag.Syn.bit.toShort }
+            view.wrap(frame.serialize()).mayContainTcpSyn() shouldBe true
+        }
+    }
+}
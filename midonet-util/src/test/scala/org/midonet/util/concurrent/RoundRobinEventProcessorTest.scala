@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.lang.Thread.State
+
+import scala.concurrent.duration._
+
+import com.lmax.disruptor._
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually.eventually
+import org.scalatest.concurrent.PatienceConfiguration.Timeout
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+
+import org.midonet.util.MidonetEventually
+
+@RunWith(classOf[JUnitRunner])
+class RoundRobinEventProcessorTest extends FeatureSpec
+                                   with Matchers
+                                   with OneInstancePerTest
+                                   with MidonetEventually {
+
+    class Handler extends EventPoller.Handler[Object] {
+        @volatile var handled = List.empty[Long]
+
+        override def onEvent(event: Object, sequence: Long,
+                             endOfBatch: Boolean): Boolean = {
+            handled :+= sequence
+            true
+        }
+    }
+
+    feature ("RoundRobinEventProcessor receives events from several " +
+             "ring buffers and a backchannel") {
+        val backchannel = new DisruptorBackChannel {
+            @volatile var processed = 0
+            @volatile var hasWork = false
+            override def shouldProcess() = hasWork
+            override def process(): Unit = processed += 1
+        }
+
+        val lifecycle = new LifecycleAware {
+            @volatile var started = 0
+            @volatile var shutdown = 0
+            override def onStart(): Unit = started += 1
+            override def onShutdown(): Unit = shutdown += 1
+        }
+
+        val ringBuffers = Array.fill(2)(RingBuffer.createSingleProducer(
+            new EventFactory[Object] {
+                override def newInstance(): Object = new Object
+            }, 16))
+
+        val handlers = Array.fill(2)(new Handler)
+
+        val processor = new RoundRobinEventProcessor[Object](
+            ringBuffers,
+            handlers.asInstanceOf[Array[EventPoller.Handler[Object]]],
+            backchannel, lifecycle)
+        for (i <- ringBuffers.indices) {
+            ringBuffers(i).addGatingSequences(processor.getSequence(i))
+        }
+        val t = new Thread() {
+            override def run() = processor.run()
+        }
+        t.setDaemon(true)
+        t.start()
+
+        scenario ("Processor reacts to events in any ring buffer") {
+            eventually(new Timeout(1 minute)) {
+                backchannel.processed should be (0)
+                t.getState should be (State.WAITING)
+            }
+            lifecycle.started should be (1)
+
+            ringBuffers(1).publish(ringBuffers(1).next())
+            eventually {
+                handlers(0).handled should be (empty)
+                handlers(1).handled should be (List(0L))
+            }
+
+            ringBuffers(0).publish(ringBuffers(0).next())
+            ringBuffers(1).publish(ringBuffers(1).next())
+            eventually {
+                handlers(0).handled should be (List(0L))
+                handlers(1).handled should be (List(0L, 1L))
+            }
+        }
+
+        scenario ("Processor does not overrun a ring buffer") {
+            eventually(new Timeout(1 minute)) {
+                t.getState should be (State.WAITING)
+            }
+
+            for (i <- 0 until 1000) {
+                ringBuffers(i % 2).publish(ringBuffers(i % 2).next())
+            }
+            eventually {
+                handlers(0).handled should be ((0L until 500L).toList)
+                handlers(1).handled should be ((0L until 500L).toList)
+            }
+        }
+
+        scenario ("Thread reacts to work from backchannel") {
+            eventually(new Timeout(1 minute)) {
+                backchannel.processed should be (0)
+                t.getState should be (State.WAITING)
+            }
+
+            backchannel.hasWork = true
+            eventually {
+                backchannel.processed should be >= 1024
+            }
+            handlers.foreach(_.handled should be (empty))
+        }
+
+        scenario ("Thread reacts to processor shutdown") {
+            eventually(new Timeout(1 minute)) {
+                t.getState should be (State.WAITING)
+            }
+
+            processor.halt()
+            t.join()
+            processor.isRunning should be (false)
+            lifecycle.started should be (1)
+            lifecycle.shutdown should be (1)
+        }
+    }
+}
@@ -44,7 +44,7 @@ public abstract class AbstractNetlinkConnection {
 
     private static final int DEFAULT_MAX_BATCH_IO_OPS = 200;
     private static final int NETLINK_HEADER_LEN = 20;
-    private static final int NETLINK_READ_BUFSIZE = 0x10000;
+    protected static final int NETLINK_READ_BUFSIZE = 0x10000;
 
     protected static final long DEF_REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
@@ -63,8 +63,7 @@ public abstract class AbstractNetlinkConnection {
     // assume one read per call.
     private int maxBatchIoOps = DEFAULT_MAX_BATCH_IO_OPS;
 
-    private ByteBuffer reply =
-        BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+    private ByteBuffer replyBuffer;
 
     private final BufferPool requestPool;
     private final NetlinkMetrics metrics;
@@ -377,9 +376,43 @@ public abstract class AbstractNetlinkConnection {
 
     protected void endBatch() {}
 
+    /**
+     * Returns the buffer for the next read from the channel, with room for
+     * NETLINK_READ_BUFSIZE bytes. By default, every read reuses the same
+     * buffer, so {@link #handleNotification} must not keep references to it.
+     */
+    protected ByteBuffer readBuffer() {
+        if (replyBuffer == null)
+            replyBuffer =
+                BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+        return replyBuffer;
+    }
+
+    /**
+     * Closes the channel and releases the buffers that reads go into.
+     */
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            synchronized (this) {
+                releaseReadBuffers();
+            }
+        }
+    }
+
+    /**
+     * Drops the buffers returned by {@link #readBuffer}, called once the
+     * connection is closed.
+     */
+    protected void releaseReadBuffers() {
+        replyBuffer = null;
+    }
+
     private synchronized int processReadFromChannel(final Bucket bucket)
             throws IOException {
 
+        final ByteBuffer reply = readBuffer();
         reply.clear();
         int nbytes = channel.read(reply);
 
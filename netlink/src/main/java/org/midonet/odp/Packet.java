@@ -15,17 +15,27 @@
  */
 package org.midonet.odp;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
- * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
- * via a kernel notification.
+ * {@link FlowMatch} object and the packet frame when triggered via a kernel
+ * notification.
+ *
+ * Packets received from the datapath keep a view of the raw frame in the
+ * netlink receive buffer, which is only deserialized into an {@link Ethernet}
+ * when first requested. Until then, {@link #getFrame()} returns the frame as
+ * received. Raw frames are checked with {@link Ethernet#isWellFormed} when the
+ * packet is created, so deserializing them does not fail. The deserialization
+ * is not synchronized: a packet that is read by several threads must be
+ * parsed before it is published to them.
  *
  * @see FlowMatch
  */
@@ -42,6 +52,7 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private ByteBuffer frame;
     public final int packetLen;
 
     // user field used by midolman packet pipeline to track time statistics,
@@ -58,16 +69,80 @@ public class Packet {
         this(eth, match, (eth != null) ? eth.length() : 0);
     }
 
+    /**
+     * Creates a packet over the raw frame between the position and the limit
+     * of the buffer, which is deserialized on the first call to
+     * {@link #getEthernet()}. The packet keeps a view of the buffer rather
+     * than a copy, so the frame must not be modified while the packet is in
+     * use.
+     *
+     * @throws IllegalArgumentException if the frame is malformed, as reported
+     * by {@link Ethernet#isWellFormed}.
+     */
+    public Packet(ByteBuffer frame, FlowMatch match) {
+        if (!Ethernet.isWellFormed(frame))
+            throw new IllegalArgumentException("Malformed frame");
+        this.frame = frame.slice();
+        this.match = match;
+        this.packetLen = frame.remaining();
+    }
+
+    public Packet(byte[] frame, FlowMatch match) {
+        this(ByteBuffer.wrap(frame), match);
+    }
+
+    /**
+     * Returns the packet as an {@link Ethernet}, deserializing the raw frame
+     * if needed. Changes to the returned object are reflected in the data
+     * of this packet.
+     */
     public Ethernet getEthernet() {
+        if (frame != null) {
+            Ethernet parsed = new Ethernet();
+            try {
+                parsed.deserialize(frame);
+            } catch (MalformedPacketException e) {
+                // Not reached, the frame was checked by the constructor.
+                throw new IllegalStateException("Malformed packet", e);
+            }
+            eth = parsed;
+            frame = null;
+        }
         return eth;
     }
 
     public void setEthernet(Ethernet eth) {
         this.eth = eth;
+        this.frame = null;
     }
 
+    /**
+     * Whether the packet has been deserialized into an {@link Ethernet}.
+     */
+    public boolean isParsed() {
+        return frame == null;
+    }
+
+    /**
+     * Returns the packet data between the position and the limit of a new
+     * buffer, without deserializing the raw frame. For a packet that has not
+     * been parsed, the buffer is a view of the raw frame, which must not be
+     * modified.
+     */
+    public ByteBuffer getFrame() {
+        return frame != null ? frame.duplicate()
+                             : ByteBuffer.wrap(eth.serialize());
+    }
+
+    /**
+     * Returns a copy of the packet data.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        if (frame == null)
+            return eth.serialize();
+        byte[] data = new byte[frame.remaining()];
+        frame.duplicate().get(data);
+        return data;
     }
 
     public FlowMatch getMatch() {
@@ -99,7 +174,7 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.frameOrNull(), that.frameOrNull())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -107,17 +182,24 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(frameOrNull());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
         return result;
     }
 
+    /**
+     * Returns the packet data without deserializing the raw frame.
+     */
+    private ByteBuffer frameOrNull() {
+        return frame != null || eth != null ? getFrame() : null;
+    }
+
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + (frame != null ? frame.remaining() + " bytes" : eth) +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
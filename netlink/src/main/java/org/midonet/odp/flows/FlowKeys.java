@@ -356,6 +356,22 @@ public class FlowKeys {
         }
     }
 
+    /**
+     * Whether addUserspaceKeys would replace any of the given keys, in which
+     * case the packet must be deserialized to build its flow match.
+     */
+    public static boolean needsUserspaceKeys(List<FlowKey> keys) {
+        for (int i = 0; i < keys.size(); ++i) {
+            FlowKey key = keys.get(i);
+            if (key instanceof FlowKeyICMP)
+                return true;
+            if (key instanceof FlowKeyEncap &&
+                needsUserspaceKeys(((FlowKeyEncap) key).keys))
+                return true;
+        }
+        return false;
+    }
+
     public static void buildFrom(ByteBuffer buf, final ArrayList<FlowKey> flowKeys) {
         NetlinkMessage.scanAttributes(buf, new AttributeHandler() {
             @Override
@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -28,6 +27,7 @@ import org.slf4j.LoggerFactory;
 
 import org.midonet.netlink.AttributeHandler;
 import org.midonet.netlink.BufferPool;
+import org.midonet.netlink.BytesUtil;
 import org.midonet.netlink.Callback;
 import org.midonet.netlink.NLFlag;
 import org.midonet.netlink.NetlinkChannel;
@@ -75,41 +75,58 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
 
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private ByteBuffer frame;
         private Long userData;
-        private int packetLen = 0;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
+            if (frame == null) {
                 keys.clear();
                 return null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys), packetLen);
-            p.setUserData(userData);
-            eth = null;
+            Packet p = null;
+            if (!Ethernet.isWellFormed(frame)) {
+                log.warn("Dropping malformed packet of {} bytes",
+                         frame.remaining());
+            } else if (FlowKeys.needsUserspaceKeys(keys)) {
+                p = parsed();
+            } else {
+                p = raw();
+            }
+            if (p != null)
+                p.setUserData(userData);
+            frame = null;
             keys.clear();
             userData = null;
             return p;
         }
 
+        /* The frame is deserialized lazily, unless the userspace flow keys
+         * need fields that the datapath does not provide. */
+        private Packet raw() {
+            return new Packet(frame, new FlowMatch(keys));
+        }
+
+        private Packet parsed() {
+            try {
+                int packetLen = frame.remaining();
+                Ethernet eth = new Ethernet();
+                eth.deserialize(frame);
+                FlowKeys.addUserspaceKeys(eth, keys);
+                return new Packet(eth, new FlowMatch(keys), packetLen);
+            } catch (Exception e) {
+                log.warn("Dropping malformed packet", e);
+                return null;
+            }
+        }
+
         @Override
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        packetLen = buffer.remaining();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
-                    }
+                    // A view of the frame in the read buffer, see ReadArena.
+                    frame = buffer.slice();
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
@@ -125,6 +142,67 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
 
     private PacketBuilder builder = new PacketBuilder();
 
+    /**
+     * The buffers that upcalls are read into. Packets keep a view of their
+     * frame in the read buffer rather than a copy, so a frame must not be
+     * overwritten by a later read. Instead, every read goes into the region
+     * of the buffer that follows the frames kept by the previous reads, and
+     * a new buffer is allocated once the rest of the current one cannot hold
+     * a full read. A buffer is released once all the packets that reference
+     * it are gone. The arena is owned by the connection, which reuses it for
+     * all of its reads and releases it when closed.
+     */
+    private static final class ReadArena {
+        private static final int SIZE = 16 * NETLINK_READ_BUFSIZE;
+
+        private ByteBuffer buffer;
+        private ByteBuffer region;
+        private int offset;
+        private int kept;
+
+        ByteBuffer region() {
+            if (region == null || kept > 0) {
+                offset += kept;
+                kept = 0;
+                if (buffer == null || offset + NETLINK_READ_BUFSIZE > SIZE) {
+                    buffer = BytesUtil.instance.allocateDirect(SIZE);
+                    offset = 0;
+                }
+                buffer.limit(offset + NETLINK_READ_BUFSIZE);
+                buffer.position(offset);
+                region = BytesUtil.instance.sliceOf(buffer);
+            }
+            return region;
+        }
+
+        /* Keeps the bytes of the current region before the given position,
+         * such that the next region starts after them. */
+        void keep(int position) {
+            kept = Math.max(kept, position);
+        }
+
+        /* Drops the current buffer, which is freed once the packets still
+         * referencing it are gone. */
+        void release() {
+            buffer = null;
+            region = null;
+            offset = 0;
+            kept = 0;
+        }
+    }
+
+    private final ReadArena readArena = new ReadArena();
+
+    @Override
+    protected ByteBuffer readBuffer() {
+        return readArena.region();
+    }
+
+    @Override
+    protected void releaseReadBuffers() {
+        readArena.release();
+    }
+
     @Override
     protected void handleNotification(short type, byte cmd, int seq, int pid,
                                       ByteBuffer buffer) {
@@ -136,6 +214,8 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
                 Packet packet = builder.buildFrom(buffer);
                 if (packet == null)
                     return;
+                if (!packet.isParsed())
+                    readArena.keep(buffer.limit());
 
                 if (packetFamily.contextAction.command() == cmd) {
                     packet.setReason(Packet.Reason.FlowActionUserspace);
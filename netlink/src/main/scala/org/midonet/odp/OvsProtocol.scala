@@ -217,8 +217,7 @@ sealed class OvsProtocol(pid: Int,
             FlowKeys.writer)
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions,
             FlowActions.writer)
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet,
-            packet.getEthernet.serialize())
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getFrame)
 
         message.finalize(pid)
     }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.packets.Ethernet;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.MAC;
+import org.midonet.packets.Packets;
+
+public class PacketTest {
+
+    private final Ethernet eth = Packets.udp(
+        MAC.fromString("02:00:00:00:00:01"), MAC.fromString("02:00:00:00:00:02"),
+        IPv4Addr.fromString("10.0.0.1"), IPv4Addr.fromString("10.0.0.2"),
+        (short) 1234, (short) 53, "test".getBytes());
+
+    @Test
+    public void testRawFrameIsParsedOnDemand() {
+        byte[] frame = eth.serialize();
+        Packet packet = new Packet(frame, FlowMatches.fromEthernetPacket(eth));
+
+        Assert.assertFalse(packet.isParsed());
+        Assert.assertArrayEquals(frame, packet.getData());
+        Assert.assertEquals(frame.length, packet.packetLen);
+
+        Assert.assertEquals(eth, packet.getEthernet());
+        Assert.assertTrue(packet.isParsed());
+        Assert.assertArrayEquals(frame, packet.getData());
+    }
+
+    @Test
+    public void testChangesToTheParsedFrameAreReflected() {
+        Packet packet = new Packet(eth.serialize(),
+                                   FlowMatches.fromEthernetPacket(eth));
+        MAC mac = MAC.fromString("02:00:00:00:00:03");
+        packet.getEthernet().setDestinationMACAddress(mac);
+
+        Ethernet expected = eth.clone();
+        expected.setDestinationMACAddress(mac);
+        Assert.assertArrayEquals(expected.serialize(), packet.getData());
+    }
+
+    @Test
+    public void testRawAndParsedPacketsAreEqual() {
+        FlowMatch match = FlowMatches.fromEthernetPacket(eth);
+        Packet raw = new Packet(eth.serialize(), match);
+        Packet parsed = new Packet(eth, match);
+
+        Assert.assertEquals(parsed, raw);
+        Assert.assertEquals(parsed.hashCode(), raw.hashCode());
+    }
+
+    @Test
+    public void testEqualityDoesNotParse() {
+        FlowMatch match = FlowMatches.fromEthernetPacket(eth);
+        Packet raw1 = new Packet(eth.serialize(), match);
+        Packet raw2 = new Packet(eth.serialize(), match);
+
+        Assert.assertEquals(raw1, raw2);
+        Assert.assertEquals(raw1.hashCode(), raw2.hashCode());
+        Assert.assertFalse(raw1.isParsed());
+        Assert.assertFalse(raw2.isParsed());
+    }
+
+    @Test
+    public void testRawFrameIsAViewOfTheBuffer() {
+        byte[] frame = eth.serialize();
+        byte[] buffer = new byte[frame.length + 8];
+        System.arraycopy(frame, 0, buffer, 4, frame.length);
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 4, frame.length);
+        Packet packet = new Packet(bb, FlowMatches.fromEthernetPacket(eth));
+
+        Assert.assertEquals(frame.length, packet.packetLen);
+        Assert.assertEquals(ByteBuffer.wrap(frame), packet.getFrame());
+
+        buffer[4] = (byte) 0x04;
+        frame[0] = (byte) 0x04;
+        Assert.assertArrayEquals(frame, packet.getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedFrame() {
+        new Packet(new byte[4], new FlowMatch());
+    }
+}
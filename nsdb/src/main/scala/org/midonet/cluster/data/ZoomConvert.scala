@@ -24,7 +24,8 @@ import scala.collection.JavaConversions._
 import scala.collection.concurrent.TrieMap
 
 import com.google.common.base.Defaults
-import com.google.protobuf.Descriptors.{EnumDescriptor, EnumValueDescriptor}
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType
+import com.google.protobuf.Descriptors.{Descriptor, EnumDescriptor, EnumValueDescriptor, FieldDescriptor}
 import com.google.protobuf.GeneratedMessage.Builder
 import com.google.protobuf.{ByteString, Descriptors, Message}
 
@@ -61,10 +62,8 @@ object ZoomConvert {
     private type ProtoBuilder = Builder[_ <: Builder[_ <: AnyRef]]
 
     private case class ConverterKey(clazz: Class[_], converter: Class[_])
-    private case class FieldInfo(field: Field, zoomField: ZoomField)
-    private case class ClassInfo(clazz: Class[_], zoomClass: ZoomClass,
-                                 zoomOneOf: ZoomOneOf,
-                                 fieldsInfo: Seq[FieldInfo])
+    private case class PlanKey(clazz: Class[_], descriptor: Descriptor)
+    private case class EnumKey(clazz: Class[_], name: String)
 
     private val converters =
         new TrieMap[Class[_ <: Converter[_,_]], Converter[_,_]]
@@ -77,6 +76,16 @@ object ZoomConvert {
     private val jSetConverters = new TrieMap[ConverterKey, JavaSetConverter]
 
     private val factories = new TrieMap[Class[_ <: Factory[_,_]], Factory[_,_]]
+    private val classFactories = new TrieMap[Class[_], Option[Factory[_,_]]]
+
+    // Caches of the reflection and descriptor lookups, such that they are
+    // performed only once for every Java class and message type.
+    private val classPlans = new TrieMap[PlanKey, ClassPlan]
+    private val constructorPlans = new TrieMap[PlanKey, ConstructorPlan]
+    private val defaultConstructors = new TrieMap[Class[_], Option[Constructor[_]]]
+    private val builderMethods = new TrieMap[Class[_], Method]
+    private val enumsToProto = new TrieMap[Enum[_], EnumValueDescriptor]
+    private val enumsFromProto = new TrieMap[EnumKey, AnyRef]
 
     /**
      * Converts a Java object to a Protocol Buffers message.
@@ -172,10 +181,130 @@ object ZoomConvert {
     }
 
 
+    /**
+     * The conversion plan for a level in the inheritance hierarchy of a Java
+     * object, and the descriptor of the top message. The plan caches the
+     * annotations, fields, field descriptors and converters of the level, such
+     * that the reflection and descriptor lookups are performed only once.
+     * Errors are reported when the plan is used, in the same order as the
+     * fields are converted.
+     */
+    private final class ClassPlan(val clazz: Class[_], descriptor: Descriptor) {
+
+        private val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+
+        /** The plan of the super class, or null if the conversion does not
+          * include the super class. */
+        val superPlan: ClassPlan =
+            if (clazz != classOf[ZoomObject] &&
+                clazz.getSuperclass != classOf[ZoomObject] &&
+                (zoomClass == null || !zoomClass.skipSuper))
+                classPlan(clazz.getSuperclass, descriptor)
+            else null
+
+        /** The descriptor of the message at the super level. */
+        val superDescriptor: Descriptor =
+            if (superPlan ne null) superPlan.thisDescriptor else descriptor
+
+        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+
+        /** The one-of field, or null if the class does not have a one-of
+          * annotation or the message does not have the field. */
+        val oneOfField: FieldDescriptor =
+            if ((zoomOneOf ne null) && (superDescriptor ne null))
+                superDescriptor.findFieldByName(zoomOneOf.name)
+            else null
+
+        /** The descriptor of the message at this level, or null if the
+          * message cannot be determined, in which case the conversion fails
+          * before converting the fields of this level. */
+        val thisDescriptor: Descriptor =
+            if (zoomOneOf eq null) superDescriptor
+            else if ((oneOfField ne null) &&
+                     oneOfField.getJavaType == JavaType.MESSAGE)
+                oneOfField.getMessageType
+            else null
+
+        val fields: Array[FieldPlan] =
+            if (thisDescriptor eq null) Array.empty
+            else for (pojoField <- clazz.getDeclaredFields;
+                      zoomField = pojoField.getAnnotation(classOf[ZoomField])
+                      if zoomField ne null) yield {
+                pojoField.setAccessible(true)
+                new FieldPlan(pojoField, zoomField, thisDescriptor)
+            }
+    }
+
+    /**
+     * The conversion plan for a Java object field.
+     */
+    private final class FieldPlan(val field: Field, val zoomField: ZoomField,
+                                  descriptor: Descriptor) {
+        val messageName = descriptor.getName
+        val protoField = descriptor.findFieldByName(zoomField.name)
+        val genericType = field.getGenericType
+        // The converter is created on first use, such that any error is
+        // reported while converting the field.
+        lazy val converter =
+            getConverter(field.getType, genericType, protoField, zoomField)
+    }
+
+    /**
+     * The conversion plan for a Java class that is created using a [[Zoom]]
+     * constructor.
+     */
+    private final class ConstructorPlan(clazz: Class[_],
+                                        descriptor: Descriptor) {
+        val constructor = getZoomConstructor(clazz)
+        val paramTypes = constructor.getParameterTypes
+        val params = {
+            val genericTypes = constructor.getGenericParameterTypes
+            val annotations = constructor.getParameterAnnotations
+            for (index <- paramTypes.indices.toArray) yield {
+                val zoomField = annotations(index)
+                    .find(_.annotationType() == classOf[ZoomField])
+                    .orNull.asInstanceOf[ZoomField]
+                new ParamPlan(paramTypes(index), genericTypes(index), zoomField,
+                              descriptor)
+            }
+        }
+    }
+
+    /**
+     * The conversion plan for a constructor parameter.
+     */
+    private final class ParamPlan(val paramType: Class[_],
+                                  val genericType: Type,
+                                  val zoomField: ZoomField,
+                                  descriptor: Descriptor) {
+        val messageName = descriptor.getName
+        val protoField =
+            if (zoomField ne null) descriptor.findFieldByName(zoomField.name)
+            else null
+        lazy val converter =
+            getConverter(paramType, genericType, protoField, zoomField)
+    }
+
+    private def classPlan(clazz: Class[_], descriptor: Descriptor): ClassPlan = {
+        val key = PlanKey(clazz, descriptor)
+        classPlans.getOrElse(key, {
+            val plan = new ClassPlan(clazz, descriptor)
+            classPlans.putIfAbsent(key, plan).getOrElse(plan)
+        })
+    }
+
+    private def constructorPlan(clazz: Class[_], descriptor: Descriptor)
+    : ConstructorPlan = {
+        val key = PlanKey(clazz, descriptor)
+        constructorPlans.getOrElse(key, {
+            val plan = new ConstructorPlan(clazz, descriptor)
+            constructorPlans.putIfAbsent(key, plan).getOrElse(plan)
+        })
+    }
+
     /**
      * Internal method to convert a Java object to the corresponding Protocol
-     * Buffers message. The method is called recursively to convert the fields
-     * from all classes in the object's inheritance hierarchy.
+     * Buffers message.
      *
      * @param pojo The Java object.
      * @param clazz The Java object class, representing the level in the
@@ -185,55 +314,53 @@ object ZoomConvert {
      */
     private def to[T <: ZoomObject, U <: Message](
             pojo: T, clazz: Class[_], topBuilder: ProtoBuilder): ProtoBuilder = {
+        to(pojo, classPlan(clazz, topBuilder.getDescriptorForType), topBuilder)
+    }
 
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+    /**
+     * Converts the fields of a Java object using the given plan. The method is
+     * called recursively to convert the fields from all classes in the
+     * object's inheritance hierarchy.
+     */
+    private def to[T <: ZoomObject](pojo: T, plan: ClassPlan,
+                                    topBuilder: ProtoBuilder): ProtoBuilder = {
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         val superBuilder =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                to(pojo, clazz.getSuperclass, topBuilder)
+            if (plan.superPlan ne null) to(pojo, plan.superPlan, topBuilder)
             else topBuilder
 
         // If the class has a one-of annotation, get the builder from the one-of
         // field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
-        val thisBuilder = if (zoomOneOf ne null) {
-            val superDescriptor = superBuilder.getDescriptorForType
-            val oneOfField = superDescriptor.findFieldByName(zoomOneOf.name)
-            if (oneOfField eq null) {
+        val thisBuilder = if (plan.zoomOneOf ne null) {
+            if (plan.oneOfField eq null) {
                 throw new ConvertException(
-                    s"Message ${superDescriptor.getName} does not have a " +
-                    s"one-of field ${zoomOneOf.name}")
+                    s"Message ${superBuilder.getDescriptorForType.getName} " +
+                    s"does not have a one-of field ${plan.zoomOneOf.name}")
             }
-            superBuilder.getFieldBuilder(oneOfField).asInstanceOf[ProtoBuilder]
+            superBuilder.getFieldBuilder(plan.oneOfField)
+                        .asInstanceOf[ProtoBuilder]
         } else superBuilder
 
-        // Get the descriptor for the current builder.
-        val descriptor = thisBuilder.getDescriptorForType
-
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        val fields = plan.fields
+        var index = 0
+        while (index < fields.length) {
+            val field = fields(index)
+            val protoField = field.protoField
 
             // Verify the field exists.
             if (protoField eq null) {
                 throw new ConvertException(
-                    s"Message ${descriptor.getName} does not have a " +
-                    s"field with name ${zoomField.name}")
+                    s"Message ${field.messageName} does not have a " +
+                    s"field with name ${field.zoomField.name}")
             }
             try {
                 // Get the field value.
-                val pojoValue = pojo.getField(pojoField)
+                val pojoValue = field.field.get(pojo)
                 // Ignore the null fields.
                 if (null != pojoValue) {
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
-                    val protoValue = converter.to(pojoValue,
-                                                  pojoField.getGenericType)
+                    val protoValue = field.converter.to(pojoValue,
+                                                        field.genericType)
                     thisBuilder.setField(protoField, protoValue)
                 }
             } catch {
@@ -241,13 +368,14 @@ object ZoomConvert {
                           _ : IllegalAccessException |
                           _ : IllegalArgumentException |
                           _ : ClassCastException) =>
-                    val msg = s"Class $clazz failed to convert field " +
-                              s"${zoomField.name} from Java type " +
-                              s"${pojoField.getType} to Protocol Buffers " +
+                    val msg = s"Class ${plan.clazz} failed to convert field " +
+                              s"${field.zoomField.name} from Java type " +
+                              s"${field.field.getType} to Protocol Buffers " +
                               s"type ${protoField.getType}"
                     log.error(msg, e)
                     throw new ConvertException(msg, e)
             }
+            index += 1
         }
 
         thisBuilder
@@ -255,11 +383,9 @@ object ZoomConvert {
 
     /**
      * Internal method to convert a Protocol Buffers message to the
-     * corresponding Java object. The method is called recursively to convert
-     * the fields from all classes in the object's inheritance hierarchy. The
-     * method converts these fields from a single or multiple messages,
-     * depending on the inheritance policy specified by the [[ZoomClass]]
-     * and [[ZoomOneOf]] annotations.
+     * corresponding Java object. The method converts the fields from a single
+     * or multiple messages, depending on the inheritance policy specified by
+     * the [[ZoomClass]] and [[ZoomOneOf]] annotations.
      *
      * @param proto The Protocol Buffers message.
      * @param pojo The Java object class, representing the level in the object's
@@ -269,63 +395,60 @@ object ZoomConvert {
      */
     private def from[T <: ZoomObject, U <: Message]
                     (proto: U, pojo: T, clazz: Class[_]): Message = {
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        from(proto, pojo, classPlan(clazz, proto.getDescriptorForType))
+    }
 
+    /**
+     * Converts the fields of a Java object using the given plan. The method is
+     * called recursively to convert the fields from all classes in the
+     * object's inheritance hierarchy.
+     */
+    private def from[T <: ZoomObject](proto: Message, pojo: T,
+                                      plan: ClassPlan): Message = {
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         var message =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                from(proto, pojo, clazz.getSuperclass)
+            if (plan.superPlan ne null) from(proto, pojo, plan.superPlan)
             else proto
 
-        // Get the descriptor for the current message.
-        var descriptor = message.getDescriptorForType
-
         // If the class has a one-of annotation, extract the message from
         // the one-of field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
-        if (zoomOneOf ne null) {
-            val oneOfField = descriptor.findFieldByName(zoomOneOf.name)
-            message = if (oneOfField eq null) {
+        if (plan.zoomOneOf ne null) {
+            val descriptor = message.getDescriptorForType
+            message = if (plan.oneOfField eq null) {
                 throw new ConvertException(
                     s"Message ${descriptor.getName} does not have a " +
-                    s"one-of field ${zoomOneOf.name}")
-            } else message.getField(oneOfField) match {
-                case msg: Message =>
-                    descriptor = msg.getDescriptorForType
-                    msg
+                    s"one-of field ${plan.zoomOneOf.name}")
+            } else message.getField(plan.oneOfField) match {
+                case msg: Message => msg
                 case _ =>
                     throw new ConvertException(
                         s"Message ${descriptor.getName} one-of field " +
-                        s"${zoomOneOf.name} is not a Protocol Buffers " +
+                        s"${plan.zoomOneOf.name} is not a Protocol Buffers " +
                         s"message")
             }
         }
 
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        val fields = plan.fields
+        var index = 0
+        while (index < fields.length) {
+            val field = fields(index)
+            val protoField = field.protoField
 
             // Verify the field exists.
             if (protoField eq null) {
                 throw new ConvertException(
-                    s"Message ${descriptor.getName} does not have a " +
-                    s"field ${zoomField.name}")
+                    s"Message ${field.messageName} does not have a " +
+                    s"field ${field.zoomField.name}")
             } else if (protoField.isRepeated || protoField.hasDefaultValue ||
                        message.hasField(protoField)) {
                 // We ignore unset message fields, and let the corresponding
                 // Java object field set to the its type-default value.
                 try {
                     val protoValue = message.getField(protoField)
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
-                    val pojoValue = converter.from(protoValue,
-                                                   pojoField.getGenericType)
-                    pojo.setField(pojoField, pojoValue)
+                    val pojoValue = field.converter.from(protoValue,
+                                                         field.genericType)
+                    field.field.set(pojo, pojoValue)
                 } catch {
                     case e @ (_ : InstantiationException |
                               _ : IllegalAccessException |
@@ -333,11 +456,12 @@ object ZoomConvert {
                               _ : NullPointerException) =>
                         throw new ConvertException(
                             s"Class ${pojo.getClass} failed to convert " +
-                            s"field ${zoomField.name} from Protocol Buffers " +
-                            s"type ${protoField.getType} to Java type " +
-                            s"${pojoField.getType}", e)
+                            s"field ${field.zoomField.name} from Protocol " +
+                            s"Buffers type ${protoField.getType} to Java " +
+                            s"type ${field.field.getType}", e)
                 }
             }
+            index += 1
         }
 
         message
@@ -353,43 +477,33 @@ object ZoomConvert {
      */
     private def fromNew[T <: ZoomObject, U <: Message]
                        (proto: U, clazz: Class[T]): T = {
-        val constructor = getZoomConstructor(clazz)
-
-        // Get the descriptor for the current message.
-        val descriptor = proto.getDescriptorForType
-
-        val paramTypes = constructor.getParameterTypes
-        val paramGenericTypes = constructor.getGenericParameterTypes
-        val paramAnnotations = constructor.getParameterAnnotations
-        val params = new Array[Object](paramTypes.length)
+        val plan = constructorPlan(clazz, proto.getDescriptorForType)
+        val params = new Array[Object](plan.params.length)
 
         for (index <- params.indices) {
-            val zoomField = paramAnnotations(index)
-                .find(_.annotationType() == classOf[ZoomField])
-                .getOrElse(throw new ConvertException(
+            val param = plan.params(index)
+            if (param.zoomField eq null) {
+                throw new ConvertException(
                     s"Constructor parameter $index requires a ZoomField " +
-                    s"annotation"))
-                .asInstanceOf[ZoomField]
+                    s"annotation")
+            }
 
-            val protoField = descriptor.findFieldByName(zoomField.name)
+            val protoField = param.protoField
 
             // Verify the field exists.
             if (protoField eq null) {
                 throw new ConvertException(
-                    s"Message ${descriptor.getName} does not have a " +
-                    s"field ${zoomField.name}")
+                    s"Message ${param.messageName} does not have a " +
+                    s"field ${param.zoomField.name}")
             } else if (protoField.isRepeated || protoField.hasDefaultValue ||
                        proto.hasField(protoField)) {
                 // We ignore unset message fields, and let the corresponding
                 // Java object field set to the its type-default value.
                 try {
                     val protoValue = proto.getField(protoField)
-                    val converter = getConverter(paramTypes(index),
-                                                 paramGenericTypes(index),
-                                                 protoField, zoomField)
-                    params(index) = converter.from(protoValue,
-                                                   paramGenericTypes(index))
-                                             .asInstanceOf[AnyRef]
+                    params(index) = param.converter.from(protoValue,
+                                                         param.genericType)
+                                         .asInstanceOf[AnyRef]
                 } catch {
                     case e @ (_ : InstantiationException |
                               _ : IllegalAccessException |
@@ -397,17 +511,17 @@ object ZoomConvert {
                               _ : NullPointerException) =>
                         throw new ConvertException(
                             s"Class $clazz failed to convert constructor" +
-                            s"parameter ${zoomField.name} from Protocol Buffers " +
+                            s"parameter ${param.zoomField.name} from Protocol Buffers " +
                             s"type ${protoField.getType} to Java type " +
-                            s"${paramTypes(index)}", e)
+                            s"${param.paramType}", e)
                 }
             } else {
-                params(index) = Defaults.defaultValue(paramTypes(index))
+                params(index) = Defaults.defaultValue(param.paramType)
                                         .asInstanceOf[Object]
             }
         }
 
-        constructor.newInstance(params: _*).asInstanceOf[T]
+        plan.constructor.newInstance(params: _*).asInstanceOf[T]
     }
 
     /**
@@ -417,7 +531,8 @@ object ZoomConvert {
      */
     private def newBuilder[U <: Message](clazz: Class[U]): ProtoBuilder = {
         try {
-            clazz.getMethod(ZoomConvert.BuilderMethod)
+            builderMethods.getOrElseUpdate(
+                clazz, clazz.getMethod(ZoomConvert.BuilderMethod))
                 .invoke(null).asInstanceOf[ProtoBuilder]
         } catch {
             case e @ (_ : NoSuchMethodException |
@@ -441,18 +556,21 @@ object ZoomConvert {
     private def newFactory[T <: ZoomObject, U <: Message]
                           (proto: U, clazz: Class[_]): Class[_] = {
         var factory = clazz
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
-
-        if (null != zoomClass &&
-            !zoomClass.factory().equals(classOf[DefaultFactory])) {
-            factories.getOrElseUpdate(zoomClass.factory(),
-                                      zoomClass.factory().newInstance())
-                .asInstanceOf[Factory[_, U]]
-                .getType(proto) match {
-                case c: Class[_] if clazz != c =>
-                    factory = newFactory(proto, c)
-                case _ =>
-            }
+        classFactories.getOrElseUpdate(clazz, {
+            val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+            if (null != zoomClass &&
+                !zoomClass.factory().equals(classOf[DefaultFactory])) {
+                Some(factories.getOrElseUpdate(
+                    zoomClass.factory(), zoomClass.factory().newInstance()))
+            } else None
+        }) match {
+            case Some(f) =>
+                f.asInstanceOf[Factory[_, U]].getType(proto) match {
+                    case c: Class[_] if clazz != c =>
+                        factory = newFactory(proto, c)
+                    case _ =>
+                }
+            case None =>
         }
         factory
     }
@@ -461,13 +579,15 @@ object ZoomConvert {
      * Returns the default constructor for the given class.
      */
     private def getDefaultConstructor(clazz: Class[_]): Constructor[_] = {
-        try {
-            val c = clazz.getDeclaredConstructor()
-            c.setAccessible(true)
-            c
-        } catch {
-            case ex: NoSuchMethodException => null
-        }
+        defaultConstructors.getOrElseUpdate(clazz, {
+            try {
+                val c = clazz.getDeclaredConstructor()
+                c.setAccessible(true)
+                Some(c)
+            } catch {
+                case ex: NoSuchMethodException => None
+            }
+        }).orNull
     }
 
     /**
@@ -676,6 +796,10 @@ object ZoomConvert {
                             s"annotation or a custom converter")
                     }
                 val pojoEnumVal = pojoValue.asInstanceOf[Enum[_]]
+                val cached = enumsToProto.getOrElse(pojoEnumVal, null)
+                if (cached ne null) {
+                    return cached
+                }
                 val enumValue = enumClass.getField(pojoEnumVal.name) match {
                     case field: Field =>
                         field.getAnnotation(classOf[ZoomEnumValue]) match {
@@ -688,10 +812,15 @@ object ZoomConvert {
                         s"Enumeration $clazz does not have field $pojoValue")
                 }
                 try {
-                    protoEnum.getMethod(ZoomConvert.DescriptorMethod)
-                             .invoke(null)
-                             .asInstanceOf[EnumDescriptor]
-                             .findValueByName(enumValue)
+                    val protoValue =
+                        protoEnum.getMethod(ZoomConvert.DescriptorMethod)
+                                 .invoke(null)
+                                 .asInstanceOf[EnumDescriptor]
+                                 .findValueByName(enumValue)
+                    if (protoValue ne null) {
+                        enumsToProto.putIfAbsent(pojoEnumVal, protoValue)
+                    }
+                    protoValue
                 } catch {
                     case e @ (_ : NoSuchMethodException |
                               _ : IllegalAccessException |
@@ -725,6 +854,11 @@ object ZoomConvert {
                         s"Cannot convert $protoValue to enumeration $clazz " +
                         s"because is not a Protocol Buffers enum value")
                 }
+                val key = EnumKey(enumClass, protoEnumName)
+                val cached = enumsFromProto.getOrElse(key, null)
+                if (cached ne null) {
+                    return cached
+                }
                 enumClass.getFields.find(field => {
                     field.isEnumConstant &&
                     (field.getAnnotation(classOf[ZoomEnumValue]) match {
@@ -735,7 +869,10 @@ object ZoomConvert {
                             s"a ZoomEnumValue annotation")
                     })
                 }) match {
-                    case Some(pojoField) => pojoField.get(null)
+                    case Some(pojoField) =>
+                        val pojoValue = pojoField.get(null)
+                        enumsFromProto.putIfAbsent(key, pojoValue)
+                        pojoValue
                     case None => throw new ConvertException(
                         s"Enumeration $clazz does not have a field matching " +
                         s"value $protoValue of Protocol Buffers $protoEnum")
@@ -893,7 +893,8 @@ object InMemoryStorage {
     var namespaceId = new UUID(0L, 0L)
 
     private def copyObj[T](obj: T): T =
-        deserialize(serialize(obj.asInstanceOf[Obj]), obj.getClass)
+        deserialize(serialize(obj.asInstanceOf[Obj], binary = true),
+                    obj.getClass)
 
     private def asObservable[T](f: => T)
     : Observable[T] = {
@@ -33,7 +33,7 @@ import com.codahale.metrics.MetricRegistry
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.google.common.annotations.VisibleForTesting
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
@@ -113,7 +113,9 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                             protected override val failFastCurator: CuratorFramework,
                             protected override val stateTables: StateTableClient,
                             protected override val reactor: Reactor,
-                            metricsRegistry: MetricRegistry = null)
+                            metricsRegistry: MetricRegistry = null,
+                            binaryFormat: Boolean = false,
+                            readThrough: Boolean = false)
     extends ZookeeperObjectState with ZookeeperStateTable with Storage
     with StorageInternals {
 
@@ -187,6 +189,12 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
      * object loaded from Zookeeper will not have the first backreference
      * added. Since updates are not incremental, the first backreference will
      * be lost.
+     *
+     * When read-through is enabled, the manager reads the objects that have a
+     * started object observable from the observable's cache instead of
+     * ZooKeeper. The version of these objects is checked when the transaction
+     * is committed, such that the transaction fails with a
+     * [[ConcurrentModificationException]] if any of them was stale.
      */
     private class ZoomTransactionManager(val version: Long)
             extends TransactionManager(classInfo.toMap, allBindings)
@@ -212,10 +220,35 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                 "Could not acquire current zxid.", ex)
         }
 
+        // The versions of the objects read from the object observable cache,
+        // which must be checked when committing the transaction.
+        private val cachedVersions = new mutable.HashMap[Key, Int]
+
         private def getPath(clazz: Class[_], id: ObjId) = {
             ZookeeperObjectMapper.this.objectPath(clazz, id, version)
         }
 
+        /**
+         * Returns the snapshot of the specified object from the cache of its
+         * object observable, or null if the observable is not started or if
+         * its current data is more recent than the transaction.
+         */
+        private def cachedSnapshot(key: Key, path: String): ObjSnapshot = {
+            val entry = objectObservables.getOrElse(key, null)
+            if ((entry eq null) || (entry.nodeObservable eq null) ||
+                !entry.nodeObservable.isStarted) {
+                return null
+            }
+            val data = entry.nodeObservable.current
+            if ((data eq null) || (data.getStat eq null) ||
+                (data.getData eq null) || data.getPath != path ||
+                data.getStat.getMzxid > zxid) {
+                return null
+            }
+            ObjSnapshot(deserialize(data.getData, key.clazz).asInstanceOf[Obj],
+                        data.getStat.getVersion)
+        }
+
         override def isRegistered(clazz: Class[_]): Boolean = {
             ZookeeperObjectMapper.this.isRegistered(clazz)
         }
@@ -224,11 +257,23 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         : Observable[ObjSnapshot] = {
             val path = getPath(clazz, id)
 
+            if (readThrough) {
+                val key = getKey(clazz, id)
+                val snapshot = cachedSnapshot(key, path)
+                if (snapshot ne null) {
+                    metrics.transactionCacheHit()
+                    cachedVersions(key) = snapshot.version
+                    return Observable.just(snapshot)
+                }
+                metrics.transactionCacheMiss()
+            }
+
             asObservable {
                 curator.getData.inBackground(_).forPath(path)
             } map[Notification[ObjSnapshot]] makeFunc1 { event =>
                 if (event.getResultCode == Code.OK.intValue()) {
                     if (event.getStat.getMzxid > zxid) {
+                        metrics.transactionRetry()
                         createOnError(new ConcurrentModificationException(
                             s"${clazz.getSimpleName} with ID " +
                             s"${getIdString(clazz, id)} was modified during " +
@@ -280,12 +325,12 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                 case TxCreate(obj) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Create: $path")
-                    txn.create.forPath(path, serialize(obj)).and
+                    txn.create.forPath(path, serialize(obj, binaryFormat)).and
                 case TxUpdate(obj, ver) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Update ($ver): $path")
                     txn.setData().withVersion(ver)
-                        .forPath(path, serialize(obj)).and
+                        .forPath(path, serialize(obj, binaryFormat)).and
                 case TxDelete(ver) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Delete ($ver): $path")
@@ -304,6 +349,15 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                         "TxNodeExists should have been filtered by flattenOps.")
             }
 
+            // Objects read from the cache and not modified by the transaction
+            // have no versioned operation: check that their version did not
+            // change since they were cached.
+            for ((key, ver) <- cachedVersions if !this.ops.contains(key)) {
+                val path = getPath(key.clazz, key.id)
+                log.debug(s"Check ($ver): $path")
+                txn = txn.check().withVersion(ver).forPath(path).and
+            }
+
             val startTime = System.nanoTime()
             try {
                 txn.commit()
@@ -312,6 +366,7 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                     // NoNodeException is assumed to be due to concurrent delete
                     // operation because we already successfully fetched any
                     // objects that are being updated.
+                    metrics.transactionRetry()
                     throw new ConcurrentModificationException(bve)
                 case e: KeeperException =>
                     metrics.count(e)
@@ -356,8 +411,10 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
          */
         private def opForException(ops: Seq[(Key, TxOp)], e: KeeperException)
         : (Key, TxOp) = {
-            ops(e.getResults.asScala.indexWhere { case res: ErrorResult =>
-                res.getErr == e.code.intValue })
+            // The index may be past the last operation when the failed
+            // operation is a version check of a cached object.
+            ops.lift(e.getResults.asScala.indexWhere { case res: ErrorResult =>
+                res.getErr == e.code.intValue }).orNull
         }
 
         /**
@@ -386,13 +443,16 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                         throw new StorageNodeNotFoundException(path)
                     case (Key(_, path), TxDeleteNode) =>
                         throw new StorageNodeNotFoundException(path)
-                    case _ => throw new ConcurrentModificationException(e)
+                    case _ =>
+                        metrics.transactionRetry()
+                        throw new ConcurrentModificationException(e)
                 }
             case e: NotEmptyException => opForException(ops, e) match {
                 case (_, TxDeleteNode) =>
                     // We added operations to delete all descendants, so this
                     // should only happen if there was a concurrent
                     // modification.
+                    metrics.transactionRetry()
                     throw new ConcurrentModificationException(e)
                 case _ => throw new InternalObjectMapperException(e)
             }
@@ -719,6 +779,61 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         }).clazz.asInstanceOf[Observable[Observable[T]]]
     }
 
+    /**
+     * Rewrites in binary format the nodes of all registered protocol buffer
+     * classes that are still stored in text format, and returns the number
+     * of rewritten nodes. The migration can run while the storage is in use:
+     * every node is rewritten conditionally on the version that was read,
+     * and nodes modified in the meantime are read and rewritten again.
+     * Transactions that read a node before it was rewritten fail with a
+     * [[ConcurrentModificationException]] and can be retried, as for any
+     * other concurrent update.
+     *
+     * Agents and cluster nodes that only read the text format cannot read
+     * the rewritten nodes, so the migration must run only after all of them
+     * have been upgraded.
+     */
+    def migrateToBinaryFormat(): Int = {
+        assertBuilt()
+        var count = 0
+        for (clazz <- classInfo.keys
+             if classOf[Message].isAssignableFrom(clazz)) {
+            val path = classPath(clazz)
+            val ids = try curator.getChildren.forPath(path).asScala
+                      catch { case e: NoNodeException => Seq.empty }
+            for (id <- ids) {
+                if (migrateNode(clazz, path + "/" + id)) count += 1
+            }
+            log.info(s"Migrated ${clazz.getSimpleName} objects to binary " +
+                     "format")
+        }
+        count
+    }
+
+    private def migrateNode(clazz: Class[_], path: String): Boolean = {
+        while (true) {
+            val stat = new Stat
+            val data = try curator.getData.storingStatIn(stat).forPath(path)
+                       catch { case e: NoNodeException => return false }
+            if (isBinary(data)) {
+                return false
+            }
+            val obj = deserialize(data, clazz).asInstanceOf[Obj]
+            try {
+                curator.setData().withVersion(stat.getVersion)
+                       .forPath(path, serialize(obj, binary = true))
+                return true
+            } catch {
+                case e: BadVersionException =>
+                    log.debug(s"Node $path modified during migration: " +
+                              "retrying")
+                case e: NoNodeException =>
+                    return false
+            }
+        }
+        false
+    }
+
     // We should have public subscription methods, but we don't currently
     // need them, and this is easier to implement for testing.
     @VisibleForTesting
@@ -791,6 +906,10 @@ object ZookeeperObjectMapper {
     private val jsonFactory = new JsonFactory(new ObjectMapper())
     private val deserializers =
         new TrieMap[Class[_], Func1[ChildData, Notification[_]]]
+    private val prototypes = new TrieMap[Class[_], Message]
+
+    /** The header byte of nodes in version 1 of the binary format. */
+    final val BinaryFormatV1: Byte = 0x01
 
     private[storage] def makeInfo(clazz: Class[_])
     : ClassInfo = {
@@ -808,8 +927,17 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private[storage] def serialize(obj: Obj): Array[Byte] = {
+    /**
+     * Serializes an object for storage. Protocol buffer messages are written
+     * in text format, or in binary format when `binary` is set. Binary nodes
+     * start with a format header byte, which never starts a text or JSON
+     * node, such that both formats can be read back transparently during
+     * an upgrade.
+     */
+    private[storage] def serialize(obj: Obj, binary: Boolean = false)
+    : Array[Byte] = {
         obj match {
+            case msg: Message if binary => serializeBinaryMessage(msg)
             case msg: Message => serializeMessage(msg)
             case pojo => serializePojo(pojo)
         }
@@ -819,6 +947,15 @@ object ZookeeperObjectMapper {
         msg.toString.getBytes
     }
 
+    private def serializeBinaryMessage(msg: Message): Array[Byte] = {
+        val data = new Array[Byte](msg.getSerializedSize + 1)
+        data(0) = BinaryFormatV1
+        val output = CodedOutputStream.newInstance(data, 1, data.length - 1)
+        msg.writeTo(output)
+        output.checkNoSpaceLeft()
+        data
+    }
+
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
         try {
@@ -851,10 +988,29 @@ object ZookeeperObjectMapper {
     }
 
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
-        builder.build().asInstanceOf[T]
+        val prototype = prototypeOf(clazz)
+        if (isBinary(data)) {
+            prototype.getParserForType
+                     .parseFrom(data, 1, data.length - 1).asInstanceOf[T]
+        } else {
+            val builder = prototype.newBuilderForType()
+            TextFormat.merge(new String(data), builder)
+            builder.build().asInstanceOf[T]
+        }
+    }
+
+    private def prototypeOf(clazz: Class[_]): Message = {
+        prototypes.getOrElseUpdate(
+            clazz,
+            clazz.getMethod("getDefaultInstance").invoke(null)
+                .asInstanceOf[Message])
+    }
+
+    /**
+     * Indicates whether the data of a node is in binary format.
+     */
+    private[storage] def isBinary(data: Array[Byte]): Boolean = {
+        (data ne null) && data.length > 0 && data(0) == BinaryFormatV1
     }
 
     private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
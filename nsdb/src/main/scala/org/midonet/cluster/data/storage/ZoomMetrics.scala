@@ -113,6 +113,39 @@ trait ZoomMetrics {
      */
     def zkNoNodeTriggered(): Unit
 
+    /**
+     * The number of transaction reads served from the object cache.
+     */
+    protected val transactionCacheHitCount = new AtomicLong
+
+    /**
+     * The number of transaction reads that were not found in the object cache
+     * and were read from ZooKeeper.
+     */
+    protected val transactionCacheMissCount = new AtomicLong
+
+    /**
+     * The number of transactions that failed with a concurrent modification,
+     * and that must be retried.
+     */
+    protected val transactionRetryCount = new AtomicLong
+
+    /**
+     * Increment the count of transaction reads served from the object cache.
+     */
+    def transactionCacheHit(): Unit
+
+    /**
+     * Increment the count of transaction reads not found in the object cache.
+     */
+    def transactionCacheMiss(): Unit
+
+    /**
+     * Increment the count of transactions failed with a concurrent
+     * modification.
+     */
+    def transactionRetry(): Unit
+
     /**
      * A listener for changes in ZooKeeper connection state.
      */
@@ -130,6 +163,9 @@ object BlackHoleZoomMetrics extends ZoomMetrics {
     override def observableClosedPrematurely(): Unit = {}
     override def zkNoNodeTriggered(): Unit = {}
     override def zkNodeExistsTriggered(): Unit = {}
+    override def transactionCacheHit(): Unit = {}
+    override def transactionCacheMiss(): Unit = {}
+    override def transactionRetry(): Unit = {}
     override def zkConnectionStateListener(): ConnectionStateListener =
         new ConnectionStateListener {
             override def stateChanged(client: CuratorFramework,
@@ -188,6 +224,18 @@ class JmxZoomMetrics(zoom: ZookeeperObjectMapper, registry: MetricRegistry)
                           gauge { zkNodeExistsCount.get })
         registry.register(metricPrefix + "ZKConnectionLostExceptionCount",
                           gauge { zkConnectionLossCount.get })
+        registry.register(metricPrefix + "TransactionCacheHitCount",
+                          gauge { transactionCacheHitCount.get })
+        registry.register(metricPrefix + "TransactionCacheMissCount",
+                          gauge { transactionCacheMissCount.get })
+        registry.register(metricPrefix + "TransactionCacheHitRatio",
+                          gauge { () =>
+                              val hits = transactionCacheHitCount.get
+                              val total = hits + transactionCacheMissCount.get
+                              if (total == 0) 0d else hits.toDouble / total
+                          })
+        registry.register(metricPrefix + "TransactionRetryCount",
+                          gauge { transactionRetryCount.get })
 
         readLatencies = registry.histogram(metricPrefix + "readMicroSec")
         readChildrenLatencies = registry.histogram(metricPrefix +
@@ -225,6 +273,13 @@ class JmxZoomMetrics(zoom: ZookeeperObjectMapper, registry: MetricRegistry)
     override def zkNodeExistsTriggered(): Unit =
         zkNodeExistsCount.incrementAndGet()
 
+    override def transactionCacheHit(): Unit =
+        transactionCacheHitCount.incrementAndGet()
+    override def transactionCacheMiss(): Unit =
+        transactionCacheMissCount.incrementAndGet()
+    override def transactionRetry(): Unit =
+        transactionRetryCount.incrementAndGet()
+
     override def zkConnectionStateListener(): ConnectionStateListener = {
         new ConnectionStateListener {
             override def stateChanged(client: CuratorFramework,
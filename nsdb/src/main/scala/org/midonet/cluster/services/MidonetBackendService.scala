@@ -420,7 +420,9 @@ class MidonetBackendService(config: MidonetBackendConfig,
     private val zoom =
         new ZookeeperObjectMapper(config.rootKey, namespaceId.toString, curator,
                                   failFastCurator, stateTableClientWrapper,
-                                  reactor, metricRegistry)
+                                  reactor, metricRegistry,
+                                  config.binarySerialization,
+                                  config.transactionReadThrough)
 
     override def store: Storage = zoom
     override def stateStore: StateStorage = zoom
@@ -36,6 +36,8 @@ class MidonetBackendConfig(val conf: Config) {
     def maxRetries = conf.getInt("zookeeper.max_retries")
     def retryMs = conf.getDuration("zookeeper.base_retry", TimeUnit.MILLISECONDS)
     def bufferSize = conf.getInt("zookeeper.buffer_size")
+    def binarySerialization = conf.getBoolean("zookeeper.binary_serialization")
+    def transactionReadThrough = conf.getBoolean("zookeeper.transaction_read_through")
     def stateClient = new StateProxyClientConfig(conf)
 }
 
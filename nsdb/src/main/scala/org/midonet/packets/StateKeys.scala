@@ -32,25 +32,26 @@ object FlowStateStore {
 }
 
 object NatState {
-    sealed abstract class KeyType {
+    /** A NAT key type, with a distinct ordinal for every type. */
+    sealed abstract class KeyType(val ordinal: Int) {
         def inverse: KeyType
     }
-    case object FWD_SNAT extends KeyType {
+    case object FWD_SNAT extends KeyType(0) {
         def inverse = REV_SNAT
     }
-    case object FWD_DNAT extends KeyType {
+    case object FWD_DNAT extends KeyType(1) {
         def inverse = REV_DNAT
     }
-    case object FWD_STICKY_DNAT extends KeyType {
+    case object FWD_STICKY_DNAT extends KeyType(2) {
         def inverse = REV_STICKY_DNAT
     }
-    case object REV_SNAT extends KeyType {
+    case object REV_SNAT extends KeyType(3) {
         def inverse = FWD_SNAT
     }
-    case object REV_DNAT extends KeyType {
+    case object REV_DNAT extends KeyType(4) {
         def inverse = FWD_DNAT
     }
-    case object REV_STICKY_DNAT extends KeyType {
+    case object REV_STICKY_DNAT extends KeyType(5) {
         def inverse = FWD_STICKY_DNAT
     }
 
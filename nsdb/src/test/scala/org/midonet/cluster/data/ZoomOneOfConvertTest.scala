@@ -138,6 +138,28 @@ class ZoomOneOfConvertTest extends FeatureSpec with Matchers {
         }
     }
 
+    feature("Test repeated conversions") {
+        scenario("Conversions reusing the cached plans are identical") {
+            for (pojo <- Seq(newFirst, newSecond, newThirdAlpha, newThirdBeta,
+                             newFirst, newThirdBeta)) {
+                val proto1 = ZoomConvert.toProto(pojo, classOf[TestOneOfMessage])
+                val proto2 = ZoomConvert.toProto(pojo, classOf[TestOneOfMessage])
+
+                proto1 shouldBe proto2
+                pojo shouldEqual proto1
+
+                val copy1 = ZoomConvert.fromProto(proto1, classOf[Base])
+                val copy2 = ZoomConvert.fromProto(proto2, classOf[Base])
+
+                copy1.getClass shouldBe pojo.getClass
+                copy2.getClass shouldBe pojo.getClass
+                copy1 shouldEqual proto1
+                copy2 shouldEqual proto2
+                ZoomConvert.toProto(copy2, classOf[TestOneOfMessage]) shouldBe proto1
+            }
+        }
+    }
+
     private def newDeviceMessage: FakeDevice = {
         FakeDevice.newBuilder
             .setId(UUID.randomUUID.asProto)
@@ -19,6 +19,8 @@ import java.util.{ConcurrentModificationException, UUID}
 
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
+
 import org.junit.runner.RunWith
 import org.scalatest.GivenWhenThen
 import org.scalatest.junit.JUnitRunner
@@ -26,7 +28,10 @@ import org.scalatest.junit.JUnitRunner
 import rx.Observable
 import rx.observers.TestObserver
 
+import org.midonet.cluster.data.ObjId
 import org.midonet.cluster.data.storage.StorageTestClasses._
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+import org.midonet.cluster.models.Topology.{Network, Router}
 import org.midonet.cluster.util.MidonetBackendTest
 import org.midonet.util.reactivex.{AwaitableObserver, TestAwaitableObserver}
 
@@ -668,4 +673,204 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
                 s"$zkRoot/zoom/${zoom.version}/models/PojoBridge"
         }
     }
+
+    feature("Test binary format") {
+        scenario("Messages are serialized in binary format") {
+            Given("A router")
+            val router = createProtoRouter(name = "router",
+                                           inChainId = UUID.randomUUID,
+                                           outChainId = UUID.randomUUID)
+
+            When("Serializing the router in binary format")
+            val data = serialize(router, binary = true)
+
+            Then("The data starts with the format header")
+            data(0) shouldBe BinaryFormatV1
+            isBinary(data) shouldBe true
+
+            And("The data is the binary encoding of the router")
+            data.drop(1) shouldBe router.toByteArray
+            deserialize(data, classOf[Router]) shouldBe router
+
+            And("Text and JSON data is not binary")
+            isBinary(serialize(router)) shouldBe false
+            isBinary(serialize(createPojoBridge())) shouldBe false
+            deserialize(serialize(router), classOf[Router]) shouldBe router
+        }
+
+        scenario("Empty messages are serialized in binary format") {
+            val router = Router.getDefaultInstance
+            val data = serialize(router, binary = true)
+            data shouldBe Array(BinaryFormatV1)
+            deserialize(data, classOf[Router]) shouldBe router
+            deserialize(serialize(router), classOf[Router]) shouldBe router
+        }
+
+        scenario("Storage reads objects written in both formats") {
+            Given("A storage writing in binary format")
+            val binaryZoom = new ZookeeperObjectMapper(
+                zkRoot, hostId, curator, curator, stateTables, reactor,
+                binaryFormat = true)
+            initAndBuildStorage(binaryZoom)
+
+            When("Creating a network in each format")
+            val network1 = createProtoNetwork(name = "network1")
+            val network2 = createProtoNetwork(name = "network2")
+            zoom.create(network1)
+            binaryZoom.create(network2)
+
+            Then("The networks are stored in the requested format")
+            isBinary(nodeData(classOf[Network], network1.getId)) shouldBe false
+            isBinary(nodeData(classOf[Network], network2.getId)) shouldBe true
+
+            And("Both storages read both networks")
+            for (store <- Seq(zoom, binaryZoom)) {
+                await(store.get(classOf[Network], network1.getId)) shouldBe
+                    network1
+                await(store.get(classOf[Network], network2.getId)) shouldBe
+                    network2
+            }
+        }
+
+        scenario("Objects in text format are migrated to binary format") {
+            Given("A network and a router in text format")
+            val network = createProtoNetwork(name = "network")
+            val router = createProtoRouter(name = "router")
+            val bridge = createPojoBridge(name = "bridge")
+            zoom.multi(Seq(CreateOp(network), CreateOp(router),
+                           CreateOp(bridge)))
+
+            When("Migrating the storage")
+            zoom.migrateToBinaryFormat() shouldBe 2
+
+            Then("The messages are stored in binary format")
+            isBinary(nodeData(classOf[Network], network.getId)) shouldBe true
+            isBinary(nodeData(classOf[Router], router.getId)) shouldBe true
+            isBinary(nodeData(classOf[PojoBridge], bridge.id)) shouldBe false
+
+            And("The objects are unchanged")
+            await(zoom.get(classOf[Network], network.getId)) shouldBe network
+            await(zoom.get(classOf[Router], router.getId)) shouldBe router
+
+            And("Objects already in binary format are not migrated again")
+            zoom.migrateToBinaryFormat() shouldBe 0
+
+            And("Objects can be updated after the migration")
+            val updated = network.toBuilder.setName("updated").build()
+            zoom.update(updated)
+            await(zoom.get(classOf[Network], network.getId)) shouldBe updated
+        }
+    }
+
+    feature("Test transaction read-through") {
+        scenario("Transactions read watched objects from the cache") {
+            Given("A storage with transaction read-through")
+            val registry = new MetricRegistry
+            val cachedZoom = readThroughStorage(registry)
+
+            And("Two bridges, where only the first is watched")
+            val bridge1 = createPojoBridge(name = "bridge1")
+            val bridge2 = createPojoBridge(name = "bridge2")
+            zoom.multi(Seq(CreateOp(bridge1), CreateOp(bridge2)))
+            val observer = new TestAwaitableObserver[PojoBridge]
+            cachedZoom.observable(classOf[PojoBridge], bridge1.id)
+                      .subscribe(observer)
+            observer.awaitOnNext(1, timeout)
+
+            When("A transaction reads both bridges")
+            val tx = cachedZoom.transaction()
+            tx.get(classOf[PojoBridge], bridge1.id) shouldBe bridge1
+            tx.get(classOf[PojoBridge], bridge2.id) shouldBe bridge2
+
+            Then("Only the watched bridge is read from the cache")
+            gauge(registry, cachedZoom, "TransactionCacheHitCount") shouldBe 1
+            gauge(registry, cachedZoom, "TransactionCacheMissCount") shouldBe 1
+
+            And("The transaction can update the cached bridge")
+            val bridge3 = createPojoBridge(id = bridge1.id, name = "bridge3")
+            tx.update(bridge3)
+            tx.commit()
+            await(zoom.get(classOf[PojoBridge], bridge1.id)) shouldBe bridge3
+            gauge(registry, cachedZoom, "TransactionRetryCount") shouldBe 0
+        }
+
+        scenario("Transactions fail if a cached object is modified before commit") {
+            Given("A storage with transaction read-through")
+            val registry = new MetricRegistry
+            val cachedZoom = readThroughStorage(registry)
+
+            And("A watched bridge")
+            val bridge1 = createPojoBridge(name = "bridge1")
+            zoom.create(bridge1)
+            val observer = new TestAwaitableObserver[PojoBridge]
+            cachedZoom.observable(classOf[PojoBridge], bridge1.id)
+                      .subscribe(observer)
+            observer.awaitOnNext(1, timeout)
+
+            When("A transaction reads the bridge and creates another bridge")
+            val tx = cachedZoom.transaction()
+            tx.get(classOf[PojoBridge], bridge1.id) shouldBe bridge1
+            val bridge2 = createPojoBridge(name = "bridge2")
+            tx.create(bridge2)
+
+            And("The bridge is modified before the commit")
+            zoom.update(createPojoBridge(id = bridge1.id, name = "modified"))
+
+            Then("The commit fails")
+            intercept[ConcurrentModificationException] {
+                tx.commit()
+            }
+            gauge(registry, cachedZoom, "TransactionCacheHitCount") shouldBe 1
+            gauge(registry, cachedZoom, "TransactionRetryCount") shouldBe 1
+
+            And("The second bridge is not created")
+            await(zoom.exists(classOf[PojoBridge], bridge2.id)) shouldBe false
+        }
+
+        scenario("Transactions fail if a cached object is deleted before commit") {
+            Given("A storage with transaction read-through")
+            val registry = new MetricRegistry
+            val cachedZoom = readThroughStorage(registry)
+
+            And("A watched bridge")
+            val bridge1 = createPojoBridge(name = "bridge1")
+            zoom.create(bridge1)
+            val observer = new TestAwaitableObserver[PojoBridge]
+            cachedZoom.observable(classOf[PojoBridge], bridge1.id)
+                      .subscribe(observer)
+            observer.awaitOnNext(1, timeout)
+
+            When("A transaction reads the bridge and creates another bridge")
+            val tx = cachedZoom.transaction()
+            tx.get(classOf[PojoBridge], bridge1.id) shouldBe bridge1
+            tx.create(createPojoBridge(name = "bridge2"))
+
+            And("The bridge is deleted before the commit")
+            zoom.delete(classOf[PojoBridge], bridge1.id)
+
+            Then("The commit fails")
+            intercept[ConcurrentModificationException] {
+                tx.commit()
+            }
+            gauge(registry, cachedZoom, "TransactionRetryCount") shouldBe 1
+        }
+    }
+
+    private def readThroughStorage(registry: MetricRegistry)
+    : ZookeeperObjectMapper = {
+        val store = new ZookeeperObjectMapper(
+            zkRoot, hostId, curator, curator, stateTables, reactor, registry,
+            readThrough = true)
+        initAndBuildStorage(store)
+        store
+    }
+
+    private def gauge(registry: MetricRegistry, store: ZookeeperObjectMapper,
+                      name: String): Any = {
+        registry.getGauges.get(s"Zoom-${store.basePath}/$name").getValue
+    }
+
+    private def nodeData(clazz: Class[_], id: ObjId): Array[Byte] = {
+        curator.getData.forPath(zoom.objectPath(clazz, id))
+    }
 }